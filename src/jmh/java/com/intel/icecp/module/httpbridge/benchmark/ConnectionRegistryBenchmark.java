@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.benchmark;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.icecp.module.httpbridge.ConcurrentLongHashMap;
+import com.intel.icecp.module.httpbridge.HttpConnectionIdGenerator;
+
+/**
+ * Compares the connection registry and connectionId generation of the module with the previous implementation (a boxed {@link ConcurrentHashMap} and a
+ * {@link SecureRandom} loop), with 100k live connections.
+ * <p>
+ * Run with: {@code mvn -P benchmarks test-compile exec:exec -Djmh.args="ConnectionRegistryBenchmark -prof gc"}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConnectionRegistryBenchmark {
+    @Param({ "100000" })
+    public int liveConnections;
+
+    private long[] ids;
+    private final Object detail = new Object();
+    private ConcurrentMap<Long, Object> boxedMap;
+    private ConcurrentLongHashMap<Object> longMap;
+    private final Random secureRandom = new SecureRandom();
+    private final HttpConnectionIdGenerator idGenerator = new HttpConnectionIdGenerator();
+
+    @Setup
+    public void setup() {
+        ids = new long[liveConnections];
+        boxedMap = new ConcurrentHashMap<>();
+        longMap = new ConcurrentLongHashMap<>();
+        for (int i = 0; i < liveConnections; i++) {
+            ids[i] = idGenerator.nextId();
+            boxedMap.put(ids[i], detail);
+            longMap.put(ids[i], detail);
+        }
+    }
+
+    private long liveId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    @Benchmark
+    public Object lookupBoxed() {
+        return boxedMap.get(liveId());
+    }
+
+    @Benchmark
+    public Object lookupLong() {
+        return longMap.get(liveId());
+    }
+
+    @Benchmark
+    public Object churnBoxed() {
+        long id = ThreadLocalRandom.current().nextLong() | 1;
+        boxedMap.put(id, detail);
+        return boxedMap.remove(id);
+    }
+
+    @Benchmark
+    public Object churnLong() {
+        long id = ThreadLocalRandom.current().nextLong() | 1;
+        longMap.put(id, detail);
+        return longMap.remove(id);
+    }
+
+    @Benchmark
+    public long createIdSecureRandom() {
+        long id;
+        do {
+            id = secureRandom.nextLong();
+        } while (boxedMap.containsKey(id));
+        return id;
+    }
+
+    @Benchmark
+    public long createIdGenerator() {
+        long id;
+        do {
+            id = idGenerator.nextId();
+        } while (longMap.containsKey(id));
+        return id;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.icecp.core.Node;
+import com.intel.icecp.module.httpbridge.HttpAccessLog;
+import com.intel.icecp.module.httpbridge.HttpBridgeMetrics;
+import com.intel.icecp.module.httpbridge.HttpBridgeSettings;
+import com.intel.icecp.module.httpbridge.HttpChannelCache;
+import com.intel.icecp.module.httpbridge.HttpConnectionLease;
+import com.intel.icecp.module.httpbridge.HttpConnectionTask;
+import com.intel.icecp.module.httpbridge.HttpPollTimer;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.node.NodeFactory;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs data commands through {@link HttpConnectionTask#executeDataCommand} against an in-process http server, the same path the request workers take. The
+ * response body is published on an output channel of an in-process test node.
+ * <p>
+ * The server answers every request with bodyBytes bytes and headerCount headers, and the data command sends headerCount request headers. Throughput and
+ * the latency distribution are reported; add {@code -prof gc} for the allocation rate and {@code -t} for concurrency:
+ * {@code mvn -P benchmarks test-compile exec:exec -Djmh.args="ExecuteCommandBenchmark -t 8 -prof gc"}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteCommandBenchmark {
+    @Param({ "0", "1024", "65536", "1048576" })
+    public int bodyBytes;
+
+    @Param({ "0", "8", "32" })
+    public int headerCount;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Node node;
+    private HttpChannelCache channelCache;
+    private HttpConnectionTask connectionTask;
+    private Map<String, String> requestHeaders;
+    private URI outputChannelURI;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] body = new byte[bodyBytes];
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        serverExecutor = Executors.newFixedThreadPool(16);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                while (is.read() != -1) {
+                    // Drain the request.
+                }
+            }
+            for (int i = 0; i < headerCount; i++)
+                exchange.getResponseHeaders().add("X-Benchmark-" + i, "value-" + i);
+            boolean hasBody = body.length > 0 && !"HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(200, hasBody ? body.length : -1);
+            if (hasBody) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        requestHeaders = new HashMap<>();
+        for (int i = 0; i < headerCount; i++)
+            requestHeaders.put("X-Benchmark-" + i, "value-" + i);
+
+        node = NodeFactory.buildTestNode("/benchmark/httpbridge");
+        node.start();
+        outputChannelURI = new URI(node.getDefaultUri().toString() + "/benchmark-output");
+        channelCache = new HttpChannelCache(node, 64, 60, TimeUnit.SECONDS);
+
+        HttpSetupMessage setupMessage = new HttpSetupMessage();
+        setupMessage.connectionId = 1;
+        setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        connectionTask = new HttpConnectionTask(node, setupMessage, channelCache, new HttpConnectionLease(0, TimeUnit.SECONDS), null,
+                new HttpBridgeMetrics(), new HttpBridgeSettings(), new HttpAccessLog(), new HttpPollTimer());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channelCache.closeAll();
+        node.stop();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private HttpDataMessage execute(String httpRequest, URI outputURI) {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = httpRequest;
+        dataMessage.requestHeaders = requestHeaders;
+        dataMessage.outputHttpChannelURI = outputURI;
+        connectionTask.executeDataCommand(dataMessage);
+        if (dataMessage.status != HTTP_BRIDGE_STATUS.OK)
+            throw new IllegalStateException("Data command failed with " + dataMessage.status);
+        return dataMessage;
+    }
+
+    /**
+     * A GET with the response body published on the output channel.
+     */
+    @Benchmark
+    public HttpDataMessage get() {
+        return execute("GET", outputChannelURI);
+    }
+
+    /**
+     * A HEAD, without output channel: the connection, header and response code path alone.
+     */
+    @Benchmark
+    public HttpDataMessage head() {
+        return execute("HEAD", null);
+    }
+}
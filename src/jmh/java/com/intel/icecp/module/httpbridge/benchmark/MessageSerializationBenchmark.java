@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intel.icecp.module.httpbridge.HttpBridgeMetrics;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * Measures the JSON serialization of the module messages, as done by the channels for every command and reply: a setup command, a data command with
+ * headerCount request headers, its reply with headerCount response headers and the request timing, and a metrics snapshot.
+ * <p>
+ * Run with: {@code mvn -P benchmarks test-compile exec:exec -Djmh.args="MessageSerializationBenchmark -prof gc"}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSerializationBenchmark {
+    @Param({ "0", "8", "32" })
+    public int headerCount;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private HttpSetupMessage setupMessage;
+    private HttpDataMessage dataCommand;
+    private HttpDataMessage dataReply;
+    private byte[] dataReplyBytes;
+    private HttpMetricsMessage metricsMessage;
+
+    @Setup
+    public void setup() throws Exception {
+        URI returnURI = new URI("ndn:/intel/node/benchmark/CMD-RETURN");
+        setupMessage = new HttpSetupMessage(returnURI);
+        setupMessage.connectionUrl = new URL("http://127.0.0.1:8080/benchmark");
+
+        dataCommand = new HttpDataMessage(1234567890123L);
+        dataCommand.cmdReturnChannelURI = returnURI;
+        dataCommand.outputHttpChannelURI = new URI("ndn:/intel/node/benchmark/output");
+        dataCommand.httpRequest = "GET";
+        dataCommand.requestHeaders = new HashMap<>();
+        for (int i = 0; i < headerCount; i++)
+            dataCommand.requestHeaders.put("X-Benchmark-" + i, "value-" + i);
+
+        dataReply = new HttpDataMessage(1234567890123L);
+        dataReply.cmdReturnChannelURI = returnURI;
+        dataReply.httpRequest = "GET";
+        dataReply.requestHeaders = dataCommand.requestHeaders;
+        dataReply.responseCode = 200;
+        dataReply.responseMessage = "OK";
+        dataReply.responseHeaders = new HashMap<>();
+        for (int i = 0; i < headerCount; i++)
+            dataReply.responseHeaders.put("X-Benchmark-" + i, Collections.singletonList("value-" + i));
+        dataReply.timing = new HttpRequestTiming();
+        dataReply.timing.startMillis = System.currentTimeMillis();
+        dataReply.timing.connectNanos = 120000;
+        dataReply.timing.firstByteNanos = 800000;
+        dataReply.timing.totalNanos = 1000000;
+        dataReply.timing.responseBytes = 4096;
+        dataReplyBytes = mapper.writeValueAsBytes(dataReply);
+
+        HttpBridgeMetrics metrics = new HttpBridgeMetrics();
+        for (int i = 0; i < 1000; i++)
+            metrics.recordRequest("host" + (i % 4) + ".example.com", dataReply, dataReply.timing);
+        metricsMessage = new HttpMetricsMessage();
+        metrics.snapshot(metricsMessage);
+    }
+
+    @Benchmark
+    public byte[] writeSetupCommand() throws IOException {
+        return mapper.writeValueAsBytes(setupMessage);
+    }
+
+    @Benchmark
+    public byte[] writeDataCommand() throws IOException {
+        return mapper.writeValueAsBytes(dataCommand);
+    }
+
+    @Benchmark
+    public byte[] writeDataReply() throws IOException {
+        return mapper.writeValueAsBytes(dataReply);
+    }
+
+    @Benchmark
+    public HttpBaseMessage readDataReply() throws IOException {
+        return mapper.readValue(dataReplyBytes, HttpBaseMessage.class);
+    }
+
+    @Benchmark
+    public byte[] writeMetricsSnapshot() throws IOException {
+        return mapper.writeValueAsBytes(metricsMessage);
+    }
+}
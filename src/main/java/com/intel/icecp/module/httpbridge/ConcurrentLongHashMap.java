@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map with primitive long keys, used as the connection registry. Keys are never boxed. The map is split in sections, each an open addressing
+ * table guarded by a {@link StampedLock}. Lookups are optimistic and take no lock unless a writer changed the section meanwhile.
+ * <p>
+ * The key 0 is reserved to mark empty slots, it cannot be stored. Connection ids are never 0. Null values are not allowed.
+ *
+ * @param <V>
+ *            The type of the values
+ */
+public class ConcurrentLongHashMap<V> {
+    private static final long EMPTY_KEY = 0L;
+    private static final float LOAD_FACTOR = 0.66f;
+    private static final int DEFAULT_EXPECTED_ITEMS = 256;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private final Section<V>[] sections;
+
+    /**
+     * Create a map sized for a few hundred entries.
+     */
+    public ConcurrentLongHashMap() {
+        this(DEFAULT_EXPECTED_ITEMS, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create a map.
+     *
+     * @param expectedItems
+     *            The number of entries the map is sized for, it grows beyond that as needed.
+     * @param concurrencyLevel
+     *            The number of sections, rounded up to a power of two.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongHashMap(int expectedItems, int concurrencyLevel) {
+        if (expectedItems < 0 || concurrencyLevel < 1)
+            throw new IllegalArgumentException(String.format("Invalid expected items [%d] concurrency level [%d]", expectedItems, concurrencyLevel));
+
+        int sectionCount = nextPowerOfTwo(concurrencyLevel);
+        int perSection = (int) Math.ceil((double) expectedItems / sectionCount / LOAD_FACTOR);
+        sections = new Section[sectionCount];
+        for (int i = 0; i < sectionCount; i++)
+            sections[i] = new Section<>(nextPowerOfTwo(Math.max(perSection, 8)));
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return The value of the key, or null if not found.
+     */
+    public V get(long key) {
+        if (key == EMPTY_KEY)
+            return null;
+        long h = hash(key);
+        return sectionFor(h).get(key, (int) h);
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return True if the key is in the map.
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Store a value, replacing the current value of the key.
+     *
+     * @return The previous value, or null if there was none.
+     */
+    public V put(long key, V value) {
+        checkEntry(key, value);
+        long h = hash(key);
+        return sectionFor(h).put(key, value, (int) h, false);
+    }
+
+    /**
+     * Store a value, unless the key already has one.
+     *
+     * @return The current value, or null if the value was stored.
+     */
+    public V putIfAbsent(long key, V value) {
+        checkEntry(key, value);
+        long h = hash(key);
+        return sectionFor(h).put(key, value, (int) h, true);
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @return The removed value, or null if the key was not found.
+     */
+    public V remove(long key) {
+        if (key == EMPTY_KEY)
+            return null;
+        long h = hash(key);
+        return sectionFor(h).remove(key, (int) h);
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Section<V> section : sections)
+            size += section.size;
+        return size;
+    }
+
+    /**
+     * @return True if the map has no entries.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return A snapshot of the values. Each section is copied under its read lock, the map may change while the other sections are copied.
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        for (Section<V> section : sections)
+            section.copyValues(values);
+        return values;
+    }
+
+    /**
+     * @return A snapshot of the keys, copied like {@link #values()}.
+     */
+    public long[] keys() {
+        LongList keys = new LongList(size());
+        for (Section<V> section : sections)
+            section.copyKeys(keys);
+        return Arrays.copyOf(keys.items, keys.size);
+    }
+
+    private Section<V> sectionFor(long hash) {
+        return sections[(int) (hash >>> 32) & (sections.length - 1)];
+    }
+
+    private static void checkEntry(long key, Object value) {
+        if (key == EMPTY_KEY)
+            throw new IllegalArgumentException("Key 0 is reserved");
+        if (value == null)
+            throw new NullPointerException("Null values are not allowed");
+    }
+
+    /**
+     * Mix all the bits of the key (MurmurHash3 finalizer). The high half picks the section, the low half the slot.
+     */
+    private static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * A growable list of keys.
+     */
+    private static final class LongList {
+        long[] items;
+        int size = 0;
+
+        LongList(int capacity) {
+            items = new long[Math.max(capacity, 8)];
+        }
+
+        void add(long item) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+        }
+    }
+
+    /**
+     * The keys and values of a section. Replaced as a whole when the section grows, so an optimistic reader always sees arrays of the same length.
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        /**
+         * @return The slot of the key, or the negated (minus one) empty slot where it would be stored.
+         */
+        int indexOf(long key, int hash) {
+            int mask = keys.length - 1;
+            int index = hash & mask;
+            // The probe is bounded, an optimistic reader may see a table being changed.
+            for (int n = 0; n < keys.length; n++) {
+                long k = keys[index];
+                if (k == key)
+                    return index;
+                if (k == EMPTY_KEY)
+                    return -index - 1;
+                index = (index + 1) & mask;
+            }
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Section<V> extends StampedLock {
+        private volatile Table table;
+        private volatile int size = 0;
+        private int resizeThreshold;
+
+        Section(int capacity) {
+            table = new Table(capacity);
+            resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        V get(long key, int hash) {
+            long stamp = tryOptimisticRead();
+            Object value = find(table, key, hash);
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    value = find(table, key, hash);
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return cast(value);
+        }
+
+        V put(long key, V value, int hash, boolean onlyIfAbsent) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                int index = t.indexOf(key, hash);
+                if (index >= 0) {
+                    V previous = cast(t.values[index]);
+                    if (!onlyIfAbsent)
+                        t.values[index] = value;
+                    return previous;
+                }
+                index = -index - 1;
+                // The value is stored first, a reader that finds the key always finds its value.
+                t.values[index] = value;
+                t.keys[index] = key;
+                if (++size > resizeThreshold)
+                    rehash(t.keys.length * 2);
+                return null;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        V remove(long key, int hash) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                int index = t.indexOf(key, hash);
+                if (index < 0)
+                    return null;
+                V previous = cast(t.values[index]);
+                size--;
+                shiftBack(t, index);
+                return previous;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        void copyValues(List<V> target) {
+            long stamp = readLock();
+            try {
+                Table t = table;
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.keys[i] != EMPTY_KEY)
+                        target.add(cast(t.values[i]));
+                }
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        void copyKeys(LongList target) {
+            long stamp = readLock();
+            try {
+                Table t = table;
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.keys[i] != EMPTY_KEY)
+                        target.add(t.keys[i]);
+                }
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        private static Object find(Table t, long key, int hash) {
+            int index = t.indexOf(key, hash);
+            return index >= 0 ? t.values[index] : null;
+        }
+
+        /**
+         * Empty a slot, and move back the entries that follow it in the probe sequence, so no tombstones are needed.
+         */
+        private static void shiftBack(Table t, int gap) {
+            int mask = t.keys.length - 1;
+            int index = gap;
+            while (true) {
+                index = (index + 1) & mask;
+                long k = t.keys[index];
+                if (k == EMPTY_KEY)
+                    break;
+                int home = (int) hash(k) & mask;
+                // Move the entry if the gap lies between its home slot and its slot.
+                if (((index - home) & mask) >= ((index - gap) & mask)) {
+                    t.keys[gap] = k;
+                    t.values[gap] = t.values[index];
+                    gap = index;
+                }
+            }
+            t.keys[gap] = EMPTY_KEY;
+            t.values[gap] = null;
+        }
+
+        private void rehash(int capacity) {
+            Table old = table;
+            Table grown = new Table(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                long k = old.keys[i];
+                if (k != EMPTY_KEY) {
+                    int index = -grown.indexOf(k, (int) hash(k)) - 1;
+                    grown.keys[index] = k;
+                    grown.values[index] = old.values[i];
+                }
+            }
+            table = grown;
+            resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> V cast(Object value) {
+            return (V) value;
+        }
+    }
+}
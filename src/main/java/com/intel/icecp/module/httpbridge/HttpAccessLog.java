@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+
+/**
+ * The access log of the data commands: one line per command, written to the {@value #ACCESS_LOGGER_NAME} logger by a writer thread.
+ * <p>
+ * The request threads copy the fields of the command in a preallocated slot of a ring buffer, claimed with a compare and set, and return. They never take a
+ * lock, never format and never wait for the logger. When the ring is full the record is dropped and counted. The writer thread drains the ring, formats the
+ * lines and logs them.
+ * <p>
+ * Successful commands are sampled, 1 in sampleEvery is logged. Failed commands are always logged. On top of that, at most maxPerSecond records are logged, the
+ * others are counted. A sampleEvery of 0 disables the access log.
+ *
+ */
+public class HttpAccessLog {
+    /**
+     * The name of the logger the lines are written to. Route it to its own appender in the log4j configuration.
+     */
+    public static final String ACCESS_LOGGER_NAME = "com.intel.icecp.module.httpbridge.access";
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Logger accessLogger = LogManager.getLogger(ACCESS_LOGGER_NAME);
+
+    /**
+     * How long the writer sleeps when the ring is empty. Polling spares the request threads from waking the writer.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int sampleEvery;
+    private final HttpRateLimiter rateLimiter;
+
+    private final Record[] records;
+    /**
+     * The sequence of each slot: equal to the position when free for a producer, to position + 1 when filled for the writer.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    /**
+     * The next position claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The next position read by the writer. Only used by the writer.
+     */
+    private long head = 0;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder capped = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final StringBuilder line = new StringBuilder(256);
+    private volatile Thread writer;
+    private volatile boolean stopping = false;
+
+    /**
+     * Create a disabled access log.
+     */
+    public HttpAccessLog() {
+        this(0, 0, 1);
+    }
+
+    /**
+     * Create an access log. It writes nothing until started.
+     *
+     * @param sampleEvery
+     *            Log 1 in sampleEvery successful commands, 0 to disable the access log.
+     * @param maxPerSecond
+     *            The maximum number of records logged per second, 0 for no limit.
+     * @param capacity
+     *            The number of records the ring holds, rounded up to a power of two.
+     */
+    public HttpAccessLog(int sampleEvery, long maxPerSecond, int capacity) {
+        if (sampleEvery < 0 || maxPerSecond < 0 || capacity < 1)
+            throw new IllegalArgumentException(String.format("Invalid sample every [%d] max per second [%d] capacity [%d]", sampleEvery, maxPerSecond,
+                    capacity));
+        this.sampleEvery = sampleEvery;
+        this.rateLimiter = new HttpRateLimiter(maxPerSecond, (int) Math.max(1, Math.min(maxPerSecond, Integer.MAX_VALUE)));
+
+        int size = sampleEvery == 0 ? 1 : capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.records = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return True unless the access log was created with a sampleEvery of 0.
+     */
+    public boolean isEnabled() {
+        return sampleEvery > 0;
+    }
+
+    /**
+     * Start the writer thread. Does nothing if the access log is disabled.
+     */
+    public synchronized void start() {
+        if (!isEnabled() || writer != null)
+            return;
+        writer = new Thread(this::writeLoop, "HttpBridge-AccessLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer thread, after it wrote the records already in the ring.
+     */
+    public void shutdown() {
+        Thread thread = writer;
+        stopping = true;
+        if (thread == null)
+            return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record a data command. Called by the request threads, never blocks.
+     *
+     * @param url
+     *            The url the command was sent to, the endpoint selected for it when the connection has several. May be null.
+     * @param dataMessage
+     *            The command, with its status set
+     * @param timing
+     *            The timing of the command, null if it was rejected before it ran
+     * @return True if the record was queued for the writer.
+     */
+    public boolean record(URL url, HttpDataMessage dataMessage, HttpRequestTiming timing) {
+        if (sampleEvery == 0)
+            return false;
+        if (dataMessage.status == HTTP_BRIDGE_STATUS.OK && sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            sampledOut.increment();
+            return false;
+        }
+        if (!rateLimiter.tryAcquire()) {
+            capped.increment();
+            return false;
+        }
+
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        Record record = records[index];
+        record.timestampMillis = timing != null ? timing.startMillis : System.currentTimeMillis();
+        record.connectionId = dataMessage.connectionId;
+        record.method = dataMessage.httpRequest;
+        record.host = url != null ? url.getHost() : null;
+        record.path = url != null ? url.getPath() : null;
+        record.status = dataMessage.status;
+        record.responseCode = dataMessage.responseCode;
+        record.requestBytes = timing != null ? timing.requestBytes : 0;
+        record.responseBytes = timing != null ? timing.responseBytes : 0;
+        record.totalNanos = timing != null ? timing.totalNanos : 0;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * @return The number of records written to the logger.
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of successful commands not logged because of sampling.
+     */
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    /**
+     * @return The number of records not logged because of maxPerSecond.
+     */
+    public long getCapped() {
+        return capped.sum();
+    }
+
+    /**
+     * @return The number of records dropped because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write the records in the ring. Only called by one thread at a time, the writer thread once started.
+     *
+     * @return The number of records written.
+     */
+    int drain() {
+        int count = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                return count;
+            format(records[index]);
+            sequences.lazySet(index, head + records.length);
+            head++;
+            write(line);
+            written.increment();
+            count++;
+        }
+    }
+
+    /**
+     * Write a line to the access logger.
+     *
+     * @param line
+     *            The formatted record, reused for the next record.
+     */
+    protected void write(CharSequence line) {
+        accessLogger.info(line.toString());
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean stop = stopping;
+            try {
+                if (drain() == 0) {
+                    if (stop)
+                        return;
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Failed to write the access log", e);
+            }
+        }
+    }
+
+    private void format(Record record) {
+        line.setLength(0);
+        line.append("ts=").append(record.timestampMillis);
+        line.append(" id=").append(record.connectionId);
+        line.append(" method=").append(record.method);
+        line.append(" host=").append(record.host);
+        line.append(" path=").append(record.path);
+        line.append(" status=").append(record.status);
+        line.append(" code=").append(record.responseCode);
+        line.append(" reqBytes=").append(record.requestBytes);
+        line.append(" respBytes=").append(record.responseBytes);
+        line.append(" micros=").append(TimeUnit.NANOSECONDS.toMicros(record.totalNanos));
+    }
+
+    /**
+     * A slot of the ring. Filled by a request thread, read by the writer.
+     */
+    private static final class Record {
+        long timestampMillis;
+        long connectionId;
+        String method;
+        String host;
+        String path;
+        HTTP_BRIDGE_STATUS status;
+        int responseCode;
+        long requestBytes;
+        long responseBytes;
+        long totalNanos;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response body cut off at {@link com.intel.icecp.module.httpbridge.message.HttpDataMessage#maxBodyBytes}. Past the limit it ends, and is marked
+ * truncated, or fails with an IOException, depending on the policy of the data command. A body of exactly the limit is read whole.
+ *
+ */
+public class HttpBodyLimitStream extends FilterInputStream {
+    private final long maxBytes;
+    private final boolean truncate;
+    private long count = 0;
+    private boolean truncated = false;
+
+    /**
+     * Limit a body.
+     *
+     * @param in
+     *            The body.
+     * @param maxBytes
+     *            The largest body, 0 for no limit.
+     * @param truncate
+     *            True to end the body at the limit, false to fail.
+     */
+    public HttpBodyLimitStream(InputStream in, long maxBytes, boolean truncate) {
+        super(in);
+        this.maxBytes = maxBytes;
+        this.truncate = truncate;
+    }
+
+    /**
+     * @return True if the body was longer than the limit and was cut off.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (maxBytes == 0)
+            return in.read(b, off, len);
+        if (truncated)
+            return -1;
+        long remaining = maxBytes - count;
+        if (remaining == 0) {
+            // At the limit, the body is over it only if there is one more byte.
+            if (in.read() == -1)
+                return -1;
+            if (!truncate)
+                throw new IOException(String.format("Response body is larger than [%d] bytes", maxBytes));
+            truncated = true;
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0)
+            count += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        int skipped = read(buffer, 0, buffer.length);
+        return Math.max(skipped, 0);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.misc.Configuration;
+
+/**
+ * Reads the tuning values of the module from the module configuration (configuration/config.json). Every value is optional, and the default is used when a
+ * value is missing or cannot be read.
+ *
+ */
+public class HttpBridgeConfiguration {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The number of data command workers.
+     */
+    public static final String REQUEST_WORKERS = "requestWorkers";
+
+    /**
+     * The number of data command workers reserved for HIGH priority commands.
+     */
+    public static final String RESERVED_HIGH_PRIORITY_WORKERS = "reservedHighPriorityWorkers";
+
+    /**
+     * The maximum number of running data commands per tenant.
+     */
+    public static final String MAX_WORKERS_PER_TENANT = "maxWorkersPerTenant";
+
+    /**
+     * The maximum number of data commands waiting for a worker. Further commands are rejected with ERROR_ON_OVERLOAD. HIGH priority commands are counted
+     * apart and have as many of their own.
+     */
+    public static final String MAX_QUEUED_COMMANDS = "maxQueuedCommands";
+
+    /**
+     * The maximum time in milliseconds a data command may wait for a worker. Older commands are rejected with ERROR_ON_OVERLOAD.
+     */
+    public static final String MAX_QUEUE_MILLIS = "maxQueueMillis";
+
+    /**
+     * The number of threads running the module commands (setup, teardown, keepalive).
+     */
+    public static final String COMMAND_DISPATCH_THREADS = "commandDispatchThreads";
+
+    /**
+     * The maximum number of module commands waiting per dispatch thread. Further commands are rejected with ERROR_ON_OVERLOAD.
+     */
+    public static final String COMMAND_QUEUE_CAPACITY = "commandQueueCapacity";
+
+    /**
+     * The period in seconds of the metrics snapshots published on the metrics channel. 0 disables publishing.
+     */
+    public static final String METRICS_PERIOD_SECONDS = "metricsPeriodSeconds";
+
+    /**
+     * Set to true to keep and publish the metrics of each connection, not only of each host.
+     */
+    public static final String METRICS_PER_CONNECTION = "metricsPerConnection";
+
+    /**
+     * The lease in seconds of the connections that do not ask for one.
+     */
+    public static final String DEFAULT_LEASE_SECONDS = "defaultLeaseSeconds";
+
+    /**
+     * The connect and read timeouts of the http requests in milliseconds, 0 for no timeout.
+     */
+    public static final String CONNECT_TIMEOUT_MILLIS = "connectTimeoutMillis";
+    public static final String READ_TIMEOUT_MILLIS = "readTimeoutMillis";
+
+    /**
+     * The maximum rate of data commands of the module, 0 for no limit, and the number allowed at once over the rate.
+     */
+    public static final String MAX_REQUESTS_PER_SECOND = "maxRequestsPerSecond";
+    public static final String REQUEST_BURST = "requestBurst";
+
+    /**
+     * Data commands shorter than this, in milliseconds, are not recorded by the flight recorder. 0 records every data command of an enabled recording.
+     */
+    public static final String JFR_THRESHOLD_MILLIS = "jfrThresholdMillis";
+
+    /**
+     * The access log: 1 in accessLogSampleEvery successful data commands is logged (0 disables the access log), at most accessLogMaxPerSecond records are
+     * logged per second (0 for no limit), and accessLogBufferSize records wait for the writer before new ones are dropped.
+     */
+    public static final String ACCESS_LOG_SAMPLE_EVERY = "accessLogSampleEvery";
+    public static final String ACCESS_LOG_MAX_PER_SECOND = "accessLogMaxPerSecond";
+    public static final String ACCESS_LOG_BUFFER_SIZE = "accessLogBufferSize";
+
+    /**
+     * The timer wheel of the poll commands: the time between two ticks, the precision of the polls, and the number of slots of the wheel.
+     */
+    public static final String POLL_TICK_MILLIS = "pollTickMillis";
+    public static final String POLL_WHEEL_SIZE = "pollWheelSize";
+
+    /**
+     * The ingress server (see {@link com.intel.icecp.module.httpbridge.message.HttpIngressMessage}): the port to listen on, 0 for no ingress server, and
+     * the address; the workers and the requests queued for them; the requests waiting for a reply before new ones get 503, and the largest request body.
+     */
+    public static final String INGRESS_PORT = "ingressPort";
+    public static final String INGRESS_HOST = "ingressHost";
+    public static final String INGRESS_WORKERS = "ingressWorkers";
+    public static final String INGRESS_QUEUE_SIZE = "ingressQueueSize";
+    public static final String INGRESS_MAX_IN_FLIGHT = "ingressMaxInFlight";
+    public static final String INGRESS_MAX_BODY_BYTES = "ingressMaxBodyBytes";
+
+    /**
+     * The directory large bodies are spooled to and sent from (see {@link HttpFileSpool}), and how long a spooled file is kept.
+     */
+    public static final String SPOOL_DIRECTORY = "spoolDirectory";
+    public static final String SPOOL_RETENTION_SECONDS = "spoolRetentionSeconds";
+
+    /**
+     * The bytes of bodies the module may hold in memory at once (see {@link HttpMemoryBudget}), 0 for a quarter of the maximum heap; how long a request
+     * waits for room before it is rejected with ERROR_ON_OVERLOAD; and the largest response body of a data command, and request body read from an input
+     * channel, 0 for no limit.
+     */
+    public static final String MEMORY_BUDGET_BYTES = "memoryBudgetBytes";
+    public static final String MEMORY_WAIT_MILLIS = "memoryWaitMillis";
+    public static final String MAX_BODY_BYTES = "maxBodyBytes";
+
+    /**
+     * The most segments a segmented download may fetch at once (see {@link com.intel.icecp.module.httpbridge.message.HttpDataMessage#parallelSegments}),
+     * and the threads that fetch the segments of all downloads.
+     */
+    public static final String MAX_PARALLEL_SEGMENTS = "maxParallelSegments";
+    public static final String SEGMENT_THREADS = "segmentThreads";
+
+    /**
+     * The configuration of the module, may be null.
+     */
+    private final Configuration configuration;
+
+    /**
+     * Wrap the module configuration.
+     *
+     * @param configuration
+     *            The module configuration passed to run(), may be null.
+     */
+    public HttpBridgeConfiguration(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Read an integer value.
+     *
+     * @param key
+     *            The name of the value
+     * @param defaultValue
+     *            The value used if it is not configured
+     * @return The configured value or the default
+     */
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * Read a long value.
+     *
+     * @param key
+     *            The name of the value
+     * @param defaultValue
+     *            The value used if it is not configured
+     * @return The configured value or the default
+     */
+    public long getLong(String key, long defaultValue) {
+        Object value = get(key, defaultValue);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Configuration [{}] value [{}] is not a number, using [{}]", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Read a boolean value.
+     *
+     * @param key
+     *            The name of the value
+     * @param defaultValue
+     *            The value used if it is not configured
+     * @return The configured value or the default
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = get(key, defaultValue);
+        return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * Read a string value.
+     *
+     * @param key
+     *            The name of the value
+     * @param defaultValue
+     *            The value used if it is not configured
+     * @return The configured value or the default
+     */
+    public String getString(String key, String defaultValue) {
+        Object value = get(key, defaultValue);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Read a raw value from the configuration.
+     */
+    private Object get(String key, Object defaultValue) {
+        if (configuration == null)
+            return defaultValue;
+        try {
+            Object value = configuration.getOrDefault(defaultValue, key);
+            return value != null ? value : defaultValue;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to read configuration [{}], using [{}]", key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
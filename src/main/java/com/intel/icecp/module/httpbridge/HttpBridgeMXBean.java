@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of the {@link HttpBridge_Module}, registered as
+ * {@code com.intel.icecp.module.httpbridge:type=HttpBridge,id=<moduleId>}. It reports the state of the connections, pools and queues, allows changing the
+ * limits of the module while it runs, and tearing down a connection.
+ *
+ */
+public interface HttpBridgeMXBean {
+
+    /**
+     * @return The number of connections set up and not torn down.
+     */
+    int getConnectionCount();
+
+    /**
+     * @return The number of connections with a data command running.
+     */
+    int getActiveConnectionCount();
+
+    /**
+     * @return The number of connections with no data command running.
+     */
+    int getIdleConnectionCount();
+
+    /**
+     * @return The number of connections torn down because their lease expired.
+     */
+    long getReclaimedConnectionCount();
+
+    /**
+     * @return The connectionIds of the connections set up.
+     */
+    long[] getConnectionIds();
+
+    /**
+     * @return The number of connection threads in use.
+     */
+    int getConnectionThreads();
+
+    /**
+     * @return The number of request workers.
+     */
+    int getRequestWorkers();
+
+    /**
+     * @return The number of request workers running a data command.
+     */
+    int getBusyRequestWorkers();
+
+    /**
+     * @return The number of data commands waiting for a request worker.
+     */
+    int getRequestQueueDepth();
+
+    /**
+     * @return The number of data commands rejected because the queue was full.
+     */
+    long getRequestsRejected();
+
+    /**
+     * @return The number of data commands rejected because they waited too long.
+     */
+    long getRequestsExpired();
+
+    /**
+     * @return The number of module commands waiting for the command dispatcher.
+     */
+    int getCommandQueueDepth();
+
+    /**
+     * @return The number of data commands run.
+     */
+    long getRequestCount();
+
+    /**
+     * @return The number of data commands returned with each HTTP_BRIDGE_STATUS.
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * @return The bytes of bodies held in memory now, see {@link HttpMemoryBudget}.
+     */
+    long getMemoryUsedBytes();
+
+    /**
+     * @return The most bytes of bodies held in memory at once.
+     */
+    long getMemoryPeakBytes();
+
+    /**
+     * @return The number of requests refused because the memory budget had no room for their bodies.
+     */
+    long getMemoryRejected();
+
+    int getMaxConnectionThreads();
+
+    /**
+     * Change the maximum number of connection threads, which is also the maximum number of connections. At least 1.
+     */
+    void setMaxConnectionThreads(int maxConnectionThreads);
+
+    /**
+     * Change the number of request workers, the threads running the data commands. More than the workers reserved for HIGH priority commands. When it
+     * is lowered, the busy surplus workers exit once their data command completes.
+     */
+    void setRequestWorkers(int requestWorkers);
+
+    int getMaxQueuedRequests();
+
+    /**
+     * Change the maximum number of data commands waiting for a request worker.
+     */
+    void setMaxQueuedRequests(int maxQueuedRequests);
+
+    long getMaxQueueMillis();
+
+    /**
+     * Change the maximum time a data command may wait for a request worker, 0 for no limit.
+     */
+    void setMaxQueueMillis(long maxQueueMillis);
+
+    int getConnectTimeoutMillis();
+
+    /**
+     * Change the connect timeout of the http requests, 0 for no timeout.
+     */
+    void setConnectTimeoutMillis(int connectTimeoutMillis);
+
+    int getReadTimeoutMillis();
+
+    /**
+     * Change the read timeout of the http requests, 0 for no timeout.
+     */
+    void setReadTimeoutMillis(int readTimeoutMillis);
+
+    long getDefaultLeaseSeconds();
+
+    /**
+     * Change the lease of the new connections that do not ask for one.
+     */
+    void setDefaultLeaseSeconds(long defaultLeaseSeconds);
+
+    double getMaxRequestsPerSecond();
+
+    /**
+     * Change the maximum rate of data commands of the module, 0 for no limit. Commands over the rate are returned with ERROR_ON_OVERLOAD.
+     */
+    void setMaxRequestsPerSecond(double maxRequestsPerSecond);
+
+    int getRequestBurst();
+
+    /**
+     * Change the number of data commands allowed at once over the rate, after a quiet period.
+     */
+    void setRequestBurst(int requestBurst);
+
+    long getMemoryBudgetBytes();
+
+    /**
+     * Change the bytes of bodies the module may hold in memory at once, 0 for no limit. Requests with no room are returned with ERROR_ON_OVERLOAD.
+     */
+    void setMemoryBudgetBytes(long memoryBudgetBytes);
+
+    long getMaxBodyBytes();
+
+    /**
+     * Change the largest response body of a data command, and the largest request body read from an input channel, 0 for no limit.
+     */
+    void setMaxBodyBytes(long maxBodyBytes);
+
+    /**
+     * Tear down a connection, as if a teardown command was received. The client is not told.
+     *
+     * @param connectionId
+     *            The connection to tear down.
+     * @return True if the connection was found and torn down.
+     */
+    boolean tearDownConnection(long connectionId);
+}
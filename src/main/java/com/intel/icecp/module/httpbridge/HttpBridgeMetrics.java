@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+
+/**
+ * The metrics of the module. Every data command records its {@link HttpRequestTiming} here: request and byte counters, status counts, and a latency
+ * histogram per phase, in total and per upstream host (and optionally per connection). The counters are {@link LongAdder}s and the histograms lock free, so
+ * the request threads do not contend when they record. The module publishes a {@link HttpMetricsMessage} snapshot periodically.
+ *
+ */
+public class HttpBridgeMetrics {
+    /**
+     * The phases of a data command, see {@link HttpRequestTiming}.
+     */
+    public static enum PHASE {
+        DNS,
+        CONNECT,
+        INPUT_WAIT,
+        REQUEST_WRITE,
+        FIRST_BYTE,
+        BODY,
+        PUBLISH,
+        TOTAL;
+
+        /**
+         * @return The time spent in this phase, in nanoseconds.
+         */
+        public long nanos(HttpRequestTiming timing) {
+            switch (this) {
+            case DNS:
+                return timing.dnsNanos;
+            case CONNECT:
+                return timing.connectNanos;
+            case INPUT_WAIT:
+                return timing.inputWaitNanos;
+            case REQUEST_WRITE:
+                return timing.requestWriteNanos;
+            case FIRST_BYTE:
+                return timing.firstByteNanos;
+            case BODY:
+                return timing.bodyNanos;
+            case PUBLISH:
+                return timing.publishNanos;
+            default:
+                return timing.totalNanos;
+            }
+        }
+    }
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder[] statusCounts = newAdders(HTTP_BRIDGE_STATUS.values().length);
+    private final LongAdder[] phaseNanos = newAdders(PHASE.values().length);
+    private final HttpLatencyHistogram[] phaseLatency = new HttpLatencyHistogram[PHASE.values().length];
+    private final ConcurrentMap<String, Endpoint> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentLongHashMap<Endpoint> connections = new ConcurrentLongHashMap<>();
+    private final boolean perConnection;
+
+    /**
+     * The totals of the previous snapshot, for the rates.
+     */
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastRequests = 0;
+    private long lastBytesIn = 0;
+    private long lastBytesOut = 0;
+
+    /**
+     * Create the metrics, with all counters at 0 and no per connection metrics.
+     */
+    public HttpBridgeMetrics() {
+        this(false);
+    }
+
+    /**
+     * Create the metrics, with all counters at 0.
+     *
+     * @param perConnection
+     *            True to also keep the counters of each connection, not only of each host.
+     */
+    public HttpBridgeMetrics(boolean perConnection) {
+        this.perConnection = perConnection;
+        for (int i = 0; i < phaseLatency.length; i++)
+            phaseLatency[i] = new HttpLatencyHistogram();
+    }
+
+    /**
+     * Record a completed data command.
+     *
+     * @param host
+     *            The upstream host of the request
+     * @param dataCmdMessage
+     *            The data command, with its status and response code set
+     * @param timing
+     *            The time spent in each phase of the request
+     */
+    public void recordRequest(String host, HttpDataMessage dataCmdMessage, HttpRequestTiming timing) {
+        requests.increment();
+        bytesIn.add(timing.responseBytes);
+        bytesOut.add(timing.requestBytes);
+        statusCounts[dataCmdMessage.status.ordinal()].increment();
+        for (PHASE phase : PHASE.values()) {
+            long nanos = phase.nanos(timing);
+            phaseNanos[phase.ordinal()].add(nanos);
+            phaseLatency[phase.ordinal()].record(nanos);
+        }
+
+        hostEndpoint(host).record(dataCmdMessage.status, timing);
+        if (perConnection)
+            connectionEndpoint(dataCmdMessage.connectionId).record(dataCmdMessage.status, timing);
+    }
+
+    /**
+     * Record a data command that was returned without running, eg. rejected on overload.
+     *
+     * @param dataCmdMessage
+     *            The data command, with its status set
+     */
+    public void recordRejected(HttpDataMessage dataCmdMessage) {
+        statusCounts[dataCmdMessage.status.ordinal()].increment();
+        if (perConnection)
+            connectionEndpoint(dataCmdMessage.connectionId).statusCounts[dataCmdMessage.status.ordinal()].increment();
+    }
+
+    /**
+     * Drop the counters of a connection that was torn down.
+     *
+     * @param connectionId
+     *            The connection torn down.
+     */
+    public void removeConnection(long connectionId) {
+        if (perConnection)
+            connections.remove(connectionId);
+    }
+
+    /**
+     * @return The number of data commands recorded.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of data commands returned with the status.
+     */
+    public long getStatusCount(HTTP_BRIDGE_STATUS status) {
+        return statusCounts[status.ordinal()].sum();
+    }
+
+    /**
+     * @return The mean time spent in a phase, in nanoseconds, over all recorded data commands.
+     */
+    public long getMeanNanos(PHASE phase) {
+        long count = requests.sum();
+        return count == 0 ? 0 : phaseNanos[phase.ordinal()].sum() / count;
+    }
+
+    /**
+     * Fill in the data command metrics of a snapshot: counters, rates and latencies since the previous snapshot, and the counters of each host and
+     * connection.
+     *
+     * @param snapshot
+     *            The message to fill in.
+     */
+    public synchronized void snapshot(HttpMetricsMessage snapshot) {
+        long now = System.nanoTime();
+        snapshot.timestampMillis = System.currentTimeMillis();
+        snapshot.intervalMillis = TimeUnit.NANOSECONDS.toMillis(now - lastSnapshotNanos);
+        snapshot.requests = requests.sum();
+        snapshot.bytesIn = bytesIn.sum();
+        snapshot.bytesOut = bytesOut.sum();
+        double seconds = Math.max(now - lastSnapshotNanos, 1) / 1e9;
+        snapshot.requestsPerSecond = (snapshot.requests - lastRequests) / seconds;
+        snapshot.bytesInPerSecond = (snapshot.bytesIn - lastBytesIn) / seconds;
+        snapshot.bytesOutPerSecond = (snapshot.bytesOut - lastBytesOut) / seconds;
+        lastSnapshotNanos = now;
+        lastRequests = snapshot.requests;
+        lastBytesIn = snapshot.bytesIn;
+        lastBytesOut = snapshot.bytesOut;
+
+        for (HTTP_BRIDGE_STATUS status : HTTP_BRIDGE_STATUS.values())
+            snapshot.statusCounts.put(status, statusCounts[status.ordinal()].sum());
+        for (PHASE phase : PHASE.values())
+            snapshot.phaseLatency.put(phase.name(), phaseLatency[phase.ordinal()].snapshotAndReset());
+        for (Map.Entry<String, Endpoint> host : hosts.entrySet())
+            snapshot.hosts.put(host.getKey(), host.getValue().snapshot());
+        if (perConnection) {
+            snapshot.connections = new HashMap<>();
+            for (Endpoint connection : connections.values())
+                snapshot.connections.put(connection.connectionId, connection.snapshot());
+        }
+    }
+
+    private Endpoint hostEndpoint(String host) {
+        return hosts.computeIfAbsent(host != null ? host : "", h -> new Endpoint(0));
+    }
+
+    private Endpoint connectionEndpoint(long connectionId) {
+        Endpoint endpoint = connections.get(connectionId);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint(connectionId);
+            endpoint = connections.putIfAbsent(connectionId, created);
+            if (endpoint == null)
+                endpoint = created;
+        }
+        return endpoint;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * The counters of one host or one connection.
+     */
+    private static final class Endpoint {
+        final long connectionId;
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder[] statusCounts = newAdders(HTTP_BRIDGE_STATUS.values().length);
+        final HttpLatencyHistogram latency = new HttpLatencyHistogram();
+
+        Endpoint(long connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        void record(HTTP_BRIDGE_STATUS status, HttpRequestTiming timing) {
+            requests.increment();
+            bytesIn.add(timing.responseBytes);
+            bytesOut.add(timing.requestBytes);
+            statusCounts[status.ordinal()].increment();
+            latency.record(timing.totalNanos);
+        }
+
+        HttpMetricsMessage.Endpoint snapshot() {
+            HttpMetricsMessage.Endpoint endpoint = new HttpMetricsMessage.Endpoint();
+            endpoint.requests = requests.sum();
+            endpoint.bytesIn = bytesIn.sum();
+            endpoint.bytesOut = bytesOut.sum();
+            for (HTTP_BRIDGE_STATUS status : HTTP_BRIDGE_STATUS.values()) {
+                long count = statusCounts[status.ordinal()].sum();
+                if (count > 0)
+                    endpoint.statusCounts.put(status, count);
+            }
+            endpoint.latency = latency.snapshotAndReset();
+            return endpoint;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The limits of the module that may be changed while it runs (see {@link HttpBridgeMXBean}). Read by the connections on every data command, so a change
+ * applies to the next request.
+ *
+ */
+public class HttpBridgeSettings {
+    /**
+     * The connect timeout of the http requests in milliseconds, 0 for no timeout.
+     */
+    private volatile int connectTimeoutMillis = 0;
+
+    /**
+     * The read timeout of the http requests in milliseconds, 0 for no timeout.
+     */
+    private volatile int readTimeoutMillis = 0;
+
+    /**
+     * The lease of new connections that do not ask for one, in seconds.
+     */
+    private volatile long defaultLeaseSeconds = 300;
+
+    /**
+     * Limits the rate of data commands of the whole module.
+     */
+    private final HttpRateLimiter rateLimiter = new HttpRateLimiter(0, 1);
+
+    /**
+     * The directory large bodies are spooled to and sent from.
+     */
+    private volatile HttpFileSpool fileSpool = new HttpFileSpool(HttpFileSpool.defaultDirectory(), 1, TimeUnit.HOURS);
+
+    /**
+     * The bytes of bodies all data commands may hold in memory at once.
+     */
+    private final HttpMemoryBudget memoryBudget = new HttpMemoryBudget();
+
+    /**
+     * The largest response body of a data command in bytes, 0 for no limit.
+     */
+    private volatile long maxBodyBytes = 0;
+
+    /**
+     * The most segments a segmented download may fetch at once.
+     */
+    private volatile int maxParallelSegments = 8;
+
+    /**
+     * Fetches the segments of the segmented downloads of all connections. A download waits in the queue when all threads are busy, so the threads of the
+     * module do not grow with the downloads. Idle threads end after a minute.
+     */
+    private final ThreadPoolExecutor segmentExecutor;
+
+    /**
+     * Opens the warm-up connections of the connections set up with prewarm (see {@link HttpPrewarmTask}). A few threads, so a burst of setups does not
+     * start a thread per warm-up connection. Idle threads end after a minute.
+     */
+    private final ThreadPoolExecutor prewarmExecutor;
+
+    /**
+     * Create the settings, with the defaults.
+     */
+    public HttpBridgeSettings() {
+        segmentExecutor = daemonExecutor(32, "segment_");
+        prewarmExecutor = daemonExecutor(4, "prewarm_");
+    }
+
+    private static ThreadPoolExecutor daemonExecutor(int threads, String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0)
+            throw new IllegalArgumentException(String.format("Invalid connect timeout [%d]", connectTimeoutMillis));
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        if (readTimeoutMillis < 0)
+            throw new IllegalArgumentException(String.format("Invalid read timeout [%d]", readTimeoutMillis));
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public long getDefaultLeaseSeconds() {
+        return defaultLeaseSeconds;
+    }
+
+    public void setDefaultLeaseSeconds(long defaultLeaseSeconds) {
+        if (defaultLeaseSeconds < 0)
+            throw new IllegalArgumentException(String.format("Invalid lease [%d]", defaultLeaseSeconds));
+        this.defaultLeaseSeconds = defaultLeaseSeconds;
+    }
+
+    public HttpRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public HttpFileSpool getFileSpool() {
+        return fileSpool;
+    }
+
+    public void setFileSpool(HttpFileSpool fileSpool) {
+        if (fileSpool == null)
+            throw new IllegalArgumentException("No file spool");
+        this.fileSpool = fileSpool;
+    }
+
+    public HttpMemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        if (maxBodyBytes < 0)
+            throw new IllegalArgumentException(String.format("Invalid max body size [%d]", maxBodyBytes));
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public int getMaxParallelSegments() {
+        return maxParallelSegments;
+    }
+
+    public void setMaxParallelSegments(int maxParallelSegments) {
+        if (maxParallelSegments < 1)
+            throw new IllegalArgumentException(String.format("Invalid max parallel segments [%d]", maxParallelSegments));
+        this.maxParallelSegments = maxParallelSegments;
+    }
+
+    public ThreadPoolExecutor getPrewarmExecutor() {
+        return prewarmExecutor;
+    }
+
+    public ThreadPoolExecutor getSegmentExecutor() {
+        return segmentExecutor;
+    }
+
+    /**
+     * @param segmentThreads
+     *            The threads that fetch the segments of all segmented downloads.
+     */
+    public synchronized void setSegmentThreads(int segmentThreads) {
+        if (segmentThreads < 1)
+            throw new IllegalArgumentException(String.format("Invalid segment threads [%d]", segmentThreads));
+        // The core size can never be above the maximum, so the order depends on the way the size changes.
+        if (segmentThreads > segmentExecutor.getMaximumPoolSize()) {
+            segmentExecutor.setMaximumPoolSize(segmentThreads);
+            segmentExecutor.setCorePoolSize(segmentThreads);
+        } else {
+            segmentExecutor.setCorePoolSize(segmentThreads);
+            segmentExecutor.setMaximumPoolSize(segmentThreads);
+        }
+    }
+}
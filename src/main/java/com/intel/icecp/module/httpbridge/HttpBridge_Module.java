@@ -16,17 +16,29 @@
 
 package com.intel.icecp.module.httpbridge;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.SecureRandom;
-import java.util.Random;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,8 +52,12 @@ import com.intel.icecp.core.misc.ChannelLifetimeException;
 import com.intel.icecp.core.misc.Configuration;
 import com.intel.icecp.core.misc.OnPublish;
 import com.intel.icecp.core.modules.ModuleProperty;
+import com.intel.icecp.module.httpbridge.jfr.HttpFlightRecorder;
 import com.intel.icecp.module.httpbridge.message.HttpBaseMessage;
 import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpIngressMessage;
+import com.intel.icecp.module.httpbridge.message.HttpKeepaliveMessage;
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
 import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
 import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
 import com.intel.icecp.module.httpbridge.message.HttpTeardownMessage;
@@ -79,6 +95,14 @@ import com.intel.icecp.module.httpbridge.message.HttpTeardownMessage;
  * Setup and send an {@link HttpTeardownMessage} message on the command channel<p>
  * Receive the Teardown message back on user specified return command channel, check status
  * <p>
+ * <b>Lease</b><p>
+ * Each connection has a lease (see {@link HttpSetupMessage#leaseSeconds}). Data commands renew it. An idle client sends a {@link HttpKeepaliveMessage}
+ * on the command channel to renew it. Connections whose lease expires are torn down by the module, as if a teardown was received.
+ * <p>
+ * <b>Metrics</b><p>
+ * Subscribe to the {@link HttpMetricsMessage#HTTP_METRICS_CHANNEL_NAME} channel to receive a {@link HttpMetricsMessage} snapshot every
+ * metricsPeriodSeconds (configuration/config.json).
+ * <p>
  * See each message class for more info<p>
  * 
  *
@@ -90,10 +114,50 @@ public class HttpBridge_Module implements Module {
 
     private Node node = null;
     private CountDownLatch stopLatch = new CountDownLatch(1);
-    private final Random randomGenerator = new SecureRandom();
-    private ConcurrentMap<Long, ConnectionDetail> connections = new ConcurrentHashMap<>();
+    private final HttpConnectionIdGenerator idGenerator = new HttpConnectionIdGenerator();
+    private final ConcurrentLongHashMap<ConnectionDetail> connections = new ConcurrentLongHashMap<>();
 
     private final int MAX_HTTP_THREADS = 15;
+    private final int MAX_IDLE_CHANNELS = 64;
+    private final long CHANNEL_IDLE_TIMEOUT_SECONDS = 60;
+    private HttpChannelCache channelCache = null;
+    private HttpBridgeMetrics metrics = new HttpBridgeMetrics();
+    private final long METRICS_PERIOD_SECONDS = 10;
+    private Channel<HttpMetricsMessage> metricsChannel = null;
+    private final long DEFAULT_LEASE_SECONDS = 300;
+    private final HttpBridgeSettings settings = new HttpBridgeSettings();
+    private ObjectName mbeanName = null;
+    private final long HOUSEKEEPING_PERIOD_SECONDS = 5;
+    private HttpAccessLog accessLog = new HttpAccessLog();
+    private HttpPollTimer pollTimer = null;
+    private final long POLL_TICK_MILLIS = 100;
+    private final int POLL_WHEEL_SIZE = 512;
+    private HttpIngressServer ingressServer = null;
+    private ThreadPoolExecutor ingressExecutor = null;
+    private final int INGRESS_WORKERS = 8;
+    private final int INGRESS_QUEUE_SIZE = 256;
+    private final int INGRESS_MAX_IN_FLIGHT = 1024;
+    private final int INGRESS_MAX_BODY_BYTES = 1024 * 1024;
+    private final long SPOOL_RETENTION_SECONDS = 3600;
+    private final long MEMORY_WAIT_MILLIS = 5000;
+    private final int MAX_PARALLEL_SEGMENTS = 8;
+    private final int SEGMENT_THREADS = 32;
+    private final int ACCESS_LOG_SAMPLE_EVERY = 1;
+    private final long ACCESS_LOG_MAX_PER_SECOND = 1000;
+    private final int ACCESS_LOG_BUFFER_SIZE = 4096;
+    private final AtomicLong reclaimedConnections = new AtomicLong();
+    private ScheduledExecutorService housekeepingExecutor = null;
+    private final int REQUEST_WORKERS = 15;
+    private final int RESERVED_HIGH_PRIORITY_WORKERS = 2;
+    private final int MAX_WORKERS_PER_TENANT = 8;
+    private final int MAX_QUEUED_COMMANDS = 1000;
+    private final long MAX_QUEUE_MILLIS = 30000;
+    private final long QUEUE_SWEEP_MILLIS = 100;
+    private HttpRequestScheduler requestScheduler = null;
+    private final int COMMAND_DISPATCH_THREADS = 4;
+    private final int COMMAND_QUEUE_CAPACITY = 256;
+    private HttpCommandDispatcher commandDispatcher = null;
+    private ThreadPoolExecutor rejectExecutor = null;
     private HttpPoolExecutor httpPoolExecutor = new HttpPoolExecutor(0, MAX_HTTP_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
     private ClassLoader moduleClassLoader = Thread.currentThread().getContextClassLoader();
     
@@ -106,6 +170,61 @@ public class HttpBridge_Module implements Module {
     public void run(Node node, Configuration moduleConfiguration, Channel<State> moduleStateChannel, long moduleId) {
         String cmdChannelName = node.getDefaultUri().toString() + "/" + HttpSetupMessage.HTTP_CMD_CHANNEL_NAME;
         this.node = node;
+        this.channelCache = new HttpChannelCache(node, MAX_IDLE_CHANNELS, CHANNEL_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        HttpBridgeConfiguration config = new HttpBridgeConfiguration(moduleConfiguration);
+        this.metrics = new HttpBridgeMetrics(config.getBoolean(HttpBridgeConfiguration.METRICS_PER_CONNECTION, false));
+        this.accessLog = new HttpAccessLog(config.getInt(HttpBridgeConfiguration.ACCESS_LOG_SAMPLE_EVERY, ACCESS_LOG_SAMPLE_EVERY),
+                config.getLong(HttpBridgeConfiguration.ACCESS_LOG_MAX_PER_SECOND, ACCESS_LOG_MAX_PER_SECOND),
+                config.getInt(HttpBridgeConfiguration.ACCESS_LOG_BUFFER_SIZE, ACCESS_LOG_BUFFER_SIZE));
+        accessLog.start();
+        this.pollTimer = new HttpPollTimer(config.getLong(HttpBridgeConfiguration.POLL_TICK_MILLIS, POLL_TICK_MILLIS), TimeUnit.MILLISECONDS,
+                config.getInt(HttpBridgeConfiguration.POLL_WHEEL_SIZE, POLL_WHEEL_SIZE));
+        HttpFlightRecorder.setDataCommandThreshold(config.getLong(HttpBridgeConfiguration.JFR_THRESHOLD_MILLIS, 0), TimeUnit.MILLISECONDS);
+        settings.setDefaultLeaseSeconds(config.getLong(HttpBridgeConfiguration.DEFAULT_LEASE_SECONDS, DEFAULT_LEASE_SECONDS));
+        settings.setConnectTimeoutMillis(config.getInt(HttpBridgeConfiguration.CONNECT_TIMEOUT_MILLIS, 0));
+        settings.setReadTimeoutMillis(config.getInt(HttpBridgeConfiguration.READ_TIMEOUT_MILLIS, 0));
+        settings.getRateLimiter().setRate(config.getLong(HttpBridgeConfiguration.MAX_REQUESTS_PER_SECOND, 0),
+                config.getInt(HttpBridgeConfiguration.REQUEST_BURST, 1));
+        String spoolDirectory = config.getString(HttpBridgeConfiguration.SPOOL_DIRECTORY, null);
+        settings.setFileSpool(new HttpFileSpool(spoolDirectory == null || spoolDirectory.isEmpty() ? HttpFileSpool.defaultDirectory() : Paths.get(spoolDirectory),
+                config.getLong(HttpBridgeConfiguration.SPOOL_RETENTION_SECONDS, SPOOL_RETENTION_SECONDS), TimeUnit.SECONDS));
+        // By default the bodies may take a quarter of the heap, what is left is for the rest of the node.
+        long memoryBudgetBytes = config.getLong(HttpBridgeConfiguration.MEMORY_BUDGET_BYTES, 0);
+        settings.getMemoryBudget().setLimits(memoryBudgetBytes > 0 ? memoryBudgetBytes : Runtime.getRuntime().maxMemory() / 4,
+                config.getLong(HttpBridgeConfiguration.MEMORY_WAIT_MILLIS, MEMORY_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+        settings.setMaxBodyBytes(config.getLong(HttpBridgeConfiguration.MAX_BODY_BYTES, 0));
+        settings.setMaxParallelSegments(config.getInt(HttpBridgeConfiguration.MAX_PARALLEL_SEGMENTS, MAX_PARALLEL_SEGMENTS));
+        settings.setSegmentThreads(config.getInt(HttpBridgeConfiguration.SEGMENT_THREADS, SEGMENT_THREADS));
+        this.requestScheduler = new HttpRequestScheduler(config.getInt(HttpBridgeConfiguration.REQUEST_WORKERS, REQUEST_WORKERS),
+                config.getInt(HttpBridgeConfiguration.RESERVED_HIGH_PRIORITY_WORKERS, RESERVED_HIGH_PRIORITY_WORKERS),
+                config.getInt(HttpBridgeConfiguration.MAX_WORKERS_PER_TENANT, MAX_WORKERS_PER_TENANT),
+                config.getInt(HttpBridgeConfiguration.MAX_QUEUED_COMMANDS, MAX_QUEUED_COMMANDS),
+                config.getLong(HttpBridgeConfiguration.MAX_QUEUE_MILLIS, MAX_QUEUE_MILLIS), TimeUnit.MILLISECONDS, moduleClassLoader);
+        this.commandDispatcher = new HttpCommandDispatcher(config.getInt(HttpBridgeConfiguration.COMMAND_DISPATCH_THREADS, COMMAND_DISPATCH_THREADS),
+                config.getInt(HttpBridgeConfiguration.COMMAND_QUEUE_CAPACITY, COMMAND_QUEUE_CAPACITY), moduleClassLoader);
+        // Replies to rejected commands. Kept apart from the dispatcher, which is full when commands are rejected.
+        this.rejectExecutor = new HttpPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(COMMAND_QUEUE_CAPACITY));
+        this.housekeepingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HttpBridge-Housekeeping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeepingExecutor.scheduleWithFixedDelay(this::housekeeping, HOUSEKEEPING_PERIOD_SECONDS, HOUSEKEEPING_PERIOD_SECONDS, TimeUnit.SECONDS);
+        // The workers only expire the commands they take, when they are all busy the overdue commands are rejected here.
+        housekeepingExecutor.scheduleWithFixedDelay(this::expireQueuedCommands, QUEUE_SWEEP_MILLIS, QUEUE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        long metricsPeriodSeconds = config.getLong(HttpBridgeConfiguration.METRICS_PERIOD_SECONDS, METRICS_PERIOD_SECONDS);
+        if (metricsPeriodSeconds > 0) {
+            try {
+                metricsChannel = node.openChannel(new URI(node.getDefaultUri().toString() + "/" + HttpMetricsMessage.HTTP_METRICS_CHANNEL_NAME),
+                        HttpMetricsMessage.class, new Persistence());
+                housekeepingExecutor.scheduleWithFixedDelay(this::publishMetrics, metricsPeriodSeconds, metricsPeriodSeconds, TimeUnit.SECONDS);
+            } catch (ChannelLifetimeException | URISyntaxException e) {
+                logger.error("Failed to open the metrics channel, metrics are not published", e);
+            }
+        }
+
+        registerMBean(moduleId);
+        startIngress(config);
 
         try {
             moduleStateChannel.publish(State.RUNNING);
@@ -127,24 +246,72 @@ public class HttpBridge_Module implements Module {
         }
 
         waitForTearDown();
+        unregisterMBean();
+        housekeepingExecutor.shutdownNow();
+        commandDispatcher.shutdown();
+        rejectExecutor.shutdownNow();
+        requestScheduler.shutdown();
         httpPoolExecutor.shutdownNow();
+        settings.getSegmentExecutor().shutdownNow();
+        settings.getPrewarmExecutor().shutdownNow();
+        accessLog.shutdown();
+        if (ingressServer != null) {
+            ingressServer.stop();
+            ingressExecutor.shutdownNow();
+        }
+        pollTimer.shutdown();
+        channelCache.closeAll();
+        if (metricsChannel != null) {
+            try {
+                metricsChannel.close();
+            } catch (ChannelLifetimeException e) {
+                logger.error("Failed to close the metrics channel", e);
+            }
+        }
     }
 
     /**
-     * Call back for the {@link HttpBaseMessage#HTTP_CMD_CHANNEL_NAME}. All commands arrive here, and are carried out by the module.
+     * Call back for the {@link HttpBaseMessage#HTTP_CMD_CHANNEL_NAME}. All commands arrive here. They are validated and handed to the command dispatcher,
+     * which carries them out in order per connectionId, so the channel delivery thread is never blocked by a command.
      * 
      */
     public class CommandCallback implements OnPublish<HttpBaseMessage> {
         @Override
         public void onPublish(HttpBaseMessage message) {
             logger.info("Command [{}] received", message.getCommand());
-            String errorMsg = message.onValidate(HttpBridge_Module.this);
-            if (errorMsg != null) {
-                logger.info(errorMsg);
-                returnCommandMessage(message);
+            ExecutorService executor = commandDispatcher.executorFor(message.connectionId);
+            try {
+                String errorMsg = message.onValidate(HttpBridge_Module.this);
+                if (errorMsg != null) {
+                    logger.info(errorMsg);
+                    executor.execute(() -> returnCommandMessage(message));
+                    return;
+                }
+
+                message.poolCommandMessage(executor, HttpBridge_Module.this);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Command [{}] id[{}] rejected, command queue is full", message.getCommand(), message.connectionId);
+                HttpFlightRecorder.rejection(message.connectionId, message.getCommand(), "command queue full");
+                rejectCommandMessage(message);
             }
+        }
+    }
 
-            message.onCommandMessage(HttpBridge_Module.this);
+    /**
+     * Return a command that was not carried out because the module is overloaded. The reply is sent from the reject thread, if it has room, otherwise the
+     * command is dropped.
+     *
+     * @param message
+     *            The rejected command
+     */
+    private void rejectCommandMessage(HttpBaseMessage message) {
+        if (message.cmdReturnChannelURI == null)
+            return;
+        message.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+        try {
+            rejectExecutor.execute(() -> returnCommandMessage(message));
+        } catch (RejectedExecutionException e) {
+            logger.error("Command [{}] id[{}] dropped, module is overloaded", message.getCommand(), message.connectionId);
         }
     }
 
@@ -159,15 +326,25 @@ public class HttpBridge_Module implements Module {
      *            The HttpSetupMessage containing parameters for the setup command.
      */
     public void setupCommand(HttpSetupMessage setupCommand) {
+        Object setupEvent = HttpFlightRecorder.beginSetup();
         try {
             ConnectionDetail connectionDetail = setupConnection(setupCommand);
             logger.info("SetupCommand id[{}]", connectionDetail.commandMsg.connectionId);
             connections.put(setupCommand.connectionId, connectionDetail);
-            httpPoolExecutor.execute(connectionDetail.wrapperTask);
+            try {
+                httpPoolExecutor.execute(connectionDetail.wrapperTask);
+            } catch (RejectedExecutionException e) {
+                // Every connection thread is taken. Tell the client right away so it can back off.
+                logger.debug("SetupCommand id[{}] rejected, connection pool is full", setupCommand.connectionId);
+                connections.remove(setupCommand.connectionId);
+                setupCommand.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+                HttpFlightRecorder.rejection(setupCommand.connectionId, setupCommand.getCommand(), "connection pool full");
+            }
         } catch (URISyntaxException e) {
             logger.error("Error setting up connection", e);
             setupCommand.status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
         }
+        HttpFlightRecorder.endSetup(setupEvent, setupCommand);
         logger.debug("SetupCommand - send return message");
         returnCommandMessage(setupCommand);
     }
@@ -181,13 +358,233 @@ public class HttpBridge_Module implements Module {
      */
     public void tearDownCommand(HttpTeardownMessage tearDownCommand) {
         logger.info("TearDownCommand id[{}]", tearDownCommand.connectionId);
-        ConnectionDetail bridgeConnectionObject = connections.get(tearDownCommand.connectionId);
+        tearDownConnection(tearDownCommand.connectionId, "command");
+        returnCommandMessage(tearDownCommand);
+    }
+
+    /**
+     * Handle the incoming keepalive command. The lease of the connection is renewed.
+     *
+     * @param keepaliveCommand
+     *            The {@link HttpKeepaliveMessage} containing the connectionId to keep alive.
+     */
+    public void keepaliveCommand(HttpKeepaliveMessage keepaliveCommand) {
+        logger.debug("KeepaliveCommand id[{}]", keepaliveCommand.connectionId);
+        ConnectionDetail bridgeConnectionObject = connections.get(keepaliveCommand.connectionId);
         if (bridgeConnectionObject != null) {
-            if (bridgeConnectionObject.wrapperTask != null)
-                bridgeConnectionObject.wrapperTask.tearDown();
-            connections.remove(tearDownCommand.connectionId);
+            bridgeConnectionObject.lease.renew();
+        } else {
+            keepaliveCommand.status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+        }
+        returnCommandMessage(keepaliveCommand);
+    }
+
+    /**
+     * Handle the incoming ingress command by adding or removing the route of a path on the ingress server.
+     *
+     * @param ingressCommand
+     *            The {@link HttpIngressMessage} with the path and its channels.
+     */
+    public void ingressCommand(HttpIngressMessage ingressCommand) {
+        logger.info("IngressCommand path[{}] remove[{}]", ingressCommand.path, ingressCommand.remove);
+        if (ingressCommand.remove) {
+            if (!ingressServer.removeRoute(ingressCommand.path))
+                ingressCommand.status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+        } else {
+            try {
+                ingressServer.addRoute(ingressCommand.path, ingressCommand.channelURI, ingressCommand.replyChannelURI, ingressCommand.replyTimeoutMillis);
+            } catch (ChannelLifetimeException | ChannelIOException e) {
+                logger.error("Failed to open the channels of ingress route [{}]", ingressCommand.path, e);
+                ingressCommand.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+            }
+        }
+        returnCommandMessage(ingressCommand);
+    }
+
+    /**
+     * @return True if the ingress server is running, see {@link HttpIngressServer}.
+     */
+    public boolean isIngressEnabled() {
+        return ingressServer != null;
+    }
+
+    /**
+     * Start the ingress server if an ingressPort is configured. The module runs without it if the port cannot be bound.
+     *
+     * @param config
+     *            The module configuration
+     */
+    private void startIngress(HttpBridgeConfiguration config) {
+        int port = config.getInt(HttpBridgeConfiguration.INGRESS_PORT, 0);
+        if (port <= 0)
+            return;
+        int workers = config.getInt(HttpBridgeConfiguration.INGRESS_WORKERS, INGRESS_WORKERS);
+        // When the queue is full the selector thread runs the request itself, and accepts no more meanwhile.
+        ingressExecutor = new HttpPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getInt(HttpBridgeConfiguration.INGRESS_QUEUE_SIZE, INGRESS_QUEUE_SIZE)));
+        ingressExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            ingressServer = new HttpIngressServer(node, new InetSocketAddress(config.getString(HttpBridgeConfiguration.INGRESS_HOST, "0.0.0.0"), port),
+                    ingressExecutor, config.getInt(HttpBridgeConfiguration.INGRESS_MAX_IN_FLIGHT, INGRESS_MAX_IN_FLIGHT),
+                    config.getInt(HttpBridgeConfiguration.INGRESS_MAX_BODY_BYTES, INGRESS_MAX_BODY_BYTES), pollTimer, settings.getMemoryBudget());
+            ingressServer.start();
+        } catch (IOException e) {
+            logger.error("Failed to start the ingress server on port [{}]", port, e);
+            ingressServer = null;
+            ingressExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Register the JMX management bean of the module, see {@link HttpBridgeMXBean}. The module runs without it if the registration fails.
+     *
+     * @param moduleId
+     *            The id of the module, it tells apart the modules of a node.
+     */
+    private void registerMBean(long moduleId) {
+        try {
+            mbeanName = new ObjectName(String.format("%s:type=HttpBridge,id=%d", getClass().getPackage().getName(), moduleId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Management(), mbeanName);
+        } catch (JMException e) {
+            logger.error("Failed to register the management bean", e);
+            mbeanName = null;
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            logger.error("Failed to unregister the management bean", e);
+        }
+    }
+
+    /**
+     * Tell the {@link HttpConnectionTask} of the connection to tear down, and remove the connection.
+     *
+     * @param connectionId
+     *            The connection to tear down.
+     * @param reason
+     *            Why: command, lease or operator
+     * @return True if the connection was found and torn down.
+     */
+    private boolean tearDownConnection(long connectionId, String reason) {
+        ConnectionDetail bridgeConnectionObject = connections.remove(connectionId);
+        if (bridgeConnectionObject == null)
+            return false;
+        metrics.removeConnection(connectionId);
+        HttpFlightRecorder.teardown(connectionId, reason);
+        if (bridgeConnectionObject.wrapperTask != null)
+            bridgeConnectionObject.wrapperTask.tearDown();
+        return true;
+    }
+
+    /**
+     * Periodic housekeeping, run on the housekeeping thread. Tear down the connections whose lease has expired, close the idle cached channels, and delete
+     * the spooled files past their retention.
+     */
+    private void housekeeping() {
+        try {
+            long now = System.nanoTime();
+            for (ConnectionDetail detail : connections.values()) {
+                if (detail.lease.isExpired(now) && tearDownConnection(detail.commandMsg.connectionId, "lease")) {
+                    reclaimedConnections.incrementAndGet();
+                    logger.info("Lease expired, reclaimed connection id[{}]", detail.commandMsg.connectionId);
+                }
+            }
+            channelCache.evictIdle();
+            settings.getFileSpool().sweep();
+        } catch (RuntimeException e) {
+            logger.error("Housekeeping failed", e);
+        }
+    }
+
+    /**
+     * @return The number of connections with a data command running.
+     */
+    public int getActiveConnectionCount() {
+        int active = 0;
+        for (ConnectionDetail detail : connections.values()) {
+            if (detail.lease.isActive())
+                active++;
+        }
+        return active;
+    }
+
+    /**
+     * @return The number of connections set up but with no data command running.
+     */
+    public int getIdleConnectionCount() {
+        return connections.size() - getActiveConnectionCount();
+    }
+
+    /**
+     * @return The number of connections torn down because their lease expired, since the module started.
+     */
+    public long getReclaimedConnectionCount() {
+        return reclaimedConnections.get();
+    }
+
+    /**
+     * @return The metrics of the module.
+     */
+    public HttpBridgeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Take a snapshot of the module metrics: the data command metrics, and the state of the connections, pools and queues.
+     *
+     * @return The snapshot, as published on the metrics channel.
+     */
+    public HttpMetricsMessage createMetricsSnapshot() {
+        HttpMetricsMessage snapshot = new HttpMetricsMessage();
+        metrics.snapshot(snapshot);
+        snapshot.activeConnections = getActiveConnectionCount();
+        snapshot.idleConnections = connections.size() - snapshot.activeConnections;
+        snapshot.reclaimedConnections = reclaimedConnections.get();
+        snapshot.connectionThreads = httpPoolExecutor.getActiveCount();
+        snapshot.maxConnectionThreads = httpPoolExecutor.getMaximumPoolSize();
+        if (requestScheduler != null) {
+            snapshot.busyRequestWorkers = requestScheduler.getRunningCount();
+            snapshot.requestWorkers = requestScheduler.getWorkerCount();
+            snapshot.requestQueueDepth = requestScheduler.getQueueDepth();
+            snapshot.requestsRejected = requestScheduler.getRejectedCount();
+            snapshot.requestsExpired = requestScheduler.getExpiredCount();
+        }
+        if (commandDispatcher != null)
+            snapshot.commandQueueDepth = commandDispatcher.getQueueDepth();
+        HttpMemoryBudget budget = settings.getMemoryBudget();
+        snapshot.memoryBudgetBytes = budget.getCapacityBytes();
+        snapshot.memoryUsedBytes = budget.getUsedBytes();
+        snapshot.memoryPeakBytes = budget.getPeakBytes();
+        snapshot.memoryWaits = budget.getWaitedCount();
+        snapshot.memoryRejected = budget.getRejectedCount();
+        return snapshot;
+    }
+
+    /**
+     * Reject the data commands that waited past the queue deadline. Run periodically on the housekeeping thread.
+     */
+    private void expireQueuedCommands() {
+        try {
+            requestScheduler.expireOverdue();
+        } catch (RuntimeException e) {
+            logger.error("Queue sweep failed", e);
+        }
+    }
+
+    /**
+     * Publish a metrics snapshot on the metrics channel. Run periodically on the housekeeping thread.
+     */
+    private void publishMetrics() {
+        try {
+            metricsChannel.publish(createMetricsSnapshot());
+        } catch (ChannelIOException | RuntimeException e) {
+            logger.error("Failed to publish metrics", e);
         }
-        returnCommandMessage(tearDownCommand);
     }
 
     /**
@@ -210,9 +607,13 @@ public class HttpBridge_Module implements Module {
         message.dataCmdReturnChannelURI = new URI(String.format("%s/%s-%d", node.getDefaultUri(), dataCmdReturnChannel, message.connectionId));
         message.status = HTTP_BRIDGE_STATUS.OK;
 
+        long leaseSeconds = message.leaseSeconds == 0 ? settings.getDefaultLeaseSeconds() : message.leaseSeconds;
+
         // Create and fill in the connection detail, then return it.
         ConnectionDetail conx = new ConnectionDetail(logger, node, message);
-        conx.httpConnectionTask = new HttpConnectionTask(node, message);
+        conx.lease = new HttpConnectionLease(leaseSeconds, TimeUnit.SECONDS);
+        conx.httpConnectionTask = new HttpConnectionTask(node, message, channelCache, conx.lease, requestScheduler, metrics, settings, accessLog,
+                pollTimer);
         conx.wrapperTask = new HttpWrapperTask(conx.httpConnectionTask, message.connectionId);
         return conx;
     }
@@ -220,7 +621,7 @@ public class HttpBridge_Module implements Module {
     private long createConnectionId() {
         long id;
         do {
-            id = randomGenerator.nextLong();
+            id = idGenerator.nextId();
         } while (connections.containsKey(id));
         return id;
     }
@@ -278,6 +679,7 @@ public class HttpBridge_Module implements Module {
         private HttpCommandExecutor commandExecutor;
         private HttpWrapperTask wrapperTask;
         private HttpConnectionTask httpConnectionTask;
+        private HttpConnectionLease lease;
 
         ConnectionDetail(Logger logger, Node node, HttpSetupMessage commandMsg) {
             this.commandMsg = commandMsg;
@@ -285,6 +687,230 @@ public class HttpBridge_Module implements Module {
         }
     }
 
+    /**
+     * The JMX management bean of the module. Reads the live state of the module, and changes its limits.
+     *
+     */
+    public class Management implements HttpBridgeMXBean {
+        @Override
+        public int getConnectionCount() {
+            return connections.size();
+        }
+
+        @Override
+        public int getActiveConnectionCount() {
+            return HttpBridge_Module.this.getActiveConnectionCount();
+        }
+
+        @Override
+        public int getIdleConnectionCount() {
+            return HttpBridge_Module.this.getIdleConnectionCount();
+        }
+
+        @Override
+        public long getReclaimedConnectionCount() {
+            return HttpBridge_Module.this.getReclaimedConnectionCount();
+        }
+
+        @Override
+        public long[] getConnectionIds() {
+            return connections.keys();
+        }
+
+        @Override
+        public int getConnectionThreads() {
+            return httpPoolExecutor.getActiveCount();
+        }
+
+        @Override
+        public int getRequestWorkers() {
+            return requestScheduler.getWorkerCount();
+        }
+
+        @Override
+        public int getBusyRequestWorkers() {
+            return requestScheduler.getRunningCount();
+        }
+
+        @Override
+        public int getRequestQueueDepth() {
+            return requestScheduler.getQueueDepth();
+        }
+
+        @Override
+        public long getRequestsRejected() {
+            return requestScheduler.getRejectedCount();
+        }
+
+        @Override
+        public long getRequestsExpired() {
+            return requestScheduler.getExpiredCount();
+        }
+
+        @Override
+        public int getCommandQueueDepth() {
+            return commandDispatcher.getQueueDepth();
+        }
+
+        @Override
+        public long getRequestCount() {
+            return metrics.getRequestCount();
+        }
+
+        @Override
+        public long getMemoryUsedBytes() {
+            return settings.getMemoryBudget().getUsedBytes();
+        }
+
+        @Override
+        public long getMemoryPeakBytes() {
+            return settings.getMemoryBudget().getPeakBytes();
+        }
+
+        @Override
+        public long getMemoryRejected() {
+            return settings.getMemoryBudget().getRejectedCount();
+        }
+
+        @Override
+        public Map<String, Long> getStatusCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (HTTP_BRIDGE_STATUS status : HTTP_BRIDGE_STATUS.values())
+                counts.put(status.name(), metrics.getStatusCount(status));
+            return counts;
+        }
+
+        @Override
+        public int getMaxConnectionThreads() {
+            return httpPoolExecutor.getMaximumPoolSize();
+        }
+
+        @Override
+        public void setMaxConnectionThreads(int maxConnectionThreads) {
+            if (maxConnectionThreads < 1)
+                throw new IllegalArgumentException(String.format("Invalid max connection threads [%d]", maxConnectionThreads));
+            logger.info("Max connection threads set to [{}]", maxConnectionThreads);
+            synchronized (httpPoolExecutor) {
+                // The maximum can never be below the core size, so the core size is lowered first.
+                if (maxConnectionThreads < httpPoolExecutor.getCorePoolSize())
+                    httpPoolExecutor.setCorePoolSize(maxConnectionThreads);
+                httpPoolExecutor.setMaximumPoolSize(maxConnectionThreads);
+            }
+        }
+
+        @Override
+        public void setRequestWorkers(int requestWorkers) {
+            logger.info("Request workers set to [{}]", requestWorkers);
+            requestScheduler.setWorkerCount(requestWorkers);
+        }
+
+        @Override
+        public int getMaxQueuedRequests() {
+            return requestScheduler.getMaxQueued();
+        }
+
+        @Override
+        public void setMaxQueuedRequests(int maxQueuedRequests) {
+            logger.info("Max queued requests set to [{}]", maxQueuedRequests);
+            requestScheduler.setMaxQueued(maxQueuedRequests);
+        }
+
+        @Override
+        public long getMaxQueueMillis() {
+            return requestScheduler.getMaxQueueMillis();
+        }
+
+        @Override
+        public void setMaxQueueMillis(long maxQueueMillis) {
+            logger.info("Max queue time set to [{}] ms", maxQueueMillis);
+            requestScheduler.setMaxQueueTime(maxQueueMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int getConnectTimeoutMillis() {
+            return settings.getConnectTimeoutMillis();
+        }
+
+        @Override
+        public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+            logger.info("Connect timeout set to [{}] ms", connectTimeoutMillis);
+            settings.setConnectTimeoutMillis(connectTimeoutMillis);
+        }
+
+        @Override
+        public int getReadTimeoutMillis() {
+            return settings.getReadTimeoutMillis();
+        }
+
+        @Override
+        public void setReadTimeoutMillis(int readTimeoutMillis) {
+            logger.info("Read timeout set to [{}] ms", readTimeoutMillis);
+            settings.setReadTimeoutMillis(readTimeoutMillis);
+        }
+
+        @Override
+        public long getDefaultLeaseSeconds() {
+            return settings.getDefaultLeaseSeconds();
+        }
+
+        @Override
+        public void setDefaultLeaseSeconds(long defaultLeaseSeconds) {
+            logger.info("Default lease set to [{}] s", defaultLeaseSeconds);
+            settings.setDefaultLeaseSeconds(defaultLeaseSeconds);
+        }
+
+        @Override
+        public double getMaxRequestsPerSecond() {
+            return settings.getRateLimiter().getRate();
+        }
+
+        @Override
+        public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+            logger.info("Max requests per second set to [{}]", maxRequestsPerSecond);
+            settings.getRateLimiter().setRate(maxRequestsPerSecond, settings.getRateLimiter().getBurst());
+        }
+
+        @Override
+        public int getRequestBurst() {
+            return settings.getRateLimiter().getBurst();
+        }
+
+        @Override
+        public void setRequestBurst(int requestBurst) {
+            logger.info("Request burst set to [{}]", requestBurst);
+            settings.getRateLimiter().setRate(settings.getRateLimiter().getRate(), requestBurst);
+        }
+
+        @Override
+        public long getMemoryBudgetBytes() {
+            return settings.getMemoryBudget().getCapacityBytes();
+        }
+
+        @Override
+        public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+            logger.info("Memory budget set to [{}] bytes", memoryBudgetBytes);
+            HttpMemoryBudget budget = settings.getMemoryBudget();
+            budget.setLimits(memoryBudgetBytes, budget.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long getMaxBodyBytes() {
+            return settings.getMaxBodyBytes();
+        }
+
+        @Override
+        public void setMaxBodyBytes(long maxBodyBytes) {
+            logger.info("Max body size set to [{}] bytes", maxBodyBytes);
+            settings.setMaxBodyBytes(maxBodyBytes);
+        }
+
+        @Override
+        public boolean tearDownConnection(long connectionId) {
+            logger.info("Tear down connection id[{}] by operator", connectionId);
+            return HttpBridge_Module.this.tearDownConnection(connectionId, "operator");
+        }
+    }
+
     /**
      * Extend the ThreadPoolExecutor that we use for starting the http connection threads. This allows us to override the beforeExecute() method and set the
      * threads context class loader to our module loader. This is required to support ServiceLoaders that use their default ExtensionLoaders. We set our threads
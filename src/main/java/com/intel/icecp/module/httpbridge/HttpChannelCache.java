@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Message;
+import com.intel.icecp.core.Node;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+
+/**
+ * A module wide cache of opened ICECP channels, keyed by channel URI and message type. Opening and closing a channel is expensive, so the input and output
+ * channels of the data commands are opened once and shared by every request that uses them.
+ * <p>
+ * Each {@link #acquire} must be paired with a {@link #release}. A channel with no references is kept open as idle until it has been idle for longer than the
+ * idle timeout, or until more than the maximum number of idle channels exist, in which case the least recently used idle channels are closed first. Channels
+ * in use are never closed by the cache.
+ *
+ */
+public class HttpChannelCache {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The Node used to open the channels.
+     */
+    private final Node node;
+
+    /**
+     * The maximum number of channels with no references to keep open.
+     */
+    private final int maxIdleChannels;
+
+    /**
+     * How long a channel with no references is kept open, in nanoseconds.
+     */
+    private final long idleTimeoutNanos;
+
+    /**
+     * The cached channels, in least recently used order.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Number of cached channels with no references.
+     */
+    private int idleCount = 0;
+
+    /**
+     * Create the cache.
+     *
+     * @param node
+     *            The node used to open the channels
+     * @param maxIdleChannels
+     *            The maximum number of unreferenced channels to keep open. Zero closes channels as soon as they are released.
+     * @param idleTimeout
+     *            How long an unreferenced channel is kept open.
+     * @param unit
+     *            The unit of idleTimeout.
+     */
+    public HttpChannelCache(Node node, int maxIdleChannels, long idleTimeout, TimeUnit unit) {
+        this.node = node;
+        this.maxIdleChannels = maxIdleChannels;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Get an open channel for the URI and message type, opening it if it is not cached. Call {@link #release} when done with the channel, do not close it.
+     *
+     * @param channelURI
+     *            The channel to open
+     * @param messageClass
+     *            The message type of the channel
+     * @param persistence
+     *            The persistence used if the channel needs to be opened
+     * @param <T>
+     *            The message type of the channel
+     * @return The open channel
+     * @throws ChannelLifetimeException
+     *            The channel could not be opened
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Message> Channel<T> acquire(URI channelURI, Class<T> messageClass, Persistence persistence) throws ChannelLifetimeException {
+        Key key = new Key(channelURI, messageClass);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.references++ == 0)
+                    idleCount--;
+                return (Channel<T>) entry.channel;
+            }
+        }
+
+        // Open outside the lock, channel opens can be slow. If another thread opened the same channel meanwhile, use theirs and close ours.
+        Channel<T> channel = node.openChannel(channelURI, messageClass, persistence);
+        Channel<?> duplicate = null;
+        Channel<T> result;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.references++ == 0)
+                    idleCount--;
+                duplicate = channel;
+                result = (Channel<T>) entry.channel;
+            } else {
+                entry = new Entry(channel);
+                entry.references = 1;
+                entries.put(key, entry);
+                result = channel;
+            }
+        }
+        if (duplicate != null)
+            close(duplicate);
+        else
+            logger.debug("Channel [{}] opened and cached", channelURI);
+        return result;
+    }
+
+    /**
+     * Release a channel returned by {@link #acquire}. The channel stays open as idle, and idle channels past the limits are closed.
+     *
+     * @param channelURI
+     *            The channel URI passed to acquire
+     * @param messageClass
+     *            The message type passed to acquire
+     */
+    public void release(URI channelURI, Class<? extends Message> messageClass) {
+        List<Channel<?>> evicted;
+        synchronized (this) {
+            Entry entry = entries.get(new Key(channelURI, messageClass));
+            if (entry == null || entry.references == 0) {
+                logger.warn("Release of channel [{}] that is not acquired", channelURI);
+                return;
+            }
+            if (--entry.references == 0) {
+                entry.idleSinceNanos = System.nanoTime();
+                idleCount++;
+            }
+            evicted = removeIdleEntries();
+        }
+        for (Channel<?> channel : evicted)
+            close(channel);
+    }
+
+    /**
+     * Close the idle channels that are past the idle timeout. Channels in use are not affected.
+     */
+    public void evictIdle() {
+        List<Channel<?>> evicted;
+        synchronized (this) {
+            evicted = removeIdleEntries();
+        }
+        for (Channel<?> channel : evicted)
+            close(channel);
+    }
+
+    /**
+     * Close all of the cached channels, whether in use or not. Used when the module stops.
+     */
+    public void closeAll() {
+        List<Channel<?>> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values())
+                closing.add(entry.channel);
+            entries.clear();
+            idleCount = 0;
+        }
+        for (Channel<?> channel : closing)
+            close(channel);
+    }
+
+    /**
+     * @return The number of cached channels, in use or idle.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of cached channels with no references.
+     */
+    public synchronized int idleSize() {
+        return idleCount;
+    }
+
+    /**
+     * Remove the idle entries that are too old, or beyond the idle limit. Must hold the lock. Iteration order is least recently used first.
+     *
+     * @return The removed channels, to be closed outside the lock
+     */
+    private List<Channel<?>> removeIdleEntries() {
+        List<Channel<?>> evicted = new ArrayList<>();
+        if (idleCount == 0)
+            return evicted;
+
+        long now = System.nanoTime();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && idleCount > 0) {
+            Entry entry = it.next();
+            if (entry.references == 0 && (idleCount > maxIdleChannels || now - entry.idleSinceNanos >= idleTimeoutNanos)) {
+                it.remove();
+                idleCount--;
+                evicted.add(entry.channel);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Helper function to close a channel.
+     *
+     * @param channel
+     *            The channel to close, may be null
+     */
+    private void close(Channel<?> channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (ChannelLifetimeException e) {
+            logger.info("Failed to close Channel: " + channel.getName());
+        }
+    }
+
+    /**
+     * The cache key, a channel URI and message type.
+     */
+    private static final class Key {
+        private final URI channelURI;
+        private final Class<?> messageClass;
+
+        Key(URI channelURI, Class<?> messageClass) {
+            this.channelURI = channelURI;
+            this.messageClass = messageClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return channelURI.equals(other.channelURI) && messageClass.equals(other.messageClass);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(channelURI, messageClass);
+        }
+    }
+
+    /**
+     * A cached channel and its reference count.
+     */
+    private static final class Entry {
+        private final Channel<?> channel;
+        private int references;
+        private long idleSinceNanos;
+
+        Entry(Channel<?> channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the module commands (setup, teardown, keepalive) off the command channel delivery thread. The dispatcher has a number of stripes, each a single
+ * thread with a bounded queue. All commands of a connectionId go to the same stripe, so they run in the order they arrived. Setup commands have no
+ * connectionId yet and are spread over the stripes.
+ * <p>
+ * When the queue of a stripe is full, the command is rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+ *
+ */
+public class HttpCommandDispatcher {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The single thread executors, one per stripe.
+     */
+    private final ThreadPoolExecutor[] stripes;
+
+    /**
+     * Spreads the commands without a connectionId over the stripes.
+     */
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /**
+     * Create the dispatcher and its threads.
+     *
+     * @param stripeCount
+     *            The number of stripes (threads).
+     * @param queueCapacity
+     *            The maximum number of waiting commands per stripe.
+     * @param contextClassLoader
+     *            The context class loader of the threads, see {@link HttpBridge_Module.HttpPoolExecutor}.
+     */
+    public HttpCommandDispatcher(int stripeCount, int queueCapacity, ClassLoader contextClassLoader) {
+        if (stripeCount < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException(String.format("Invalid stripe count [%d] queue capacity [%d]", stripeCount, queueCapacity));
+
+        stripes = new ThreadPoolExecutor[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            final String name = "HttpBridge-Command-" + i;
+            stripes[i] = new StripeExecutor(queueCapacity, r -> {
+                Thread thread = new Thread(r, name);
+                thread.setContextClassLoader(contextClassLoader);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Get the executor that runs the commands of a connection.
+     *
+     * @param connectionId
+     *            The connectionId of the command, 0 if it has none yet.
+     * @return The executor of the stripe
+     */
+    public ExecutorService executorFor(long connectionId) {
+        if (connectionId == 0)
+            return stripes[Math.floorMod(nextStripe.getAndIncrement(), stripes.length)];
+        // Mix the bits, connection ids are random but do not rely on the low bits alone.
+        long h = connectionId * 0x9E3779B97F4A7C15L;
+        return stripes[Math.floorMod((int) (h ^ (h >>> 32)), stripes.length)];
+    }
+
+    /**
+     * @return The number of commands waiting in all stripes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes)
+            depth += stripe.getQueue().size();
+        return depth;
+    }
+
+    /**
+     * Stop the threads. Waiting commands are dropped, running commands are interrupted.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes)
+            stripe.shutdownNow();
+    }
+
+    /**
+     * A single thread executor with a bounded queue, that logs the failures of the submitted commands.
+     */
+    private static final class StripeExecutor extends ThreadPoolExecutor {
+        StripeExecutor(int queueCapacity, ThreadFactory threadFactory) {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueCapacity), threadFactory);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            if (t == null && r instanceof Future<?>) {
+                try {
+                    ((Future<?>) r).get();
+                } catch (ExecutionException e) {
+                    t = e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (CancellationException e) {
+                    ; // cancelled on shutdown
+                }
+            }
+            if (t != null)
+                logger.error("Command failed", t);
+        }
+    }
+}
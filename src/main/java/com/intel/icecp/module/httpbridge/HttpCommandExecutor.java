@@ -16,15 +16,21 @@
 
 package com.intel.icecp.module.httpbridge;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,8 +46,11 @@ import com.intel.icecp.core.messages.BytesMessage;
 import com.intel.icecp.core.metadata.Persistence;
 import com.intel.icecp.core.misc.ChannelIOException;
 import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.jfr.HttpFlightRecorder;
 import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
 import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpFileManifestMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
 import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
 
 /**
@@ -54,6 +63,16 @@ public class HttpCommandExecutor {
 
     private final int READ_SIZE = 1024 * 16;
 
+    /**
+     * The largest body that fits in one array.
+     */
+    private static final int MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * The longest response body read only to keep its connection alive. A longer one is cheaper to cut off by disconnecting.
+     */
+    private static final long MAX_DRAIN_BYTES = 64 * 1024;
+
     /**
      * The logger for debug messages.
      */
@@ -70,6 +89,36 @@ public class HttpCommandExecutor {
      */
     private HttpSetupMessage setupCmdMessage = null;
 
+    /**
+     * The cache used to get the input and output channels. Channels are released back to the cache when the request is complete, not closed.
+     */
+    private HttpChannelCache channelCache;
+
+    /**
+     * The module metrics, every request records its timing here.
+     */
+    private HttpBridgeMetrics metrics;
+
+    /**
+     * The connect and read timeouts of the module.
+     */
+    private HttpBridgeSettings settings;
+
+    /**
+     * The access log, every request is offered to it.
+     */
+    private HttpAccessLog accessLog;
+
+    /**
+     * The balancer over the endpoints of the connection, null to send every request to the connectionUrl.
+     */
+    private HttpEndpointBalancer balancer;
+
+    /**
+     * The proxies of the connection, null to use the proxyHost of the setup message.
+     */
+    private HttpProxyPool proxyPool;
+
     /**
      * Constructor - sets up the parameters for the request.
      * 
@@ -81,37 +130,173 @@ public class HttpCommandExecutor {
      *            Contains the connection information for the request.
      */
     public HttpCommandExecutor(Logger logger, Node node, HttpSetupMessage setupCmdMessage) {
+        this(logger, node, setupCmdMessage, new HttpChannelCache(node, 0, 0, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Constructor - sets up the parameters for the request, sharing the input and output channels through the channel cache.
+     *
+     * @param logger
+     *            The logger for messages
+     * @param node
+     *            The node to use for the command
+     * @param setupCmdMessage
+     *            Contains the connection information for the request.
+     * @param channelCache
+     *            The cache of open input and output channels.
+     */
+    public HttpCommandExecutor(Logger logger, Node node, HttpSetupMessage setupCmdMessage, HttpChannelCache channelCache) {
+        this(logger, node, setupCmdMessage, channelCache, new HttpBridgeMetrics(), new HttpBridgeSettings());
+    }
+
+    /**
+     * Constructor - sets up the parameters for the request, sharing the input and output channels through the channel cache and recording the request
+     * timing in the module metrics. The requests are not access logged.
+     *
+     * @param logger
+     *            The logger for messages
+     * @param node
+     *            The node to use for the command
+     * @param setupCmdMessage
+     *            Contains the connection information for the request.
+     * @param channelCache
+     *            The cache of open input and output channels.
+     * @param metrics
+     *            The module metrics.
+     * @param settings
+     *            The connect and read timeouts of the module.
+     */
+    public HttpCommandExecutor(Logger logger, Node node, HttpSetupMessage setupCmdMessage, HttpChannelCache channelCache, HttpBridgeMetrics metrics,
+            HttpBridgeSettings settings) {
+        this(logger, node, setupCmdMessage, channelCache, metrics, settings, new HttpAccessLog());
+    }
+
+    /**
+     * Constructor - sets up the parameters for the request, sharing the input and output channels through the channel cache and recording the request
+     * timing in the module metrics.
+     *
+     * @param logger
+     *            The logger for messages
+     * @param node
+     *            The node to use for the command
+     * @param setupCmdMessage
+     *            Contains the connection information for the request.
+     * @param channelCache
+     *            The cache of open input and output channels.
+     * @param metrics
+     *            The module metrics.
+     * @param settings
+     *            The connect and read timeouts of the module.
+     * @param accessLog
+     *            The access log of the module.
+     */
+    public HttpCommandExecutor(Logger logger, Node node, HttpSetupMessage setupCmdMessage, HttpChannelCache channelCache, HttpBridgeMetrics metrics,
+            HttpBridgeSettings settings, HttpAccessLog accessLog) {
+        this(logger, node, setupCmdMessage, channelCache, metrics, settings, accessLog, null, null);
+    }
+
+    /**
+     * Constructor - sets up the parameters for the request, sharing the input and output channels through the channel cache, recording the request
+     * timing in the module metrics and balancing the data commands over the endpoints of the connection.
+     *
+     * @param logger
+     *            The logger for messages
+     * @param node
+     *            The node to use for the command
+     * @param setupCmdMessage
+     *            Contains the connection information for the request.
+     * @param channelCache
+     *            The cache of open input and output channels.
+     * @param metrics
+     *            The module metrics.
+     * @param settings
+     *            The connect and read timeouts of the module.
+     * @param accessLog
+     *            The access log of the module.
+     * @param balancer
+     *            The balancer over the endpoints of the connection, or null to use the connectionUrl.
+     * @param proxyPool
+     *            The proxies of the connection, or null to use the proxyHost.
+     */
+    public HttpCommandExecutor(Logger logger, Node node, HttpSetupMessage setupCmdMessage, HttpChannelCache channelCache, HttpBridgeMetrics metrics,
+            HttpBridgeSettings settings, HttpAccessLog accessLog, HttpEndpointBalancer balancer, HttpProxyPool proxyPool) {
         this.logger = logger;
         this.node = node;
         this.setupCmdMessage = setupCmdMessage;
+        this.channelCache = channelCache;
+        this.metrics = metrics;
+        this.settings = settings;
+        this.accessLog = accessLog;
+        this.balancer = balancer;
+        this.proxyPool = proxyPool;
     }
 
     /**
      * Execute the specified {@link HttpDataMessage} for the connectionId.  This method builds the connection using the connection parameters in the
      * setupCmdMessage.  Then it executes the Http request using the parameters in the data command message.
      *
+     * <p>
+     * The time spent in each phase is recorded in the module metrics, and returned in the message if {@link HttpDataMessage#returnTiming} is set. When the
+     * connection has several endpoints, the request is sent to the endpoint selected by the balancer, and its latency and result are reported back to it.
+     * The bodies held in memory are reserved from the memory budget of the module; a command that finds no room in time is returned with
+     * ERROR_ON_OVERLOAD.
+     *
      * @param dataCmdMessage
      *            Contains the Http request and all its parameters. The status of this request is set in the status field of the incoming dataCmdMessage.
      */
     protected void executeCommand(HttpDataMessage dataCmdMessage) {
         dataCmdMessage.status = HTTP_BRIDGE_STATUS.OK;
 
+        Object event = HttpFlightRecorder.beginDataCommand();
+        HttpRequestTiming timing = new HttpRequestTiming();
+        timing.startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        HttpEndpointBalancer.Endpoint endpoint = null;
+        URL url = setupCmdMessage.connectionUrl;
+
         Channel<BytesMessage> outputChannel = null;
         HttpURLConnection connection = null;
+        boolean keepAlive = false;
         try {
-            connection = createConnection(); // TODO: Should we support HttpsURLConnection?
+            // Selected in the try, so the endpoint is always released.
+            if (balancer != null) {
+                endpoint = balancer.select();
+                url = endpoint.getUrl();
+            }
+            resolveHost(url, timing);
+            Proxy proxy = proxyPool != null ? proxyPool.select() : null;
+            connection = createConnection(url, proxy); // TODO: Should we support HttpsURLConnection?
             verifyConnection(connection);
-            setConnectionProperties(connection, dataCmdMessage.httpRequest, dataCmdMessage.requestHeaders, dataCmdMessage.useCache);
-            setupInputChannel(dataCmdMessage.inputHttpChannelURI, connection);
+            setConnectionProperties(connection, dataCmdMessage);
+            setupInput(connection, dataCmdMessage);
             outputChannel = setupOutputChannel(dataCmdMessage.outputHttpChannelURI, connection);
 
-            connection.connect();
-            getResponseCodes(dataCmdMessage, connection);
+            long connectStart = System.nanoTime();
+            connection = connect(connection, url, proxy, dataCmdMessage);
+            timing.connectNanos = System.nanoTime() - connectStart;
+
+            // The request body is written before the response is read, the connection cannot write once it has read.
             if (connection.getDoOutput()) {
-                getInputData(connection, dataCmdMessage.inputHttpChannelURI, dataCmdMessage.inputTimeoutSeconds);
+                if (dataCmdMessage.inputFile != null)
+                    sendInputFile(connection, dataCmdMessage.inputFile, timing);
+                else
+                    getInputData(connection, dataCmdMessage.inputHttpChannelURI, dataCmdMessage.inputTimeoutSeconds, timing);
             }
+            long responseStart = System.nanoTime();
+            getResponseCodes(dataCmdMessage, connection);
+            timing.firstByteNanos = System.nanoTime() - responseStart;
             if (outputChannel != null && connection.getDoInput()) {
-                sendOutputData(connection, outputChannel);
+                if (dataCmdMessage.parallelSegments > 1 && dataCmdMessage.responseCode == HttpURLConnection.HTTP_PARTIAL)
+                    new HttpSegmentedDownload(this, url, dataCmdMessage, outputChannel, channelCache, settings.getMemoryBudget(),
+                            maxBodyBytes(dataCmdMessage), settings.getSegmentExecutor()).run(connection, timing);
+                else if (dataCmdMessage.spoolThresholdBytes > 0)
+                    spoolOutputData(connection, outputChannel, dataCmdMessage, timing);
+                else
+                    sendOutputData(connection, outputChannel, dataCmdMessage, timing);
+                // The body was read and closed, the JVM returned the connection to its keep-alive pool or closed it.
+                keepAlive = true;
+            } else {
+                keepAlive = drainResponse(connection);
             }
         } catch (HttpConnectionException e) {
             dataCmdMessage.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
@@ -119,8 +304,109 @@ public class HttpCommandExecutor {
             dataCmdMessage.status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
         } catch (HttpResponseException ex) {
             dataCmdMessage.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+        } catch (HttpOverloadException e) {
+            logger.debug("Data command id[{}] rejected: {}", dataCmdMessage.connectionId, e.getMessage());
+            dataCmdMessage.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+        } finally {
+            cleanupConnection(connection, outputChannel != null ? dataCmdMessage.outputHttpChannelURI : null, keepAlive);
+            timing.totalNanos = System.nanoTime() - start;
+            if (endpoint != null)
+                balancer.release(endpoint, timing.totalNanos, dataCmdMessage.status != HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT
+                        && dataCmdMessage.status != HTTP_BRIDGE_STATUS.ERROR_ON_IO && dataCmdMessage.responseCode < 500);
+            metrics.recordRequest(url.getHost(), dataCmdMessage, timing);
+            HttpFlightRecorder.endDataCommand(event, url, dataCmdMessage, timing);
+            accessLog.record(url, dataCmdMessage, timing);
+            if (dataCmdMessage.returnTiming)
+                dataCmdMessage.timing = timing;
+        }
+    }
+
+    /**
+     * Open an upstream connection the way a data command does, to the endpoint selected by the balancer and through the proxy pool, and send a HEAD
+     * request. Its response is read, so the connection goes back to the JVM keep-alive pool for the next data command. See {@link HttpPrewarmTask}.
+     *
+     * @return The response code.
+     * @throws HttpConnectionException
+     *            The connection could not be created, or the host could not be resolved.
+     * @throws IOException
+     *            The request failed.
+     */
+    protected int warmUp() throws HttpConnectionException, IOException {
+        HttpDataMessage head = new HttpDataMessage(setupCmdMessage.connectionId);
+        head.httpRequest = "HEAD";
+        head.requestHeaders = new HashMap<>();
+        long start = System.nanoTime();
+        HttpEndpointBalancer.Endpoint endpoint = null;
+        URL url = setupCmdMessage.connectionUrl;
+        HttpURLConnection connection = null;
+        boolean success = false;
+        try {
+            if (balancer != null) {
+                endpoint = balancer.select();
+                url = endpoint.getUrl();
+            }
+            resolveHost(url, new HttpRequestTiming());
+            Proxy proxy = proxyPool != null ? proxyPool.select() : null;
+            connection = createConnection(url, proxy);
+            verifyConnection(connection);
+            setConnectionProperties(connection, head);
+            connection = connect(connection, url, proxy, head);
+            int responseCode = connection.getResponseCode();
+            InputStream is = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (is != null) {
+                try (InputStream in = is) {
+                    byte[] buffer = new byte[READ_SIZE];
+                    while (in.read(buffer) != -1) {
+                        // Discard.
+                    }
+                }
+            }
+            success = responseCode < 500;
+            return responseCode;
+        } catch (IOException e) {
+            if (connection != null)
+                connection.disconnect();
+            throw e;
+        } finally {
+            if (endpoint != null)
+                balancer.release(endpoint, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Resolve the host of the connection, so the DNS time is measured apart from the connect time. The JVM caches the address, so the connection does not
+     * resolve it again. Skipped when a proxy is used, the proxy resolves the host.
+     *
+     * @param timing
+     *            The DNS time is recorded here.
+     * @throws HttpConnectionException
+     *            The host could not be resolved.
+     */
+    protected void resolveHost(HttpRequestTiming timing) throws HttpConnectionException {
+        resolveHost(setupCmdMessage.connectionUrl, timing);
+    }
+
+    /**
+     * Resolve the host of a URL of the connection, see {@link #resolveHost(HttpRequestTiming)}.
+     *
+     * @param url
+     *            The connectionUrl or one of the endpoints.
+     * @param timing
+     *            The DNS time is recorded here.
+     * @throws HttpConnectionException
+     *            The host could not be resolved.
+     */
+    protected void resolveHost(URL url, HttpRequestTiming timing) throws HttpConnectionException {
+        if (proxyPool != null || setupCmdMessage.proxyHost != null && !setupCmdMessage.proxyHost.isEmpty())
+            return;
+        long dnsStart = System.nanoTime();
+        try {
+            InetAddress.getAllByName(url.getHost());
+        } catch (UnknownHostException e) {
+            logger.error("Failed to resolve host [{}]", url.getHost(), e);
+            throw new HttpConnectionException(e);
         } finally {
-            cleanupConnection(connection, outputChannel);
+            timing.dnsNanos = System.nanoTime() - dnsStart;
         }
     }
 
@@ -147,15 +433,46 @@ public class HttpCommandExecutor {
      *             if not successful.
      */
     protected HttpURLConnection createConnection() throws HttpConnectionException {
+        return createConnection(setupCmdMessage.connectionUrl);
+    }
+
+    /**
+     * Create the HttpURLConnection to a URL of the connection, with the proxy of the setup message.
+     *
+     * @param url
+     *            The connectionUrl or one of the endpoints.
+     * @return The HttpURLConnection if successful.
+     * @throws HttpConnectionException
+     *             if not successful.
+     */
+    protected HttpURLConnection createConnection(URL url) throws HttpConnectionException {
+        return createConnection(url, proxyPool != null ? proxyPool.select() : null);
+    }
+
+    /**
+     * Create the HttpURLConnection to a URL of the connection through a proxy of the pool.
+     *
+     * @param url
+     *            The connectionUrl or one of the endpoints.
+     * @param proxy
+     *            The proxy selected from the pool, or null to use the proxyHost of the setup message.
+     * @return The HttpURLConnection if successful.
+     * @throws HttpConnectionException
+     *             if not successful.
+     */
+    protected HttpURLConnection createConnection(URL url, Proxy proxy) throws HttpConnectionException {
         try {
-            if (setupCmdMessage.proxyHost != null && !setupCmdMessage.proxyHost.isEmpty()) {
-                Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(setupCmdMessage.proxyHost, setupCmdMessage.proxyPort));
-                logger.info("openConnection [{}] using proxy[{}:{}]", setupCmdMessage.connectionUrl.toString(),
+            if (proxy != null) {
+                logger.debug("openConnection [{}] using proxy[{}]", url, proxy.address());
+                return (HttpURLConnection) url.openConnection(proxy);
+            } else if (setupCmdMessage.proxyHost != null && !setupCmdMessage.proxyHost.isEmpty()) {
+                Proxy setupProxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(setupCmdMessage.proxyHost, setupCmdMessage.proxyPort));
+                logger.debug("openConnection [{}] using proxy[{}:{}]", url,
                         setupCmdMessage.proxyHost, setupCmdMessage.proxyPort);
-                return (HttpURLConnection) setupCmdMessage.connectionUrl.openConnection(proxy);
+                return (HttpURLConnection) url.openConnection(setupProxy);
             } else {
-                logger.info("openConnection [{}], no Proxy", setupCmdMessage.connectionUrl.toString());
-                return (HttpURLConnection) setupCmdMessage.connectionUrl.openConnection();
+                logger.debug("openConnection [{}], no Proxy", url);
+                return (HttpURLConnection) url.openConnection();
             }
         } catch (IOException e) {
             logger.error("Failed to openConnection", e);
@@ -163,6 +480,68 @@ public class HttpCommandExecutor {
         }
     }
 
+    /**
+     * Connect. When the connection goes through a proxy of the pool and the proxy cannot be reached, the proxy is marked down and the request is sent
+     * again through the next proxy, until every proxy was tried. Nothing has been sent to the server when connect fails, so the request is safe to send
+     * again. Other errors, eg. a tunnel refused because the server is down, fail the request without a failover.
+     *
+     * @param connection
+     *            The connection, with its properties set.
+     * @param url
+     *            The URL of the connection.
+     * @param proxy
+     *            The proxy of the connection, null if it does not use the pool.
+     * @param dataCmdMessage
+     *            The data command, to set the properties of the next connection.
+     * @return The connected connection, it is not the one passed in after a failover.
+     * @throws IOException
+     *            The connect failed on every proxy.
+     * @throws HttpConnectionException
+     *            The connection to the next proxy could not be created.
+     */
+    protected HttpURLConnection connect(HttpURLConnection connection, URL url, Proxy proxy, HttpDataMessage dataCmdMessage)
+            throws IOException, HttpConnectionException {
+        int attempts = proxy != null ? proxyPool.size() : 1;
+        while (true) {
+            try {
+                connection.connect();
+                if (proxy != null)
+                    proxyPool.succeeded(proxy);
+                return connection;
+            } catch (IOException e) {
+                if (proxy == null || !HttpProxyPool.isProxyUnreachable(e))
+                    throw e;
+                proxyPool.failed(proxy, e);
+                if (--attempts == 0)
+                    throw e;
+                connection.disconnect();
+                proxy = proxyPool.select();
+                logger.info("Failing over to proxy [{}]", proxy.address());
+                connection = createConnection(url, proxy);
+                setConnectionProperties(connection, dataCmdMessage);
+                setupInput(connection, dataCmdMessage);
+            }
+        }
+    }
+
+    /**
+     * Setup the properties of the connection of a data command: its request, headers and cache flag, and the range of the first segment of a segmented
+     * download.
+     *
+     * @param connection
+     *            The current connection.
+     * @param dataCmdMessage
+     *            The data command.
+     * @throws HttpConnectionException
+     *            Issue with the protocol or current state
+     */
+    protected void setConnectionProperties(HttpURLConnection connection, HttpDataMessage dataCmdMessage) throws HttpConnectionException {
+        setConnectionProperties(connection, dataCmdMessage.httpRequest, dataCmdMessage.requestHeaders, dataCmdMessage.useCache);
+        String range = HttpSegmentedDownload.firstRange(dataCmdMessage);
+        if (range != null)
+            connection.setRequestProperty("Range", range);
+    }
+
     /**
      * Setup the properties for the connection.  This includes the httpRequest, the headers and other flags.
      *
@@ -184,8 +563,6 @@ public class HttpCommandExecutor {
             connection.setRequestMethod(httpRequest);
 
             for (Map.Entry<String, String> prop : requestHeaders.entrySet()) {
-                logger.info("Set Property Name[{}] value[{}]", prop.getKey(), prop.getValue());
-
                 // Do not allow null keys.
                 if (prop.getKey() != null) {
                     connection.setRequestProperty(prop.getKey(), prop.getValue());
@@ -196,6 +573,8 @@ public class HttpCommandExecutor {
         }
 
         connection.setUseCaches(useCache);
+        connection.setConnectTimeout(settings.getConnectTimeoutMillis());
+        connection.setReadTimeout(settings.getReadTimeoutMillis());
     }
 
     /**
@@ -216,11 +595,35 @@ public class HttpCommandExecutor {
     }
 
     /**
-     * If the outputChannel is specified then open it, and set the DoInput flag.  Not all httpRequests require input (eg, HEAD), so only setup this channel
-     * if it is specified in the DataCommand.  See {@link HttpCommandExecutor#sendOutputData}
+     * Setup the request body of a data command: streamed from its inputFile, with the length of the file, or read from its input channel, see
+     * {@link HttpCommandExecutor#setupInputChannel}.
+     *
+     * @param connection
+     *            The current connection
+     * @param dataCmdMessage
+     *            The data command.
+     * @throws IOException
+     *            The inputFile is not a file of the spool directory.
+     * @throws HttpConnectionException
+     *            Issue with the connection
+     */
+    protected void setupInput(HttpURLConnection connection, HttpDataMessage dataCmdMessage) throws IOException, HttpConnectionException {
+        if (dataCmdMessage.inputFile == null) {
+            setupInputChannel(dataCmdMessage.inputHttpChannelURI, connection);
+            return;
+        }
+        Path file = settings.getFileSpool().resolve(dataCmdMessage.inputFile);
+        connection.setDoOutput(true);
+        // Without a fixed length the connection buffers the whole body in memory to count it.
+        connection.setFixedLengthStreamingMode(Files.size(file));
+    }
+
+    /**
+     * If the outputChannel is specified then open it.  Not all httpRequests require input (eg, HEAD), so only setup this channel if it is specified in the
+     * DataCommand.  See {@link HttpCommandExecutor#sendOutputData}
      * <p>
      * The bytes read from the http connections inputStream are published
-     * to this outputChannel
+     * to this outputChannel.  The DoInput flag is left set either way, the connection reads the response code and headers from its input stream.
      *
      * @param outputHttpChannelURI
      *            If specified, the output channel to open.
@@ -233,13 +636,11 @@ public class HttpCommandExecutor {
      */
     protected Channel<BytesMessage> setupOutputChannel(URI outputHttpChannelURI, HttpURLConnection connection) throws HttpConnectionException {
         Channel<BytesMessage> outputChannel = null;
-        connection.setDoInput(false);
 
         if (outputHttpChannelURI != null) {
-            logger.info("Setup Output Channel from http input stream");
+            logger.debug("Setup Output Channel from http input stream");
             try {
-                outputChannel = node.openChannel(outputHttpChannelURI, BytesMessage.class, new Persistence());
-                connection.setDoInput(true);
+                outputChannel = channelCache.acquire(outputHttpChannelURI, BytesMessage.class, new Persistence());
             } catch (ChannelLifetimeException e) {
                 logger.error("Failed to open input channel", e);
                 throw new HttpConnectionException(e);
@@ -263,7 +664,7 @@ public class HttpCommandExecutor {
         try {
             dataCmdMessage.responseCode = connection.getResponseCode();
             dataCmdMessage.responseMessage = connection.getResponseMessage();
-            logger.info("ResponseMessage={}, ResponseCode={}", dataCmdMessage.responseMessage, dataCmdMessage.responseCode);
+            logger.debug("ResponseMessage={}, ResponseCode={}", dataCmdMessage.responseMessage, dataCmdMessage.responseCode);
             // TODO: What errors should we handle here?
             if (dataCmdMessage.responseCode >= 400)
                 throw new HttpResponseException(String.format("Http Error [%d] %s",
@@ -283,29 +684,12 @@ public class HttpCommandExecutor {
         dataCmdMessage.responseHeaders = new HashMap<>();
 
         for (Map.Entry<String, List<String>> prop : respHeaders.entrySet()) {
-
-            logger.debug("ResponseHeader Name[{}] values[{}]", prop.getKey(), getResponseValues(prop.getValue()));
             if (prop.getKey() != null) {
                 dataCmdMessage.responseHeaders.put(prop.getKey(), prop.getValue());
             }
         }
     }
 
-    /**
-     * Convert the incoming list of strings into a single string separated by a space. This is just a debugging method.
-     *
-     * @param hdrValues
-     *            List of strings.
-     * @return String containing all of the strings in the incoming list, separated by a space.
-     */
-    private String getResponseValues(List<String> hdrValues) {
-        StringBuilder values = new StringBuilder();
-        for (String val : hdrValues) {
-            values.append(val).append(" ");
-        }
-        return values.toString();
-    }
-
     /**
      * Open the inputChannel and read the bytes using the timeout value.  When the bytes arrive they are sent to the http connections output stream.
      * 
@@ -315,27 +699,164 @@ public class HttpCommandExecutor {
      *            The URI for the input channel
      * @param inputTimeoutSeconds
      *            The timeout in seconds to wait for the input bytes.
+     * @param timing
+     *            The input wait and write times are recorded here.
      * @throws HttpResponseException
      *            The HTTP response resulted in an exception
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the input bytes in time.
      */
-    protected void getInputData(HttpURLConnection connection, URI inputHttpChannelURI, long inputTimeoutSeconds) throws HttpResponseException {
-        BytesMessage inputMessage;
-        try (Channel<BytesMessage> inputChannel = node.openChannel(inputHttpChannelURI, BytesMessage.class, new Persistence())) {
-            inputMessage = inputChannel.latest().get(inputTimeoutSeconds, TimeUnit.SECONDS);
-        } catch (ChannelLifetimeException | ExecutionException | ChannelIOException | InterruptedException e) {
-            logger.error("Failed to read from input channel", e);
-            throw new HttpResponseException(e);
-        } catch (TimeoutException e) {
-            logger.error("Timed out waiting for input data", e);
-            throw new HttpResponseException(e);
+    protected void getInputData(HttpURLConnection connection, URI inputHttpChannelURI, long inputTimeoutSeconds, HttpRequestTiming timing)
+            throws HttpResponseException, HttpOverloadException {
+        // With a body limit, room for the largest body is reserved before the input is read from the channel, and the rest given back once its length is
+        // known. Without one, the length is only known once the input is read.
+        long maxBodyBytes = settings.getMaxBodyBytes();
+        try (HttpMemoryBudget.Reservation reservation = settings.getMemoryBudget().reserve(heldInputBytes(maxBodyBytes))) {
+            BytesMessage inputMessage;
+            long waitStart = System.nanoTime();
+            try {
+                Channel<BytesMessage> inputChannel = channelCache.acquire(inputHttpChannelURI, BytesMessage.class, new Persistence());
+                try {
+                    inputMessage = inputChannel.latest().get(inputTimeoutSeconds, TimeUnit.SECONDS);
+                } finally {
+                    channelCache.release(inputHttpChannelURI, BytesMessage.class);
+                }
+            } catch (ChannelLifetimeException | ExecutionException | ChannelIOException | InterruptedException e) {
+                logger.error("Failed to read from input channel", e);
+                throw new HttpResponseException(e);
+            } catch (TimeoutException e) {
+                logger.error("Timed out waiting for input data", e);
+                throw new HttpResponseException(e);
+            } finally {
+                timing.inputWaitNanos = System.nanoTime() - waitStart;
+            }
+
+            byte[] input = inputMessage.getBytes();
+            logger.debug("Input bytes [{}] received", input.length);
+            if (maxBodyBytes > 0 && input.length > maxBodyBytes)
+                throw new HttpResponseException(String.format("Request body of [%d] bytes is larger than [%d] bytes", input.length, maxBodyBytes));
+            reservation.shrink(heldInputBytes(input.length));
+            reservation.grow(heldInputBytes(input.length));
+
+            long writeStart = System.nanoTime();
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(input);
+                timing.requestBytes = input.length;
+            } catch (IOException e) {
+                logger.error("Exception reading from output stream", e);
+                throw new HttpResponseException(e);
+            } finally {
+                timing.requestWriteNanos = System.nanoTime() - writeStart;
+            }
         }
+    }
 
-        logger.info("Input bytes [{}] received", inputMessage.getBytes().length);
-        try (OutputStream os = connection.getOutputStream()) {
-            os.write(inputMessage.getBytes());
+    /**
+     * @param bodyBytes
+     *            The length of a request body read from an input channel.
+     * @return The heap the body takes until it is sent: the message, and the copy the connection buffers since the length of the body was not known when
+     *         it connected.
+     */
+    private static long heldInputBytes(long bodyBytes) {
+        return 2 * bodyBytes;
+    }
+
+    /**
+     * Stream a file of the spool directory to the http connections output stream.
+     *
+     * @param connection
+     *            The existing HttpURLConnection
+     * @param inputFile
+     *            The name of the file in the spool directory.
+     * @param timing
+     *            The write time is recorded here.
+     * @throws IOException
+     *            The file could not be read, or the body could not be written.
+     */
+    protected void sendInputFile(HttpURLConnection connection, String inputFile, HttpRequestTiming timing) throws IOException {
+        Path file = settings.getFileSpool().resolve(inputFile);
+        long writeStart = System.nanoTime();
+        // Not followed, in case the file was swapped for a link since it was resolved.
+        try (InputStream is = Files.newInputStream(file, LinkOption.NOFOLLOW_LINKS); OutputStream os = connection.getOutputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+                timing.requestBytes += n;
+            }
+            logger.debug("Sent [{}] bytes of file [{}]", timing.requestBytes, file);
         } catch (IOException e) {
-            logger.error("Exception reading from output stream", e);
+            logger.error("Failed to send input file [{}]", file, e);
+            throw e;
+        } finally {
+            timing.requestWriteNanos = System.nanoTime() - writeStart;
+        }
+    }
+
+    /**
+     * Send the body of the http connection to the outputChannel, or spool it to a file if it is larger than the spoolThresholdBytes of the data command.
+     * Up to the threshold is read into memory; once it is passed, or the Content-Length is over it, the rest is written to the spool directory and the
+     * {@link HttpFileManifestMessage} of the file is published instead of the body. See {@link HttpFileSpool}.
+     *
+     * @param connection
+     *            The current httpConnection
+     * @param outputChannel
+     *            The opened output channel, for a body under the threshold.
+     * @param dataCmdMessage
+     *            The data command.
+     * @param timing
+     *            The body read and publish times are recorded here.
+     * @throws HttpResponseException
+     *            The body could not be read or spooled, or publishing failed.
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the start of the body in time.
+     */
+    protected void spoolOutputData(HttpURLConnection connection, Channel<BytesMessage> outputChannel, HttpDataMessage dataCmdMessage,
+            HttpRequestTiming timing) throws HttpResponseException, HttpOverloadException {
+        long threshold = dataCmdMessage.spoolThresholdBytes;
+        HttpFileManifestMessage manifest = null;
+        long bodyStart = System.nanoTime();
+        try (HttpMemoryBudget.Reservation reservation = settings.getMemoryBudget().reserve(0)) {
+            byte[] data = null;
+            try (HttpBodyLimitStream is = limit(connection, dataCmdMessage)) {
+                // A body over the threshold is read up to one byte past it, the head is then written to the file ahead of the rest.
+                long contentLength = connection.getContentLengthLong();
+                byte[] head = contentLength <= threshold ? readBody(is, contentLength, threshold, reservation) : new byte[0];
+                if (contentLength <= threshold && head.length <= threshold) {
+                    data = head;
+                    reservation.grow(heldBytes(data.length));
+                } else {
+                    manifest = settings.getFileSpool().spool(head, is, connection.getContentType(), dataCmdMessage.segmentBytes);
+                }
+                dataCmdMessage.bodyTruncated = is.isTruncated();
+            } catch (IOException e) {
+                logger.error("Exception reading or spooling the response body", e);
+                throw new HttpResponseException(e);
+            } finally {
+                timing.bodyNanos = System.nanoTime() - bodyStart;
+            }
+            if (data != null) {
+                publishOutputData(data, outputChannel, timing);
+                return;
+            }
+        }
+        timing.responseBytes = manifest.totalBytes;
+
+        long publishStart = System.nanoTime();
+        try {
+            Channel<HttpFileManifestMessage> manifestChannel = channelCache.acquire(dataCmdMessage.outputHttpChannelURI, HttpFileManifestMessage.class,
+                    new Persistence());
+            try {
+                manifestChannel.publish(manifest);
+            } finally {
+                channelCache.release(dataCmdMessage.outputHttpChannelURI, HttpFileManifestMessage.class);
+            }
+            logger.debug("Published the manifest of [{}] spooled bytes to channel: {}", manifest.totalBytes, dataCmdMessage.outputHttpChannelURI);
+        } catch (ChannelLifetimeException | ChannelIOException e) {
+            logger.error("Failed to publish the manifest of spooled file [{}]", manifest.path, e);
             throw new HttpResponseException(e);
+        } finally {
+            timing.publishNanos = System.nanoTime() - publishStart;
         }
     }
 
@@ -346,68 +867,240 @@ public class HttpCommandExecutor {
      *            The current httpConnection
      * @param outputChannel
      *            The opened output channel to send the bytes
+     * @param dataCmdMessage
+     *            The data command, its body limit applies and bodyTruncated is set.
+     * @param timing
+     *            The body read and publish times are recorded here.
      * @throws HttpResponseException
      *            The HTTP response resulted in an exception
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the body in time.
      */
-    protected void sendOutputData(HttpURLConnection connection, Channel<BytesMessage> outputChannel) throws HttpResponseException {
-        // Both InputStream and ByteArrayOutputStream implement Closeable which means
-        // even though the InputStream gets closed twice, its supported.
-        int nRead;
-        byte[] data = new byte[READ_SIZE];
-        try (InputStream is2 = connection.getInputStream()) {
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-                while ((nRead = is2.read(data, 0, data.length)) != -1) {
-                    bos.write(data, 0, nRead);
-                }
-                data = bos.toByteArray();
+    protected void sendOutputData(HttpURLConnection connection, Channel<BytesMessage> outputChannel, HttpDataMessage dataCmdMessage,
+            HttpRequestTiming timing) throws HttpResponseException, HttpOverloadException {
+        // The body is held until it is published.
+        try (HttpMemoryBudget.Reservation reservation = reserveOutputData(connection, dataCmdMessage)) {
+            byte[] data;
+            long bodyStart = System.nanoTime();
+            try {
+                data = readOutputData(connection, dataCmdMessage, reservation);
+            } finally {
+                timing.bodyNanos = System.nanoTime() - bodyStart;
             }
+            publishOutputData(data, outputChannel, timing);
+        }
+    }
+
+    /**
+     * Reserve the response body of a connection from the memory budget of the module, up front when its length is known. See {@link #heldBytes}.
+     *
+     * @param connection
+     *            The connection, its response code is read.
+     * @param dataCmdMessage
+     *            The data command, its body limit applies.
+     * @return The reservation, it must be closed once the body is no longer held.
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the body in time.
+     */
+    protected HttpMemoryBudget.Reservation reserveOutputData(HttpURLConnection connection, HttpDataMessage dataCmdMessage) throws HttpOverloadException {
+        long expectedBytes = expectedBytes(connection, dataCmdMessage);
+        return settings.getMemoryBudget().reserve(expectedBytes < 0 ? 0 : heldBytes(expectedBytes));
+    }
+
+    /**
+     * Read the response body of a connection into memory. When its length is known it is read into an array of that length, which is handed over as is.
+     * The reservation is grown to the heap the body takes until it is published.
+     *
+     * @param connection
+     *            The connection.
+     * @param dataCmdMessage
+     *            The data command, its body limit applies and bodyTruncated is set.
+     * @param reservation
+     *            The reservation of the body, see {@link #reserveOutputData}. It is grown as the body arrives.
+     * @return The body.
+     * @throws HttpResponseException
+     *            The body could not be read, or is over the limit of the command.
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the body in time.
+     */
+    protected byte[] readOutputData(HttpURLConnection connection, HttpDataMessage dataCmdMessage, HttpMemoryBudget.Reservation reservation)
+            throws HttpResponseException, HttpOverloadException {
+        try (HttpBodyLimitStream is = limit(connection, dataCmdMessage)) {
+            byte[] data = readBody(is, expectedBytes(connection, dataCmdMessage), Long.MAX_VALUE, reservation);
+            reservation.grow(heldBytes(data.length));
+            dataCmdMessage.bodyTruncated = is.isTruncated();
+            return data;
         } catch (IOException ioe2) {
             logger.error("Exception reading from input stream", ioe2);
             throw new HttpResponseException(ioe2);
         }
+    }
+
+    /**
+     * Read a body into an array. An array of the expected length is filled and returned as is; otherwise the array grows as the body arrives, and is trimmed
+     * at the end. While an array is copied both are held, the reservation is grown to both.
+     *
+     * @param is
+     *            The body.
+     * @param expectedBytes
+     *            The length of the body, -1 if unknown.
+     * @param stopAfterBytes
+     *            Stop reading once more than this many bytes are read, even if the body goes on.
+     * @param reservation
+     *            The reservation of the body.
+     * @return The bytes read.
+     * @throws IOException
+     *            The body could not be read, or is too large for an array.
+     * @throws HttpOverloadException
+     *            The memory budget had no room for the body in time.
+     */
+    private byte[] readBody(InputStream is, long expectedBytes, long stopAfterBytes, HttpMemoryBudget.Reservation reservation)
+            throws IOException, HttpOverloadException {
+        if (expectedBytes > MAX_ARRAY_BYTES)
+            throw new IOException(String.format("Response body of [%d] bytes is too large to hold in memory", expectedBytes));
+        byte[] data = new byte[expectedBytes < 0 ? READ_SIZE : (int) expectedBytes];
+        reservation.grow(data.length);
+        int count = 0;
+        while (count <= stopAfterBytes) {
+            if (count == data.length) {
+                // Full, the body either ends here or needs a larger array.
+                int next = is.read();
+                if (next == -1)
+                    break;
+                if (data.length == MAX_ARRAY_BYTES)
+                    throw new IOException("Response body is too large to hold in memory");
+                int length = (int) Math.min(Math.max(2L * data.length, READ_SIZE), MAX_ARRAY_BYTES);
+                reservation.grow((long) data.length + length);
+                data = Arrays.copyOf(data, length);
+                data[count++] = (byte) next;
+                continue;
+            }
+            int nRead = is.read(data, count, data.length - count);
+            if (nRead == -1)
+                break;
+            count += nRead;
+        }
+        if (count == data.length)
+            return data;
+        reservation.grow((long) data.length + count);
+        return Arrays.copyOf(data, count);
+    }
+
+    /**
+     * @return The length of the response body of a connection within the body limit of the command, -1 if unknown.
+     */
+    private long expectedBytes(HttpURLConnection connection, HttpDataMessage dataCmdMessage) {
+        long maxBodyBytes = maxBodyBytes(dataCmdMessage);
+        long contentLength = connection.getContentLengthLong();
+        return contentLength < 0 ? -1 : maxBodyBytes > 0 ? Math.min(contentLength, maxBodyBytes) : contentLength;
+    }
+
+    /**
+     * @param bodyBytes
+     *            The length of a body.
+     * @return The heap the body takes until it is published: its array, and the copy the channel serializes it into when the message is published.
+     */
+    private static long heldBytes(long bodyBytes) {
+        return 2 * bodyBytes;
+    }
+
+    /**
+     * @param dataCmdMessage
+     *            A data command.
+     * @return The largest response body of the command: the smaller of its maxBodyBytes and the one of the module, 0 for no limit.
+     */
+    protected long maxBodyBytes(HttpDataMessage dataCmdMessage) {
+        long moduleMax = settings.getMaxBodyBytes();
+        if (dataCmdMessage.maxBodyBytes == 0 || (moduleMax > 0 && moduleMax < dataCmdMessage.maxBodyBytes))
+            return moduleMax;
+        return dataCmdMessage.maxBodyBytes;
+    }
+
+    /**
+     * @return The response body of the connection, cut off at the body limit of the data command.
+     */
+    private HttpBodyLimitStream limit(HttpURLConnection connection, HttpDataMessage dataCmdMessage) throws IOException {
+        return new HttpBodyLimitStream(connection.getInputStream(), maxBodyBytes(dataCmdMessage),
+                dataCmdMessage.bodyLimitPolicy == HttpDataMessage.BODY_LIMIT_POLICY.TRUNCATE);
+    }
+
+    /**
+     * Publish a response body to the outputChannel, if it is not empty.
+     */
+    private void publishOutputData(byte[] data, Channel<BytesMessage> outputChannel, HttpRequestTiming timing) throws HttpResponseException {
+        timing.responseBytes = data.length;
 
         // Send the bytes to the output channel
+        long publishStart = System.nanoTime();
         try {
             if (data.length > 0) {
                 outputChannel.publish(new BytesMessage(data));
-                logger.info("Published [{}] response bytes to channel: {}", data.length, outputChannel.getName());
+                logger.debug("Published [{}] response bytes to channel: {}", data.length, outputChannel.getName());
             }
             else
-                logger.info("Did not publish to output channel, byte length=0");
+                logger.debug("Did not publish to output channel, byte length=0");
         } catch (ChannelIOException e) {
             logger.error("Failed to publish response bytes", e);
             throw new HttpResponseException(e);
+        } finally {
+            timing.publishNanos = System.nanoTime() - publishStart;
         }
     }
 
     /**
-     * Clean up and tear down the current connection.
+     * Read the response body of a data command that does not publish it, to its end, and close it so the connection goes back to the JVM keep-alive
+     * pool. A body over {@link #MAX_DRAIN_BYTES} is not read to its end, the connection is disconnected instead.
      *
      * @param connection
-     *            The connection to disconnect().
-     * @param outputChannel
-     *            The output channel to close
+     *            The current connection, its response code is read.
+     * @return True if the body was read to its end and closed.
+     */
+    protected boolean drainResponse(HttpURLConnection connection) {
+        if (connection.getContentLengthLong() > MAX_DRAIN_BYTES)
+            return false;
+        try (InputStream is = connection.getInputStream()) {
+            byte[] buffer = new byte[READ_SIZE];
+            long count = 0;
+            int nRead;
+            while ((nRead = is.read(buffer)) != -1) {
+                count += nRead;
+                if (count > MAX_DRAIN_BYTES)
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.debug("Failed to drain the response body", e);
+            return false;
+        }
+    }
+
+    /**
+     * Clean up the current connection. A connection whose response was read to its end and closed is left to the JVM keep-alive pool, disconnecting it
+     * would close the pooled socket. Any other connection is disconnected.
+     *
+     * @param connection
+     *            The connection, may be null.
+     * @param outputHttpChannelURI
+     *            The output channel to release, null if none was acquired
+     * @param keepAlive
+     *            True if the response was read to its end and closed.
      */
-    protected void cleanupConnection(HttpURLConnection connection, Channel<BytesMessage> outputChannel) {
-        closeIOChannel(outputChannel);
-        if (connection != null) {
+    protected void cleanupConnection(HttpURLConnection connection, URI outputHttpChannelURI, boolean keepAlive) {
+        releaseIOChannel(outputHttpChannelURI);
+        if (connection != null && !keepAlive) {
             connection.disconnect();
         }
     }
 
     /**
-     * Helper function for cleanup
+     * Helper function for cleanup. The channel goes back to the channel cache, which decides when to close it.
      *
-     * @param channel
-     *            the IO Channel to close
+     * @param channelURI
+     *            the IO Channel to release, may be null
      */
-    protected void closeIOChannel(Channel<BytesMessage> channel) {
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (ChannelLifetimeException e2) {
-                logger.info("Failed to close Channel: " + channel.getName());
-            }
+    protected void releaseIOChannel(URI channelURI) {
+        if (channelURI != null) {
+            channelCache.release(channelURI, BytesMessage.class);
         }
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Generates the connectionIds. The ids are the data channel names, so they must stay unguessable: they come from a {@link SecureRandom} that does not block
+ * on entropy (NativePRNGNonBlocking, reading /dev/urandom). The random bytes are read in batches, so most ids are taken from memory. An id is never 0.
+ *
+ */
+public class HttpConnectionIdGenerator {
+    private static final Logger logger = LogManager.getLogger();
+    private static final String NON_BLOCKING_ALGORITHM = "NativePRNGNonBlocking";
+    private static final int IDS_PER_BATCH = 64;
+
+    private final SecureRandom random;
+    private final ByteBuffer batch = ByteBuffer.allocate(IDS_PER_BATCH * Long.BYTES);
+
+    /**
+     * Create the generator with the non blocking source if the platform has one, the default {@link SecureRandom} otherwise.
+     */
+    public HttpConnectionIdGenerator() {
+        this(createRandom());
+    }
+
+    /**
+     * Create the generator with a given source.
+     *
+     * @param random
+     *            The source of the ids.
+     */
+    public HttpConnectionIdGenerator(SecureRandom random) {
+        this.random = random;
+        batch.position(batch.limit());
+    }
+
+    /**
+     * @return A new random id, never 0.
+     */
+    public synchronized long nextId() {
+        long id;
+        do {
+            if (!batch.hasRemaining()) {
+                random.nextBytes(batch.array());
+                batch.clear();
+            }
+            id = batch.getLong();
+        } while (id == 0);
+        return id;
+    }
+
+    private static SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance(NON_BLOCKING_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            logger.info("{} not available, using the default SecureRandom", NON_BLOCKING_ALGORITHM);
+            return new SecureRandom();
+        }
+    }
+}
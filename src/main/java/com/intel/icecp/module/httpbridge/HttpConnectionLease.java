@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lease of a connection. A connection is kept only while its lease is renewed, either by data commands or by an
+ * {@link com.intel.icecp.module.httpbridge.message.HttpKeepaliveMessage}. When a client goes away without a teardown, the lease expires and the module
+ * reclaims the connection.
+ * <p>
+ * A lease never expires while a data command is running on the connection.
+ *
+ */
+public class HttpConnectionLease {
+    /**
+     * The time to live of the lease in nanoseconds. Zero or less means the lease never expires.
+     */
+    private final long ttlNanos;
+
+    /**
+     * The time of the last renewal, from System.nanoTime().
+     */
+    private volatile long renewedNanos = System.nanoTime();
+
+    /**
+     * The number of data commands running on the connection.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Create a lease.
+     *
+     * @param ttl
+     *            The time to live of the lease. Zero or less means the lease never expires.
+     * @param unit
+     *            The unit of ttl.
+     */
+    public HttpConnectionLease(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Renew the lease for another time to live.
+     */
+    public void renew() {
+        renewedNanos = System.nanoTime();
+    }
+
+    /**
+     * Mark the start of a data command. The lease is renewed and cannot expire until {@link #end()} is called.
+     */
+    public void begin() {
+        inFlight.incrementAndGet();
+        renew();
+    }
+
+    /**
+     * Mark the end of a data command started with {@link #begin()}. The lease is renewed.
+     */
+    public void end() {
+        renew();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return True if a data command is running on the connection.
+     */
+    public boolean isActive() {
+        return inFlight.get() > 0;
+    }
+
+    /**
+     * Check whether the lease has expired.
+     *
+     * @param nowNanos
+     *            The current time from System.nanoTime()
+     * @return True if the lease has a time to live, no data command is running and it has not been renewed within the time to live.
+     */
+    public boolean isExpired(long nowNanos) {
+        return ttlNanos > 0 && !isActive() && nowNanos - renewedNanos > ttlNanos;
+    }
+}
@@ -16,19 +16,33 @@
 
 package com.intel.icecp.module.httpbridge;
 
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.intel.icecp.core.Channel;
 import com.intel.icecp.core.Node;
+import com.intel.icecp.core.messages.BytesMessage;
 import com.intel.icecp.core.metadata.Persistence;
 import com.intel.icecp.core.misc.ChannelIOException;
 import com.intel.icecp.core.misc.ChannelLifetimeException;
 import com.intel.icecp.core.misc.OnPublish;
+import com.intel.icecp.module.httpbridge.jfr.HttpFlightRecorder;
 import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
 import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpPollMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSubscribeMessage;
+import com.intel.icecp.module.httpbridge.message.HttpWebSocketMessage;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_PRIORITY;
 
 /**
  * A {@link java.lang.Runnable} that executes a data command for a specified connection. When a connection is created through the {@link HttpSetupMessage}
@@ -45,6 +59,16 @@ public class HttpConnectionTask implements Runnable {
      */
     private static final Logger logger = LogManager.getLogger();
 
+    /**
+     * How long the teardown waits for each stream to end.
+     */
+    private static final long STREAM_STOP_SECONDS = 5;
+
+    /**
+     * The longest connect timeout of a proxy health check. The connect timeout of the module is used if it is shorter, it may be 0 for none.
+     */
+    private static final int PROXY_CHECK_TIMEOUT_MILLIS = 5000;
+
     /**
      * The Node where this Http request is executed from.
      */
@@ -62,6 +86,76 @@ public class HttpConnectionTask implements Runnable {
      */
     private CountDownLatch stopLatch = new CountDownLatch(1);
 
+    /**
+     * The cache of input and output channels shared by the data commands.
+     */
+    private HttpChannelCache channelCache = null;
+
+    /**
+     * The lease of this connection. Every data command renews it.
+     */
+    private HttpConnectionLease lease = null;
+
+    /**
+     * The scheduler that runs the data commands. If null, data commands run on the channel delivery thread.
+     */
+    private HttpRequestScheduler scheduler = null;
+
+    /**
+     * Channels acquired by {@link HttpPrewarmTask}. They are held until teardown, so they stay open for every data command on this connection.
+     */
+    private List<URI> prewarmedChannels = new CopyOnWriteArrayList<>();
+
+    /**
+     * The module metrics, every data command records its timing here.
+     */
+    private HttpBridgeMetrics metrics = null;
+
+    /**
+     * The limits of the module that may change at runtime: timeouts and rate limit.
+     */
+    private HttpBridgeSettings settings = null;
+
+    /**
+     * The access log, every data command is offered to it.
+     */
+    private HttpAccessLog accessLog = null;
+
+    /**
+     * The streams of the subscribe commands, open until they end or the connection is torn down.
+     */
+    private List<HttpStreamTask> streams = new CopyOnWriteArrayList<>();
+
+    /**
+     * The sessions of the WebSocket commands, open until they end or the connection is torn down.
+     */
+    private List<HttpWebSocketTask> webSockets = new CopyOnWriteArrayList<>();
+
+    /**
+     * The data command return channel, also used to return the subscribe commands when their stream ends.
+     */
+    private volatile Channel<HttpDataMessage> dataCmdReturnChannel = null;
+
+    /**
+     * The timer wheel shared by the polls of the module.
+     */
+    private HttpPollTimer pollTimer = null;
+
+    /**
+     * The polls of the poll commands, by output channel.
+     */
+    private Map<URI, HttpPollTask> polls = new ConcurrentHashMap<>();
+
+    /**
+     * The balancer of the data commands over the endpoints of the setup command, null if it has none.
+     */
+    private final HttpEndpointBalancer balancer;
+
+    /**
+     * The proxies of the setup command, null if it has none.
+     */
+    private final HttpProxyPool proxyPool;
+
     /**
      * Constructor for setting up the task.
      * 
@@ -71,8 +165,52 @@ public class HttpConnectionTask implements Runnable {
      *            The Setup message filled in with connection information.
      */
     public HttpConnectionTask(Node node, HttpSetupMessage setupMessage) {
+        this(node, setupMessage, new HttpChannelCache(node, 0, 0, TimeUnit.SECONDS), new HttpConnectionLease(0, TimeUnit.SECONDS), null,
+                new HttpBridgeMetrics(), new HttpBridgeSettings(), new HttpAccessLog(), new HttpPollTimer());
+    }
+
+    /**
+     * Constructor for setting up the task with the shared module services.
+     *
+     * @param node
+     *            The node that executes the Http request.
+     * @param setupMessage
+     *            The Setup message filled in with connection information.
+     * @param channelCache
+     *            The cache of input and output channels.
+     * @param lease
+     *            The lease of the connection, renewed by each data command.
+     * @param scheduler
+     *            The scheduler that runs the data commands, or null to run them on the channel delivery thread.
+     * @param metrics
+     *            The module metrics.
+     * @param settings
+     *            The limits of the module: timeouts and rate limit.
+     * @param accessLog
+     *            The access log of the module.
+     * @param pollTimer
+     *            The timer wheel of the polls of the module.
+     */
+    public HttpConnectionTask(Node node, HttpSetupMessage setupMessage, HttpChannelCache channelCache, HttpConnectionLease lease,
+            HttpRequestScheduler scheduler, HttpBridgeMetrics metrics, HttpBridgeSettings settings, HttpAccessLog accessLog, HttpPollTimer pollTimer) {
         this.node = node;
         this.setupMessage = setupMessage;
+        this.channelCache = channelCache;
+        this.lease = lease;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.settings = settings;
+        this.accessLog = accessLog;
+        this.pollTimer = pollTimer;
+        this.balancer = HttpEndpointBalancer.forSetup(setupMessage);
+        this.proxyPool = HttpProxyPool.forSetup(setupMessage);
+    }
+
+    /**
+     * @return The settings of the module, the data commands are validated against its limits.
+     */
+    public HttpBridgeSettings getSettings() {
+        return settings;
     }
 
     /**
@@ -83,7 +221,6 @@ public class HttpConnectionTask implements Runnable {
         Thread.currentThread().setName(String.format("%d_%s", setupMessage.connectionId, setupMessage.connectionUrl));
         logger.info("Running");
 
-        Channel<HttpDataMessage> dataCmdReturnChannel;
         try {
             // Open the data command return channel.
             dataCmdReturnChannel = node.openChannel(setupMessage.dataCmdReturnChannelURI, HttpDataMessage.class, Persistence.NEVER_PERSIST); // new
@@ -105,7 +242,24 @@ public class HttpConnectionTask implements Runnable {
             return;
         }
 
+        if (proxyPool != null && setupMessage.proxyCheckSeconds > 0)
+            proxyPool.start(pollTimer, setupMessage.proxyCheckSeconds, TimeUnit.SECONDS, proxyCheckTimeoutMillis(), this::dispatchPoll);
+
+        // The setup reply is sent while this thread warms up the connection.
+        if (setupMessage.prewarm) {
+            HttpCommandExecutor executor = new HttpCommandExecutor(logger, node, setupMessage, channelCache, metrics, settings, accessLog, balancer,
+                    proxyPool);
+            new HttpPrewarmTask(executor, setupMessage, channelCache, prewarmedChannels, settings.getPrewarmExecutor()).run();
+        }
+
         waitForTearDown();
+        if (proxyPool != null)
+            proxyPool.stop();
+        stopStreams();
+        cancelPolls();
+        // Reject the data commands still waiting for a worker while their return channel is open.
+        if (scheduler != null)
+            scheduler.cancel(setupMessage.connectionId);
 
         // Clean up and close open channels
         try {
@@ -118,11 +272,48 @@ public class HttpConnectionTask implements Runnable {
         } catch (ChannelLifetimeException e) {
             logger.error("Failed to clean up and close data command channel", e);
         }
+        for (URI channelURI : prewarmedChannels) {
+            channelCache.release(channelURI, BytesMessage.class);
+        }
+        prewarmedChannels.clear();
 
         logger.info("bye");
 
     }
 
+    /**
+     * Stop the open streams and WebSockets, and give them a moment to return their command before the return channel is closed.
+     */
+    private void stopStreams() {
+        for (HttpStreamTask stream : streams) {
+            stream.stop();
+        }
+        for (HttpWebSocketTask webSocket : webSockets) {
+            webSocket.stop();
+        }
+        try {
+            for (HttpStreamTask stream : streams) {
+                if (!stream.awaitEnd(STREAM_STOP_SECONDS, TimeUnit.SECONDS))
+                    logger.warn("Stream did not end in {} seconds", STREAM_STOP_SECONDS);
+            }
+            for (HttpWebSocketTask webSocket : webSockets) {
+                if (!webSocket.awaitEnd(STREAM_STOP_SECONDS, TimeUnit.SECONDS))
+                    logger.warn("WebSocket did not end in {} seconds", STREAM_STOP_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cancel the polls of the connection.
+     */
+    private void cancelPolls() {
+        for (URI outputChannelURI : polls.keySet()) {
+            cancelPoll(outputChannelURI);
+        }
+    }
+
     /**
      * Wait for stopLatch to turn to 0 which will indicate the application should terminate. See the tearDown() method.
      */
@@ -144,7 +335,8 @@ public class HttpConnectionTask implements Runnable {
     }
 
     /**
-     * Callback for the data commands. When a command arrives, ask the data message to first validate and then run the command.
+     * Callback for the data commands. When a command arrives, it is handed to the scheduler with its priority. The scheduler asks the data message to first
+     * validate and then run the command. The commands of a connection run concurrently, unless it is {@link HttpSetupMessage#ordered}.
      *
      */
     public class DataCommandCallback implements OnPublish<HttpDataMessage> {
@@ -154,18 +346,101 @@ public class HttpConnectionTask implements Runnable {
         @Override
         public void onPublish(HttpDataMessage message) {
 
-            logger.info("Data Command received");
+            logger.debug("Data Command received");
+            // Begin here so the lease cannot expire while the command waits for a worker.
+            lease.begin();
+            if (!settings.getRateLimiter().tryAcquire()) {
+                logger.debug("Data command rejected, rate limit exceeded");
+                rejectDataCommand(message, dataCmdReturnChannel, "rate limit");
+                return;
+            }
+            if (scheduler == null) {
+                runDataCommand(message, dataCmdReturnChannel);
+                return;
+            }
+            if (stopLatch.getCount() == 0) {
+                rejectDataCommand(message, dataCmdReturnChannel, "teardown");
+                return;
+            }
+            submitDataCommand(message, dataCmdReturnChannel);
+        }
+    }
+
+    /**
+     * Hand a data command to the scheduler with its priority. The commands of an ordered connection all run at its default priority, one at a time.
+     *
+     * @param message
+     *            The data command
+     * @param dataCmdReturnChannel
+     *            The channel to return the command on
+     */
+    private void submitDataCommand(HttpDataMessage message, Channel<HttpDataMessage> dataCmdReturnChannel) {
+        HTTP_PRIORITY priority = message.priority != null && !setupMessage.ordered ? message.priority : setupMessage.defaultPriority;
+        if (priority == null)
+            priority = HTTP_PRIORITY.NORMAL;
+        // Connections sharing a command return channel are one tenant of the scheduler.
+        String tenant = String.valueOf(setupMessage.cmdReturnChannelURI);
+        Runnable command = () -> runDataCommand(message, dataCmdReturnChannel);
+        Runnable onExpired = () -> rejectDataCommand(message, dataCmdReturnChannel, stopLatch.getCount() == 0 ? "teardown" : "queue timeout");
+        try {
+            if (setupMessage.ordered)
+                scheduler.submitOrdered(priority, setupMessage.connectionId, tenant, setupMessage.weight, command, onExpired);
+            else
+                scheduler.submit(priority, setupMessage.connectionId, tenant, setupMessage.weight, command, onExpired);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Data command rejected: {}", e.getMessage());
+            rejectDataCommand(message, dataCmdReturnChannel, "queue full");
+        }
+    }
+
+    /**
+     * Validate and run a data command, then return it on the data command return channel. Ends the lease activity started when the command arrived.
+     *
+     * @param message
+     *            The data command
+     * @param dataCmdReturnChannel
+     *            The channel to return the command on
+     */
+    private void runDataCommand(HttpDataMessage message, Channel<HttpDataMessage> dataCmdReturnChannel) {
+        try {
             // First validate the message. If error message,
             // then return status on return channel
             String errorMsg = message.onValidate(HttpConnectionTask.this);
             if (errorMsg != null) {
                 logger.info(errorMsg);
+                metrics.recordRejected(message);
+                accessLog.record(setupMessage.connectionUrl, message, null);
                 returnDataCmdMessage(message, dataCmdReturnChannel);
+                return;
             }
 
             // Execute the command
             message.onCommandMessage(HttpConnectionTask.this);
             returnDataCmdMessage(message, dataCmdReturnChannel);
+        } finally {
+            lease.end();
+        }
+    }
+
+    /**
+     * Return a data command that was not run because the module is overloaded. Ends the lease activity started when the command arrived.
+     *
+     * @param message
+     *            The data command
+     * @param dataCmdReturnChannel
+     *            The channel to return the command on
+     * @param reason
+     *            Why the command was rejected, for the flight recorder
+     */
+    private void rejectDataCommand(HttpDataMessage message, Channel<HttpDataMessage> dataCmdReturnChannel, String reason) {
+        try {
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+            metrics.recordRejected(message);
+            accessLog.record(setupMessage.connectionUrl, message, null);
+            HttpFlightRecorder.rejection(setupMessage.connectionId, message.getCommand(), reason);
+            returnDataCmdMessage(message, dataCmdReturnChannel);
+        } finally {
+            lease.end();
         }
     }
 
@@ -176,7 +451,148 @@ public class HttpConnectionTask implements Runnable {
      *            The data command to execute.
      */
     public void executeDataCommand(HttpDataMessage dataCmdMessage) {
-        new HttpCommandExecutor(logger, node, setupMessage).executeCommand(dataCmdMessage);
+        new HttpCommandExecutor(logger, node, setupMessage, channelCache, metrics, settings, accessLog, balancer, proxyPool).executeCommand(dataCmdMessage);
+    }
+
+    /**
+     * Open the stream of a subscribe command. If it opens, it is read on its own thread until it ends or the connection is torn down, and the command is
+     * returned a second time when it ends. See {@link HttpStreamTask}.
+     *
+     * @param message
+     *            The subscribe command. Its status is set.
+     */
+    public void subscribe(HttpSubscribeMessage message) {
+        HttpCommandExecutor executor = new HttpCommandExecutor(logger, node, setupMessage, channelCache, metrics, settings, accessLog, null, proxyPool);
+        HttpStreamTask stream = new HttpStreamTask(executor, setupMessage, channelCache, message, this::endSubscription);
+        if (!stream.open())
+            return;
+        // The lease is held until the stream ends.
+        lease.begin();
+        streams.add(stream);
+        stream.start(String.format("%d_stream", setupMessage.connectionId));
+        if (stopLatch.getCount() == 0)
+            stream.stop();
+    }
+
+    /**
+     * Open the WebSocket of a WebSocket command. If it opens, it is bridged to its channels until it closes or the connection is torn down, and the command
+     * is returned a second time when it ends. See {@link HttpWebSocketTask}.
+     *
+     * @param message
+     *            The WebSocket command. Its status is set.
+     */
+    public void webSocket(HttpWebSocketMessage message) {
+        HttpWebSocketTask webSocket = new HttpWebSocketTask(node, setupMessage, channelCache, message, settings, this::endWebSocket);
+        if (!webSocket.open())
+            return;
+        // The lease is held until the session ends.
+        lease.begin();
+        webSockets.add(webSocket);
+        webSocket.start(String.format("%d_websocket", setupMessage.connectionId));
+        if (stopLatch.getCount() == 0)
+            webSocket.stop();
+    }
+
+    /**
+     * Return the WebSocket command of a session that has ended.
+     */
+    private void endWebSocket(HttpWebSocketTask webSocket) {
+        try {
+            webSockets.remove(webSocket);
+            HttpWebSocketMessage end = webSocket.getEndMessage();
+            logger.info("WebSocket ended status[{}] closeCode[{}] received[{}] sent[{}]", end.status, end.closeCode, end.messagesReceived,
+                    end.messagesSent);
+            Channel<HttpDataMessage> returnChannel = dataCmdReturnChannel;
+            if (returnChannel != null)
+                returnDataCmdMessage(end, returnChannel);
+        } finally {
+            lease.end();
+        }
+    }
+
+    /**
+     * Register or cancel the poll of a poll command. A poll replaces the previous poll of its output channel. See {@link HttpPollTask}. A poll does not
+     * hold the lease of the connection: it runs for as long as the client renews the lease, and stops when the connection is torn down.
+     *
+     * @param message
+     *            The poll command. Its status is set.
+     */
+    public void poll(HttpPollMessage message) {
+        if (message.cancel) {
+            if (!cancelPoll(message.outputHttpChannelURI)) {
+                logger.info("No poll to cancel on [{}]", message.outputHttpChannelURI);
+                message.status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            }
+            return;
+        }
+        HttpCommandExecutor executor = new HttpCommandExecutor(logger, node, setupMessage, channelCache, metrics, settings, accessLog, null, proxyPool);
+        HttpPollTask poll = new HttpPollTask(executor, setupMessage, message, channelCache, pollTimer, this::dispatchPoll, metrics,
+                settings.getRateLimiter(), this::reportPoll);
+        if (!poll.start())
+            return;
+        cancelPoll(message.outputHttpChannelURI);
+        polls.put(message.outputHttpChannelURI, poll);
+        if (stopLatch.getCount() == 0)
+            cancelPolls();
+    }
+
+    /**
+     * Cancel the poll of an output channel.
+     *
+     * @return True if there was a poll.
+     */
+    private boolean cancelPoll(URI outputChannelURI) {
+        HttpPollTask poll = polls.remove(outputChannelURI);
+        if (poll == null)
+            return false;
+        poll.cancel();
+        return true;
+    }
+
+    /**
+     * Return the result of a poll that failed, or that succeeded after a failure, on the data command return channel.
+     */
+    private void reportPoll(HttpPollMessage result) {
+        Channel<HttpDataMessage> returnChannel = dataCmdReturnChannel;
+        if (returnChannel != null)
+            returnDataCmdMessage(result, returnChannel);
+    }
+
+    /**
+     * @return The connect timeout of the proxy health checks: the connect timeout of the module, at most {@link #PROXY_CHECK_TIMEOUT_MILLIS}.
+     */
+    private int proxyCheckTimeoutMillis() {
+        int connectTimeout = settings.getConnectTimeoutMillis();
+        return connectTimeout > 0 ? Math.min(connectTimeout, PROXY_CHECK_TIMEOUT_MILLIS) : PROXY_CHECK_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Run a poll request on a worker, after the data commands of higher priority. Poll requests are background requests of the scheduler, they never take
+     * the queue room of the data commands.
+     */
+    private void dispatchPoll(Runnable pollRequest) {
+        if (scheduler == null) {
+            pollRequest.run();
+            return;
+        }
+        scheduler.submitBackground(HTTP_PRIORITY.LOW, setupMessage.connectionId, String.valueOf(setupMessage.cmdReturnChannelURI), setupMessage.weight,
+                pollRequest);
+    }
+
+    /**
+     * Return the subscribe command of a stream that has ended.
+     */
+    private void endSubscription(HttpStreamTask stream) {
+        try {
+            streams.remove(stream);
+            HttpSubscribeMessage end = stream.getEndMessage();
+            logger.info("Stream ended status[{}] events[{}]", end.status, end.events);
+            Channel<HttpDataMessage> returnChannel = dataCmdReturnChannel;
+            if (returnChannel != null)
+                returnDataCmdMessage(end, returnChannel);
+        } finally {
+            lease.end();
+        }
     }
 
     /**
@@ -191,7 +607,7 @@ public class HttpConnectionTask implements Runnable {
 
         try {
             dataCmdReturnChannel.publish(returnMessage);
-            logger.info("Publish Return Msg ID[{}] status[{}] Cmd[{}] On[{}]",
+            logger.debug("Publish Return Msg ID[{}] status[{}] Cmd[{}] On[{}]",
                     returnMessage.connectionId, returnMessage.status, returnMessage.getCommand(), returnMessage.cmdReturnChannelURI);
         } catch (ChannelIOException e1) {
             logger.error("Failed to publish on return command channel", e1);
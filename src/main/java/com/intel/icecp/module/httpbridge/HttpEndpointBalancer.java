@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage.BALANCE_POLICY;
+
+/**
+ * Spreads the data commands of a connection over equivalent endpoints. Each request takes an endpoint with {@link #select()} and gives it back with
+ * {@link #release(Endpoint, long, boolean)}, which records the requests in progress, the latency and the failures of the endpoint.
+ * <p>
+ * The EWMA latency is a peak moving average: a slower request raises it at once, and it decays towards the faster requests, and towards zero while the
+ * endpoint is idle, so an endpoint that was avoided is tried again. An endpoint that fails a number of times in a row is ejected for a time that doubles
+ * with each ejection, but at most half of the endpoints are ejected at once. The JVM keeps the idle connections per host and port, so each endpoint has its
+ * own keep-alive pool.
+ *
+ */
+public class HttpEndpointBalancer {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The time constant of the latency average.
+     */
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The ejection time doubles at most this many times.
+     */
+    private static final int MAX_EJECT_DOUBLINGS = 3;
+
+    private final Endpoint[] endpoints;
+    private final BALANCE_POLICY policy;
+    private final int ejectAfterFailures;
+    private final long ejectNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a balancer.
+     *
+     * @param urls
+     *            The endpoints, at least one.
+     * @param policy
+     *            How an endpoint is selected.
+     * @param ejectAfterFailures
+     *            The consecutive failures that eject an endpoint, 0 to never eject.
+     * @param ejectTime
+     *            How long an endpoint is ejected the first time.
+     * @param unit
+     *            The unit of ejectTime.
+     */
+    public HttpEndpointBalancer(List<URL> urls, BALANCE_POLICY policy, int ejectAfterFailures, long ejectTime, TimeUnit unit) {
+        if (urls.isEmpty())
+            throw new IllegalArgumentException("No endpoints");
+        this.endpoints = new Endpoint[urls.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(urls.get(i));
+        }
+        this.policy = policy;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.ejectNanos = unit.toNanos(ejectTime);
+    }
+
+    /**
+     * Create the balancer of a connection.
+     *
+     * @param setupMessage
+     *            The setup command of the connection.
+     * @return The balancer over the connectionUrl and the endpoints, or null if the setup command has no other endpoints.
+     */
+    public static HttpEndpointBalancer forSetup(HttpSetupMessage setupMessage) {
+        if (setupMessage.endpoints == null || setupMessage.endpoints.isEmpty())
+            return null;
+        // Compared by their text, URL.equals resolves the hosts.
+        Map<String, URL> urls = new LinkedHashMap<>();
+        urls.put(setupMessage.connectionUrl.toExternalForm(), setupMessage.connectionUrl);
+        for (URL url : setupMessage.endpoints) {
+            urls.putIfAbsent(url.toExternalForm(), url);
+        }
+        if (urls.size() == 1)
+            return null;
+        return new HttpEndpointBalancer(new ArrayList<>(urls.values()), setupMessage.balancePolicy != null ? setupMessage.balancePolicy : BALANCE_POLICY.EWMA,
+                setupMessage.ejectAfterFailures, setupMessage.ejectSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The endpoints, in the order they were given.
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    /**
+     * Select the endpoint of a request. Ejected endpoints are skipped. The request is counted in progress until it is released.
+     *
+     * @return The endpoint, it must be given back with {@link #release(Endpoint, long, boolean)}.
+     */
+    public Endpoint select() {
+        long now = System.nanoTime();
+        Endpoint endpoint;
+        switch (policy) {
+        case ROUND_ROBIN:
+            endpoint = roundRobin(now);
+            break;
+        case LEAST_REQUESTS:
+            endpoint = leastRequests(now);
+            break;
+        default:
+            endpoint = powerOfTwoChoices(now);
+            break;
+        }
+        endpoint.outstanding.incrementAndGet();
+        return endpoint;
+    }
+
+    /**
+     * Give back the endpoint of a completed request.
+     *
+     * @param endpoint
+     *            The endpoint returned by {@link #select()}.
+     * @param latencyNanos
+     *            The time the request took.
+     * @param success
+     *            False if the request failed to connect, failed on I/O, or got a 5xx response.
+     */
+    public void release(Endpoint endpoint, long latencyNanos, boolean success) {
+        endpoint.outstanding.decrementAndGet();
+        long now = System.nanoTime();
+        boolean eject;
+        synchronized (endpoint) {
+            if (success) {
+                endpoint.update(latencyNanos, now);
+                endpoint.failures = 0;
+                endpoint.ejections = 0;
+                return;
+            }
+            eject = ejectAfterFailures > 0 && endpoint.isAvailable(now) && ++endpoint.failures >= ejectAfterFailures;
+        }
+        if (eject)
+            eject(endpoint, now);
+    }
+
+    private synchronized void eject(Endpoint endpoint, long now) {
+        int ejected = 0;
+        for (Endpoint e : endpoints) {
+            if (!e.isAvailable(now))
+                ejected++;
+        }
+        if (ejected + 1 > endpoints.length / 2) {
+            logger.debug("Endpoint [{}] is failing, but [{}] of [{}] endpoints are ejected already", endpoint.url, ejected, endpoints.length);
+            return;
+        }
+        synchronized (endpoint) {
+            long time = ejectNanos << Math.min(endpoint.ejections, MAX_EJECT_DOUBLINGS);
+            endpoint.ejectedUntil = now + time;
+            endpoint.ejections++;
+            endpoint.failures = 0;
+            logger.info("Endpoint [{}] ejected for [{}] ms after [{}] failures", endpoint.url, TimeUnit.NANOSECONDS.toMillis(time), ejectAfterFailures);
+        }
+    }
+
+    private Endpoint roundRobin(long now) {
+        int start = next.getAndIncrement();
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[Math.floorMod(start + i, endpoints.length)];
+            if (endpoint.isAvailable(now))
+                return endpoint;
+        }
+        return endpoints[Math.floorMod(start, endpoints.length)];
+    }
+
+    private Endpoint leastRequests(long now) {
+        // Start at a rotating index, so the ties are spread.
+        int start = next.getAndIncrement();
+        Endpoint best = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[Math.floorMod(start + i, endpoints.length)];
+            if (endpoint.isAvailable(now) && (best == null || endpoint.outstanding.get() < best.outstanding.get()))
+                best = endpoint;
+        }
+        return best != null ? best : endpoints[Math.floorMod(start, endpoints.length)];
+    }
+
+    private Endpoint powerOfTwoChoices(long now) {
+        Endpoint[] candidates = available(now);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.length);
+        if (candidates.length == 1)
+            return candidates[i];
+        int j = random.nextInt(candidates.length - 1);
+        Endpoint a = candidates[i];
+        Endpoint b = candidates[j >= i ? j + 1 : j];
+        return a.score(now) <= b.score(now) ? a : b;
+    }
+
+    /**
+     * @return The endpoints available now, or all of them if none is. A copy, so an endpoint ejected meanwhile by another request does not change it.
+     */
+    private Endpoint[] available(long now) {
+        Endpoint[] available = new Endpoint[endpoints.length];
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now))
+                available[count++] = endpoint;
+        }
+        return count == 0 ? endpoints : Arrays.copyOf(available, count);
+    }
+
+    /**
+     * An endpoint and its load: the requests in progress, the latency average and the failures.
+     */
+    public static final class Endpoint {
+        private final URL url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double latencyNanos = 0;
+        private volatile long updatedAt = 0;
+        private volatile long ejectedUntil = System.nanoTime();
+        private int failures = 0;
+        private int ejections = 0;
+
+        private Endpoint(URL url) {
+            this.url = url;
+        }
+
+        /**
+         * @return The URL of the endpoint.
+         */
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * @return The number of requests in progress.
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return The moving average latency in nanoseconds, decayed for the time the endpoint was idle. Zero if the endpoint was never measured.
+         */
+        public double getLatencyNanos() {
+            return decayed(System.nanoTime());
+        }
+
+        /**
+         * @return True if the endpoint is ejected.
+         */
+        public boolean isEjected() {
+            return !isAvailable(System.nanoTime());
+        }
+
+        private boolean isAvailable(long now) {
+            return now - ejectedUntil >= 0;
+        }
+
+        private double score(long now) {
+            return decayed(now) * (outstanding.get() + 1);
+        }
+
+        private double decayed(long now) {
+            long at = updatedAt;
+            return at == 0 ? 0 : latencyNanos * Math.exp(-Math.max(0, now - at) / DECAY_NANOS);
+        }
+
+        /**
+         * Add a sample to the peak moving average. Called holding the lock of the endpoint.
+         */
+        private void update(long sampleNanos, long now) {
+            if (updatedAt == 0 || sampleNanos > decayed(now)) {
+                latencyNanos = sampleNanos;
+            } else {
+                double weight = Math.exp(-Math.max(0, now - updatedAt) / DECAY_NANOS);
+                latencyNanos = latencyNanos * weight + sampleNanos * (1 - weight);
+            }
+            updatedAt = now;
+        }
+    }
+}
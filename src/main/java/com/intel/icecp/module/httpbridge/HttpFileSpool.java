@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpFileManifestMessage;
+
+/**
+ * The directory large bodies pass through. A response body larger than {@link HttpDataMessage#spoolThresholdBytes} is written here and published as a
+ * {@link HttpFileManifestMessage}, and a request body is streamed from a file here with {@link HttpDataMessage#inputFile}, so the heap used does not
+ * depend on the length of the body.
+ * <p>
+ * Only the files of this directory may be sent, a data command cannot read any other file of the host: names are resolved to their real path before they
+ * are checked, and symbolic links are refused. The directory is created readable by its owner only, and a directory owned by another user is refused,
+ * since whoever can write to it could swap the files sent or read the bodies spooled. The spooled files are deleted after the retention time by
+ * {@link #sweep()}; the other files are left to whoever put them there.
+ *
+ */
+public class HttpFileSpool {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The suffix of the spooled files, only these are swept.
+     */
+    private static final String SUFFIX = ".spool";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long retentionMillis;
+
+    /**
+     * Create a spool. The directory is created when the first body is spooled.
+     *
+     * @param directory
+     *            The spool directory.
+     * @param retention
+     *            How long a spooled file is kept.
+     * @param unit
+     *            The unit of retention.
+     */
+    public HttpFileSpool(Path directory, long retention, TimeUnit unit) {
+        if (retention < 0)
+            throw new IllegalArgumentException(String.format("Invalid spool retention [%d]", retention));
+        this.directory = directory.toAbsolutePath().normalize();
+        this.retentionMillis = unit.toMillis(retention);
+    }
+
+    /**
+     * @return The default spool directory, httpbridge-spool-&lt;user name&gt; in the temp directory, so each user has their own.
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "httpbridge-spool-" + System.getProperty("user.name"));
+    }
+
+    /**
+     * @return The spool directory.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return How long a spooled file is kept, in milliseconds.
+     */
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    /**
+     * Find a file to send.
+     *
+     * @param name
+     *            The name of the file, relative to the spool directory.
+     * @return The path of the file.
+     * @throws IOException
+     *             The name is outside the spool directory, or it is not a file.
+     */
+    public Path resolve(String name) throws IOException {
+        Path root = checkDirectory();
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || path.equals(root))
+            throw new IOException(String.format("File [%s] is not in the spool directory", name));
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+            throw new NoSuchFileException(path.toString());
+        // A linked directory on the way could still lead out of the spool.
+        if (!path.toRealPath().startsWith(root))
+            throw new IOException(String.format("File [%s] is not in the spool directory", name));
+        return path;
+    }
+
+    /**
+     * Write a body to a new file of the spool directory.
+     *
+     * @param head
+     *            The start of the body, already read.
+     * @param rest
+     *            The rest of the body, read to its end.
+     * @param contentType
+     *            The Content-Type of the body.
+     * @param segmentBytes
+     *            The segment size of the manifest.
+     * @return The manifest of the file.
+     * @throws IOException
+     *             The body could not be read or written, the file is deleted.
+     */
+    public HttpFileManifestMessage spool(byte[] head, InputStream rest, String contentType, int segmentBytes) throws IOException {
+        createDirectory();
+        Path path = Files.createTempFile(checkDirectory(), "response-", SUFFIX);
+        MessageDigest digest = sha256();
+        long length = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            digest.update(head);
+            length += write(file, ByteBuffer.wrap(head));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = rest.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                length += write(file, ByteBuffer.wrap(buffer, 0, n));
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        logger.debug("Spooled [{}] bytes to [{}]", length, path);
+        return new HttpFileManifestMessage(path.toString(), path.getFileName().toString(), length, hex(digest.digest()), contentType, segmentBytes);
+    }
+
+    /**
+     * Delete the spooled files older than the retention time.
+     *
+     * @return The number of files deleted.
+     */
+    public int sweep() {
+        if (!Files.isDirectory(directory))
+            return 0;
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(checkDirectory(), "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis() < oldest && Files.deleteIfExists(file))
+                        deleted++;
+                } catch (IOException e) {
+                    logger.debug("Failed to delete spooled file [{}]", file, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to list the spool directory [{}]", directory, e);
+        }
+        if (deleted > 0)
+            logger.debug("Deleted [{}] spooled files", deleted);
+        return deleted;
+    }
+
+    /**
+     * Create the directory, readable by its owner only where the file system has POSIX permissions. Its parents are created as usual.
+     */
+    private void createDirectory() throws IOException {
+        if (Files.exists(directory, LinkOption.NOFOLLOW_LINKS))
+            return;
+        if (directory.getParent() != null)
+            Files.createDirectories(directory.getParent());
+        try {
+            if (directory.getFileSystem().supportedFileAttributeViews().contains("posix"))
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            else
+                Files.createDirectory(directory);
+        } catch (FileAlreadyExistsException e) {
+            // Created by another request meanwhile, it is checked as any existing directory.
+        }
+    }
+
+    /**
+     * Check that the directory belongs to the user of the module.
+     *
+     * @return The real path of the directory.
+     * @throws IOException
+     *             The directory does not exist, or is owned by another user.
+     */
+    private Path checkDirectory() throws IOException {
+        Path root = directory.toRealPath();
+        if (!Files.isDirectory(root))
+            throw new IOException(String.format("Spool directory [%s] is not a directory", directory));
+        UserPrincipal owner = Files.getOwner(root);
+        UserPrincipal user = root.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(user))
+            throw new IOException(String.format("Spool directory [%s] is owned by [%s], not by [%s]", directory, owner.getName(), user.getName()));
+        return root;
+    }
+
+    private static int write(FileChannel file, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        return length;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
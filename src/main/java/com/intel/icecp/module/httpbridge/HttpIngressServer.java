@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Node;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpIngressMessage;
+import com.intel.icecp.module.httpbridge.message.HttpIngressReply;
+import com.intel.icecp.module.httpbridge.message.HttpIngressRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The ingress server of the module: receives http requests and publishes them on the channels of their route (see {@link HttpIngressMessage}).
+ * <p>
+ * It is the JDK http server: one selector thread accepts the connections and parses the requests, keeps the idle connections alive, and hands each request
+ * to the workers given. A request that waits for a reply does not hold a worker: the response is sent by the thread that delivers the reply, or by the
+ * {@link HttpPollTimer} when it times out.
+ * <p>
+ * Overload is pushed back to the clients. At most maxInFlight requests are published and not answered yet, more get 503 with a Retry-After, and so do
+ * bodies the memory budget of the module has no room for; bodies larger than maxBodyBytes get 413. The module runs the workers with a bounded queue that
+ * runs the request on the selector thread when full, which slows down accepting more.
+ *
+ */
+public class HttpIngressServer {
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int BACKLOG = 1024;
+    private static final int READ_SIZE = 8192;
+
+    private final Node node;
+    private final HttpServer server;
+    private final HttpPollTimer timer;
+    private final Semaphore inFlight;
+    private final int maxBodyBytes;
+    private final HttpMemoryBudget budget;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final ConcurrentLongHashMap<Pending> pending = new ConcurrentLongHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Create the server. It listens once started.
+     *
+     * @param node
+     *            The node the channels of the routes are opened on.
+     * @param address
+     *            The address to listen on.
+     * @param workers
+     *            Runs the requests.
+     * @param maxInFlight
+     *            The number of requests published and not answered yet, more are refused with 503.
+     * @param maxBodyBytes
+     *            The largest request body, larger ones are refused with 413.
+     * @param timer
+     *            Times out the requests waiting for a reply.
+     * @throws IOException
+     *             The address could not be bound
+     */
+    public HttpIngressServer(Node node, InetSocketAddress address, Executor workers, int maxInFlight, int maxBodyBytes, HttpPollTimer timer)
+            throws IOException {
+        this(node, address, workers, maxInFlight, maxBodyBytes, timer, new HttpMemoryBudget());
+    }
+
+    /**
+     * Create the server. It listens once started.
+     *
+     * @param node
+     *            The node the channels of the routes are opened on.
+     * @param address
+     *            The address to listen on.
+     * @param workers
+     *            Runs the requests.
+     * @param maxInFlight
+     *            The number of requests published and not answered yet, more are refused with 503.
+     * @param maxBodyBytes
+     *            The largest request body, larger ones are refused with 413.
+     * @param timer
+     *            Times out the requests waiting for a reply.
+     * @param budget
+     *            The request bodies are reserved from this budget until they are published, the ones it has no room for are refused with 503.
+     * @throws IOException
+     *             The address could not be bound
+     */
+    public HttpIngressServer(Node node, InetSocketAddress address, Executor workers, int maxInFlight, int maxBodyBytes, HttpPollTimer timer,
+            HttpMemoryBudget budget) throws IOException {
+        this.node = node;
+        this.budget = budget;
+        this.timer = timer;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxBodyBytes = maxBodyBytes;
+        this.server = HttpServer.create(address, BACKLOG);
+        server.setExecutor(workers);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Ingress server listening on [{}]", getAddress());
+    }
+
+    /**
+     * Stop listening, answer the requests still waiting for a reply with 503 and close the channels of the routes.
+     */
+    public void stop() {
+        server.stop(0);
+        for (long requestId : pending.keys()) {
+            Pending request = pending.remove(requestId);
+            if (request != null) {
+                if (request.timeout != null)
+                    request.timeout.cancel();
+                respond(request.exchange, 503, null, null);
+                inFlight.release();
+            }
+        }
+        for (String path : routes.keySet()) {
+            removeRoute(path);
+        }
+    }
+
+    /**
+     * @return The address listened on, with the port chosen if it was 0.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Route the requests to a path, and below it, to a channel. Replaces the route of the path.
+     *
+     * @param path
+     *            The path, starting with "/"
+     * @param channelURI
+     *            The channel the requests are published on
+     * @param replyChannelURI
+     *            The channel the replies are read from, or null to answer 202 once published.
+     * @param replyTimeoutMillis
+     *            How long a request waits for its reply.
+     * @throws ChannelLifetimeException
+     *             The channels could not be opened
+     * @throws ChannelIOException
+     *             The reply channel could not be subscribed to
+     */
+    public synchronized void addRoute(String path, URI channelURI, URI replyChannelURI, long replyTimeoutMillis)
+            throws ChannelLifetimeException, ChannelIOException {
+        removeRoute(path);
+        Route route = new Route(replyTimeoutMillis);
+        try {
+            if (replyChannelURI == null) {
+                route.bodyChannel = node.openChannel(channelURI, BytesMessage.class, new Persistence());
+            } else {
+                route.replyChannelURI = replyChannelURI;
+                route.requestChannel = node.openChannel(channelURI, HttpIngressRequest.class, new Persistence());
+                route.replyChannel = node.openChannel(replyChannelURI, HttpIngressReply.class, new Persistence());
+                route.replyChannel.subscribe(this::reply);
+            }
+        } catch (ChannelLifetimeException | ChannelIOException e) {
+            route.close();
+            throw e;
+        }
+        routes.put(path, route);
+        server.createContext(path, exchange -> handle(route, exchange));
+        logger.info("Ingress route [{}] to [{}]", path, channelURI);
+    }
+
+    /**
+     * Remove the route of a path.
+     *
+     * @param path
+     *            The path routed
+     * @return True if the path was routed.
+     */
+    public synchronized boolean removeRoute(String path) {
+        Route route = routes.remove(path);
+        if (route == null)
+            return false;
+        server.removeContext(path);
+        route.close();
+        return true;
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of requests refused with 503, too many in flight or no room in the memory budget.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of requests answered with 504, their reply did not come in time.
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Publish a request on the channel of its route.
+     */
+    private void handle(Route route, HttpExchange exchange) {
+        requests.increment();
+        if (!inFlight.tryAcquire()) {
+            rejected.increment();
+            drain(exchange);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Retry-After", "1");
+            respond(exchange, 503, headers, null);
+            return;
+        }
+        boolean waiting = false;
+        try (HttpMemoryBudget.Reservation reservation = budget.reserve(0)) {
+            byte[] body = readBody(exchange, reservation);
+            if (body == null) {
+                respond(exchange, 413, null, null);
+                return;
+            }
+            if (route.bodyChannel != null) {
+                route.bodyChannel.publish(new BytesMessage(body));
+                respond(exchange, 202, null, null);
+                return;
+            }
+            HttpIngressRequest request = new HttpIngressRequest();
+            request.requestId = nextRequestId.incrementAndGet();
+            request.replyChannelURI = route.replyChannelURI;
+            request.method = exchange.getRequestMethod();
+            request.path = exchange.getRequestURI().getPath();
+            request.query = exchange.getRequestURI().getRawQuery();
+            request.headers = new HashMap<String, List<String>>(exchange.getRequestHeaders());
+            request.remoteAddress = String.valueOf(exchange.getRemoteAddress());
+            request.body = body;
+
+            // From here the reply, or the timeout, answers the request and releases its permit.
+            Pending waitingRequest = new Pending(exchange);
+            pending.put(request.requestId, waitingRequest);
+            waiting = true;
+            try {
+                waitingRequest.timeout = timer.schedule(() -> timeout(request.requestId), route.replyTimeoutMillis, TimeUnit.MILLISECONDS);
+                route.requestChannel.publish(request);
+            } catch (ChannelIOException | IllegalStateException e) {
+                if (pending.remove(request.requestId) == null)
+                    return;
+                if (waitingRequest.timeout != null)
+                    waitingRequest.timeout.cancel();
+                waiting = false;
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to read ingress request: {}", e.getMessage());
+            respond(exchange, 400, null, null);
+        } catch (HttpOverloadException e) {
+            logger.debug("Ingress request refused: {}", e.getMessage());
+            rejected.increment();
+            drain(exchange);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Retry-After", "1");
+            respond(exchange, 503, headers, null);
+        } catch (ChannelIOException | IllegalStateException e) {
+            logger.error("Failed to publish ingress request", e);
+            respond(exchange, 502, null, null);
+        } finally {
+            if (!waiting)
+                inFlight.release();
+        }
+    }
+
+    /**
+     * Send a reply as the response of its request.
+     */
+    private void reply(HttpIngressReply reply) {
+        Pending request = pending.remove(reply.requestId);
+        if (request == null) {
+            logger.debug("Ingress reply [{}] is late or unknown", reply.requestId);
+            return;
+        }
+        request.timeout.cancel();
+        respond(request.exchange, reply.responseCode, reply.headers, reply.body);
+        inFlight.release();
+    }
+
+    private void timeout(long requestId) {
+        Pending request = pending.remove(requestId);
+        if (request == null)
+            return;
+        timedOut.increment();
+        respond(request.exchange, 504, null, null);
+        inFlight.release();
+    }
+
+    /**
+     * @return The request body, or null if it is larger than maxBodyBytes.
+     */
+    private byte[] readBody(HttpExchange exchange, HttpMemoryBudget.Reservation reservation) throws IOException, HttpOverloadException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > maxBodyBytes) {
+            drain(exchange);
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_SIZE];
+        try (InputStream is = exchange.getRequestBody()) {
+            if (length != null)
+                reservation.grow(Long.parseLong(length.trim()));
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                reservation.grow(body.size() + n);
+                body.write(buffer, 0, n);
+                if (body.size() > maxBodyBytes) {
+                    drain(exchange);
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length", e);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Read and discard the rest of the request body, so the connection can be kept alive.
+     */
+    private static void drain(HttpExchange exchange) {
+        byte[] buffer = new byte[READ_SIZE];
+        try (InputStream is = exchange.getRequestBody()) {
+            while (is.read(buffer) != -1) {
+                // Discard.
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to drain ingress request: {}", e.getMessage());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, Map<String, String> headers, byte[] body) {
+        try {
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey() != null)
+                        exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+                }
+            }
+            boolean hasBody = body != null && body.length > 0 && !"HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(code, hasBody ? body.length : -1);
+            if (hasBody) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to send ingress response: {}", e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The channels of a route.
+     */
+    private static final class Route {
+        private final long replyTimeoutMillis;
+        private Channel<BytesMessage> bodyChannel;
+        private Channel<HttpIngressRequest> requestChannel;
+        private Channel<HttpIngressReply> replyChannel;
+        private URI replyChannelURI;
+
+        Route(long replyTimeoutMillis) {
+            this.replyTimeoutMillis = replyTimeoutMillis;
+        }
+
+        void close() {
+            for (Channel<?> channel : new Channel<?>[] { bodyChannel, requestChannel, replyChannel }) {
+                if (channel == null)
+                    continue;
+                try {
+                    channel.close();
+                } catch (ChannelLifetimeException e) {
+                    logger.error("Failed to close ingress channel", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A request waiting for its reply.
+     */
+    private static final class Pending {
+        private final HttpExchange exchange;
+        private volatile HttpPollTimer.Timeout timeout;
+
+        Pending(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+
+/**
+ * A fixed size latency histogram, in the style of HdrHistogram. Each power of two range of values is split in 16 linear buckets, so any recorded value is
+ * reported within 1/16 (about 6%) of its real value, from 1 nanosecond up to the full long range. Recording is a few bit operations and atomic adds, with no
+ * lock and no allocation.
+ * <p>
+ * The buckets only grow, so a lifetime distribution hides a recent slowdown behind all the older values. Use {@link #snapshotAndReset()} to report the
+ * distribution of each interval.
+ *
+ */
+public class HttpLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value
+     *            The value, usually in nanoseconds.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(v));
+        total.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Take a snapshot of the distribution. Values recorded during the snapshot may or may not be included.
+     *
+     * @return The count, mean, max and percentiles of the values recorded since the histogram was created or last reset.
+     */
+    public HttpMetricsMessage.Latency snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return latency(copy, total.sum(), max.get());
+    }
+
+    /**
+     * Take a snapshot of the distribution and reset it, so the next snapshot only covers the values recorded after this one. A value recorded during the
+     * snapshot is counted in one of the two, but may be missing from the mean or the max of that one.
+     *
+     * @return The count, mean, max and percentiles of the values recorded since the histogram was created or last reset.
+     */
+    public HttpMetricsMessage.Latency snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.getAndSet(i, 0);
+        return latency(copy, total.sumThenReset(), max.getThenReset());
+    }
+
+    /**
+     * @return The number of values recorded since the histogram was created or last reset.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    private static HttpMetricsMessage.Latency latency(long[] copy, long sum, long maxValue) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += copy[i];
+
+        HttpMetricsMessage.Latency latency = new HttpMetricsMessage.Latency();
+        latency.count = count;
+        if (count == 0)
+            return latency;
+        latency.meanNanos = sum / count;
+        latency.maxNanos = maxValue;
+        latency.p50Nanos = percentile(copy, count, maxValue, 0.50);
+        latency.p90Nanos = percentile(copy, count, maxValue, 0.90);
+        latency.p99Nanos = percentile(copy, count, maxValue, 0.99);
+        latency.p999Nanos = percentile(copy, count, maxValue, 0.999);
+        return latency;
+    }
+
+    private static long percentile(long[] copy, long count, long maxValue, double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += copy[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    /**
+     * @return The bucket of a value. Values below 16 have a bucket each, above that each power of two range has 16 buckets.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest value that falls in a bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = SUB_BUCKETS + index % SUB_BUCKETS;
+        long lowest = subBucket << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bytes of request and response bodies the module may hold in memory at once. A request reserves the bytes it holds before it reads them and gives
+ * them back when it is done, so the heap used by the bodies stays under the budget however many requests run at once.
+ * <p>
+ * A request that does not fit waits for others to give bytes back, at most maxWait, and then fails with {@link HttpOverloadException}; a request larger
+ * than the whole budget fails at once. A request may grow its reservation as its body arrives; since the wait is bounded, requests that hold part of their
+ * bytes and wait for more cannot deadlock, the ones that time out give theirs back. Bodies spooled to files are not held in memory and do not count.
+ *
+ */
+public class HttpMemoryBudget {
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private long capacityBytes = 0;
+    private long maxWaitNanos = 0;
+    private long usedBytes = 0;
+    private long peakBytes = 0;
+
+    /**
+     * Create a budget with no limit, it only counts the bytes held.
+     */
+    public HttpMemoryBudget() {
+        this(0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a budget.
+     *
+     * @param capacityBytes
+     *            The bytes that may be held at once, 0 for no limit.
+     * @param maxWait
+     *            How long a request waits for room, 0 to fail at once.
+     * @param unit
+     *            The unit of maxWait.
+     */
+    public HttpMemoryBudget(long capacityBytes, long maxWait, TimeUnit unit) {
+        setLimits(capacityBytes, maxWait, unit);
+    }
+
+    /**
+     * Change the limits. Lowering the capacity does not take back bytes already reserved, new reservations wait until the bytes held are under it.
+     *
+     * @param capacityBytes
+     *            The bytes that may be held at once, 0 for no limit.
+     * @param maxWait
+     *            How long a request waits for room, 0 to fail at once.
+     * @param unit
+     *            The unit of maxWait.
+     */
+    public synchronized void setLimits(long capacityBytes, long maxWait, TimeUnit unit) {
+        if (capacityBytes < 0 || maxWait < 0)
+            throw new IllegalArgumentException(String.format("Invalid memory budget [%d] wait [%d]", capacityBytes, maxWait));
+        this.capacityBytes = capacityBytes;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        notifyAll();
+    }
+
+    /**
+     * Reserve bytes.
+     *
+     * @param bytes
+     *            The bytes to reserve, may be 0 to grow the reservation later.
+     * @return The reservation, it must be closed.
+     * @throws HttpOverloadException
+     *             There was no room in time.
+     */
+    public Reservation reserve(long bytes) throws HttpOverloadException {
+        Reservation reservation = new Reservation();
+        reservation.grow(bytes);
+        return reservation;
+    }
+
+    /**
+     * @return The bytes that may be held at once, 0 for no limit.
+     */
+    public synchronized long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * @return How long a request waits for room, in milliseconds.
+     */
+    public synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    /**
+     * @return The bytes reserved now.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The most bytes reserved at once.
+     */
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return The number of reservations that failed.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of reservations that had to wait for room.
+     */
+    public long getWaitedCount() {
+        return waited.sum();
+    }
+
+    private synchronized void acquire(long bytes, long totalBytes) throws HttpOverloadException {
+        if (capacityBytes > 0) {
+            if (totalBytes > capacityBytes) {
+                rejected.increment();
+                throw new HttpOverloadException(String.format("[%d] bytes is more than the memory budget of [%d]", totalBytes, capacityBytes));
+            }
+            long deadline = System.nanoTime() + maxWaitNanos;
+            boolean waiting = false;
+            while (capacityBytes > 0 && usedBytes + bytes > capacityBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected.increment();
+                    throw new HttpOverloadException(String.format("No room for [%d] bytes, [%d] of [%d] in use", bytes, usedBytes, capacityBytes));
+                }
+                if (!waiting) {
+                    waited.increment();
+                    waiting = true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    throw new HttpOverloadException(e);
+                }
+            }
+        }
+        usedBytes += bytes;
+        peakBytes = Math.max(peakBytes, usedBytes);
+    }
+
+    private synchronized void release(long bytes) {
+        usedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * The bytes held by one request. Used by one thread at a time.
+     */
+    public final class Reservation implements AutoCloseable {
+        private long bytes = 0;
+
+        private Reservation() {
+        }
+
+        /**
+         * Grow the reservation, waiting for room.
+         *
+         * @param totalBytes
+         *            The bytes the request holds now, nothing is done if they are reserved already.
+         * @throws HttpOverloadException
+         *             There was no room in time, the bytes reserved before are kept until the reservation is closed.
+         */
+        public void grow(long totalBytes) throws HttpOverloadException {
+            if (totalBytes <= bytes)
+                return;
+            acquire(totalBytes - bytes, totalBytes);
+            bytes = totalBytes;
+        }
+
+        /**
+         * Give back the bytes reserved over totalBytes, once a request knows it holds fewer than it reserved.
+         *
+         * @param totalBytes
+         *            The bytes the request holds now, nothing is done if more are reserved already.
+         */
+        public void shrink(long totalBytes) {
+            if (totalBytes >= bytes || totalBytes < 0)
+                return;
+            release(bytes - totalBytes);
+            bytes = totalBytes;
+        }
+
+        /**
+         * @return The bytes reserved.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Give the bytes back.
+         */
+        @Override
+        public void close() {
+            if (bytes > 0) {
+                release(bytes);
+                bytes = 0;
+            }
+        }
+    }
+}
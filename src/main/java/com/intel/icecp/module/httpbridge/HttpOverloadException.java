@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+/**
+ * Specifies that the module has no room for the HTTP request, it is returned with ERROR_ON_OVERLOAD
+ *
+ */
+public class HttpOverloadException extends Exception {
+
+    /**
+     * Creates a new instance of <code>HttpOverloadException</code> without detail message.
+     */
+    public HttpOverloadException() {
+    }
+
+    /**
+     * Constructs an instance of <code>HttpOverloadException</code> with the specified detail message.
+     *
+     * @param msg
+     *            the detail message.
+     */
+    public HttpOverloadException(String msg) {
+        super(msg);
+    }
+
+    /**
+     * Build an exception containing another exception
+     *
+     * @param ex Original exception
+     */
+    public HttpOverloadException(java.lang.Exception ex) {
+        super(ex);
+    }
+}
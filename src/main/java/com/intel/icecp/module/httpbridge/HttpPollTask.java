@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpPollMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * The poll registered by a {@link HttpPollMessage}. The {@link HttpPollTimer} of the module tells it when it is due, it then hands the request to the
+ * dispatcher of the connection (the request scheduler, at LOW priority) so the wheel thread never waits on the network. Polls of one task never overlap:
+ * the next one is scheduled when the request is done.
+ * <p>
+ * The request is conditional on the ETag and Last-Modified of the last 200 response, and the body is published only if its SHA-256 hash differs from the
+ * last one published. Each request is recorded in the module metrics, and is subject to the module rate limit: a poll over the limit is skipped. The body
+ * is read within the body limit of the poll command and the memory budget of the module, like the one of a data command.
+ * <p>
+ * A poll that fails, with an error response, an I/O error or an overload, is reported with its status; so is the next poll that succeeds. A poll failing
+ * the same way every interval is reported once.
+ *
+ */
+public class HttpPollTask {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final HttpCommandExecutor executor;
+    private final HttpSetupMessage setupMessage;
+    private final HttpPollMessage message;
+    private final HttpChannelCache channelCache;
+    private final HttpPollTimer timer;
+    private final Executor dispatcher;
+    private final HttpBridgeMetrics metrics;
+    private final HttpRateLimiter rateLimiter;
+    private final Consumer<HttpPollMessage> reporter;
+
+    private Channel<BytesMessage> outputChannel = null;
+    private HttpPollTimer.Timeout timeout = null;
+    private boolean running = false;
+    private boolean cancelled = false;
+
+    // Only used by the poll request, polls do not overlap.
+    private String etag = null;
+    private String lastModified = null;
+    private byte[] lastHash = null;
+    private HTTP_BRIDGE_STATUS lastStatus = HTTP_BRIDGE_STATUS.OK;
+    private int lastResponseCode = 0;
+    private volatile long polls = 0;
+    private volatile long changes = 0;
+
+    /**
+     * Constructor for setting up a task whose failures are not reported.
+     *
+     * @param executor
+     *            Creates the connections of the poll requests.
+     * @param setupMessage
+     *            The setup command of the connection.
+     * @param message
+     *            The poll command. It is not changed once the poll is started.
+     * @param channelCache
+     *            The cache the output channel is acquired from.
+     * @param timer
+     *            The timer that tells when a poll is due.
+     * @param dispatcher
+     *            Runs the poll requests.
+     * @param metrics
+     *            The module metrics.
+     * @param rateLimiter
+     *            The rate limit of the module.
+     */
+    public HttpPollTask(HttpCommandExecutor executor, HttpSetupMessage setupMessage, HttpPollMessage message, HttpChannelCache channelCache,
+            HttpPollTimer timer, Executor dispatcher, HttpBridgeMetrics metrics, HttpRateLimiter rateLimiter) {
+        this(executor, setupMessage, message, channelCache, timer, dispatcher, metrics, rateLimiter, result -> {
+        });
+    }
+
+    /**
+     * Constructor for setting up the task.
+     *
+     * @param executor
+     *            Creates the connections of the poll requests, and reads their bodies.
+     * @param setupMessage
+     *            The setup command of the connection.
+     * @param message
+     *            The poll command. It is not changed once the poll is started.
+     * @param channelCache
+     *            The cache the output channel is acquired from.
+     * @param timer
+     *            The timer that tells when a poll is due.
+     * @param dispatcher
+     *            Runs the poll requests.
+     * @param metrics
+     *            The module metrics.
+     * @param rateLimiter
+     *            The rate limit of the module.
+     * @param reporter
+     *            Called with the result of a poll that failed, or of the first one that succeeded after a failure.
+     */
+    public HttpPollTask(HttpCommandExecutor executor, HttpSetupMessage setupMessage, HttpPollMessage message, HttpChannelCache channelCache,
+            HttpPollTimer timer, Executor dispatcher, HttpBridgeMetrics metrics, HttpRateLimiter rateLimiter, Consumer<HttpPollMessage> reporter) {
+        this.executor = executor;
+        this.setupMessage = setupMessage;
+        this.message = message;
+        this.channelCache = channelCache;
+        this.timer = timer;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.rateLimiter = rateLimiter;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Open the output channel and schedule the first poll, within jitterMillis.
+     *
+     * @return True if the poll is started. Otherwise the status of the poll command is set.
+     */
+    public synchronized boolean start() {
+        try {
+            outputChannel = channelCache.acquire(message.outputHttpChannelURI, BytesMessage.class, new Persistence());
+        } catch (ChannelLifetimeException e) {
+            logger.error("Failed to open output channel [{}]", message.outputHttpChannelURI, e);
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+            return false;
+        }
+        schedule(jitter());
+        return true;
+    }
+
+    /**
+     * Stop polling. A poll request running finishes, but is not published.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (timeout != null)
+            timeout.cancel();
+        if (!running)
+            releaseOutputChannel();
+    }
+
+    /**
+     * @return The number of poll requests sent.
+     */
+    public long getPollCount() {
+        return polls;
+    }
+
+    /**
+     * @return The number of changed bodies published.
+     */
+    public long getChangeCount() {
+        return changes;
+    }
+
+    /**
+     * Called on the timer thread when the poll is due.
+     */
+    private void due() {
+        synchronized (this) {
+            if (cancelled)
+                return;
+            running = true;
+        }
+        try {
+            dispatcher.execute(this::poll);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Poll [{}] skipped: {}", message.outputHttpChannelURI, e.getMessage());
+            finish();
+        }
+    }
+
+    /**
+     * Send a poll request, if the rate limit allows it, then schedule the next one.
+     */
+    void poll() {
+        try {
+            if (rateLimiter.tryAcquire())
+                pollOnce();
+            else
+                logger.debug("Poll [{}] skipped, rate limit exceeded", message.outputHttpChannelURI);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Send a poll request and publish the body if it changed. The result is reported if its status changed since the last poll.
+     *
+     * @return True if the body was published.
+     */
+    boolean pollOnce() {
+        HttpPollMessage result = new HttpPollMessage(message.connectionId);
+        result.outputHttpChannelURI = message.outputHttpChannelURI;
+        result.intervalMillis = message.intervalMillis;
+        result.jitterMillis = message.jitterMillis;
+        result.maxBodyBytes = message.maxBodyBytes;
+        result.bodyLimitPolicy = message.bodyLimitPolicy;
+        result.status = HTTP_BRIDGE_STATUS.OK;
+        HttpRequestTiming timing = new HttpRequestTiming();
+        timing.startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        HttpURLConnection connection = null;
+        polls++;
+        try {
+            connection = executor.createConnection();
+            Map<String, String> headers = message.requestHeaders != null ? new HashMap<>(message.requestHeaders) : new HashMap<>();
+            if (etag != null)
+                headers.put("If-None-Match", etag);
+            if (lastModified != null)
+                headers.put("If-Modified-Since", lastModified);
+            executor.setConnectionProperties(connection, "GET", headers, false);
+            result.responseCode = connection.getResponseCode();
+            timing.firstByteNanos = System.nanoTime() - startNanos;
+            if (result.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return false;
+            if (result.responseCode != HttpURLConnection.HTTP_OK) {
+                logger.debug("Poll [{}] response [{}]", setupMessage.connectionUrl, result.responseCode);
+                result.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+                return false;
+            }
+            // The body is held until it is published.
+            try (HttpMemoryBudget.Reservation reservation = executor.reserveOutputData(connection, result)) {
+                byte[] body = executor.readOutputData(connection, result, reservation);
+                timing.responseBytes = body.length;
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                byte[] hash = sha256(body);
+                if (Arrays.equals(hash, lastHash))
+                    return false;
+                synchronized (this) {
+                    if (cancelled)
+                        return false;
+                }
+                outputChannel.publish(new BytesMessage(body));
+                lastHash = hash;
+                changes++;
+                return true;
+            }
+        } catch (HttpConnectionException e) {
+            result.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+        } catch (HttpResponseException e) {
+            result.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+        } catch (HttpOverloadException e) {
+            logger.info("Poll [{}] skipped: {}", setupMessage.connectionUrl, e.getMessage());
+            result.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+        } catch (IOException | ChannelIOException e) {
+            logger.debug("Poll [{}] failed: {}", setupMessage.connectionUrl, e.getMessage());
+            result.status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+            timing.totalNanos = System.nanoTime() - startNanos;
+            metrics.recordRequest(setupMessage.connectionUrl.getHost(), result, timing);
+            report(result);
+        }
+        return false;
+    }
+
+    /**
+     * Report the result of a poll if its status or error response differs from the last one.
+     */
+    private void report(HttpPollMessage result) {
+        int responseCode = result.status == HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE ? result.responseCode : 0;
+        if (result.status == lastStatus && responseCode == lastResponseCode)
+            return;
+        lastStatus = result.status;
+        lastResponseCode = responseCode;
+        synchronized (this) {
+            if (cancelled)
+                return;
+        }
+        reporter.accept(result);
+    }
+
+    /**
+     * The poll request is done: schedule the next one, or release the output channel if cancelled meanwhile.
+     */
+    private synchronized void finish() {
+        running = false;
+        if (cancelled) {
+            releaseOutputChannel();
+            return;
+        }
+        try {
+            schedule(message.intervalMillis + jitter());
+        } catch (IllegalStateException e) {
+            // The timer is shut down with the module.
+            cancelled = true;
+            releaseOutputChannel();
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        timeout = timer.schedule(this::due, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long jitter() {
+        return message.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(message.jitterMillis + 1) : 0;
+    }
+
+    private void releaseOutputChannel() {
+        if (outputChannel != null) {
+            channelCache.release(message.outputHttpChannelURI, BytesMessage.class);
+            outputChannel = null;
+        }
+    }
+
+    private static byte[] sha256(byte[] body) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
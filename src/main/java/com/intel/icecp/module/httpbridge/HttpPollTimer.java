@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A hashed timer wheel shared by the polls of all the connections (see {@link HttpPollTask}). One thread advances the wheel every tick and runs the tasks
+ * that are due, so thousands of polls cost one thread and a list entry each, instead of a scheduled executor entry in a heap.
+ * <p>
+ * A task is put in the slot of its deadline tick, with the number of turns of the wheel left before it is due. The tasks must be short, they run on the
+ * wheel thread: the polls only hand themselves to the request scheduler. Deadlines are rounded up to the next tick.
+ * <p>
+ * The thread is started by the first task scheduled.
+ *
+ */
+public class HttpPollTimer {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private Thread thread = null;
+    private volatile boolean shutdown = false;
+    private volatile int size = 0;
+
+    /**
+     * A timer with a tick of 100 milliseconds and 512 slots.
+     */
+    public HttpPollTimer() {
+        this(100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Create a timer.
+     *
+     * @param tick
+     *            The time between two advances of the wheel, the precision of the deadlines.
+     * @param unit
+     *            The unit of tick
+     * @param wheelSize
+     *            The number of slots, rounded up to a power of 2. Deadlines further than wheelSize ticks wait for more turns.
+     */
+    @SuppressWarnings("unchecked")
+    public HttpPollTimer(long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException(String.format("Invalid tick [%d] or wheel size [%d]", tick, wheelSize));
+        this.tickNanos = unit.toNanos(tick);
+        int slots = Integer.highestOneBit(wheelSize - 1 | 1) << 1;
+        this.wheel = new List[wheelSize == 1 ? 1 : slots];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = wheel.length - 1;
+    }
+
+    /**
+     * Run a task once, after a delay.
+     *
+     * @param task
+     *            The task, run on the wheel thread.
+     * @param delay
+     *            The delay
+     * @param unit
+     *            The unit of delay
+     * @return The handle to cancel the task.
+     * @throws IllegalStateException
+     *             The timer is shut down
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (shutdown)
+            throw new IllegalStateException("Poll timer is shut down");
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        startIfNeeded();
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel thread. The tasks not run yet are dropped.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting on the wheel.
+     */
+    public int size() {
+        return size + added.size();
+    }
+
+    private synchronized void startIfNeeded() {
+        if (thread != null || shutdown)
+            return;
+        thread = new Thread(this::turn, "HttpBridge-PollTimer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The wheel thread: wait for the next tick and run the tasks of its slot.
+     */
+    private void turn() {
+        long tick = 0;
+        while (!shutdown) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0 && !shutdown) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (shutdown)
+                break;
+            tick++;
+            transferAdded(tick);
+            expire(wheel[(int) (tick & mask)]);
+        }
+        added.clear();
+        for (List<Timeout> slot : wheel) {
+            slot.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Put the tasks scheduled since the last tick on the wheel. A deadline already passed goes in the current slot.
+     */
+    private void transferAdded(long currentTick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+            long deadlineTick = Math.max(currentTick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            timeout.rounds = (deadlineTick - currentTick) / wheel.length;
+            wheel[(int) (deadlineTick & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void expire(List<Timeout> slot) {
+        int kept = 0;
+        List<Timeout> due = null;
+        for (Timeout timeout : slot) {
+            if (timeout.cancelled) {
+                continue;
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+            } else {
+                if (due == null)
+                    due = new ArrayList<>();
+                due.add(timeout);
+            }
+        }
+        size -= slot.size() - kept;
+        slot.subList(kept, slot.size()).clear();
+        if (due == null)
+            return;
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                logger.error("Poll timer task failed", e);
+            }
+        }
+    }
+
+    /**
+     * The handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled = false;
+        // Only used by the wheel thread.
+        private long rounds;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancel the task, if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * A {@link java.lang.Runnable} that warms up a connection when the {@link HttpSetupMessage#prewarm} flag is set. It opens a number of upstream connections
+ * in parallel so they are left in the JVM keep-alive pool, and acquires the declared input and output channels from the {@link HttpChannelCache}. The
+ * upstream connections are opened like the ones of the data commands (see {@link HttpCommandExecutor#warmUp()}): the host is resolved, and they go to the
+ * endpoints selected by the balancer, through the proxy pool. They are opened on the prewarm threads of the module, at most
+ * {@link HttpSetupMessage#MAX_PREWARM_CONNECTIONS} per connection. The acquired channel URIs are added to the passed in list, and the {@link HttpConnectionTask} releases them on teardown.
+ * <p>
+ * Any failure here is only logged. The first data command then pays the full cost, the same as without prewarm.
+ *
+ */
+public class HttpPrewarmTask implements Runnable {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * How long the warm-up connections may take in all, in milliseconds. The ones not opened by then are cancelled.
+     */
+    private static final int PREWARM_TIMEOUT_MS = 10000;
+
+    /**
+     * Opens the upstream connections like the data commands.
+     */
+    private HttpCommandExecutor executor = null;
+
+    /**
+     * The filled in setup message for the connection.
+     */
+    private HttpSetupMessage setupMessage = null;
+
+    /**
+     * The cache the channels are acquired from.
+     */
+    private HttpChannelCache channelCache;
+
+    /**
+     * Receives the URI of each acquired channel.
+     */
+    private List<URI> acquiredChannels;
+
+    /**
+     * The threads the upstream connections are opened on.
+     */
+    private ExecutorService workers;
+
+    /**
+     * Constructor for setting up the task.
+     *
+     * @param executor
+     *            Opens the upstream connections, with the balancer and the proxy pool of the connection.
+     * @param setupMessage
+     *            The Setup message filled in with connection information.
+     * @param channelCache
+     *            The cache the input and output channels are acquired from.
+     * @param acquiredChannels
+     *            List that receives the URI of each acquired channel. The caller must release them.
+     * @param workers
+     *            The threads the upstream connections are opened on, see {@link HttpBridgeSettings#getPrewarmExecutor()}.
+     */
+    public HttpPrewarmTask(HttpCommandExecutor executor, HttpSetupMessage setupMessage, HttpChannelCache channelCache, List<URI> acquiredChannels,
+            ExecutorService workers) {
+        this.executor = executor;
+        this.setupMessage = setupMessage;
+        this.channelCache = channelCache;
+        this.acquiredChannels = acquiredChannels;
+        this.workers = workers;
+    }
+
+    /**
+     * Warm up the connection. The upstream connections and the channels are opened at the same time.
+     */
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        int count = Math.min(Math.max(setupMessage.prewarmConnections, 0), HttpSetupMessage.MAX_PREWARM_CONNECTIONS);
+        Future<?>[] opens = new Future<?>[count];
+        try {
+            for (int i = 0; i < opens.length; i++) {
+                opens[i] = workers.submit(this::openUpstreamConnection);
+            }
+        } catch (RejectedExecutionException e) {
+            logger.info("Prewarm of [{}] skipped, the module is stopping", setupMessage.connectionUrl);
+        }
+
+        acquireIOChannel(setupMessage.inputHttpChannelURI);
+        acquireIOChannel(setupMessage.outputHttpChannelURI);
+
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(PREWARM_TIMEOUT_MS);
+        for (Future<?> open : opens) {
+            if (open == null)
+                continue;
+            try {
+                open.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | CancellationException e) {
+                // Logged by the connection.
+            } catch (TimeoutException e) {
+                logger.info("Prewarm of [{}] did not complete in [{}] ms", setupMessage.connectionUrl, PREWARM_TIMEOUT_MS);
+                open.cancel(true);
+            } catch (InterruptedException e) {
+                logger.info("Interrupted.");
+                Thread.currentThread().interrupt();
+                open.cancel(true);
+            }
+        }
+        logger.info("Prewarm id[{}] finished in [{}] ms", setupMessage.connectionId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Open an upstream connection and leave it in the keep-alive pool.
+     */
+    private void openUpstreamConnection() {
+        try {
+            executor.warmUp();
+        } catch (HttpConnectionException | IOException e) {
+            logger.info("Prewarm connection to [{}] failed: {}", setupMessage.connectionUrl, e.getMessage());
+        }
+    }
+
+    /**
+     * Acquire the channel from the cache, so it stays open for the data commands.
+     *
+     * @param channelURI
+     *            The channel to acquire, may be null
+     */
+    private void acquireIOChannel(URI channelURI) {
+        if (channelURI == null || acquiredChannels.contains(channelURI))
+            return;
+        try {
+            channelCache.acquire(channelURI, BytesMessage.class, new Persistence());
+            acquiredChannels.add(channelURI);
+            logger.info("Prewarm opened channel [{}]", channelURI);
+        } catch (ChannelLifetimeException e) {
+            logger.error("Prewarm failed to open channel [{}]", channelURI, e);
+        }
+    }
+}
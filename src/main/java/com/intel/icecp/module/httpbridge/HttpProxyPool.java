@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * The proxies of a connection. Requests stick to one healthy proxy, the first one at the start. A proxy that cannot be connected to is marked down, and
+ * the request fails over to the next proxy that is up, which the later requests then stick to; a health check connects to every proxy on an interval and
+ * marks it up or down again. Errors past the proxy, eg. a tunnel refused because the server is down, say nothing of the proxy and do not move the requests.
+ * <p>
+ * The requests stick to one proxy because the JVM keeps its idle connections by server, not by proxy, and only reuses one through the proxy it was opened
+ * with: a request through another proxy closes it. Spreading the requests over the proxies would open a connection, and a tunnel, for each of them. The
+ * proxy hosts are left unresolved, so they are resolved, and cached by the JVM, when a connection is opened.
+ *
+ */
+public class HttpProxyPool {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    private final ProxyState[] proxies;
+    private final AtomicInteger current = new AtomicInteger();
+    private HttpPollTimer timer = null;
+    private Executor dispatcher = null;
+    private long intervalMillis = 0;
+    private int timeoutMillis = 0;
+    private HttpPollTimer.Timeout timeout = null;
+    private boolean stopped = false;
+
+    /**
+     * Create a pool, all proxies are up.
+     *
+     * @param addresses
+     *            The addresses of the proxies, at least one.
+     */
+    public HttpProxyPool(List<InetSocketAddress> addresses) {
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("No proxies");
+        proxies = new ProxyState[addresses.size()];
+        for (int i = 0; i < proxies.length; i++) {
+            proxies[i] = new ProxyState(new Proxy(Proxy.Type.HTTP, addresses.get(i)));
+        }
+    }
+
+    /**
+     * Create the proxy pool of a connection.
+     *
+     * @param setupMessage
+     *            The setup command of the connection.
+     * @return The pool of the proxyHost and the proxies, or null if the setup command has no proxy.
+     */
+    public static HttpProxyPool forSetup(HttpSetupMessage setupMessage) {
+        Set<InetSocketAddress> addresses = new LinkedHashSet<>();
+        if (setupMessage.proxyHost != null && !setupMessage.proxyHost.isEmpty())
+            addresses.add(InetSocketAddress.createUnresolved(setupMessage.proxyHost, setupMessage.proxyPort));
+        if (setupMessage.proxies != null) {
+            for (String proxy : setupMessage.proxies) {
+                addresses.add(parse(proxy));
+            }
+        }
+        return addresses.isEmpty() ? null : new HttpProxyPool(new ArrayList<>(addresses));
+    }
+
+    /**
+     * Parse a proxy address.
+     *
+     * @param proxy
+     *            The proxy as host:port
+     * @return The unresolved address.
+     * @throws IllegalArgumentException
+     *             The proxy is not host:port, or the port is not valid.
+     */
+    public static InetSocketAddress parse(String proxy) {
+        int colon = proxy.lastIndexOf(':');
+        if (colon < 1)
+            throw new IllegalArgumentException(String.format("Proxy [%s] is not host:port", proxy));
+        try {
+            return InetSocketAddress.createUnresolved(proxy.substring(0, colon), Integer.parseInt(proxy.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Proxy [%s] has no valid port", proxy), e);
+        }
+    }
+
+    /**
+     * @return The number of proxies.
+     */
+    public int size() {
+        return proxies.length;
+    }
+
+    /**
+     * Select the proxy of a request: the current proxy while it is up, else the next proxy that is up, which becomes the current one. If all are down the
+     * current proxy is kept.
+     *
+     * @return The proxy.
+     */
+    public Proxy select() {
+        int start = current.get();
+        for (int i = 0; i < proxies.length; i++) {
+            int index = (start + i) % proxies.length;
+            if (proxies[index].up) {
+                if (i > 0)
+                    current.compareAndSet(start, index);
+                return proxies[index].proxy;
+            }
+        }
+        return proxies[start].proxy;
+    }
+
+    /**
+     * Tell whether a connect error is an error to reach the proxy itself: it was refused, timed out, or its host is unknown. The other errors, eg. a
+     * CONNECT answered with 502 because the server is down, or a TLS error with the server, come from past the proxy.
+     *
+     * @param e
+     *            The connect error of a request through a proxy.
+     * @return True if the proxy could not be reached.
+     */
+    public static boolean isProxyUnreachable(IOException e) {
+        // A connect timeout is the only SocketTimeoutException with this message, the read timeouts of the tunnel and the handshake say "Read timed out".
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException
+                || e instanceof SocketTimeoutException && e.getMessage() != null && e.getMessage().toLowerCase(Locale.ROOT).startsWith("connect timed out");
+    }
+
+    /**
+     * Mark a proxy down, after it could not be reached (see {@link #isProxyUnreachable(IOException)}).
+     *
+     * @param proxy
+     *            The proxy returned by {@link #select()}.
+     * @param cause
+     *            The connect error.
+     */
+    public void failed(Proxy proxy, IOException cause) {
+        ProxyState state = find(proxy);
+        if (state != null && state.up) {
+            state.up = false;
+            logger.info("Proxy [{}] is down: {}", proxy.address(), cause.getMessage());
+        }
+    }
+
+    /**
+     * Mark a proxy up, after a connect through it succeeded.
+     *
+     * @param proxy
+     *            The proxy returned by {@link #select()}.
+     */
+    public void succeeded(Proxy proxy) {
+        ProxyState state = find(proxy);
+        if (state != null && !state.up) {
+            state.up = true;
+            logger.info("Proxy [{}] is up", proxy.address());
+        }
+    }
+
+    /**
+     * @param proxy
+     *            A proxy of the pool.
+     * @return True if the proxy is up.
+     */
+    public boolean isUp(Proxy proxy) {
+        ProxyState state = find(proxy);
+        return state != null && state.up;
+    }
+
+    /**
+     * Start the health checks.
+     *
+     * @param timer
+     *            The timer that schedules the checks.
+     * @param interval
+     *            The time between two checks.
+     * @param unit
+     *            The unit of interval.
+     * @param timeoutMillis
+     *            The connect timeout of a check, it must be finite so one dead proxy cannot hold up the checks.
+     * @param dispatcher
+     *            Runs the checks, so the timer thread never waits on the network.
+     */
+    public synchronized void start(HttpPollTimer timer, long interval, TimeUnit unit, int timeoutMillis, Executor dispatcher) {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException(String.format("Invalid proxy check timeout [%d]", timeoutMillis));
+        this.timer = timer;
+        this.dispatcher = dispatcher;
+        this.intervalMillis = unit.toMillis(interval);
+        this.timeoutMillis = timeoutMillis;
+        schedule();
+    }
+
+    /**
+     * Stop the health checks.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Connect to every proxy, and mark it up or down.
+     */
+    void check() {
+        for (ProxyState state : proxies) {
+            InetSocketAddress address = (InetSocketAddress) state.proxy.address();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), timeoutMillis);
+                succeeded(state.proxy);
+            } catch (IOException e) {
+                failed(state.proxy, e);
+            }
+        }
+    }
+
+    private synchronized void schedule() {
+        if (stopped)
+            return;
+        try {
+            timeout = timer.schedule(this::due, intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // The module is shutting down.
+            stopped = true;
+        }
+    }
+
+    private void due() {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    check();
+                } finally {
+                    schedule();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Proxy health check skipped, the dispatcher is full");
+            schedule();
+        }
+    }
+
+    private ProxyState find(Proxy proxy) {
+        for (ProxyState state : proxies) {
+            if (state.proxy == proxy)
+                return state;
+        }
+        return null;
+    }
+
+    /**
+     * A proxy and whether it is up.
+     */
+    private static final class ProxyState {
+        private final Proxy proxy;
+        private volatile boolean up = true;
+
+        private ProxyState(Proxy proxy) {
+            this.proxy = proxy;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the rate of data commands. The bucket refills at a number of permits per second and holds at most a burst of permits. A rate of 0
+ * means no limit.
+ * <p>
+ * The bucket is kept as a single theoretical arrival time (the generic cell rate algorithm), updated with a compare and set, so acquiring takes no lock. The
+ * rate may be changed at any time.
+ *
+ */
+public class HttpRateLimiter {
+    /**
+     * The time the bucket is full again, in System.nanoTime() units.
+     */
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * The time to refill one permit in nanoseconds, 0 when there is no limit.
+     */
+    private volatile long nanosPerPermit = 0;
+
+    /**
+     * How far ahead fullAt may be, burst times nanosPerPermit.
+     */
+    private volatile long burstNanos = 0;
+
+    /**
+     * The number of permits that may be taken at once. Kept apart from burstNanos, which is 0 when there is no limit.
+     */
+    private volatile int burst = 1;
+
+    /**
+     * Create a limiter.
+     *
+     * @param permitsPerSecond
+     *            The sustained rate, 0 for no limit.
+     * @param burst
+     *            The number of permits that may be taken at once after a quiet period, at least 1.
+     */
+    public HttpRateLimiter(double permitsPerSecond, int burst) {
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Change the rate.
+     *
+     * @param permitsPerSecond
+     *            The sustained rate, 0 for no limit.
+     * @param burst
+     *            The number of permits that may be taken at once after a quiet period, at least 1.
+     */
+    public void setRate(double permitsPerSecond, int burst) {
+        if (permitsPerSecond < 0 || burst < 1)
+            throw new IllegalArgumentException(String.format("Invalid rate [%f] burst [%d]", permitsPerSecond, burst));
+        long perPermit = permitsPerSecond == 0 ? 0 : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burst = burst;
+        burstNanos = perPermit * burst;
+        nanosPerPermit = perPermit;
+    }
+
+    /**
+     * @return The sustained rate in permits per second, 0 when there is no limit.
+     */
+    public double getRate() {
+        long perPermit = nanosPerPermit;
+        return perPermit == 0 ? 0 : (double) TimeUnit.SECONDS.toNanos(1) / perPermit;
+    }
+
+    /**
+     * @return The number of permits that may be taken at once, as set even when there is no limit.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Take a permit if one is available. Never waits.
+     *
+     * @return True if the permit was taken, false if the rate is exceeded.
+     */
+    public boolean tryAcquire() {
+        long perPermit = nanosPerPermit;
+        if (perPermit == 0)
+            return true;
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + perPermit;
+            if (next - now > burstNanos)
+                return false;
+            if (fullAt.compareAndSet(current, next))
+                return true;
+        }
+    }
+}
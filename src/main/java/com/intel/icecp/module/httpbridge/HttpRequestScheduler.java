@@ -0,0 +1,880 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_PRIORITY;
+
+/**
+ * Runs the data commands of all connections on a set of worker threads, in priority order, fairly between connections. The number of workers may be changed
+ * while the scheduler runs, see {@link #setWorkerCount}.
+ * <p>
+ * <b>Priority</b><p>
+ * When a worker is free it always takes a command of the highest priority that has one waiting. A number of workers is reserved for
+ * {@link HTTP_PRIORITY#HIGH}. Commands of lower priorities only start while fewer than (workers - reserved) commands are running, so a burst of bulk
+ * transfers cannot take every worker and HIGH commands still start right away.
+ * <p>
+ * <b>Fairness</b><p>
+ * Within a priority, each connection has its own queue, and the queues are served by deficit round robin. Each turn a connection may start as many commands
+ * as its weight before the next connection is served, so one connection that floods its data channel only gets its share of the workers.
+ * <p>
+ * <b>Order</b><p>
+ * The commands of a connection run concurrently, and may complete in any order. The commands submitted with {@link #submitOrdered} run one at a time
+ * instead, in the order they were submitted: the connection is skipped while one of them is running. They wait in the queue like any other command, so
+ * they count against maxQueued and the queue deadline from the time they are submitted.
+ * <p>
+ * <b>Bulkheads</b><p>
+ * Connections are grouped into tenants (the module uses the command return channel). A tenant can never have more than maxWorkersPerTenant commands running,
+ * whatever the number of its connections. Its waiting commands are skipped until one of its running commands completes.
+ * <p>
+ * <b>Admission</b><p>
+ * At most maxQueued commands may wait. When the queue is full, {@link #submit} throws a {@link RejectedExecutionException} right away, and a command that
+ * waited longer than the queue deadline is not run: its expired handler runs instead. {@link #expireOverdue} finds those commands while every worker is busy,
+ * it is meant to be run periodically. Either way the client hears about the overload promptly instead of timing out. {@link HTTP_PRIORITY#HIGH} commands are counted apart, with maxQueued of their own, so a backlog of lower priorities never rejects them; and
+ * they never expire, they are the ones the reserved workers are kept for. Background requests the module sends on its own, such as polls, are counted apart
+ * too (see {@link #submitBackground}), so they never take the room of the commands of the clients.
+ *
+ */
+public class HttpRequestScheduler {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Guards all of the scheduling state below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a command is queued or a worker becomes free.
+     */
+    private final Condition workAvailable = lock.newCondition();
+
+    /**
+     * The scheduling state of each priority, indexed by ordinal.
+     */
+    private final Level[] levels;
+
+    /**
+     * The tenants with commands waiting or running.
+     */
+    private final Map<Object, Tenant> tenants = new HashMap<>();
+
+    /**
+     * The worker threads, running or waiting. After the worker count is lowered there are more than workerCount until the surplus ones exit.
+     */
+    private final Set<Thread> workers = new HashSet<>();
+
+    /**
+     * The context class loader of the workers.
+     */
+    private final ClassLoader contextClassLoader;
+
+    /**
+     * The number of workers. Guarded by the lock, may be changed at runtime.
+     */
+    private int workerCount;
+
+    /**
+     * The number of workers started, to name them.
+     */
+    private int workersStarted = 0;
+
+    /**
+     * The connections with an ordered command running.
+     */
+    private final Set<Long> orderedRunning = new HashSet<>();
+
+    /**
+     * The number of workers only HIGH priority commands may use.
+     */
+    private final int reservedWorkers;
+
+    /**
+     * The maximum number of commands of one tenant that may run at the same time.
+     */
+    private final int maxWorkersPerTenant;
+
+    /**
+     * The maximum number of waiting commands. Guarded by the lock, may be changed at runtime.
+     */
+    private int maxQueued;
+
+    /**
+     * The maximum time a command may wait, in nanoseconds. Zero means no deadline. Guarded by the lock, may be changed at runtime.
+     */
+    private long maxQueueNanos;
+
+    /**
+     * The number of commands running.
+     */
+    private int running = 0;
+
+    /**
+     * The number of commands rejected because the queue was full.
+     */
+    private long rejected = 0;
+
+    /**
+     * The number of commands not run because they waited past the deadline.
+     */
+    private long expired = 0;
+
+    /**
+     * The number of commands waiting.
+     */
+    private int queued = 0;
+
+    /**
+     * The number of HIGH priority commands waiting, included in queued.
+     */
+    private int queuedHigh = 0;
+
+    /**
+     * The number of background requests waiting, included in queued.
+     */
+    private int queuedBackground = 0;
+
+    /**
+     * Set once shutdown is called.
+     */
+    private boolean shutdown = false;
+
+    /**
+     * Create the scheduler and start its workers. No tenant limit is applied.
+     *
+     * @param workerCount
+     *            The number of worker threads.
+     * @param reservedWorkers
+     *            The number of workers reserved for HIGH priority commands. Must be less than workerCount.
+     * @param contextClassLoader
+     *            The context class loader of the workers, see {@link HttpBridge_Module.HttpPoolExecutor}.
+     */
+    public HttpRequestScheduler(int workerCount, int reservedWorkers, ClassLoader contextClassLoader) {
+        this(workerCount, reservedWorkers, workerCount, contextClassLoader);
+    }
+
+    /**
+     * Create the scheduler and start its workers.
+     *
+     * @param workerCount
+     *            The number of worker threads.
+     * @param reservedWorkers
+     *            The number of workers reserved for HIGH priority commands. Must be less than workerCount.
+     * @param maxWorkersPerTenant
+     *            The maximum number of commands of one tenant that may run at the same time.
+     * @param contextClassLoader
+     *            The context class loader of the workers, see {@link HttpBridge_Module.HttpPoolExecutor}.
+     */
+    public HttpRequestScheduler(int workerCount, int reservedWorkers, int maxWorkersPerTenant, ClassLoader contextClassLoader) {
+        this(workerCount, reservedWorkers, maxWorkersPerTenant, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS, contextClassLoader);
+    }
+
+    /**
+     * Create the scheduler with admission limits and start its workers.
+     *
+     * @param workerCount
+     *            The number of worker threads.
+     * @param reservedWorkers
+     *            The number of workers reserved for HIGH priority commands. Must be less than workerCount.
+     * @param maxWorkersPerTenant
+     *            The maximum number of commands of one tenant that may run at the same time.
+     * @param maxQueued
+     *            The maximum number of waiting commands, HIGH priority commands have as many of their own.
+     * @param maxQueueTime
+     *            The maximum time a command may wait for a worker. Zero means no deadline, HIGH priority commands have none.
+     * @param unit
+     *            The unit of maxQueueTime.
+     * @param contextClassLoader
+     *            The context class loader of the workers, see {@link HttpBridge_Module.HttpPoolExecutor}.
+     */
+    public HttpRequestScheduler(int workerCount, int reservedWorkers, int maxWorkersPerTenant, int maxQueued, long maxQueueTime, TimeUnit unit,
+            ClassLoader contextClassLoader) {
+        if (workerCount < 1 || reservedWorkers < 0 || reservedWorkers >= workerCount || maxWorkersPerTenant < 1 || maxQueued < 1 || maxQueueTime < 0)
+            throw new IllegalArgumentException(String.format("Invalid worker count [%d] reserved [%d] per tenant [%d] queue [%d] queue time [%d]",
+                    workerCount, reservedWorkers, maxWorkersPerTenant, maxQueued, maxQueueTime));
+
+        this.reservedWorkers = reservedWorkers;
+        this.contextClassLoader = contextClassLoader;
+        this.maxWorkersPerTenant = maxWorkersPerTenant;
+        this.maxQueued = maxQueued;
+        this.maxQueueNanos = unit.toNanos(maxQueueTime);
+        this.levels = new Level[HTTP_PRIORITY.values().length];
+        for (HTTP_PRIORITY priority : HTTP_PRIORITY.values())
+            levels[priority.ordinal()] = new Level(priority);
+
+        lock.lock();
+        try {
+            this.workerCount = workerCount;
+            startWorkers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a command with no connection or tenant. All such commands share one queue per priority.
+     *
+     * @param priority
+     *            The priority of the command
+     * @param command
+     *            The command to run
+     * @throws RejectedExecutionException
+     *            The scheduler is shut down or the queue is full
+     */
+    public void submit(HTTP_PRIORITY priority, Runnable command) {
+        submit(priority, 0, "", 1, command, null);
+    }
+
+    /**
+     * Queue a command of a connection to run on a worker. The command runs even if it waited past the queue deadline.
+     *
+     * @param priority
+     *            The priority of the command
+     * @param connectionId
+     *            The connection of the command.
+     * @param tenant
+     *            The tenant of the connection.
+     * @param weight
+     *            The number of commands the connection may start in its turn.
+     * @param command
+     *            The command to run
+     * @throws RejectedExecutionException
+     *            The scheduler is shut down or the queue is full
+     */
+    public void submit(HTTP_PRIORITY priority, long connectionId, Object tenant, int weight, Runnable command) {
+        submit(priority, connectionId, tenant, weight, command, null);
+    }
+
+    /**
+     * Queue a command of a connection to run on a worker.
+     *
+     * @param priority
+     *            The priority of the command
+     * @param connectionId
+     *            The connection of the command. Each connection is served fairly against the others.
+     * @param tenant
+     *            The tenant of the connection, limited to maxWorkersPerTenant running commands.
+     * @param weight
+     *            The number of commands the connection may start in its turn. Values below 1 are treated as 1.
+     * @param command
+     *            The command to run
+     * @param onExpired
+     *            Run instead of the command if it waited longer than the queue deadline, or if the connection is cancelled. If null, or for HIGH priority
+     *            commands, the command runs anyway when it waited too long.
+     * @throws RejectedExecutionException
+     *            The scheduler is shut down or the queue of the priority is full
+     */
+    public void submit(HTTP_PRIORITY priority, long connectionId, Object tenant, int weight, Runnable command, Runnable onExpired) {
+        enqueue(priority, connectionId, tenant, weight, command, onExpired, false, false);
+    }
+
+    /**
+     * Queue a command of a connection to run on a worker once the ordered commands submitted before it have completed. The ordered commands of a connection
+     * must all be submitted at the same priority.
+     *
+     * @param priority
+     *            The priority of the command
+     * @param connectionId
+     *            The connection of the command. Each connection is served fairly against the others.
+     * @param tenant
+     *            The tenant of the connection, limited to maxWorkersPerTenant running commands.
+     * @param weight
+     *            The number of commands the connection may start in its turn. Values below 1 are treated as 1.
+     * @param command
+     *            The command to run
+     * @param onExpired
+     *            Run instead of the command if it waited longer than the queue deadline, or if the connection is cancelled. If null, or for HIGH priority
+     *            commands, the command runs anyway when it waited too long.
+     * @throws RejectedExecutionException
+     *            The scheduler is shut down or the queue of the priority is full
+     */
+    public void submitOrdered(HTTP_PRIORITY priority, long connectionId, Object tenant, int weight, Runnable command, Runnable onExpired) {
+        enqueue(priority, connectionId, tenant, weight, command, onExpired, false, true);
+    }
+
+    /**
+     * Queue a background request of a connection, one the module sends on its own rather than a command of the client. Background requests are counted
+     * apart, with maxQueued of their own: a backlog of them never rejects a command, and a backlog of commands rejects them rather than the other way round.
+     * They run even if they waited past the queue deadline.
+     *
+     * @param priority
+     *            The priority of the request
+     * @param connectionId
+     *            The connection of the request.
+     * @param tenant
+     *            The tenant of the connection.
+     * @param weight
+     *            The number of commands the connection may start in its turn.
+     * @param request
+     *            The request to run
+     * @throws RejectedExecutionException
+     *            The scheduler is shut down or maxQueued background requests are waiting
+     */
+    public void submitBackground(HTTP_PRIORITY priority, long connectionId, Object tenant, int weight, Runnable request) {
+        enqueue(priority, connectionId, tenant, weight, request, null, true, false);
+    }
+
+    private void enqueue(HTTP_PRIORITY priority, long connectionId, Object tenant, int weight, Runnable command, Runnable onExpired,
+            boolean background, boolean ordered) {
+        lock.lock();
+        try {
+            if (shutdown)
+                throw new RejectedExecutionException("Scheduler is shut down");
+            boolean high = priority == HTTP_PRIORITY.HIGH;
+            int waiting = background ? queuedBackground : high ? queuedHigh : queued - queuedHigh - queuedBackground;
+            if (waiting >= maxQueued) {
+                rejected++;
+                throw new RejectedExecutionException(String.format("Queue full [%d] commands waiting", queued));
+            }
+
+            Tenant owner = tenants.get(tenant);
+            if (owner == null) {
+                owner = new Tenant(tenant);
+                tenants.put(tenant, owner);
+            }
+
+            Level level = levels[priority.ordinal()];
+            Flow flow = level.flows.get(connectionId);
+            if (flow == null) {
+                flow = new Flow(connectionId, owner);
+                level.flows.put(connectionId, flow);
+                level.ring.addLast(flow);
+            }
+            flow.weight = Math.max(weight, 1);
+            flow.commands.addLast(new Queued(command, onExpired, System.nanoTime(), background, ordered));
+            owner.queued++;
+            queued++;
+            if (background)
+                queuedBackground++;
+            else if (high)
+                queuedHigh++;
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the workers. Waiting commands are dropped, running commands are interrupted.
+     */
+    public void shutdown() {
+        List<Thread> stopping;
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Level level : levels) {
+                level.flows.clear();
+                level.ring.clear();
+            }
+            tenants.clear();
+            orderedRunning.clear();
+            queued = 0;
+            queuedHigh = 0;
+            queuedBackground = 0;
+            workAvailable.signalAll();
+            stopping = new ArrayList<>(workers);
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : stopping)
+            worker.interrupt();
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        lock.lock();
+        try {
+            return workerCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the number of worker threads. New workers start right away. When the count is lowered the idle surplus workers exit, and the busy ones exit
+     * once their command completes; until then no more than the new count of commands start.
+     *
+     * @param workerCount
+     *            The number of worker threads. Must be more than the workers reserved for HIGH priority commands.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1 || workerCount <= reservedWorkers)
+            throw new IllegalArgumentException(String.format("Invalid worker count [%d]", workerCount));
+        lock.lock();
+        try {
+            if (shutdown)
+                return;
+            this.workerCount = workerCount;
+            startWorkers();
+            // The idle surplus workers wake up to exit.
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start workers until there are workerCount of them. Must hold the lock.
+     */
+    private void startWorkers() {
+        while (workers.size() < workerCount) {
+            Thread worker = new Thread(this::work, "HttpBridge-Worker-" + workersStarted++);
+            worker.setContextClassLoader(contextClassLoader);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return The number of commands running.
+     */
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of commands waiting for a worker.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of commands rejected because the queue was full, since the scheduler started.
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of commands not run because they waited past the queue deadline, since the scheduler started.
+     */
+    public long getExpiredCount() {
+        lock.lock();
+        try {
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The maximum number of commands waiting for a worker.
+     */
+    public int getMaxQueued() {
+        lock.lock();
+        try {
+            return maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the maximum number of waiting commands. Commands already waiting are kept, even if there are more.
+     *
+     * @param maxQueued
+     *            The maximum number of commands waiting for a worker.
+     */
+    public void setMaxQueued(int maxQueued) {
+        if (maxQueued < 1)
+            throw new IllegalArgumentException(String.format("Invalid max queued [%d]", maxQueued));
+        lock.lock();
+        try {
+            this.maxQueued = maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The maximum time a command may wait for a worker, in milliseconds. 0 means no deadline.
+     */
+    public long getMaxQueueMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(maxQueueNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the maximum time a command may wait for a worker. Applies to the commands already waiting.
+     *
+     * @param maxQueueTime
+     *            The maximum time, 0 means no deadline.
+     * @param unit
+     *            The unit of maxQueueTime.
+     */
+    public void setMaxQueueTime(long maxQueueTime, TimeUnit unit) {
+        if (maxQueueTime < 0)
+            throw new IllegalArgumentException(String.format("Invalid max queue time [%d]", maxQueueTime));
+        lock.lock();
+        try {
+            this.maxQueueNanos = unit.toNanos(maxQueueTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the waiting commands and background requests of a connection, when it is torn down. The expired handlers of the commands that have one are run on
+     * the calling thread. Running commands are not affected.
+     *
+     * @param connectionId
+     *            The connection torn down
+     * @return The number of commands and requests dropped.
+     */
+    public int cancel(long connectionId) {
+        List<Runnable> cancelled = new ArrayList<>();
+        int dropped = 0;
+        lock.lock();
+        try {
+            for (Level level : levels) {
+                Flow flow = level.flows.remove(connectionId);
+                if (flow == null)
+                    continue;
+                level.ring.remove(flow);
+                for (Queued next : flow.commands) {
+                    if (next.onExpired != null)
+                        cancelled.add(next.onExpired);
+                    if (next.background)
+                        queuedBackground--;
+                    else if (level.priority == HTTP_PRIORITY.HIGH)
+                        queuedHigh--;
+                    flow.tenant.queued--;
+                    queued--;
+                    dropped++;
+                }
+                if (flow.tenant.running == 0 && flow.tenant.queued == 0)
+                    tenants.remove(flow.tenant.key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        run(cancelled);
+        return dropped;
+    }
+
+    /**
+     * Take the commands that waited past the queue deadline off the queue and run their expired handlers on the calling thread. A worker also expires such
+     * a command when it takes it, but while every worker is busy on slow requests none is taken, so this is run periodically to reject them on time.
+     * HIGH priority commands and the commands without an expired handler are left alone.
+     *
+     * @return The number of commands expired.
+     */
+    public int expireOverdue() {
+        List<Runnable> overdue = new ArrayList<>();
+        lock.lock();
+        try {
+            if (maxQueueNanos == 0)
+                return 0;
+            long now = System.nanoTime();
+            for (Level level : levels) {
+                if (level.priority != HTTP_PRIORITY.HIGH)
+                    level.expire(now, overdue);
+            }
+            expired += overdue.size();
+        } finally {
+            lock.unlock();
+        }
+        run(overdue);
+        return overdue.size();
+    }
+
+    /**
+     * Run the expired handlers of commands taken off the queue. Must not hold the lock.
+     */
+    private static void run(List<Runnable> handlers) {
+        for (Runnable onExpired : handlers) {
+            try {
+                onExpired.run();
+            } catch (RuntimeException e) {
+                logger.error("Expired handler failed", e);
+            }
+        }
+    }
+
+    /**
+     * The worker loop. Take the next command, run it, repeat until shut down.
+     */
+    private void work() {
+        while (true) {
+            Dispatch dispatch;
+            lock.lock();
+            try {
+                while (true) {
+                    if (shutdown || workers.size() > workerCount) {
+                        exit();
+                        return;
+                    }
+                    if ((dispatch = next()) != null)
+                        break;
+                    workAvailable.await();
+                }
+                running++;
+                dispatch.tenant.running++;
+            } catch (InterruptedException e) {
+                exit();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                dispatch.command.run();
+            } catch (RuntimeException e) {
+                logger.error("Data command failed", e);
+            } finally {
+                lock.lock();
+                try {
+                    running--;
+                    if (dispatch.ordered)
+                        orderedRunning.remove(dispatch.connectionId);
+                    if (--dispatch.tenant.running == 0 && dispatch.tenant.queued == 0)
+                        tenants.remove(dispatch.tenant.key);
+                    // Do not let an interrupt left by the command stop this worker.
+                    if (!shutdown)
+                        Thread.interrupted();
+                    // A command may have been held back by the reservation, its tenant limit or the ordered command of its connection.
+                    workAvailable.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the calling worker. The signal it may have taken is passed on to another worker. Must hold the lock.
+     */
+    private void exit() {
+        workers.remove(Thread.currentThread());
+        workAvailable.signal();
+    }
+
+    /**
+     * Pick the next command to run. Must hold the lock.
+     *
+     * @return The next command of the highest priority that is allowed to start, or null if none.
+     */
+    private Dispatch next() {
+        for (HTTP_PRIORITY priority : HTTP_PRIORITY.values()) {
+            Level level = levels[priority.ordinal()];
+            if (level.ring.isEmpty())
+                continue;
+            if (priority != HTTP_PRIORITY.HIGH && running >= workerCount - reservedWorkers)
+                return null;
+            Dispatch dispatch = level.next();
+            if (dispatch != null)
+                return dispatch;
+            // Every connection at this priority is held by its tenant limit or its ordered command, try the lower priorities.
+        }
+        return null;
+    }
+
+    /**
+     * A waiting command.
+     */
+    private static final class Queued {
+        private final Runnable command;
+        private final Runnable onExpired;
+        private final long queuedNanos;
+        private final boolean background;
+        private final boolean ordered;
+
+        Queued(Runnable command, Runnable onExpired, long queuedNanos, boolean background, boolean ordered) {
+            this.command = command;
+            this.onExpired = onExpired;
+            this.queuedNanos = queuedNanos;
+            this.background = background;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * A command picked to run, the tenant it is charged to, and whether its connection waits for it.
+     */
+    private static final class Dispatch {
+        private final Runnable command;
+        private final Tenant tenant;
+        private final long connectionId;
+        private final boolean ordered;
+
+        Dispatch(Runnable command, Tenant tenant, long connectionId, boolean ordered) {
+            this.command = command;
+            this.tenant = tenant;
+            this.connectionId = connectionId;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * A group of connections sharing the tenant limit.
+     */
+    private static final class Tenant {
+        private final Object key;
+        private int running = 0;
+        private int queued = 0;
+
+        Tenant(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The waiting commands of one connection at one priority.
+     */
+    private static final class Flow {
+        private final long connectionId;
+        private final Tenant tenant;
+        private final ArrayDeque<Queued> commands = new ArrayDeque<>();
+        private int weight = 1;
+        private int deficit = 0;
+
+        Flow(long connectionId, Tenant tenant) {
+            this.connectionId = connectionId;
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * The connections with waiting commands at one priority, served by deficit round robin. Every command costs one, and each turn a connection receives its
+     * weight as credit.
+     */
+    private final class Level {
+        private final HTTP_PRIORITY priority;
+        private final Map<Long, Flow> flows = new HashMap<>();
+        private final ArrayDeque<Flow> ring = new ArrayDeque<>();
+
+        Level(HTTP_PRIORITY priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Take the next command in round robin order, skipping the connections whose tenant is at its limit, and the connections whose next command is
+         * ordered while one of their ordered commands is running. Must hold the lock.
+         *
+         * @return The command and its tenant, or null if every connection is held.
+         */
+        Dispatch next() {
+            for (int i = 0, n = ring.size(); i < n; i++) {
+                Flow flow = ring.peekFirst();
+                if (flow.tenant.running >= maxWorkersPerTenant || (flow.commands.peekFirst().ordered && orderedRunning.contains(flow.connectionId))) {
+                    // Keep the credit, the connection gets its turn when it is no longer held.
+                    ring.addLast(ring.pollFirst());
+                    continue;
+                }
+                if (flow.deficit < 1)
+                    flow.deficit += flow.weight;
+
+                Queued next = flow.commands.pollFirst();
+                Runnable command = next.command;
+                if (priority != HTTP_PRIORITY.HIGH && maxQueueNanos > 0 && next.onExpired != null
+                        && System.nanoTime() - next.queuedNanos > maxQueueNanos) {
+                    // Too old, the client has likely given up. Report the overload rather than doing the work.
+                    command = next.onExpired;
+                    expired++;
+                }
+                if (next.ordered)
+                    orderedRunning.add(flow.connectionId);
+                flow.deficit--;
+                flow.tenant.queued--;
+                queued--;
+                if (next.background)
+                    queuedBackground--;
+                else if (priority == HTTP_PRIORITY.HIGH)
+                    queuedHigh--;
+                if (flow.commands.isEmpty()) {
+                    ring.pollFirst();
+                    flows.remove(flow.connectionId);
+                } else if (flow.deficit < 1) {
+                    ring.addLast(ring.pollFirst());
+                }
+                return new Dispatch(command, flow.tenant, flow.connectionId, next.ordered);
+            }
+            return null;
+        }
+
+        /**
+         * Remove the commands that waited past the queue deadline and have an expired handler. Must hold the lock.
+         *
+         * @param now
+         *            The current time from System.nanoTime()
+         * @param overdue
+         *            The expired handlers of the removed commands, to run outside the lock
+         */
+        void expire(long now, List<Runnable> overdue) {
+            Iterator<Flow> flowIterator = ring.iterator();
+            while (flowIterator.hasNext()) {
+                Flow flow = flowIterator.next();
+                Iterator<Queued> it = flow.commands.iterator();
+                while (it.hasNext()) {
+                    Queued next = it.next();
+                    if (next.onExpired == null || now - next.queuedNanos <= maxQueueNanos)
+                        continue;
+                    it.remove();
+                    overdue.add(next.onExpired);
+                    flow.tenant.queued--;
+                    queued--;
+                }
+                if (flow.commands.isEmpty()) {
+                    flowIterator.remove();
+                    flows.remove(flow.connectionId);
+                    if (flow.tenant.running == 0 && flow.tenant.queued == 0)
+                        tenants.remove(flow.tenant.key);
+                }
+            }
+        }
+    }
+}
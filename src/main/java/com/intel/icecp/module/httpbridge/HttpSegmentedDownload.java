@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSegmentMessage;
+
+/**
+ * Downloads the body of a data command in byte ranges, see {@link HttpDataMessage#parallelSegments}. The first response, a 206 to the range of the first
+ * segment, gives the length of the body. The other segments are fetched by parallelSegments workers, each over its own connection, and a failed segment
+ * is fetched again on its own. The workers run on the segment executor of the module, shared by all downloads, so they wait for a thread when it is
+ * busy. The calling thread publishes the segments.
+ * <p>
+ * At most twice parallelSegments segments are held at once: a thread waits before it starts a segment that far ahead of the next one to publish, so the
+ * heap used does not depend on the length of the body. The segments are requested with If-Range and the validator of the first response, so a body that
+ * changes during the download fails the command instead of mixing two versions; a body without a validator, a strong ETag or a Last-Modified, is
+ * refused, and so is a segment that does not start at the offset asked for. The segments that may be held are reserved from the memory budget
+ * before the download starts, and a body larger than the body limit is refused, or cut off at it, before its segments are requested.
+ *
+ */
+public class HttpSegmentedDownload {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    private final HttpCommandExecutor executor;
+    private final URL url;
+    private final HttpDataMessage message;
+    private final Channel<BytesMessage> outputChannel;
+    private final HttpChannelCache channelCache;
+    private final HttpMemoryBudget budget;
+    private final long maxBodyBytes;
+    private final ThreadPoolExecutor workerExecutor;
+
+    private final Object lock = new Object();
+    private final Map<Integer, byte[]> fetched = new HashMap<>();
+    private long totalBytes = 0;
+    private int count = 0;
+    private String validator = null;
+    private int nextFetch = 1;
+    private int published = 0;
+    private int workers = 0;
+    private Exception failure = null;
+
+    /**
+     * Create the download of a data command.
+     *
+     * @param executor
+     *            The executor of the command, it creates the connections of the segments.
+     * @param url
+     *            The URL of the command.
+     * @param message
+     *            The data command. Its response code and headers are updated when the download is complete.
+     * @param outputChannel
+     *            The output channel of the command.
+     * @param channelCache
+     *            The cache the output channel of indexed segments is acquired from.
+     * @param budget
+     *            The memory budget the segments held are reserved from.
+     * @param maxBodyBytes
+     *            The largest body, 0 for no limit.
+     * @param workerExecutor
+     *            Runs the workers that fetch the segments.
+     */
+    public HttpSegmentedDownload(HttpCommandExecutor executor, URL url, HttpDataMessage message, Channel<BytesMessage> outputChannel,
+            HttpChannelCache channelCache, HttpMemoryBudget budget, long maxBodyBytes, ThreadPoolExecutor workerExecutor) {
+        this.executor = executor;
+        this.url = url;
+        this.message = message;
+        this.outputChannel = outputChannel;
+        this.channelCache = channelCache;
+        this.budget = budget;
+        this.maxBodyBytes = maxBodyBytes;
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * @param message
+     *            A data command.
+     * @return The Range header of the first request of the command, or null if the command is not a segmented download.
+     */
+    public static String firstRange(HttpDataMessage message) {
+        return message.parallelSegments > 1 ? "bytes=0-" + (message.segmentBytes - 1) : null;
+    }
+
+    /**
+     * @param contentRange
+     *            A Content-Range header, eg. "bytes 0-1023/4096".
+     * @return The length of the body, or -1 if the header is missing or the length unknown.
+     */
+    static long parseLength(String contentRange) {
+        if (contentRange == null)
+            return -1;
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param contentRange
+     *            A Content-Range header, eg. "bytes 0-1023/4096".
+     * @return The offset of the first byte, or -1 if the header is missing or not a byte range.
+     */
+    static long parseStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return -1;
+        int dash = contentRange.indexOf('-');
+        try {
+            return dash < 0 ? -1 : Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Download the body and publish it.
+     *
+     * @param first
+     *            The connection of the first segment, answered with a 206.
+     * @param timing
+     *            The body read and publish times are recorded here.
+     * @throws HttpResponseException
+     *             A segment failed every attempt, the body changed, is too large or has no validator, or publishing failed.
+     * @throws HttpOverloadException
+     *             The memory budget had no room for the segments in time.
+     */
+    public void run(HttpURLConnection first, HttpRequestTiming timing) throws HttpResponseException, HttpOverloadException {
+        totalBytes = parseLength(first.getHeaderField("Content-Range"));
+        if (totalBytes < 0 || parseStart(first.getHeaderField("Content-Range")) != 0)
+            throw new HttpResponseException(String.format("Segmented download of [%s] has no body length, Content-Range [%s]", url,
+                    first.getHeaderField("Content-Range")));
+        if (maxBodyBytes > 0 && totalBytes > maxBodyBytes) {
+            if (message.bodyLimitPolicy != HttpDataMessage.BODY_LIMIT_POLICY.TRUNCATE)
+                throw new HttpResponseException(String.format("Response body of [%s] is larger than [%d] bytes", url, maxBodyBytes));
+            totalBytes = maxBodyBytes;
+            message.bodyTruncated = true;
+        }
+        count = (int) Math.max(1, (totalBytes + message.segmentBytes - 1) / message.segmentBytes);
+        String etag = first.getHeaderField("ETag");
+        validator = etag != null && !etag.startsWith("W/") ? etag : first.getHeaderField("Last-Modified");
+        // Without a validator If-Range cannot be sent, and the segments could come from two versions of the body.
+        if (validator == null && count > 1)
+            throw new HttpResponseException(String.format("Segmented download of [%s] has no strong ETag or Last-Modified", url));
+        // The first segment, and up to twice parallelSegments fetched ahead of the next one to publish.
+        long held = (long) Math.min(count, 2 * message.parallelSegments + 1) * message.segmentBytes;
+        try (HttpMemoryBudget.Reservation reservation = budget.reserve(Math.min(held, totalBytes))) {
+            download(first, timing);
+        }
+    }
+
+    /**
+     * Fetch and publish the segments, run holding the reservation of the download.
+     */
+    private void download(HttpURLConnection first, HttpRequestTiming timing) throws HttpResponseException {
+        long start = System.nanoTime();
+        long publishNanos = 0;
+        try (InputStream is = first.getInputStream()) {
+            fetched.put(0, read(is, length(0)));
+        } catch (IOException e) {
+            throw new HttpResponseException(e);
+        }
+        logger.debug("Downloading [{}] bytes of [{}] in [{}] segments", totalBytes, url, count);
+
+        List<Runnable> tasks = new ArrayList<>();
+        Channel<HttpSegmentMessage> segmentChannel = null;
+        try {
+            if (message.indexedSegments)
+                segmentChannel = channelCache.acquire(message.outputHttpChannelURI, HttpSegmentMessage.class, new Persistence());
+            for (int i = 0; i < Math.min(message.parallelSegments, count - 1); i++) {
+                Runnable task = this::fetchSegments;
+                synchronized (lock) {
+                    workers++;
+                }
+                try {
+                    workerExecutor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    synchronized (lock) {
+                        workers--;
+                    }
+                    throw new HttpResponseException(e);
+                }
+                tasks.add(task);
+            }
+            while (published < count) {
+                int index;
+                byte[] bytes;
+                synchronized (lock) {
+                    while (failure == null && ready() < 0) {
+                        lock.wait();
+                    }
+                    if (failure != null)
+                        throw new HttpResponseException(failure);
+                    index = ready();
+                    bytes = fetched.remove(index);
+                }
+                long publishStart = System.nanoTime();
+                if (segmentChannel != null)
+                    segmentChannel.publish(new HttpSegmentMessage(index, count, offset(index), totalBytes, bytes));
+                else
+                    outputChannel.publish(new BytesMessage(bytes));
+                publishNanos += System.nanoTime() - publishStart;
+                synchronized (lock) {
+                    published++;
+                    lock.notifyAll();
+                }
+            }
+        } catch (ChannelLifetimeException | ChannelIOException e) {
+            logger.error("Failed to publish the segments of [{}]", url, e);
+            throw new HttpResponseException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpResponseException(e);
+        } finally {
+            synchronized (lock) {
+                if (published < count && failure == null)
+                    failure = new IOException("Download abandoned");
+                fetched.clear();
+                lock.notifyAll();
+            }
+            join(tasks);
+            if (segmentChannel != null)
+                channelCache.release(message.outputHttpChannelURI, HttpSegmentMessage.class);
+            timing.publishNanos = publishNanos;
+            timing.bodyNanos = System.nanoTime() - start - publishNanos;
+        }
+
+        timing.responseBytes = totalBytes;
+        message.responseCode = HttpURLConnection.HTTP_OK;
+        message.responseMessage = "OK";
+        if (message.responseHeaders != null) {
+            message.responseHeaders.keySet().removeIf(name -> name.equalsIgnoreCase("Content-Range") || name.equalsIgnoreCase("Content-Length"));
+            message.responseHeaders.put("Content-Length", Collections.singletonList(String.valueOf(totalBytes)));
+        }
+    }
+
+    /**
+     * @return The next segment to publish, or -1 if it has not arrived. Called holding the lock.
+     */
+    private int ready() {
+        if (message.indexedSegments)
+            return fetched.isEmpty() ? -1 : fetched.keySet().iterator().next();
+        return fetched.containsKey(published) ? published : -1;
+    }
+
+    /**
+     * A worker: fetch the next segment until all are fetched or the download failed.
+     */
+    private void fetchSegments() {
+        try {
+            fetchNextSegments();
+        } finally {
+            synchronized (lock) {
+                workers--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void fetchNextSegments() {
+        while (true) {
+            int index;
+            synchronized (lock) {
+                try {
+                    while (failure == null && nextFetch < count && nextFetch - published >= 2 * message.parallelSegments) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (failure != null || nextFetch >= count)
+                    return;
+                index = nextFetch++;
+            }
+            try {
+                byte[] bytes = fetch(index);
+                synchronized (lock) {
+                    if (failure == null)
+                        fetched.put(index, bytes);
+                    lock.notifyAll();
+                }
+            } catch (IOException | HttpConnectionException | HttpResponseException e) {
+                synchronized (lock) {
+                    if (failure == null)
+                        failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fetch a segment, again on I/O errors and unexpected responses up to segmentRetries times.
+     */
+    private byte[] fetch(int index) throws IOException, HttpConnectionException, HttpResponseException {
+        long offset = offset(index);
+        int length = length(index);
+        IOException last = null;
+        for (int attempt = 0; attempt <= message.segmentRetries; attempt++) {
+            HttpURLConnection connection = executor.createConnection(url);
+            try {
+                executor.setConnectionProperties(connection, "GET", message.requestHeaders, message.useCache);
+                connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+                if (validator != null)
+                    connection.setRequestProperty("If-Range", validator);
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK)
+                    throw new HttpResponseException(String.format("The body of [%s] changed during the download", url));
+                if (code != HttpURLConnection.HTTP_PARTIAL)
+                    throw new IOException(String.format("Segment answered [%d]", code));
+                if (parseStart(connection.getHeaderField("Content-Range")) != offset)
+                    throw new IOException(String.format("Segment at [%d] answered Content-Range [%s]", offset, connection.getHeaderField("Content-Range")));
+                try (InputStream is = connection.getInputStream()) {
+                    return read(is, length);
+                }
+            } catch (IOException e) {
+                last = e;
+                connection.disconnect();
+                logger.info("Segment [{}] of [{}] failed, attempt [{}]: {}", index, url, attempt + 1, e.getMessage());
+            }
+        }
+        throw last;
+    }
+
+    private long offset(int index) {
+        return (long) index * message.segmentBytes;
+    }
+
+    private int length(int index) {
+        return (int) Math.min(message.segmentBytes, totalBytes - offset(index));
+    }
+
+    private static byte[] read(InputStream is, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = is.read(bytes, read, length - read);
+            if (n < 0)
+                throw new IOException(String.format("Segment ended after [%d] of [%d] bytes", read, length));
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Wait for the workers to end. The ones still queued behind other downloads are removed, they would only find the download over.
+     */
+    private void join(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            if (workerExecutor.remove(task)) {
+                synchronized (lock) {
+                    workers--;
+                }
+            }
+        }
+        synchronized (lock) {
+            try {
+                while (workers > 0) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSubscribeMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSubscribeMessage.STREAM_FORMAT;
+
+/**
+ * A {@link java.lang.Runnable} that holds the stream of a {@link HttpSubscribeMessage} open on its own thread and publishes what arrives to the output
+ * channel. The stream is first opened by {@link #open()} on the request worker, so the subscribe command returns whether it succeeded; the thread then reads
+ * it until the connection is torn down, reopening it when it drops.
+ * <p>
+ * The connections are created by a {@link HttpCommandExecutor}, with the proxy and headers of the data commands. The read timeout of the module does not
+ * apply, a stream may be quiet for long; the {@link HttpSubscribeMessage#idleTimeoutSeconds} of the command does.
+ *
+ */
+public class HttpStreamTask implements Runnable {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The longest line accepted in SSE and NDJSON streams.
+     */
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private static final int READ_SIZE = 1024 * 16;
+
+    private final HttpCommandExecutor executor;
+    private final HttpSetupMessage setupMessage;
+    private final HttpChannelCache channelCache;
+    private final HttpSubscribeMessage message;
+    private final Consumer<HttpStreamTask> onEnd;
+    private final CountDownLatch stopLatch = new CountDownLatch(1);
+    private final CountDownLatch endLatch = new CountDownLatch(1);
+
+    private Channel<BytesMessage> outputChannel;
+    private volatile HttpURLConnection connection;
+    private Thread thread;
+
+    private String lastEventId;
+    private long reconnectMillis;
+    private long events = 0;
+    private int lastResponseCode;
+    private HTTP_BRIDGE_STATUS status = HTTP_BRIDGE_STATUS.OK;
+
+    /**
+     * Constructor for setting up the task.
+     *
+     * @param executor
+     *            Creates the connections of the stream.
+     * @param setupMessage
+     *            The setup command of the connection.
+     * @param channelCache
+     *            The cache the output channel is acquired from.
+     * @param message
+     *            The subscribe command. It is not changed once the stream is open.
+     * @param onEnd
+     *            Called on the stream thread when the stream has ended, see {@link #getEndMessage()}.
+     */
+    public HttpStreamTask(HttpCommandExecutor executor, HttpSetupMessage setupMessage, HttpChannelCache channelCache, HttpSubscribeMessage message, Consumer<HttpStreamTask> onEnd) {
+        this.executor = executor;
+        this.setupMessage = setupMessage;
+        this.channelCache = channelCache;
+        this.message = message;
+        this.onEnd = onEnd;
+        this.lastEventId = message.lastEventId;
+        this.reconnectMillis = message.reconnectMillis;
+    }
+
+    /**
+     * Open the stream and the output channel. The status, response code and headers are set in the subscribe command.
+     *
+     * @return True if the stream is open, then {@link #start()} must be called.
+     */
+    public boolean open() {
+        try {
+            outputChannel = channelCache.acquire(message.outputHttpChannelURI, BytesMessage.class, new Persistence());
+        } catch (ChannelLifetimeException e) {
+            logger.error("Failed to open output channel [{}]", message.outputHttpChannelURI, e);
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+            return false;
+        }
+        try {
+            connect();
+            message.responseCode = connection.getResponseCode();
+            lastResponseCode = message.responseCode;
+            message.responseMessage = connection.getResponseMessage();
+            message.responseHeaders = copyHeaders(connection.getHeaderFields());
+            message.status = HTTP_BRIDGE_STATUS.OK;
+            if (message.responseCode >= 300 || message.responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                message.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+                close();
+                return false;
+            }
+            return true;
+        } catch (HttpConnectionException e) {
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+        } catch (IOException e) {
+            logger.error("Failed to open stream [{}]", setupMessage.connectionUrl, e);
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * Start reading the open stream on a new thread.
+     *
+     * @param name
+     *            The name of the thread
+     */
+    public synchronized void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ask the stream to end. The stream thread ends the stream and calls the onEnd callback.
+     */
+    public void stop() {
+        stopLatch.countDown();
+        HttpURLConnection current = connection;
+        if (current != null)
+            current.disconnect();
+    }
+
+    /**
+     * Wait for the stream thread to end.
+     *
+     * @param timeout
+     *            The maximum time to wait
+     * @param unit
+     *            The unit of timeout
+     * @return True if the stream ended.
+     * @throws InterruptedException
+     *             Interrupted while waiting
+     */
+    public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return endLatch.await(timeout, unit);
+    }
+
+    /**
+     * @return True if {@link #stop()} was called.
+     */
+    public boolean isStopped() {
+        return stopLatch.getCount() == 0;
+    }
+
+    /**
+     * @return The message returned when the stream has ended: the ended flag, the final status, the number of events and the last event id.
+     */
+    public HttpSubscribeMessage getEndMessage() {
+        HttpSubscribeMessage end = new HttpSubscribeMessage(message.connectionId);
+        end.cmdReturnChannelURI = message.cmdReturnChannelURI;
+        end.outputHttpChannelURI = message.outputHttpChannelURI;
+        end.httpRequest = message.httpRequest;
+        end.format = message.format;
+        end.lastEventId = lastEventId;
+        end.events = events;
+        end.responseCode = lastResponseCode;
+        end.status = status;
+        end.ended = true;
+        return end;
+    }
+
+    /**
+     * Read the stream until stopped, reopening it when it drops.
+     */
+    @Override
+    public void run() {
+        int reconnects = 0;
+        try {
+            while (!isStopped()) {
+                try {
+                    if (connection == null) {
+                        connect();
+                        lastResponseCode = connection.getResponseCode();
+                        if (lastResponseCode == HttpURLConnection.HTTP_NO_CONTENT || lastResponseCode >= 300) {
+                            // The server asks the client to stop (204), or refuses.
+                            status = lastResponseCode == HttpURLConnection.HTTP_NO_CONTENT ? HTTP_BRIDGE_STATUS.OK : HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+                            break;
+                        }
+                    }
+                    long eventsBefore = events;
+                    try (InputStream is = connection.getInputStream()) {
+                        read(is);
+                    }
+                    if (events > eventsBefore)
+                        reconnects = 0;
+                } catch (HttpConnectionException | IOException | ChannelIOException e) {
+                    if (isStopped())
+                        break;
+                    logger.info("Stream [{}] dropped: {}", setupMessage.connectionUrl, e.getMessage());
+                    status = e instanceof ChannelIOException ? HTTP_BRIDGE_STATUS.ERROR_ON_IO : HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+                } finally {
+                    disconnect();
+                }
+                if (isStopped())
+                    break;
+                if (message.maxReconnects >= 0 && reconnects >= message.maxReconnects) {
+                    if (status == HTTP_BRIDGE_STATUS.OK)
+                        status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+                    break;
+                }
+                reconnects++;
+                if (stopLatch.await(reconnectMillis, TimeUnit.MILLISECONDS))
+                    break;
+            }
+            if (isStopped())
+                status = HTTP_BRIDGE_STATUS.OK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+            endLatch.countDown();
+            onEnd.accept(this);
+        }
+    }
+
+    private void connect() throws HttpConnectionException, IOException {
+        HttpURLConnection created = executor.createConnection();
+        Map<String, String> headers = message.requestHeaders != null ? new HashMap<>(message.requestHeaders) : new HashMap<>();
+        headers.put("Cache-Control", "no-cache");
+        if (message.format == STREAM_FORMAT.SSE) {
+            headers.put("Accept", "text/event-stream");
+            if (lastEventId != null)
+                headers.put("Last-Event-ID", lastEventId);
+        } else if (message.format == STREAM_FORMAT.NDJSON) {
+            headers.putIfAbsent("Accept", "application/x-ndjson");
+        }
+        executor.setConnectionProperties(created, message.httpRequest, headers, false);
+        created.setReadTimeout((int) TimeUnit.SECONDS.toMillis(message.idleTimeoutSeconds));
+        connection = created;
+        if (isStopped())
+            throw new IOException("Stream stopped");
+        created.connect();
+    }
+
+    /**
+     * Read the stream until it ends, publishing each event, line or block.
+     */
+    void read(InputStream is) throws IOException, ChannelIOException {
+        if (message.format == STREAM_FORMAT.CHUNKED) {
+            byte[] buffer = new byte[READ_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                if (n > 0)
+                    emit(Arrays.copyOf(buffer, n));
+            }
+            return;
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        StringBuilder data = new StringBuilder();
+        String eventId = lastEventId;
+        while (readLine(is, line)) {
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            if (message.format == STREAM_FORMAT.NDJSON) {
+                if (!text.trim().isEmpty())
+                    emit(line.toByteArray());
+                continue;
+            }
+            if (text.isEmpty()) {
+                // Dispatch the event.
+                lastEventId = eventId;
+                if (data.length() > 0) {
+                    data.setLength(data.length() - 1);
+                    emit(data.toString().getBytes(StandardCharsets.UTF_8));
+                    data.setLength(0);
+                }
+                continue;
+            }
+            if (text.startsWith(":"))
+                continue;
+            int colon = text.indexOf(':');
+            String field = colon < 0 ? text : text.substring(0, colon);
+            String value = colon < 0 ? "" : text.substring(colon + 1);
+            if (value.startsWith(" "))
+                value = value.substring(1);
+            if (field.equals("data")) {
+                data.append(value).append('\n');
+            } else if (field.equals("id")) {
+                if (value.indexOf('\0') < 0)
+                    eventId = value;
+            } else if (field.equals("retry")) {
+                try {
+                    reconnectMillis = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    // Ignored, as the SSE spec requires.
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a line, without its end of line (LF or CRLF).
+     *
+     * @return False at the end of the stream, a partial last line is dropped.
+     */
+    private static boolean readLine(InputStream is, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = is.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+            if (b != '\r')
+                line.write(b);
+            if (line.size() > MAX_LINE_BYTES)
+                throw new IOException("Stream line longer than " + MAX_LINE_BYTES + " bytes");
+        }
+        return false;
+    }
+
+    private void emit(byte[] bytes) throws ChannelIOException {
+        publish(bytes);
+        events++;
+    }
+
+    /**
+     * Publish an event, line or block to the output channel.
+     *
+     * @param bytes
+     *            The message data
+     * @throws ChannelIOException
+     *             The message could not be published
+     */
+    protected void publish(byte[] bytes) throws ChannelIOException {
+        outputChannel.publish(new BytesMessage(bytes));
+    }
+
+    private void disconnect() {
+        HttpURLConnection current = connection;
+        connection = null;
+        if (current != null)
+            current.disconnect();
+    }
+
+    private void close() {
+        disconnect();
+        if (outputChannel != null) {
+            channelCache.release(message.outputHttpChannelURI, BytesMessage.class);
+            outputChannel = null;
+        }
+    }
+
+    private static Map<String, List<String>> copyHeaders(Map<String, List<String>> headers) {
+        Map<String, List<String>> copy = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null)
+                copy.put(header.getKey(), header.getValue());
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A minimal WebSocket client (RFC 6455) over a plain socket, since the JDK of the module has none. It does the opening handshake on the connection URL
+ * (http becomes ws, https becomes wss), through the http proxy of the connection if any, then reads and writes messages.
+ * <p>
+ * {@link #read()} is meant for one reader thread: it reassembles fragmented messages, answers pings and the close handshake. The send methods may be called
+ * from any thread. Extensions (eg. compression) are not negotiated. A wss server must present a certificate for the host name of the URL, as https does.
+ *
+ */
+public class HttpWebSocket implements Closeable {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_HEADER_LINE = 8192;
+
+    /**
+     * How long {@link #close(int, String)} waits for a send in progress before it gives up on the handshake and closes the socket.
+     */
+    private static final long CLOSE_SEND_TIMEOUT_MILLIS = 2000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int maxMessageBytes;
+    private final SSLSocketFactory sslSocketFactory;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+
+    private String responseMessage;
+    private final Map<String, List<String>> responseHeaders = new HashMap<>();
+    private volatile boolean closeSent = false;
+    private volatile boolean closeReceived = false;
+    private volatile int closeCode = CLOSE_ABNORMAL;
+    private volatile String closeReason = null;
+    private volatile long lastPongNanos = System.nanoTime();
+
+    /**
+     * Create a client.
+     *
+     * @param maxMessageBytes
+     *            The largest message accepted from the server. A larger one closes the socket with {@link #CLOSE_TOO_BIG}.
+     */
+    public HttpWebSocket(int maxMessageBytes) {
+        this(maxMessageBytes, (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    /**
+     * Create a client.
+     *
+     * @param maxMessageBytes
+     *            The largest message accepted from the server. A larger one closes the socket with {@link #CLOSE_TOO_BIG}.
+     * @param sslSocketFactory
+     *            The factory of the wss sockets, eg. with its own trust store.
+     */
+    public HttpWebSocket(int maxMessageBytes, SSLSocketFactory sslSocketFactory) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * Connect and do the opening handshake.
+     *
+     * @param url
+     *            The http or https URL of the WebSocket.
+     * @param proxyHost
+     *            The http proxy, tunneled with CONNECT, or null.
+     * @param proxyPort
+     *            The port of the proxy
+     * @param headers
+     *            More headers of the handshake request, eg. authorization. May be null.
+     * @param subprotocol
+     *            The subprotocol asked for, or null.
+     * @param connectTimeoutMillis
+     *            The connect and handshake timeout, 0 for none.
+     * @return The response code of the handshake. The socket is open only if it is 101, otherwise it is closed.
+     * @throws IOException
+     *             The connection or the handshake failed
+     */
+    public int open(URL url, String proxyHost, int proxyPort, Map<String, String> headers, String subprotocol, int connectTimeoutMillis) throws IOException {
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol()) || "wss".equalsIgnoreCase(url.getProtocol());
+        int port = url.getPort() != -1 ? url.getPort() : secure ? 443 : 80;
+        String host = url.getHost();
+        socket = new Socket();
+        try {
+            if (proxyHost != null && !proxyHost.isEmpty()) {
+                socket.connect(new InetSocketAddress(proxyHost, proxyPort), connectTimeoutMillis);
+                socket.setSoTimeout(connectTimeoutMillis);
+                tunnel(host, port);
+            } else {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                socket.setSoTimeout(connectTimeoutMillis);
+            }
+            if (secure)
+                socket = secure(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            String key = base64(randomBytes(16));
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(host).append(url.getPort() != -1 ? ":" + port : "").append("\r\n");
+            request.append("Upgrade: websocket\r\nConnection: Upgrade\r\n");
+            request.append("Sec-WebSocket-Key: ").append(key).append("\r\nSec-WebSocket-Version: 13\r\n");
+            if (subprotocol != null)
+                request.append("Sec-WebSocket-Protocol: ").append(subprotocol).append("\r\n");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey() != null)
+                        request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            request.append("\r\n");
+            out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            int code = readResponseHead();
+            if (code != 101) {
+                socket.close();
+                return code;
+            }
+            if (!"websocket".equalsIgnoreCase(getResponseHeader("Upgrade")) || !accept(key).equals(getResponseHeader("Sec-WebSocket-Accept")))
+                throw new IOException("Invalid WebSocket handshake response");
+            socket.setSoTimeout(0);
+            return code;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the next data message. Pings are answered, and a close from the server is echoed.
+     *
+     * @return The message, or null when the WebSocket was closed by the server or after {@link #close(int, String)}.
+     * @throws IOException
+     *             The socket failed, or the server broke the protocol (the socket is then closed with {@link #CLOSE_PROTOCOL_ERROR} or
+     *             {@link #CLOSE_TOO_BIG}).
+     */
+    public Frame read() throws IOException {
+        ByteArrayOutputStream fragments = null;
+        int messageOpcode = -1;
+        while (true) {
+            int b0 = in.read();
+            if (b0 == -1) {
+                if (closeSent)
+                    return null;
+                throw new EOFException("WebSocket closed without a close frame");
+            }
+            int b1 = in.readUnsignedByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) != 0)
+                throw fail(CLOSE_PROTOCOL_ERROR, "Reserved bits or masked frame from server");
+            long length = b1 & 0x7F;
+            if (length == 126)
+                length = in.readUnsignedShort();
+            else if (length == 127)
+                length = in.readLong();
+
+            if (opcode >= OPCODE_CLOSE) {
+                if (!fin || length > 125)
+                    throw fail(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                if (opcode == OPCODE_PING) {
+                    sendFrame(OPCODE_PONG, payload);
+                } else if (opcode == OPCODE_PONG) {
+                    lastPongNanos = System.nanoTime();
+                } else if (opcode == OPCODE_CLOSE) {
+                    // A close payload starts with a 2 byte status code (RFC 6455 5.5.1), a single byte cannot be one.
+                    if (payload.length == 1)
+                        throw fail(CLOSE_PROTOCOL_ERROR, "Close frame with a 1 byte payload");
+                    closeReceived = true;
+                    closeCode = payload.length >= 2 ? ByteBuffer.wrap(payload).getShort() & 0xFFFF : CLOSE_NO_STATUS;
+                    closeReason = payload.length > 2 ? new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8) : null;
+                    // 1005 only reports that there was no status, it must not be sent: a close without one is answered without one.
+                    if (payload.length >= 2)
+                        close(closeCode, null);
+                    else
+                        sendClose(new byte[0]);
+                    socket.close();
+                    return null;
+                } else {
+                    throw fail(CLOSE_PROTOCOL_ERROR, "Unknown control opcode " + opcode);
+                }
+                continue;
+            }
+
+            boolean expected = opcode == OPCODE_CONTINUATION ? fragments != null : (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) && fragments == null;
+            if (!expected)
+                throw fail(CLOSE_PROTOCOL_ERROR, "Unexpected opcode " + opcode);
+            long total = length + (fragments != null ? fragments.size() : 0);
+            if (length < 0 || total > maxMessageBytes)
+                throw fail(CLOSE_TOO_BIG, "Message larger than " + maxMessageBytes + " bytes");
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if (opcode != OPCODE_CONTINUATION)
+                messageOpcode = opcode;
+            if (fin && fragments == null)
+                return new Frame(messageOpcode == OPCODE_TEXT, payload);
+            if (fragments == null)
+                fragments = new ByteArrayOutputStream();
+            fragments.write(payload);
+            if (fin)
+                return new Frame(messageOpcode == OPCODE_TEXT, fragments.toByteArray());
+        }
+    }
+
+    /**
+     * Send a data message in one frame.
+     *
+     * @param text
+     *            True for a text message, the payload is then UTF-8; false for binary.
+     * @param payload
+     *            The message
+     * @throws IOException
+     *             The socket failed or is closed
+     */
+    public void send(boolean text, byte[] payload) throws IOException {
+        if (closeSent)
+            throw new IOException("WebSocket is closed");
+        sendFrame(text ? OPCODE_TEXT : OPCODE_BINARY, payload);
+    }
+
+    /**
+     * Send a ping, the server answers with a pong (see {@link #getLastPongNanos()}).
+     *
+     * @throws IOException
+     *             The socket failed
+     */
+    public void ping() throws IOException {
+        sendFrame(OPCODE_PING, new byte[0]);
+    }
+
+    /**
+     * Start the closing handshake, if not started yet. {@link #read()} returns null when the server answers. If a send is stuck on a server that does not
+     * read, the socket is closed instead after a short wait, so this does not block for long.
+     *
+     * @param code
+     *            The close code
+     * @param reason
+     *            The reason, or null
+     * @throws IOException
+     *             The socket failed, or the close frame could not be sent in time and the socket was closed
+     */
+    public void close(int code, String reason) throws IOException {
+        byte[] reasonBytes = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(reasonBytes.length, 123));
+        payload.putShort((short) code).put(reasonBytes, 0, payload.remaining());
+        sendClose(payload.array());
+    }
+
+    /**
+     * Close the socket without the closing handshake.
+     */
+    @Override
+    public void close() throws IOException {
+        if (socket != null)
+            socket.close();
+    }
+
+    /**
+     * @param millis
+     *            The read timeout of the socket, 0 for none.
+     * @throws IOException
+     *             The socket failed
+     */
+    public void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    public Map<String, List<String>> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    /**
+     * @return The subprotocol chosen by the server, or null.
+     */
+    public String getSubprotocol() {
+        return getResponseHeader("Sec-WebSocket-Protocol");
+    }
+
+    /**
+     * @return The close code of the server, {@link #CLOSE_ABNORMAL} if it did not send one.
+     */
+    public int getCloseCode() {
+        return closeCode;
+    }
+
+    public String getCloseReason() {
+        return closeReason;
+    }
+
+    public boolean isCloseReceived() {
+        return closeReceived;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} of the last pong, or of the handshake.
+     */
+    public long getLastPongNanos() {
+        return lastPongNanos;
+    }
+
+    private void sendClose(byte[] payload) throws IOException {
+        boolean locked;
+        try {
+            locked = writeLock.tryLock(CLOSE_SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            // A send holds the lock, blocked on the socket: closing the socket unblocks it.
+            closeSent = true;
+            socket.close();
+            throw new IOException("WebSocket send blocked, socket closed");
+        }
+        try {
+            if (closeSent)
+                return;
+            sendFrame(OPCODE_CLOSE, payload);
+            closeSent = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void sendFrame(int opcode, byte[] payload) throws IOException {
+        byte[] mask = randomBytes(4);
+        writeLock.lock();
+        try {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(0x80 | payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                out.write(0x80 | 126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            } else {
+                out.write(0x80 | 127);
+                out.write(ByteBuffer.allocate(8).putLong(payload.length).array());
+            }
+            out.write(mask);
+            byte[] masked = new byte[payload.length];
+            for (int i = 0; i < payload.length; i++) {
+                masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+            }
+            out.write(masked);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Close with an error code, and return the exception to throw.
+     */
+    private IOException fail(int code, String reason) {
+        closeCode = code;
+        closeReason = reason;
+        try {
+            close(code, reason);
+            socket.close();
+        } catch (IOException e) {
+            // Already failing.
+        }
+        return new IOException(reason);
+    }
+
+    /**
+     * Layer TLS over the connected socket, and check that the certificate of the server is for the host like HttpsURLConnection does. Without the check
+     * any server with a certificate trusted by the JVM could answer for the host.
+     */
+    private SSLSocket secure(String host, int port) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+        socket = sslSocket;
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    /**
+     * Open a tunnel to the host through the http proxy.
+     */
+    private void tunnel(String host, int port) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream os = socket.getOutputStream();
+        os.write(String.format("CONNECT %s:%d HTTP/1.1\r\nHost: %s:%d\r\n\r\n", host, port, host, port).getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+        int code = readResponseHead();
+        if (code != 200)
+            throw new IOException(String.format("Proxy refused the tunnel [%d %s]", code, responseMessage));
+        responseHeaders.clear();
+    }
+
+    /**
+     * Read the status line and the headers of a response.
+     *
+     * @return The response code
+     */
+    private int readResponseHead() throws IOException {
+        String status = readLine();
+        String[] parts = status.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("Invalid response [" + status + "]");
+        responseMessage = parts.length > 2 ? parts[2] : "";
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                responseHeaders.computeIfAbsent(line.substring(0, colon).trim(), k -> new ArrayList<>()).add(line.substring(colon + 1).trim());
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid response [" + status + "]");
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Connection closed during the handshake");
+            if (b != '\r')
+                line.append((char) b);
+            if (line.length() > MAX_HEADER_LINE)
+                throw new IOException("Handshake line too long");
+        }
+        return line.toString();
+    }
+
+    private String getResponseHeader(String name) {
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        }
+        return null;
+    }
+
+    /**
+     * @return The Sec-WebSocket-Accept the server must answer to a key.
+     */
+    static String accept(String key) {
+        try {
+            return base64(MessageDigest.getInstance("SHA-1").digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String base64(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] randomBytes(int count) {
+        byte[] bytes = new byte[count];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * A data message, its fragments reassembled.
+     */
+    public static final class Frame {
+        private final boolean text;
+        private final byte[] payload;
+
+        Frame(boolean text, byte[] payload) {
+            this.text = text;
+            this.payload = payload;
+        }
+
+        public boolean isText() {
+            return text;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Node;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpWebSocketMessage;
+
+/**
+ * A {@link java.lang.Runnable} that bridges the WebSocket of a {@link HttpWebSocketMessage} to its channels. The WebSocket is opened by {@link #open()} on
+ * the request worker, so the command returns whether the handshake succeeded; then a reader thread publishes the messages of the server and a writer
+ * thread sends the messages of the input channel and the pings.
+ * <p>
+ * Both directions apply backpressure. The reader publishes each message before it reads the next, so a slow output channel slows the server down through
+ * the socket. The input channel is subscribed to with a channel of its own, not one from the channel cache, and its delivery thread waits for room in the
+ * send queue.
+ *
+ */
+public class HttpWebSocketTask implements Runnable {
+    /**
+     * The logger for debug messages.
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * How long the server has to answer the close of a torn down connection.
+     */
+    private static final int CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Node node;
+    private final HttpSetupMessage setupMessage;
+    private final HttpChannelCache channelCache;
+    private final HttpWebSocketMessage message;
+    private final HttpBridgeSettings settings;
+    private final Consumer<HttpWebSocketTask> onEnd;
+    private final HttpWebSocket webSocket;
+    private final BlockingQueue<byte[]> sendQueue;
+    private final CountDownLatch stopLatch = new CountDownLatch(1);
+    private final CountDownLatch endLatch = new CountDownLatch(1);
+
+    private Channel<BytesMessage> outputChannel = null;
+    private Channel<BytesMessage> inputChannel = null;
+    private Thread writer = null;
+    private volatile HTTP_BRIDGE_STATUS status = HTTP_BRIDGE_STATUS.OK;
+    private volatile long received = 0;
+    private volatile long sent = 0;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Constructor for setting up the task.
+     *
+     * @param node
+     *            The node the input channel is opened on.
+     * @param setupMessage
+     *            The setup command of the connection: the URL and the proxy.
+     * @param channelCache
+     *            The cache the output channel is acquired from.
+     * @param message
+     *            The WebSocket command. It is not changed once the WebSocket is open.
+     * @param settings
+     *            The connect timeout of the module.
+     * @param onEnd
+     *            Called on the reader thread when the session has ended, see {@link #getEndMessage()}.
+     */
+    public HttpWebSocketTask(Node node, HttpSetupMessage setupMessage, HttpChannelCache channelCache, HttpWebSocketMessage message,
+            HttpBridgeSettings settings, Consumer<HttpWebSocketTask> onEnd) {
+        this.node = node;
+        this.setupMessage = setupMessage;
+        this.channelCache = channelCache;
+        this.message = message;
+        this.settings = settings;
+        this.onEnd = onEnd;
+        this.webSocket = new HttpWebSocket(message.maxMessageBytes);
+        this.sendQueue = new ArrayBlockingQueue<>(message.sendQueueSize);
+    }
+
+    /**
+     * Do the handshake and open the channels. The status, response code and headers and the subprotocol are set in the WebSocket command.
+     *
+     * @return True if the WebSocket is open, then {@link #start(String)} must be called.
+     */
+    public boolean open() {
+        try {
+            outputChannel = channelCache.acquire(message.outputHttpChannelURI, BytesMessage.class, new Persistence());
+            message.responseCode = webSocket.open(setupMessage.connectionUrl, setupMessage.proxyHost, setupMessage.proxyPort, message.requestHeaders,
+                    message.subprotocol, settings.getConnectTimeoutMillis());
+            message.responseMessage = webSocket.getResponseMessage();
+            message.responseHeaders = webSocket.getResponseHeaders();
+            if (message.responseCode != 101) {
+                message.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+                close();
+                return false;
+            }
+            message.subprotocol = webSocket.getSubprotocol();
+            if (message.inputHttpChannelURI != null) {
+                inputChannel = node.openChannel(message.inputHttpChannelURI, BytesMessage.class, new Persistence());
+                inputChannel.subscribe(this::enqueue);
+            }
+            message.status = HTTP_BRIDGE_STATUS.OK;
+            return true;
+        } catch (ChannelLifetimeException | ChannelIOException e) {
+            logger.error("Failed to open the channels of the WebSocket", e);
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+        } catch (IOException e) {
+            logger.error("Failed to open WebSocket [{}]", setupMessage.connectionUrl, e);
+            message.status = HTTP_BRIDGE_STATUS.ERROR_ON_CONNECT;
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * Start the reader and writer threads of the open WebSocket.
+     *
+     * @param name
+     *            The name of the reader thread, the writer thread adds "_send".
+     */
+    public synchronized void start(String name) {
+        writer = new Thread(this::write, name + "_send");
+        writer.setDaemon(true);
+        Thread reader = new Thread(this, name);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Close the WebSocket. The session ends when the server answers, or after a timeout.
+     */
+    public void stop() {
+        stopLatch.countDown();
+        try {
+            webSocket.close(HttpWebSocket.CLOSE_GOING_AWAY, "Connection torn down");
+            webSocket.setReadTimeout(CLOSE_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Wait for the session to end.
+     *
+     * @param timeout
+     *            The maximum time to wait
+     * @param unit
+     *            The unit of timeout
+     * @return True if the session ended.
+     * @throws InterruptedException
+     *             Interrupted while waiting
+     */
+    public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return endLatch.await(timeout, unit);
+    }
+
+    /**
+     * @return True if {@link #stop()} was called.
+     */
+    public boolean isStopped() {
+        return stopLatch.getCount() == 0;
+    }
+
+    /**
+     * @return The message returned when the session has ended: the ended flag, the final status, the close code and reason and the message counts.
+     */
+    public HttpWebSocketMessage getEndMessage() {
+        HttpWebSocketMessage end = new HttpWebSocketMessage(message.connectionId);
+        end.cmdReturnChannelURI = message.cmdReturnChannelURI;
+        end.inputHttpChannelURI = message.inputHttpChannelURI;
+        end.outputHttpChannelURI = message.outputHttpChannelURI;
+        end.subprotocol = message.subprotocol;
+        end.responseCode = message.responseCode;
+        end.closeCode = webSocket.getCloseCode();
+        end.closeReason = webSocket.getCloseReason();
+        end.messagesReceived = received;
+        end.messagesSent = sent;
+        end.messagesDropped = dropped.sum();
+        end.status = status;
+        end.ended = true;
+        return end;
+    }
+
+    /**
+     * The reader: publish the messages of the server until the WebSocket closes.
+     */
+    @Override
+    public void run() {
+        try {
+            HttpWebSocket.Frame frame;
+            while ((frame = webSocket.read()) != null) {
+                outputChannel.publish(new BytesMessage(frame.getPayload()));
+                received++;
+            }
+        } catch (IOException e) {
+            if (!isStopped()) {
+                logger.info("WebSocket [{}] failed: {}", setupMessage.connectionUrl, e.getMessage());
+                status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+            }
+        } catch (ChannelIOException e) {
+            logger.error("Failed to publish on the output channel, closing WebSocket [{}]", setupMessage.connectionUrl, e);
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+        } finally {
+            stopLatch.countDown();
+            writer.interrupt();
+            try {
+                writer.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+            endLatch.countDown();
+            onEnd.accept(this);
+        }
+    }
+
+    /**
+     * The writer: send the queued input messages, and a ping every interval. A ping not answered within two intervals ends the session.
+     */
+    private void write() {
+        long pingNanos = TimeUnit.SECONDS.toNanos(message.pingIntervalSeconds);
+        long nextPing = System.nanoTime() + pingNanos;
+        try {
+            while (!isStopped()) {
+                byte[] payload = sendQueue.poll(pingNanos > 0 ? Math.max(0, nextPing - System.nanoTime()) : Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                if (payload != null) {
+                    webSocket.send(message.textFrames, payload);
+                    sent++;
+                }
+                long now = System.nanoTime();
+                if (pingNanos > 0 && now - nextPing >= 0) {
+                    if (now - webSocket.getLastPongNanos() > 2 * pingNanos) {
+                        logger.info("WebSocket [{}] did not answer the pings, closing", setupMessage.connectionUrl);
+                        status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+                        abort();
+                        return;
+                    }
+                    webSocket.ping();
+                    nextPing = now + pingNanos;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The reader has ended.
+        } catch (IOException e) {
+            if (!isStopped()) {
+                logger.info("WebSocket [{}] send failed: {}", setupMessage.connectionUrl, e.getMessage());
+                status = HTTP_BRIDGE_STATUS.ERROR_ON_IO;
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Queue a message of the input channel, waiting for room up to the send timeout.
+     */
+    private void enqueue(BytesMessage input) {
+        if (isStopped())
+            return;
+        try {
+            if (!sendQueue.offer(input.getBytes(), message.sendTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.debug("WebSocket [{}] send queue full, message dropped", setupMessage.connectionUrl);
+                dropped.increment();
+            }
+        } catch (InterruptedException e) {
+            dropped.increment();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void abort() {
+        try {
+            webSocket.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close WebSocket", e);
+        }
+    }
+
+    private void close() {
+        abort();
+        if (inputChannel != null) {
+            try {
+                inputChannel.close();
+            } catch (ChannelLifetimeException e) {
+                logger.error("Failed to close the input channel of the WebSocket", e);
+            }
+            inputChannel = null;
+        }
+        if (outputChannel != null) {
+            channelCache.release(message.outputHttpChannelURI, BytesMessage.class);
+            outputChannel = null;
+        }
+    }
+}
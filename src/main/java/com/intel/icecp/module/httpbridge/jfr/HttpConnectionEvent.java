@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.module.httpbridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A connection set up or torn down by the module. The event duration is the time the module took for the command.
+ *
+ */
+@Name("com.intel.icecp.httpbridge.Connection")
+@Label("HTTP Bridge Connection")
+@Category({ "ICECP", "HTTP Bridge" })
+@Description("A connection set up or torn down")
+@StackTrace(false)
+class HttpConnectionEvent extends jdk.jfr.Event {
+    @Label("Connection Id")
+    long connectionId;
+
+    @Label("Action")
+    @Description("setup or teardown")
+    String action;
+
+    @Label("Reason")
+    @Description("Why the connection was torn down: command, lease or operator")
+    String reason;
+
+    @Label("Host")
+    String host;
+
+    @Label("Status")
+    String status;
+}
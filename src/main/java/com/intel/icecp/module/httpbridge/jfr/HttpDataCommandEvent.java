@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.module.httpbridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * A data command run by the module, with the time spent in each phase. The event duration is the whole command.
+ *
+ */
+@Name("com.intel.icecp.httpbridge.DataCommand")
+@Label("HTTP Bridge Data Command")
+@Category({ "ICECP", "HTTP Bridge" })
+@Description("A data command bridged to an http request")
+@StackTrace(false)
+@Threshold("0 ms")
+class HttpDataCommandEvent extends jdk.jfr.Event {
+    @Label("Connection Id")
+    long connectionId;
+
+    @Label("Method")
+    String method;
+
+    @Label("Host")
+    String host;
+
+    @Label("Status")
+    String status;
+
+    @Label("Response Code")
+    int responseCode;
+
+    @Label("Request Bytes")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+
+    @Label("DNS")
+    @Timespan(Timespan.NANOSECONDS)
+    long dns;
+
+    @Label("Connect")
+    @Description("TCP connect and TLS handshake")
+    @Timespan(Timespan.NANOSECONDS)
+    long connect;
+
+    @Label("Input Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long inputWait;
+
+    @Label("Request Write")
+    @Timespan(Timespan.NANOSECONDS)
+    long requestWrite;
+
+    @Label("Time To First Byte")
+    @Timespan(Timespan.NANOSECONDS)
+    long firstByte;
+
+    @Label("Body")
+    @Timespan(Timespan.NANOSECONDS)
+    long body;
+
+    @Label("Publish")
+    @Timespan(Timespan.NANOSECONDS)
+    long publish;
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.module.httpbridge.jfr;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * Emits the JDK Flight Recorder events of the module: a {@code com.intel.icecp.httpbridge.DataCommand} event per data command, a
+ * {@code com.intel.icecp.httpbridge.Connection} event per setup and teardown, and a {@code com.intel.icecp.httpbridge.Rejection} event per command
+ * rejected on overload.
+ * <p>
+ * The events are only built when a recording has them enabled, so the cost is a flag check otherwise. On a JVM without JFR (Java 8 before update 262) the
+ * event classes are never loaded and every method does nothing.
+ * <p>
+ * The data command threshold can be set in the recording settings ({@code com.intel.icecp.httpbridge.DataCommand#threshold}), or for the module with the
+ * jfrThresholdMillis configuration value.
+ *
+ */
+public final class HttpFlightRecorder {
+    private static final boolean AVAILABLE = isAvailable();
+
+    /**
+     * Data commands shorter than this are not recorded.
+     */
+    private static volatile long dataCommandThresholdNanos = 0;
+
+    private HttpFlightRecorder() {
+    }
+
+    /**
+     * Set the minimum duration of the data commands recorded, on top of the threshold of the recording.
+     *
+     * @param threshold
+     *            The minimum duration, 0 records every data command.
+     * @param unit
+     *            The unit of threshold.
+     */
+    public static void setDataCommandThreshold(long threshold, TimeUnit unit) {
+        dataCommandThresholdNanos = unit.toNanos(Math.max(threshold, 0));
+    }
+
+    /**
+     * Start the event of a data command.
+     *
+     * @return The event to pass to {@link #endDataCommand}, null if the event is not recorded.
+     */
+    public static Object beginDataCommand() {
+        return AVAILABLE ? Events.beginDataCommand() : null;
+    }
+
+    /**
+     * End and record the event of a data command.
+     *
+     * @param event
+     *            The event returned by {@link #beginDataCommand}, may be null.
+     * @param url
+     *            The url the command was sent to, the endpoint selected for it when the connection has several. May be null.
+     * @param dataCmdMessage
+     *            The command, with its status set
+     * @param timing
+     *            The time spent in each phase
+     */
+    public static void endDataCommand(Object event, URL url, HttpDataMessage dataCmdMessage, HttpRequestTiming timing) {
+        if (event != null && timing.totalNanos >= dataCommandThresholdNanos)
+            Events.endDataCommand(event, url, dataCmdMessage, timing);
+    }
+
+    /**
+     * Start the event of a setup command.
+     *
+     * @return The event to pass to {@link #endSetup}, null if the event is not recorded.
+     */
+    public static Object beginSetup() {
+        return AVAILABLE ? Events.beginConnection() : null;
+    }
+
+    /**
+     * End and record the event of a setup command.
+     *
+     * @param event
+     *            The event returned by {@link #beginSetup}, may be null.
+     * @param setupMessage
+     *            The setup command, with its connectionId and status set
+     */
+    public static void endSetup(Object event, HttpSetupMessage setupMessage) {
+        if (event != null)
+            Events.endConnection(event, setupMessage.connectionId, "setup", null,
+                    setupMessage.connectionUrl != null ? setupMessage.connectionUrl.getHost() : null, setupMessage.status.name());
+    }
+
+    /**
+     * Record a connection torn down.
+     *
+     * @param connectionId
+     *            The connection
+     * @param reason
+     *            Why: command, lease or operator
+     */
+    public static void teardown(long connectionId, String reason) {
+        if (AVAILABLE) {
+            Object event = Events.beginConnection();
+            if (event != null)
+                Events.endConnection(event, connectionId, "teardown", reason, null, null);
+        }
+    }
+
+    /**
+     * Record a command rejected on overload.
+     *
+     * @param connectionId
+     *            The connection of the command, 0 for a setup command
+     * @param command
+     *            The name of the command
+     * @param reason
+     *            Why it was rejected
+     */
+    public static void rejection(long connectionId, String command, String reason) {
+        if (AVAILABLE)
+            Events.rejection(connectionId, command, reason);
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, HttpFlightRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The code that touches the event classes. Only loaded when JFR is available.
+     */
+    private static final class Events {
+        static Object beginDataCommand() {
+            HttpDataCommandEvent event = new HttpDataCommandEvent();
+            if (!event.isEnabled())
+                return null;
+            event.begin();
+            return event;
+        }
+
+        static void endDataCommand(Object started, URL url, HttpDataMessage dataCmdMessage, HttpRequestTiming timing) {
+            HttpDataCommandEvent event = (HttpDataCommandEvent) started;
+            event.end();
+            if (!event.shouldCommit())
+                return;
+            event.connectionId = dataCmdMessage.connectionId;
+            event.method = dataCmdMessage.httpRequest;
+            event.host = url != null ? url.getHost() : null;
+            event.status = dataCmdMessage.status.name();
+            event.responseCode = dataCmdMessage.responseCode;
+            event.requestBytes = timing.requestBytes;
+            event.responseBytes = timing.responseBytes;
+            event.dns = timing.dnsNanos;
+            event.connect = timing.connectNanos;
+            event.inputWait = timing.inputWaitNanos;
+            event.requestWrite = timing.requestWriteNanos;
+            event.firstByte = timing.firstByteNanos;
+            event.body = timing.bodyNanos;
+            event.publish = timing.publishNanos;
+            event.commit();
+        }
+
+        static Object beginConnection() {
+            HttpConnectionEvent event = new HttpConnectionEvent();
+            if (!event.isEnabled())
+                return null;
+            event.begin();
+            return event;
+        }
+
+        static void endConnection(Object started, long connectionId, String action, String reason, String host, String status) {
+            HttpConnectionEvent event = (HttpConnectionEvent) started;
+            event.end();
+            if (!event.shouldCommit())
+                return;
+            event.connectionId = connectionId;
+            event.action = action;
+            event.reason = reason;
+            event.host = host;
+            event.status = status;
+            event.commit();
+        }
+
+        static void rejection(long connectionId, String command, String reason) {
+            HttpRejectionEvent event = new HttpRejectionEvent();
+            if (!event.isEnabled())
+                return;
+            event.connectionId = connectionId;
+            event.command = command;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.module.httpbridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A command returned with ERROR_ON_OVERLOAD, without running.
+ *
+ */
+@Name("com.intel.icecp.httpbridge.Rejection")
+@Label("HTTP Bridge Rejection")
+@Category({ "ICECP", "HTTP Bridge" })
+@Description("A command rejected because the module is overloaded")
+@StackTrace(false)
+class HttpRejectionEvent extends jdk.jfr.Event {
+    @Label("Connection Id")
+    long connectionId;
+
+    @Label("Command")
+    String command;
+
+    @Label("Reason")
+    String reason;
+}
@@ -61,7 +61,23 @@ public abstract class HttpBaseMessage implements Message, OnCommandMessage<HttpB
         ERROR_ON_SYNTAX,
         ERROR_ON_CONNECT,
         ERROR_ON_RESPONSE,
-        ERROR_ON_IO
+        ERROR_ON_IO,
+        /**
+         * The module is overloaded and did not run the command. Back off and retry later. Also returned for the data commands still waiting for a worker
+         * when their connection is torn down.
+         */
+        ERROR_ON_OVERLOAD
+    }
+
+    /**
+     * The HTTP_PRIORITY values for data commands, highest first. Commands of a higher priority are always started before commands of a lower priority, and
+     * part of the request workers is reserved for HIGH, so latency critical calls do not queue behind bulk transfers.
+     *
+     */
+    public static enum HTTP_PRIORITY {
+        HIGH,
+        NORMAL,
+        LOW
     }
 
     /**
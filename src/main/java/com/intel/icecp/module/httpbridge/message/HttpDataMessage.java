@@ -40,13 +40,25 @@ import com.intel.icecp.module.httpbridge.HttpConnectionTask;
  * responseHeaders - Response headers from the request.<p>
  * responseCode - The Http response code returned from the request.<p>
  * responseMessage - The Http response message returned from the request.<p>
- * Also, if there is any output from the Http request, it will be published to the output channel.
+ * bodyTruncated - Set if the response body was cut off at maxBodyBytes.<p>
+ * timing - The time spent in each phase of the request, if returnTiming is set.<p>
+ * responseCode is 200 when a segmented download fetched the whole body.<p>
+ * Also, if there is any output from the Http request, it will be published to the output channel, or spooled to a file and its
+ * {@link HttpFileManifestMessage} published if it is larger than spoolThresholdBytes.
  * <p>
  * 
  *
  */
 @SuppressWarnings("serial")
 public class HttpDataMessage extends HttpBaseMessage implements OnDataCommandMessage {
+    /**
+     * What happens to a response body larger than {@link HttpDataMessage#maxBodyBytes}: ERROR fails the command with ERROR_ON_RESPONSE, TRUNCATE publishes
+     * its first maxBodyBytes and sets {@link HttpDataMessage#bodyTruncated}.
+     */
+    public static enum BODY_LIMIT_POLICY {
+        ERROR, TRUNCATE
+    }
+
     /**
      * (optional) The URI for the http input channel. Any input data required for the specified Http request is sent on this channel. The module will read the
      * data from this channel and send it to the Http output stream for the Http request. For example any form data would be published on this channel.
@@ -90,6 +102,66 @@ public class HttpDataMessage extends HttpBaseMessage implements OnDataCommandMes
      */
     public boolean useCache = false;
 
+    /**
+     * (optional) The priority of this command. If not specified, the {@link HttpSetupMessage#defaultPriority} of the connection is used. Use HIGH for latency
+     * critical calls and LOW for bulk transfers.
+     */
+    public HTTP_PRIORITY priority;
+
+    /**
+     * (optional) Set to true to get the time spent in each phase of the request back in {@link HttpDataMessage#timing}. Default is false.
+     */
+    public boolean returnTiming = false;
+
+    /**
+     * (optional) Download a large GET response in byte ranges, this many at a time, for more throughput on high latency links. The first request asks for
+     * the first segment. When the server answers 206 with the length of the body, the other segments are fetched in parallel, each over its own connection
+     * and retried on its own, and the body is published one message per segment. A server that does not support ranges answers 200 and the body is read as
+     * usual. The server must send a strong ETag or a Last-Modified, so the segments can be asked with If-Range. Requires the outputHttpChannelURI and no
+     * input channel. At most the maxParallelSegments of the module. 0 or 1 turns it off. Default is 0.
+     */
+    public int parallelSegments = 0;
+
+    /**
+     * (optional) The size of a segment in bytes, when parallelSegments is set, and of the segments of a spooled body. Default is 4 MB.
+     */
+    public int segmentBytes = 4 * 1024 * 1024;
+
+    /**
+     * (optional) How many more times a failed segment is fetched before the command fails. Default is 3.
+     */
+    public int segmentRetries = 3;
+
+    /**
+     * (optional) Set to true to publish each segment as a {@link HttpSegmentMessage}, with its index and offset, as soon as it arrives. By default the
+     * segments are published in order as BytesMessages, so the concatenated messages are the body. Default is false.
+     */
+    public boolean indexedSegments = false;
+
+    /**
+     * (optional) Spool a response body larger than this many bytes to a file in the spool directory of the module, and publish a
+     * {@link HttpFileManifestMessage} on the output channel instead of the body. The consumer reads the segments it needs from the file, so a body of any
+     * length passes through a fixed amount of heap. A smaller body is published as usual. Cannot be used with parallelSegments. 0 turns it off. Default is
+     * 0.
+     */
+    public long spoolThresholdBytes = 0;
+
+    /**
+     * (optional) The name of a file in the spool directory of the module, sent as the request body instead of the input channel. The file is streamed, so
+     * its length does not matter; a spooled response can be sent on with the name of its manifest.
+     */
+    public String inputFile;
+
+    /**
+     * (optional) The largest response body, in bytes. 0 uses the maxBodyBytes of the module, otherwise the smaller of the two applies. Default is 0.
+     */
+    public long maxBodyBytes = 0;
+
+    /**
+     * (optional) What happens to a response body larger than maxBodyBytes. Default is ERROR.
+     */
+    public BODY_LIMIT_POLICY bodyLimitPolicy = BODY_LIMIT_POLICY.ERROR;
+
     /**
      * These headers are returned from the Http request. The number of headers and values depends on the Http request.
      */
@@ -105,6 +177,16 @@ public class HttpDataMessage extends HttpBaseMessage implements OnDataCommandMes
      */
     public String responseMessage;
 
+    /**
+     * True if the response body was larger than maxBodyBytes and only its start was published, see {@link BODY_LIMIT_POLICY#TRUNCATE}.
+     */
+    public boolean bodyTruncated;
+
+    /**
+     * The time spent in each phase of the request. Only returned if {@link HttpDataMessage#returnTiming} is set.
+     */
+    public HttpRequestTiming timing;
+
     /**
      * Specify the connectionId returned from the setup command.
      * 
@@ -140,6 +222,29 @@ public class HttpDataMessage extends HttpBaseMessage implements OnDataCommandMes
             status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
             return "DataCommand Missing httpRequest";
         }
+        if (parallelSegments > 1) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            if (!"GET".equals(httpRequest) || outputHttpChannelURI == null || inputHttpChannelURI != null)
+                return "DataCommand parallelSegments needs a GET with an outputHttpChannelURI and no inputHttpChannelURI";
+            if (segmentBytes < 1 || segmentRetries < 0)
+                return "DataCommand segmentBytes must be positive and segmentRetries not negative";
+            if (spoolThresholdBytes > 0)
+                return "DataCommand parallelSegments cannot be used with spoolThresholdBytes";
+            if (context != null && parallelSegments > context.getSettings().getMaxParallelSegments())
+                return String.format("DataCommand parallelSegments must not be more than [%d]", context.getSettings().getMaxParallelSegments());
+        }
+        if (spoolThresholdBytes < 0 || (spoolThresholdBytes > 0 && segmentBytes < 1)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "DataCommand spoolThresholdBytes must not be negative, and segmentBytes must be positive";
+        }
+        if (maxBodyBytes < 0) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "DataCommand maxBodyBytes must not be negative";
+        }
+        if (inputFile != null && (inputFile.isEmpty() || inputHttpChannelURI != null)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "DataCommand inputFile must be a file name, and cannot be used with inputHttpChannelURI";
+        }
         status = HTTP_BRIDGE_STATUS.OK;
         return null;
     }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.intel.icecp.core.Message;
+
+/**
+ * A response body spooled to a file, published on the output channel instead of the body when it is larger than
+ * {@link HttpDataMessage#spoolThresholdBytes}. The file is in the spool directory of the module, on the same host, and is deleted after the spool
+ * retention of the module. A consumer reads the segments it needs with {@link #readSegment(int)}, or sends the file on with
+ * {@link HttpDataMessage#inputFile}.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpFileManifestMessage implements Message {
+    /**
+     * The absolute path of the file.
+     */
+    public String path;
+
+    /**
+     * The name of the file in the spool directory, for {@link HttpDataMessage#inputFile}.
+     */
+    public String name;
+
+    /**
+     * The length of the body.
+     */
+    public long totalBytes;
+
+    /**
+     * The SHA-256 of the body, in hex.
+     */
+    public String sha256;
+
+    /**
+     * The Content-Type of the response, null if it had none.
+     */
+    public String contentType;
+
+    /**
+     * The size of a segment read by {@link #readSegment(int)}.
+     */
+    public int segmentBytes;
+
+    /**
+     * The number of segments of the body.
+     */
+    public int count;
+
+    /**
+     * Create a manifest.
+     *
+     * @param path
+     *            The absolute path of the file.
+     * @param name
+     *            The name of the file in the spool directory.
+     * @param totalBytes
+     *            The length of the body.
+     * @param sha256
+     *            The SHA-256 of the body, in hex.
+     * @param contentType
+     *            The Content-Type of the response.
+     * @param segmentBytes
+     *            The size of a segment.
+     */
+    public HttpFileManifestMessage(String path, String name, long totalBytes, String sha256, String contentType, int segmentBytes) {
+        this.path = path;
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.sha256 = sha256;
+        this.contentType = contentType;
+        this.segmentBytes = segmentBytes;
+        this.count = (int) Math.max(1, (totalBytes + segmentBytes - 1) / segmentBytes);
+    }
+
+    /**
+     * Default constructor, required for serialization.
+     */
+    public HttpFileManifestMessage() {
+    }
+
+    /**
+     * Read a segment of the body. The segment is mapped from the file, so only the segment is copied into the heap.
+     *
+     * @param index
+     *            The index of the segment, from 0 to count - 1.
+     * @return The bytes of the segment.
+     * @throws IOException
+     *             The file could not be read, or it was deleted.
+     */
+    public byte[] readSegment(int index) throws IOException {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(String.format("Segment [%d] of [%d]", index, count));
+        long offset = (long) index * segmentBytes;
+        int length = (int) Math.min(segmentBytes, totalBytes - offset);
+        byte[] bytes = new byte[length];
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            buffer.get(bytes);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.net.URI;
+
+import com.intel.icecp.module.httpbridge.HttpBridge_Module;
+
+/**
+ * This message class is for the ingress direction: it routes the http requests received by the module to a channel. The ingress server of the module
+ * listens on the ingressPort of the module configuration, it is off if the port is not set.
+ * <p>
+ * <b>Send Message</b><p>
+ * Create a new HttpIngressMessage( URI returnCmdChannelURI ), set the path and the channelURI, and publish it on the
+ * {@link HttpBaseMessage#HTTP_CMD_CHANNEL_NAME} channel. Requests to the path, or below it, are then published on channelURI:
+ * <ul>
+ * <li>Without a replyChannelURI, the request body is published as a BytesMessage and the client gets 202 Accepted.</li>
+ * <li>With a replyChannelURI, a {@link HttpIngressRequest} is published, with the method, path, headers and body and a requestId. The client waits for a
+ * {@link HttpIngressReply} with the same requestId on the replyChannelURI, for up to replyTimeoutMillis; it gets 504 Gateway Timeout otherwise.</li>
+ * </ul>
+ * A route to a path already routed replaces it. Set remove to drop the route of the path.
+ * <p>
+ * <b>Results</b><p>
+ * The same HttpIngressMessage is returned on the return channel with the following filled in.<p>
+ * status - The HTTP_BRIDGE_STATUS of the call. ERROR_ON_SYNTAX means the ingress server is off, the fields are missing or there is no route to remove;
+ * ERROR_ON_CONNECT means the channels could not be opened.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpIngressMessage extends HttpBaseMessage {
+    /**
+     * (required) The path routed, eg. "/sensors". Starts with "/".
+     */
+    public String path;
+
+    /**
+     * (required) The channel the requests are published on.
+     */
+    public URI channelURI;
+
+    /**
+     * (optional) The channel the replies are read from. If not set, the requests are not replied to: the client gets 202 Accepted once published.
+     */
+    public URI replyChannelURI;
+
+    /**
+     * (optional) How long a request waits for its reply, in milliseconds. Default is 30000.
+     */
+    public long replyTimeoutMillis = 30000;
+
+    /**
+     * (optional) Set to true to remove the route of the path. Default is false.
+     */
+    public boolean remove = false;
+
+    /**
+     * Pass in the return channel.
+     *
+     * @param cmdReturnChannelURI
+     *            The channel to receive the status of the command.
+     */
+    public HttpIngressMessage(URI cmdReturnChannelURI) {
+        super.cmdReturnChannelURI = cmdReturnChannelURI;
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the cmdReturnChannelURI field.
+     */
+    public HttpIngressMessage() {
+    }
+
+    /**
+     * Call the context to execute the ingress command.
+     */
+    @Override
+    public void onCommandMessage(HttpBridge_Module context) {
+        context.ingressCommand(this);
+    }
+
+    /**
+     * Validate the incoming ingress command. The ingress server must be on, and the path and the channel must be specified.
+     *
+     * @return Status message. If an error found, the error message is returned.  If no error, return null.
+     */
+    @Override
+    public String onValidate(HttpBridge_Module context) {
+        if (!context.isIngressEnabled()) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "IngressCommand: the ingress server is off, set ingressPort";
+        }
+        if (path == null || !path.startsWith("/") || !remove && (channelURI == null || replyTimeoutMillis <= 0)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "IngressCommand needs a path starting with / and a channelURI";
+        }
+        status = HTTP_BRIDGE_STATUS.OK;
+        return null;
+    }
+}
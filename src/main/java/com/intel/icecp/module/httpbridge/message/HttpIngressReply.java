@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.intel.icecp.core.Message;
+
+/**
+ * The reply to a {@link HttpIngressRequest}, published on its replyChannelURI. The ingress server sends it as the http response of the request.
+ *
+ */
+@SuppressWarnings("serial")
+@JsonInclude(value = Include.NON_NULL)
+public class HttpIngressReply implements Message {
+    /**
+     * (required) The requestId of the request answered.
+     */
+    public long requestId;
+
+    /**
+     * (optional) The http response code. Default is 200.
+     */
+    public int responseCode = 200;
+
+    /**
+     * (optional) The response headers, eg. "Content-Type", "application/json".
+     */
+    public Map<String, String> headers;
+
+    /**
+     * (optional) The response body.
+     */
+    public byte[] body;
+
+    /**
+     * Specify the request answered.
+     *
+     * @param requestId
+     *            The requestId of the request.
+     */
+    public HttpIngressReply(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the requestId.
+     */
+    public HttpIngressReply() {
+    }
+}
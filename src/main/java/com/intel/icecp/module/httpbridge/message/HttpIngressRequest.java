@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.intel.icecp.core.Message;
+
+/**
+ * A http request received by the ingress server, published on the channel of its route (see {@link HttpIngressMessage}) when the route waits for replies.
+ * Answer it with a {@link HttpIngressReply} of the same requestId on the replyChannelURI.
+ *
+ */
+@SuppressWarnings("serial")
+@JsonInclude(value = Include.NON_NULL)
+public class HttpIngressRequest implements Message {
+    /**
+     * The id to copy in the reply.
+     */
+    public long requestId;
+
+    /**
+     * The channel to publish the reply on.
+     */
+    public URI replyChannelURI;
+
+    /**
+     * The http method, eg. POST.
+     */
+    public String method;
+
+    /**
+     * The path of the request, below the path of the route.
+     */
+    public String path;
+
+    /**
+     * The query string, without the "?", or null.
+     */
+    public String query;
+
+    /**
+     * The request headers.
+     */
+    public Map<String, List<String>> headers;
+
+    /**
+     * The address of the client.
+     */
+    public String remoteAddress;
+
+    /**
+     * The request body, empty if none.
+     */
+    public byte[] body;
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.net.URI;
+
+import com.intel.icecp.module.httpbridge.HttpBridge_Module;
+
+/**
+ * This message class is for renewing the lease of a connection. A connection that has no data commands and no keepalive for longer than its
+ * {@link HttpSetupMessage#leaseSeconds} is torn down by the module.
+ * <p>
+ * <b>Send Message</b><p>
+ * Create a new HttpKeepaliveMessage( connectionId, URI returnCmdChannelURI ) and specify the required connectionId and return channel.  Publish this
+ * message on the {@link HttpBaseMessage#HTTP_CMD_CHANNEL_NAME} channel.
+ * <p>
+ * <b>Results</b><p>
+ * The same HttpKeepaliveMessage is returned on the return channel with the following filled in.<p>
+ * status - The HTTP_BRIDGE_STATUS of the call. ERROR_ON_SYNTAX means the connection is not found, it may have been reclaimed.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpKeepaliveMessage extends HttpBaseMessage {
+    /**
+     * Pass in the connectionId of the connection to keep alive.  Also pass in the return channel.
+     *
+     * @param connectionId
+     *            The connection to keep alive.
+     * @param cmdReturnChannelURI
+     *            The channel to receive the status of the command.
+     */
+    public HttpKeepaliveMessage(long connectionId, URI cmdReturnChannelURI) {
+        super.cmdReturnChannelURI = cmdReturnChannelURI;
+        super.connectionId = connectionId;
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the connectionId and cmdReturnChannelURI fields.
+     */
+    public HttpKeepaliveMessage() {
+    }
+
+    /**
+     * Call the context to execute the keepalive command.
+     */
+    @Override
+    public void onCommandMessage(HttpBridge_Module context) {
+        context.keepaliveCommand(this);
+    }
+
+    /**
+     * Validate the incoming keepalive command.  Make sure the connectionId is valid.
+     *
+     * @return Status message. If an error found, the error message is returned.  If no error, return null.
+     */
+    @Override
+    public String onValidate(HttpBridge_Module context) {
+        if (!context.isConnected(connectionId)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return ("ConnectionId not found");
+        }
+
+        status = HTTP_BRIDGE_STATUS.OK;
+        return null;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.intel.icecp.core.Message;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+
+/**
+ * A snapshot of the module metrics, published periodically by the module on the {@link HttpMetricsMessage#HTTP_METRICS_CHANNEL_NAME} channel. Subscribe
+ * to this channel to monitor the module. The counters are totals since the module started, the rates and the latencies are over the last period.
+ * <p>
+ * Latencies are in nanoseconds. Per connection metrics are only included if the module is configured with metricsPerConnection.
+ *
+ */
+@SuppressWarnings("serial")
+@JsonInclude(value = Include.NON_NULL)
+public class HttpMetricsMessage implements Message {
+
+    /**
+     * The well known metrics channel for this module, next to {@link HttpBaseMessage#HTTP_CMD_CHANNEL_NAME}.
+     */
+    @JsonIgnore
+    public final static String HTTP_METRICS_CHANNEL_NAME = "HTTPBridge-METRICS";
+
+    /**
+     * The latency distribution of a phase or a host, over the data commands completed since the previous snapshot.
+     */
+    public static class Latency implements Serializable {
+        public long count;
+        public long meanNanos;
+        public long maxNanos;
+        public long p50Nanos;
+        public long p90Nanos;
+        public long p99Nanos;
+        public long p999Nanos;
+    }
+
+    /**
+     * The counters of one upstream host or one connection.
+     */
+    public static class Endpoint implements Serializable {
+        public long requests;
+        public long bytesIn;
+        public long bytesOut;
+        public Map<HTTP_BRIDGE_STATUS, Long> statusCounts = new EnumMap<>(HTTP_BRIDGE_STATUS.class);
+        public Latency latency;
+    }
+
+    /**
+     * The wall clock time of the snapshot, in milliseconds since the epoch.
+     */
+    public long timestampMillis;
+
+    /**
+     * The time since the previous snapshot, in milliseconds. The rates are over this period.
+     */
+    public long intervalMillis;
+
+    /**
+     * The data commands run since the module started.
+     */
+    public long requests;
+
+    /**
+     * The data commands run per second over the last period.
+     */
+    public double requestsPerSecond;
+
+    /**
+     * The response bytes read from the http servers, and the request bytes sent to them.
+     */
+    public long bytesIn;
+    public long bytesOut;
+    public double bytesInPerSecond;
+    public double bytesOutPerSecond;
+
+    /**
+     * The number of data commands returned with each status, including the commands rejected on overload.
+     */
+    public Map<HTTP_BRIDGE_STATUS, Long> statusCounts = new EnumMap<>(HTTP_BRIDGE_STATUS.class);
+
+    /**
+     * The latency of each phase of the data commands, by phase name (DNS, CONNECT, ..., TOTAL). See {@link HttpRequestTiming}.
+     */
+    public Map<String, Latency> phaseLatency = new HashMap<>();
+
+    /**
+     * The counters of each upstream host.
+     */
+    public Map<String, Endpoint> hosts = new HashMap<>();
+
+    /**
+     * The counters of each connection, by connectionId. Null unless the module is configured with metricsPerConnection.
+     */
+    public Map<Long, Endpoint> connections;
+
+    /**
+     * Connections set up and not torn down, with and without a data command running.
+     */
+    public int activeConnections;
+    public int idleConnections;
+
+    /**
+     * Connections torn down because their lease expired.
+     */
+    public long reclaimedConnections;
+
+    /**
+     * Connection threads in use, and the maximum.
+     */
+    public int connectionThreads;
+    public int maxConnectionThreads;
+
+    /**
+     * Request workers running a data command, and the number of workers.
+     */
+    public int busyRequestWorkers;
+    public int requestWorkers;
+
+    /**
+     * Data commands waiting for a request worker.
+     */
+    public int requestQueueDepth;
+
+    /**
+     * Data commands rejected because the queue was full, or because they waited too long.
+     */
+    public long requestsRejected;
+    public long requestsExpired;
+
+    /**
+     * Module commands waiting for the command dispatcher.
+     */
+    public int commandQueueDepth;
+
+    /**
+     * The memory budget of the bodies held in memory: its capacity, the bytes held now and at most, and the requests that waited for room or were
+     * rejected.
+     */
+    public long memoryBudgetBytes;
+    public long memoryUsedBytes;
+    public long memoryPeakBytes;
+    public long memoryWaits;
+    public long memoryRejected;
+}
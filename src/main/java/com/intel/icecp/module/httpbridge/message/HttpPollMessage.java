@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import com.intel.icecp.module.httpbridge.HttpConnectionTask;
+
+/**
+ * This data command asks the module to poll the connection URL on a schedule, and publish the body to the output channel only when it changed. It replaces
+ * a client sending the same GET every few seconds to detect changes.
+ * <p>
+ * <b>Send Message</b><p>
+ * Create a new HttpPollMessage( connectionId ), set the outputHttpChannelURI and intervalMillis, and publish it on the data command channel like a
+ * {@link HttpDataMessage}. The httpRequest is GET. A connection has one poll per output channel: a new poll to the same output channel replaces the
+ * previous one, and a poll with cancel set stops it.
+ * <p>
+ * <b>Results</b><p>
+ * The message is returned on the data command return channel once the poll is registered (or cancelled), with the status. The first poll runs within
+ * jitterMillis, then every intervalMillis plus a random part of jitterMillis, so polls registered together spread out.
+ * <p>
+ * The requests carry If-None-Match and If-Modified-Since with the ETag and Last-Modified of the last response. A 304 response, or a body with the same
+ * SHA-256 hash as the last one published, is not published. The body is subject to maxBodyBytes and bodyLimitPolicy like the one of a data command.
+ * <p>
+ * A poll that fails (an error response, ERROR_ON_IO, ERROR_ON_OVERLOAD...) is returned on the data command return channel as a new HttpPollMessage with
+ * the outputHttpChannelURI, the status and the responseCode; so is the first poll that succeeds after a failure. A poll failing the same way again is not
+ * returned again.
+ * <p>
+ * A poll does not keep the connection alive. The client renews the lease of the connection, with data commands or {@link HttpKeepaliveMessage}s, for as
+ * long as it wants the poll; the poll stops when the connection is torn down or its lease expires.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpPollMessage extends HttpDataMessage {
+
+    /**
+     * (required) The time between two polls, in milliseconds.
+     */
+    public long intervalMillis;
+
+    /**
+     * (optional) A random delay of up to jitterMillis is added to each interval. Default is 0.
+     */
+    public long jitterMillis = 0;
+
+    /**
+     * (optional) Set to true to stop the poll of the outputHttpChannelURI. Default is false.
+     */
+    public boolean cancel = false;
+
+    /**
+     * Specify the connectionId returned from the setup command.
+     *
+     * @param connectionId
+     *            The id returned from the setup command.
+     */
+    public HttpPollMessage(long connectionId) {
+        super(connectionId);
+        httpRequest = "GET";
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the connectionId.
+     */
+    public HttpPollMessage() {
+        httpRequest = "GET";
+    }
+
+    /**
+     * Ask the connection task to register or cancel the poll.
+     */
+    @Override
+    public void onCommandMessage(HttpConnectionTask context) {
+        context.poll(this);
+    }
+
+    /**
+     * Validate the command. The outputHttpChannelURI must be specified, and a poll needs a positive interval.
+     */
+    @Override
+    public String onValidate(HttpConnectionTask context) {
+        String errorMsg = super.onValidate(context);
+        if (errorMsg != null)
+            return errorMsg;
+        if (outputHttpChannelURI == null || !cancel && (intervalMillis <= 0 || jitterMillis < 0)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "PollCommand needs an outputHttpChannelURI and a positive intervalMillis";
+        }
+        if (!"GET".equalsIgnoreCase(httpRequest)) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "PollCommand only supports GET";
+        }
+        return null;
+    }
+}
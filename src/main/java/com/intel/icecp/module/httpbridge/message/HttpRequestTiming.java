@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import java.io.Serializable;
+
+/**
+ * The time spent in each phase of a data command, in nanoseconds. A phase that did not run (eg, no input channel) is 0. Returned in
+ * {@link HttpDataMessage#timing} when {@link HttpDataMessage#returnTiming} is set.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpRequestTiming implements Serializable {
+    /**
+     * The wall clock time the command started, in milliseconds since the epoch.
+     */
+    public long startMillis;
+
+    /**
+     * Resolving the host name. 0 when a proxy is used, the proxy resolves the host.
+     */
+    public long dnsNanos;
+
+    /**
+     * Opening the TCP connection, including the TLS handshake for https.
+     */
+    public long connectNanos;
+
+    /**
+     * Waiting for the request body on the input channel.
+     */
+    public long inputWaitNanos;
+
+    /**
+     * Writing the request body to the connection.
+     */
+    public long requestWriteNanos;
+
+    /**
+     * Waiting for the response status line and headers (time to first byte).
+     */
+    public long firstByteNanos;
+
+    /**
+     * Reading the response body.
+     */
+    public long bodyNanos;
+
+    /**
+     * Publishing the response body on the output channel.
+     */
+    public long publishNanos;
+
+    /**
+     * The whole data command.
+     */
+    public long totalNanos;
+
+    /**
+     * The number of response body bytes read.
+     */
+    public long responseBytes;
+
+    /**
+     * The number of request body bytes written.
+     */
+    public long requestBytes;
+}
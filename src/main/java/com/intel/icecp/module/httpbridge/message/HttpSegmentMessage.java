@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import com.intel.icecp.core.Message;
+
+/**
+ * A segment of a segmented download, published on the output channel when {@link HttpDataMessage#indexedSegments} is set. The segments arrive in any
+ * order; a consumer writes each at its offset, the body is complete when all count segments arrived.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpSegmentMessage implements Message {
+    /**
+     * The index of the segment, from 0.
+     */
+    public int index;
+
+    /**
+     * The number of segments of the body.
+     */
+    public int count;
+
+    /**
+     * The offset of the segment in the body.
+     */
+    public long offset;
+
+    /**
+     * The length of the whole body.
+     */
+    public long totalBytes;
+
+    /**
+     * The bytes of the segment.
+     */
+    public byte[] bytes;
+
+    /**
+     * Create a segment.
+     *
+     * @param index
+     *            The index of the segment.
+     * @param count
+     *            The number of segments.
+     * @param offset
+     *            The offset of the segment in the body.
+     * @param totalBytes
+     *            The length of the body.
+     * @param bytes
+     *            The bytes of the segment.
+     */
+    public HttpSegmentMessage(int index, int count, long offset, long totalBytes, byte[] bytes) {
+        this.index = index;
+        this.count = count;
+        this.offset = offset;
+        this.totalBytes = totalBytes;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Default constructor, required for serialization.
+     */
+    public HttpSegmentMessage() {
+    }
+}
@@ -18,8 +18,10 @@ package com.intel.icecp.module.httpbridge.message;
 
 import java.net.URI;
 import java.net.URL;
+import java.util.List;
 
 import com.intel.icecp.module.httpbridge.HttpBridge_Module;
+import com.intel.icecp.module.httpbridge.HttpProxyPool;
 
 /**
  * This message is the first message sent to the module, to setup your Http Request. The setup message creates a connection and returns to you the channels to
@@ -41,11 +43,54 @@ import com.intel.icecp.module.httpbridge.HttpBridge_Module;
  */
 @SuppressWarnings("serial")
 public class HttpSetupMessage extends HttpBaseMessage {
+
+    /**
+     * How the data commands are spread over the endpoints of the connection.
+     */
+    public static enum BALANCE_POLICY {
+        /**
+         * Each endpoint in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The endpoint with the fewest requests in progress.
+         */
+        LEAST_REQUESTS,
+        /**
+         * The better of two random endpoints, scored by their moving average latency times their requests in progress. Slow endpoints are avoided without
+         * sending every request to the fastest one.
+         */
+        EWMA
+    }
+
     /**
      * The URL for the Http request. For example: http://myServer.com. This field is required.
      */
     public URL connectionUrl;
 
+    /**
+     * (optional) Equivalent endpoints that serve the same API as the connectionUrl, for example the replicas of a service. The data commands are balanced
+     * over the connectionUrl and these endpoints with the {@link #balancePolicy}. Subscriptions, polls and WebSockets always use the connectionUrl.
+     */
+    public List<URL> endpoints;
+
+    /**
+     * (optional) How the data commands are balanced when endpoints are specified. Default is EWMA.
+     */
+    public BALANCE_POLICY balancePolicy = BALANCE_POLICY.EWMA;
+
+    /**
+     * (optional) The number of consecutive failures, connect and I/O errors and 5xx responses, after which an endpoint is ejected and receives no data
+     * commands for {@link #ejectSeconds}. The time doubles each time the endpoint is ejected again before a success. At most half of the endpoints are
+     * ejected at once. Zero turns ejection off. Default is 5.
+     */
+    public int ejectAfterFailures = 5;
+
+    /**
+     * (optional) How long an endpoint is ejected the first time, in seconds. Default is 30.
+     */
+    public long ejectSeconds = 30;
+
     /**
      * (optional) The Proxy host if needed. If the proxy is specified, it is used with the proxyPort to setup a proxy for the Http request. If no proxy is
      * needed, leave this empty.
@@ -57,6 +102,76 @@ public class HttpSetupMessage extends HttpBaseMessage {
      */
     public int proxyPort;
 
+    /**
+     * (optional) More proxies, as "host:port", for sites behind a cluster of proxies. The requests go through the proxyHost, or the first proxy, while it
+     * can be connected to, so their connections are kept alive. When it cannot, the request fails over to the next proxy, and the later requests stay on
+     * that one. A proxy that cannot be connected to is skipped until a health check reaches it again. Errors from past the proxy do not fail over.
+     */
+    public List<String> proxies;
+
+    /**
+     * (optional) The interval of the proxy health checks in seconds, a TCP connect to each proxy with the connect timeout of the module, at most 5
+     * seconds. Only used with proxies. Zero turns the checks off, then a proxy is only marked up again when a request through it succeeds. Default is 10.
+     */
+    public long proxyCheckSeconds = 10;
+
+    /**
+     * (optional) Set to true to warm up the connection in the background while the setup reply is sent. The module resolves the host of the connectionUrl,
+     * opens {@link #prewarmConnections} pooled connections to it, and pre-opens the declared input and output channels. Default is false.
+     */
+    public boolean prewarm = false;
+
+    /**
+     * The most upstream connections a prewarm opens: the idle connections the JVM keeps per host, the http.maxConnections system property (default 5).
+     * A connection past it would be closed as soon as it goes back to the keep-alive pool.
+     */
+    public static final int MAX_PREWARM_CONNECTIONS = keepAliveLimit();
+
+    /**
+     * (optional) The number of upstream connections to open when prewarm is set, at most {@link #MAX_PREWARM_CONNECTIONS}. They are spread over the
+     * endpoints by the balancer, and go through the proxies like the data commands. Default is 2.
+     */
+    public int prewarmConnections = 2;
+
+    /**
+     * (optional) The input channel that subsequent {@link HttpDataMessage} commands will use. Only used when prewarm is set, so the channel is already open
+     * when the first data command arrives.
+     */
+    public URI inputHttpChannelURI;
+
+    /**
+     * (optional) The output channel that subsequent {@link HttpDataMessage} commands will use. Only used when prewarm is set, so the channel is already open
+     * when the first data command arrives.
+     */
+    public URI outputHttpChannelURI;
+
+    /**
+     * (optional) The lease of the connection in seconds. If no data command or {@link HttpKeepaliveMessage} arrives for this long, the module tears the
+     * connection down, so connections of clients that went away without a teardown are reclaimed. Zero uses the module default, a negative value means
+     * the connection never expires. Default is 0.
+     */
+    public long leaseSeconds = 0;
+
+    /**
+     * (optional) The priority of the data commands on this connection that do not specify one. Default is NORMAL.
+     */
+    public HTTP_PRIORITY defaultPriority = HTTP_PRIORITY.NORMAL;
+
+    /**
+     * (optional) The scheduling weight of this connection. Connections are served in turns, and each turn a connection may start this many data commands,
+     * so a connection with weight 2 gets twice the share of a connection with weight 1 when both are busy. Connections sharing the same
+     * cmdReturnChannelURI form a tenant, and a tenant is limited to a fixed number of running commands. Default is 1.
+     */
+    public int weight = 1;
+
+    /**
+     * (optional) Set to true to run the data commands of this connection one at a time, in the order they arrive. By default they run concurrently on the
+     * workers of the module, and may complete in any order: a client that relies on a PUT completing before the next GET sets ordered, or waits for the
+     * return of each command before it sends the next. The commands of an ordered connection all run at its {@link #defaultPriority}, and wait in the
+     * queue of the module like the other commands, so the queue limit and deadline apply to them. Default is false.
+     */
+    public boolean ordered = false;
+
     /**
      * A data command channel URI is returned from the setup command. This channel name is unique for this connection. Use this channel to send your Data
      * messages to the module.
@@ -105,9 +220,39 @@ public class HttpSetupMessage extends HttpBaseMessage {
             return "SetupCommand: Missing Return Command Channel URI";
         if (connectionUrl == null)
             return "SetupCommand: Missing Connection URL";
+        if (proxies != null) {
+            for (String proxy : proxies) {
+                if (proxy == null)
+                    return "SetupCommand: proxies must not contain an empty proxy";
+                try {
+                    HttpProxyPool.parse(proxy);
+                } catch (IllegalArgumentException e) {
+                    return "SetupCommand: " + e.getMessage();
+                }
+            }
+        }
+        if (proxyCheckSeconds < 0)
+            return "SetupCommand: proxyCheckSeconds must not be negative";
+        if (endpoints != null && endpoints.contains(null))
+            return "SetupCommand: endpoints must not contain an empty URL";
+        if (ejectAfterFailures < 0)
+            return "SetupCommand: ejectAfterFailures must not be negative";
+        if (ejectSeconds < 1)
+            return "SetupCommand: ejectSeconds must be at least 1";
+        if (weight < 1)
+            return "SetupCommand: weight must be at least 1";
+        if (prewarm && (prewarmConnections < 0 || prewarmConnections > MAX_PREWARM_CONNECTIONS))
+            return String.format("SetupCommand: prewarmConnections must be between 0 and %d", MAX_PREWARM_CONNECTIONS);
 
         status = HTTP_BRIDGE_STATUS.OK;
         return null;
     }
 
+    /**
+     * @return The idle connections the JVM keeps per host, it ignores an http.maxConnections that is not positive.
+     */
+    private static int keepAliveLimit() {
+        int maxConnections = Integer.getInteger("http.maxConnections", 5);
+        return maxConnections > 0 ? maxConnections : 5;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import com.intel.icecp.module.httpbridge.HttpConnectionTask;
+
+/**
+ * This data command holds a streaming Http request open and publishes what the server sends as it arrives, instead of waiting for the end of the response.
+ * Use it for Server-Sent Events, newline delimited JSON feeds and other chunked responses that do not end.
+ * <p>
+ * <b>Send Message</b><p>
+ * Create a new HttpSubscribeMessage( connectionId ), set the outputHttpChannelURI and the format, and publish it on the data command channel like a
+ * {@link HttpDataMessage}. The httpRequest defaults to GET.
+ * <p>
+ * <b>Results</b><p>
+ * The message is returned on the data command return channel once the stream is open, with status, responseCode and responseHeaders filled in. Each event
+ * (SSE), line (NDJSON) or block of bytes (CHUNKED) is then published to the output channel as a BytesMessage.
+ * <p>
+ * When the stream ends the message is returned again with ended set, the final status, the number of events published and the lastEventId. The stream ends
+ * when the connection is torn down (status OK), or when it dropped and could not be reopened after maxReconnects attempts.
+ * <p>
+ * If the stream drops it is reopened after reconnectMillis. For SSE the request carries the Last-Event-ID header, so the server resumes after the last
+ * event published.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpSubscribeMessage extends HttpDataMessage {
+
+    /**
+     * How the stream is split in messages on the output channel.
+     */
+    public static enum STREAM_FORMAT {
+        /**
+         * Server-Sent Events (text/event-stream): one message per event, with the data lines of the event.
+         */
+        SSE,
+        /**
+         * Newline delimited JSON, or any line based feed: one message per non empty line.
+         */
+        NDJSON,
+        /**
+         * Any other stream: one message per block of bytes read.
+         */
+        CHUNKED
+    }
+
+    /**
+     * (optional) The format of the stream. Default is SSE.
+     */
+    public STREAM_FORMAT format = STREAM_FORMAT.SSE;
+
+    /**
+     * (optional) For SSE, the id of the last event received by the client. Sent as Last-Event-ID so the server resumes after it. Returned with the id of the
+     * last event published when the stream ends.
+     */
+    public String lastEventId;
+
+    /**
+     * (optional) The time to wait before reopening a dropped stream, in milliseconds. For SSE the server may change it with a retry field. Default is 3000.
+     */
+    public long reconnectMillis = 3000;
+
+    /**
+     * (optional) The number of times a dropped stream is reopened in a row, 0 to end the stream when it drops, -1 for no limit. Default is -1.
+     */
+    public int maxReconnects = -1;
+
+    /**
+     * (optional) The stream is dropped and reopened when nothing arrives for this long, in seconds. Protects against connections that died silently. 0 for
+     * no limit, the default.
+     */
+    public long idleTimeoutSeconds = 0;
+
+    /**
+     * Returned: the number of messages published to the output channel.
+     */
+    public long events;
+
+    /**
+     * Returned: true when the stream has ended.
+     */
+    public boolean ended = false;
+
+    /**
+     * Specify the connectionId returned from the setup command.
+     *
+     * @param connectionId
+     *            The id returned from the setup command.
+     */
+    public HttpSubscribeMessage(long connectionId) {
+        super(connectionId);
+        httpRequest = "GET";
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the connectionId.
+     */
+    public HttpSubscribeMessage() {
+        httpRequest = "GET";
+    }
+
+    /**
+     * Ask the connection task to open the stream.
+     */
+    @Override
+    public void onCommandMessage(HttpConnectionTask context) {
+        context.subscribe(this);
+    }
+
+    /**
+     * Validate the command. The outputHttpChannelURI must be specified, the stream has nowhere to go otherwise.
+     */
+    @Override
+    public String onValidate(HttpConnectionTask context) {
+        String errorMsg = super.onValidate(context);
+        if (errorMsg != null)
+            return errorMsg;
+        if (outputHttpChannelURI == null || format == null || reconnectMillis < 0 || idleTimeoutSeconds < 0) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "SubscribeCommand needs an outputHttpChannelURI, a format and positive times";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.message;
+
+import com.intel.icecp.module.httpbridge.HttpConnectionTask;
+
+/**
+ * This data command upgrades the connection URL to a WebSocket and bridges it both ways: each message from the server is published to the output channel,
+ * and each message published on the input channel is sent to the server. One session replaces many polls of an upstream that pushes its changes.
+ * <p>
+ * <b>Send Message</b><p>
+ * Create a new HttpWebSocketMessage( connectionId ), set the outputHttpChannelURI and, to send messages, the inputHttpChannelURI. Publish it on the data
+ * command channel like a {@link HttpDataMessage}. The connection URL is http or https, the WebSocket is ws or wss on the same host, port and path. The
+ * requestHeaders are sent with the handshake.
+ * <p>
+ * <b>Results</b><p>
+ * The message is returned on the data command return channel once the handshake is done, with status, responseCode (101) and responseHeaders. The messages
+ * of the server are then published to the output channel as BytesMessages.
+ * <p>
+ * When the session ends the message is returned again with ended set, the final status, the close code and reason of the server and the message counts.
+ * The session ends when the server closes it, when a ping is not answered within two ping intervals (status ERROR_ON_IO) or when the connection is torn
+ * down (status OK).
+ * <p>
+ * Messages on the input channel wait in a queue of sendQueueSize for the socket. When it is full, the input channel is held for up to sendTimeoutMillis,
+ * then the message is dropped and counted.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpWebSocketMessage extends HttpDataMessage {
+
+    /**
+     * (optional) The subprotocol asked for in the handshake. Returned with the subprotocol chosen by the server.
+     */
+    public String subprotocol;
+
+    /**
+     * (optional) Send the messages of the input channel as text frames (UTF-8) instead of binary frames. Default is false.
+     */
+    public boolean textFrames = false;
+
+    /**
+     * (optional) The time between two pings, in seconds, 0 for no ping. Default is 30.
+     */
+    public long pingIntervalSeconds = 30;
+
+    /**
+     * (optional) The largest message accepted from the server, in bytes. Default is 1 MB.
+     */
+    public int maxMessageBytes = 1024 * 1024;
+
+    /**
+     * (optional) The number of input messages waiting to be sent. Default is 256.
+     */
+    public int sendQueueSize = 256;
+
+    /**
+     * (optional) How long an input message waits for room in a full send queue before it is dropped, in milliseconds. Default is 5000.
+     */
+    public long sendTimeoutMillis = 5000;
+
+    /**
+     * Returned: the close code of the server, or 1006 if the session ended without one.
+     */
+    public int closeCode;
+
+    /**
+     * Returned: the close reason of the server.
+     */
+    public String closeReason;
+
+    /**
+     * Returned: the number of messages received and published to the output channel.
+     */
+    public long messagesReceived;
+
+    /**
+     * Returned: the number of input messages sent.
+     */
+    public long messagesSent;
+
+    /**
+     * Returned: the number of input messages dropped, the send queue being full.
+     */
+    public long messagesDropped;
+
+    /**
+     * Returned: true when the session has ended.
+     */
+    public boolean ended = false;
+
+    /**
+     * Specify the connectionId returned from the setup command.
+     *
+     * @param connectionId
+     *            The id returned from the setup command.
+     */
+    public HttpWebSocketMessage(long connectionId) {
+        super(connectionId);
+        httpRequest = "GET";
+    }
+
+    /**
+     * Default constructor, required for serialization. If this constructor is used, be sure to set the connectionId.
+     */
+    public HttpWebSocketMessage() {
+        httpRequest = "GET";
+    }
+
+    /**
+     * Ask the connection task to open the WebSocket.
+     */
+    @Override
+    public void onCommandMessage(HttpConnectionTask context) {
+        context.webSocket(this);
+    }
+
+    /**
+     * Validate the command. The outputHttpChannelURI must be specified, the messages of the server have nowhere to go otherwise.
+     */
+    @Override
+    public String onValidate(HttpConnectionTask context) {
+        String errorMsg = super.onValidate(context);
+        if (errorMsg != null)
+            return errorMsg;
+        if (outputHttpChannelURI == null || pingIntervalSeconds < 0 || maxMessageBytes <= 0 || sendQueueSize <= 0 || sendTimeoutMillis < 0) {
+            status = HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX;
+            return "WebSocketCommand needs an outputHttpChannelURI and positive limits";
+        }
+        return null;
+    }
+}
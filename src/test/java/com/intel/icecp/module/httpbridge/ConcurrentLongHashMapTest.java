@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the connection registry map and the connectionId generator.
+ */
+public class ConcurrentLongHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<>(4, 2);
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-5, "minus five"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.putIfAbsent(1, "one"));
+        assertEquals("uno", map.get(1));
+        assertEquals("minus five", map.get(-5));
+        assertNull(map.get(0));
+        assertEquals(2, map.size());
+
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(1, map.values().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKeyIsReserved() {
+        new ConcurrentLongHashMap<String>().put(0, "zero");
+    }
+
+    @Test
+    public void testMatchesHashMapUnderChurn() {
+        ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<>(16, 4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // A small key range forces long probe sequences and many removals from the middle of them.
+        for (int i = 0; i < 200000; i++) {
+            long key = 1 + random.nextInt(2000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 2000; key++)
+            assertEquals(expected.get(key), map.get(key));
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws InterruptedException {
+        ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<>();
+        for (long key = 1; key <= 1000; key++)
+            map.put(key, key);
+
+        AtomicInteger wrongValues = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final boolean writer = t % 2 == 0;
+            final long base = 1_000_000L * (t + 1);
+            new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    if (writer) {
+                        map.put(base + i, base + i);
+                        map.remove(base + i);
+                    } else {
+                        long key = 1 + (i % 1000);
+                        Long value = map.get(key);
+                        if (value == null || value != key)
+                            wrongValues.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, wrongValues.get());
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void testGeneratedIdsAreNeverZero() {
+        HttpConnectionIdGenerator generator = new HttpConnectionIdGenerator();
+        for (int i = 0; i < 1000; i++)
+            assertTrue(generator.nextId() != 0);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+
+/**
+ * Unit tests for the access log ring buffer, sampling and rate cap.
+ */
+public class HttpAccessLogTest {
+    private URL url = null;
+    private HttpDataMessage dataMessage = null;
+    private HttpRequestTiming timing = null;
+
+    @Before
+    public void setUp() throws Exception {
+        url = new URL("http://example.com/status");
+        dataMessage = new HttpDataMessage(7);
+        dataMessage.httpRequest = "GET";
+        dataMessage.status = HTTP_BRIDGE_STATUS.OK;
+        dataMessage.responseCode = 200;
+        timing = new HttpRequestTiming();
+        timing.responseBytes = 12;
+        timing.totalNanos = 3000000;
+    }
+
+    @Test
+    public void testRecordIsFormatted() {
+        CollectingAccessLog accessLog = new CollectingAccessLog(1, 0, 8);
+        assertTrue(accessLog.record(url, dataMessage, timing));
+        assertEquals(1, accessLog.drain());
+
+        String line = accessLog.lines.get(0);
+        assertTrue(line, line.contains(" id=7 method=GET host=example.com path=/status status=OK code=200 reqBytes=0 respBytes=12 micros=3000"));
+        assertEquals(1, accessLog.getWritten());
+    }
+
+    @Test
+    public void testFullRingDropsRecords() {
+        CollectingAccessLog accessLog = new CollectingAccessLog(1, 0, 4);
+        for (int i = 0; i < 6; i++)
+            accessLog.record(url, dataMessage, timing);
+        assertEquals(2, accessLog.getDropped());
+        assertEquals(4, accessLog.drain());
+
+        // The slots are free again once written.
+        for (int i = 0; i < 4; i++)
+            assertTrue(accessLog.record(url, dataMessage, timing));
+        assertEquals(4, accessLog.drain());
+        assertEquals(8, accessLog.getWritten());
+    }
+
+    @Test
+    public void testErrorsAreNotSampledOut() {
+        CollectingAccessLog accessLog = new CollectingAccessLog(1000000, 0, 16);
+        dataMessage.status = HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE;
+        for (int i = 0; i < 10; i++)
+            assertTrue(accessLog.record(url, dataMessage, null));
+        assertEquals(10, accessLog.drain());
+        assertEquals(0, accessLog.getSampledOut());
+    }
+
+    @Test
+    public void testRateCap() {
+        CollectingAccessLog accessLog = new CollectingAccessLog(1, 5, 16);
+        int recorded = 0;
+        for (int i = 0; i < 10; i++) {
+            if (accessLog.record(url, dataMessage, timing))
+                recorded++;
+        }
+        assertEquals(5, recorded);
+        assertEquals(5, accessLog.getCapped());
+    }
+
+    @Test
+    public void testDisabled() {
+        HttpAccessLog accessLog = new HttpAccessLog();
+        assertFalse(accessLog.isEnabled());
+        assertFalse(accessLog.record(url, dataMessage, timing));
+    }
+
+    @Test
+    public void testWriterDrainsOnShutdown() throws Exception {
+        CollectingAccessLog accessLog = new CollectingAccessLog(1, 0, 1024);
+        accessLog.start();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 250; i++)
+                    accessLog.record(url, dataMessage, timing);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        accessLog.shutdown();
+        assertEquals(1000, accessLog.getWritten() + accessLog.getDropped());
+        assertEquals(accessLog.getWritten(), accessLog.lines.size());
+    }
+
+    /**
+     * Collects the lines instead of logging them.
+     */
+    private static class CollectingAccessLog extends HttpAccessLog {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        CollectingAccessLog(int sampleEvery, long maxPerSecond, int capacity) {
+            super(sampleEvery, maxPerSecond, capacity);
+        }
+
+        @Override
+        protected void write(CharSequence line) {
+            lines.add(line.toString());
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Node;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.main.ModuleParameter;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpTeardownMessage;
+import com.intel.icecp.node.NodeFactory;
+
+/**
+ * An offline load test of the module. Starts an in-process test node with the module jar and a local {@link HttpStubServer}, sets up connections through
+ * the command channel, and sends data commands at a target rate on the data command channels.
+ * <p>
+ * The load is open loop: commands are sent on a fixed schedule whatever the replies, and the latency of a command is measured from the time it was due, so
+ * a stalled bridge shows in the latency rather than in a lower send rate. Every report period the throughput, the latency, the threads and the heap are
+ * printed; a summary is printed at the end.
+ * <p>
+ * Build the module jar first, then run with {@code mvn -P loadtest package -DskipTests exec:exec -Dload.args="connections=50 rate=2000"}. Options, as
+ * name=value arguments:
+ * <ul>
+ * <li>connections: connections set up (10)</li>
+ * <li>rate: data commands per second, over all connections (500)</li>
+ * <li>durationSeconds: measured run time (60), after warmupSeconds (10)</li>
+ * <li>bodyBytes: size of the responses of the stub server (1024)</li>
+ * <li>serverThreads: threads of the stub server (32)</li>
+ * <li>output: publish the response bodies on output channels (false)</li>
+ * <li>reportSeconds: period of the reports (5)</li>
+ * <li>moduleJar: the module jar (target/icecp-module-http-0.1.2.jar)</li>
+ * <li>configuration: the module configuration (the one next to the jar)</li>
+ * </ul>
+ *
+ */
+public class HttpBridgeLoadRunner {
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The request header carrying the sequence number of a data command. The reply carries the request headers back.
+     */
+    static final String SEQUENCE_HEADER = "X-Load-Sequence";
+
+    /**
+     * The number of due times kept, the maximum number of data commands in flight.
+     */
+    private static final int SEND_TIMES = 1 << 20;
+
+    protected final int connectionCount;
+    protected final double rate;
+    protected final long warmupSeconds;
+    protected final long durationSeconds;
+    protected final long reportSeconds;
+    protected final boolean output;
+    protected final String moduleJar;
+    protected final String configuration;
+    protected final HttpStubServer server;
+
+    private Node node;
+    private Channel<HttpBaseMessage> cmdChannel;
+    private Channel<HttpBaseMessage> cmdReturnChannel;
+    private URI cmdReturnURI;
+    private final BlockingQueue<HttpBaseMessage> cmdReplies = new LinkedBlockingQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    private final long[] sendTimes = new long[SEND_TIMES];
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder measured = new LongAdder();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(HTTP_BRIDGE_STATUS.values().length);
+    private final HttpLatencyHistogram latency = new HttpLatencyHistogram();
+    private final AtomicReference<HttpLatencyHistogram> intervalLatency = new AtomicReference<>(new HttpLatencyHistogram());
+    private final HttpMetricsMessage moduleMetrics = new HttpMetricsMessage();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private long peakHeapBytes = 0;
+    private long lastReportNanos;
+    private long lastReceived;
+
+    public static void main(String[] args) throws Exception {
+        Properties options = parse(args);
+        try (HttpStubServer server = new HttpStubServer(Integer.parseInt(options.getProperty("bodyBytes", "1024")),
+                Integer.parseInt(options.getProperty("serverThreads", "32")))) {
+            new HttpBridgeLoadRunner(options, server).run();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Parse name=value arguments.
+     */
+    static Properties parse(String[] args) {
+        Properties options = new Properties();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException(String.format("Invalid argument [%s], expected name=value", arg));
+            options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Create a load test.
+     *
+     * @param options
+     *            The options, see the class documentation.
+     * @param server
+     *            The upstream server of the connections.
+     */
+    public HttpBridgeLoadRunner(Properties options, HttpStubServer server) {
+        this.connectionCount = Integer.parseInt(options.getProperty("connections", "10"));
+        this.rate = Double.parseDouble(options.getProperty("rate", "500"));
+        this.warmupSeconds = Long.parseLong(options.getProperty("warmupSeconds", "10"));
+        this.durationSeconds = Long.parseLong(options.getProperty("durationSeconds", "60"));
+        this.reportSeconds = Long.parseLong(options.getProperty("reportSeconds", "5"));
+        this.output = Boolean.parseBoolean(options.getProperty("output", "false"));
+        this.moduleJar = options.getProperty("moduleJar", "target/icecp-module-http-0.1.2.jar");
+        this.configuration = options.getProperty("configuration");
+        this.server = server;
+        if (connectionCount < 1 || rate <= 0 || durationSeconds < 1 || reportSeconds < 1)
+            throw new IllegalArgumentException("connections, rate, durationSeconds and reportSeconds must be positive");
+    }
+
+    /**
+     * Start the node and the module, run the load and print the summary.
+     *
+     * @throws Exception
+     *             The node, the module or the connections could not be set up.
+     */
+    public void run() throws Exception {
+        startNode();
+        try {
+            setupConnections();
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            lastReportNanos = System.nanoTime();
+            reporter.scheduleAtFixedRate(this::report, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+            try {
+                drive();
+                awaitReplies(TimeUnit.SECONDS.toNanos(10));
+            } finally {
+                reporter.shutdownNow();
+            }
+            printSummary();
+            tearDownConnections();
+        } finally {
+            node.stop();
+        }
+    }
+
+    private void startNode() throws Exception {
+        System.setProperty("icecp.sandbox", "disabled");
+        node = NodeFactory.buildTestNode("/intel/node/loadtest");
+        node.start();
+
+        ModuleParameter module = ModuleParameter.build(moduleJar);
+        URI configurationUri = configuration != null ? new File(configuration).toURI() : module.configurationPath;
+        node.loadAndStartModules(module.modulePath, configurationUri).get(30, TimeUnit.SECONDS);
+
+        String base = node.getDefaultUri().toString();
+        cmdReturnURI = new URI(base + "/loadtest-CMD-RETURN");
+        cmdChannel = node.openChannel(new URI(base + "/" + HttpBaseMessage.HTTP_CMD_CHANNEL_NAME), HttpBaseMessage.class, Persistence.NEVER_PERSIST);
+        cmdReturnChannel = node.openChannel(cmdReturnURI, HttpBaseMessage.class, Persistence.NEVER_PERSIST);
+        cmdReturnChannel.subscribe(cmdReplies::add);
+        Channel<HttpMetricsMessage> metricsChannel = node.openChannel(new URI(base + "/" + HttpMetricsMessage.HTTP_METRICS_CHANNEL_NAME),
+                HttpMetricsMessage.class, new Persistence());
+        metricsChannel.subscribe(this::onModuleMetrics);
+    }
+
+    private void setupConnections() throws Exception {
+        for (int i = 0; i < connectionCount; i++) {
+            HttpSetupMessage setup = new HttpSetupMessage(cmdReturnURI);
+            setup.connectionUrl = server.getUrl();
+            cmdChannel.publish(setup);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30 + connectionCount / 10);
+        while (connections.size() < connectionCount) {
+            HttpBaseMessage reply = cmdReplies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (reply == null)
+                throw new IllegalStateException(String.format("Only [%d] of [%d] connections were set up", connections.size(), connectionCount));
+            if (!(reply instanceof HttpSetupMessage))
+                continue;
+            if (reply.status != HTTP_BRIDGE_STATUS.OK)
+                throw new IllegalStateException(String.format("Setup failed with [%s]", reply.status));
+            connections.add(new Connection((HttpSetupMessage) reply, connections.size()));
+        }
+        // The connection tasks subscribe to their data command channels after the setup reply.
+        Thread.sleep(1000);
+        System.out.printf("%d connections set up to %s%n", connections.size(), server.getUrl());
+    }
+
+    /**
+     * Send the data commands on schedule for the warmup and the measured run.
+     */
+    private void drive() {
+        long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        measureFromNanos = measureFrom;
+        long due = start;
+        long sequence = 0;
+        while (due < end) {
+            long now;
+            while ((now = System.nanoTime()) < due)
+                LockSupport.parkNanos(due - now);
+            Connection connection = connections.get((int) (sequence % connections.size()));
+            sendTimes[(int) sequence & (SEND_TIMES - 1)] = due;
+            connection.send(sequence);
+            sent.increment();
+            sequence++;
+            due += intervalNanos;
+        }
+    }
+
+    private void awaitReplies(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (received.sum() < sent.sum() && System.nanoTime() < deadline)
+            Thread.sleep(100);
+    }
+
+    private void onReply(HttpDataMessage reply) {
+        long now = System.nanoTime();
+        received.increment();
+        statusCounts.incrementAndGet(reply.status.ordinal());
+        String sequence = reply.requestHeaders != null ? reply.requestHeaders.get(SEQUENCE_HEADER) : null;
+        if (sequence == null)
+            return;
+        long due = sendTimes[(int) Long.parseLong(sequence) & (SEND_TIMES - 1)];
+        if (due >= measureFromNanos) {
+            latency.record(now - due);
+            intervalLatency.get().record(now - due);
+            measured.increment();
+        }
+    }
+
+    private void onModuleMetrics(HttpMetricsMessage metrics) {
+        synchronized (moduleMetrics) {
+            moduleMetrics.requestQueueDepth = metrics.requestQueueDepth;
+            moduleMetrics.busyRequestWorkers = metrics.busyRequestWorkers;
+            moduleMetrics.requestsRejected = metrics.requestsRejected;
+        }
+    }
+
+    /**
+     * Print the throughput and latency of the last period, and the threads and heap. Run on the reporter thread.
+     */
+    protected void report() {
+        long now = System.nanoTime();
+        long total = received.sum();
+        double seconds = (now - lastReportNanos) / 1e9;
+        double throughput = (total - lastReceived) / seconds;
+        lastReportNanos = now;
+        lastReceived = total;
+        HttpMetricsMessage.Latency interval = intervalLatency.getAndSet(new HttpLatencyHistogram()).snapshot();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        peakHeapBytes = Math.max(peakHeapBytes, heap);
+        synchronized (moduleMetrics) {
+            System.out.printf("%8.1f/s sent %d received %d in flight %d | p50 %s p99 %s p999 %s max %s | threads %d heap %d MB | queue %d busy %d%n",
+                    throughput, sent.sum(), total, sent.sum() - total, millis(interval.p50Nanos), millis(interval.p99Nanos),
+                    millis(interval.p999Nanos), millis(interval.maxNanos), threads.getThreadCount(), heap >> 20, moduleMetrics.requestQueueDepth,
+                    moduleMetrics.busyRequestWorkers);
+        }
+        sample(throughput, interval);
+    }
+
+    /**
+     * Called after each report with the figures of the period. Does nothing, overridden to track trends.
+     *
+     * @param throughput
+     *            The replies per second over the period
+     * @param interval
+     *            The latency over the period
+     */
+    protected void sample(double throughput, HttpMetricsMessage.Latency interval) {
+    }
+
+    /**
+     * Print the totals of the measured run.
+     */
+    protected void printSummary() {
+        HttpMetricsMessage.Latency total = latency.snapshot();
+        Map<String, Long> statuses = new HashMap<>();
+        for (HTTP_BRIDGE_STATUS status : HTTP_BRIDGE_STATUS.values()) {
+            if (statusCounts.get(status.ordinal()) > 0)
+                statuses.put(status.name(), statusCounts.get(status.ordinal()));
+        }
+        System.out.printf("%nTarget rate        %.1f/s over %d connections%n", rate, connections.size());
+        System.out.printf("Sustained rate     %.1f/s (%d replies in %d s)%n", (double) measured.sum() / durationSeconds, measured.sum(), durationSeconds);
+        System.out.printf("Unanswered         %d of %d%n", sent.sum() - received.sum(), sent.sum());
+        System.out.printf("Status             %s%n", statuses);
+        System.out.printf("Latency            p50 %s  p90 %s  p99 %s  p999 %s  max %s  mean %s ms%n", millis(total.p50Nanos), millis(total.p90Nanos),
+                millis(total.p99Nanos), millis(total.p999Nanos), millis(total.maxNanos), millis(total.meanNanos));
+        System.out.printf("Threads            %d (peak %d)%n", threads.getThreadCount(), threads.getPeakThreadCount());
+        System.out.printf("Heap               %d MB (peak sampled %d MB, max %d MB)%n", memory.getHeapMemoryUsage().getUsed() >> 20, peakHeapBytes >> 20,
+                memory.getHeapMemoryUsage().getMax() >> 20);
+        System.out.printf("Upstream requests  %d%n", server.getRequestCount());
+    }
+
+    private void tearDownConnections() {
+        for (Connection connection : connections)
+            connection.close();
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    /**
+     * The data command channels of a connection set up by the load test.
+     */
+    private class Connection {
+        private final HttpSetupMessage setup;
+        private final Channel<HttpDataMessage> dataChannel;
+        private final Channel<HttpDataMessage> dataReturnChannel;
+        private final URI outputURI;
+
+        Connection(HttpSetupMessage setup, int index) throws Exception {
+            this.setup = setup;
+            this.dataChannel = node.openChannel(setup.dataCmdChannelURI, HttpDataMessage.class, new Persistence());
+            this.dataReturnChannel = node.openChannel(setup.dataCmdReturnChannelURI, HttpDataMessage.class, Persistence.NEVER_PERSIST);
+            this.outputURI = output ? new URI(node.getDefaultUri() + "/loadtest-output-" + index) : null;
+            dataReturnChannel.subscribe(HttpBridgeLoadRunner.this::onReply);
+        }
+
+        void send(long sequence) {
+            HttpDataMessage message = new HttpDataMessage(setup.connectionId);
+            message.httpRequest = "GET";
+            message.outputHttpChannelURI = outputURI;
+            message.requestHeaders = new HashMap<>();
+            message.requestHeaders.put(SEQUENCE_HEADER, Long.toString(sequence));
+            try {
+                dataChannel.publish(message);
+            } catch (Exception e) {
+                logger.error("Failed to send data command [{}]", sequence, e);
+            }
+        }
+
+        void close() {
+            try {
+                cmdChannel.publish(new HttpTeardownMessage(setup.connectionId, cmdReturnURI));
+                dataChannel.close();
+                dataReturnChannel.close();
+            } catch (Exception e) {
+                logger.error("Failed to tear down connection [{}]", setup.connectionId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the management bean and the rate limiter it tunes.
+ */
+public class HttpBridgeManagementTest {
+
+    @Test
+    public void testManagementBeanIsAValidMXBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.intel.icecp.module.httpbridge:type=HttpBridge,id=test");
+        HttpBridge_Module module = new HttpBridge_Module();
+        server.registerMBean(module.new Management(), name);
+        try {
+            assertEquals(0, server.getAttribute(name, "ConnectionCount"));
+            server.setAttribute(name, new Attribute("ReadTimeoutMillis", 2500));
+            assertEquals(2500, server.getAttribute(name, "ReadTimeoutMillis"));
+            server.setAttribute(name, new Attribute("MaxConnectionThreads", 20));
+            assertEquals(20, server.getAttribute(name, "MaxConnectionThreads"));
+            assertEquals(false, server.invoke(name, "tearDownConnection", new Object[] { 42L }, new String[] { long.class.getName() }));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testRateLimiterAllowsBurstThenLimits() {
+        HttpRateLimiter limiter = new HttpRateLimiter(1, 3);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(3, limiter.getBurst());
+
+        limiter.setRate(0, 1);
+        for (int i = 0; i < 100; i++)
+            assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testBurstIsKeptWithoutALimit() {
+        HttpRateLimiter limiter = new HttpRateLimiter(0, 5);
+        assertEquals(5, limiter.getBurst());
+
+        // Setting the rate back keeps the burst, as the management bean does.
+        limiter.setRate(1, limiter.getBurst());
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testMaxConnectionThreadsCanBeLowered() {
+        HttpBridge_Module.Management management = new HttpBridge_Module().new Management();
+        management.setMaxConnectionThreads(20);
+        management.setMaxConnectionThreads(1);
+        assertEquals(1, management.getMaxConnectionThreads());
+        try {
+            management.setMaxConnectionThreads(0);
+            fail("Zero connection threads must be refused");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid max connection threads [0]", e.getMessage());
+        }
+        assertEquals(1, management.getMaxConnectionThreads());
+    }
+}
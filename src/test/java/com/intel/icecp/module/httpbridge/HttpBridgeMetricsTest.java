@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+
+/**
+ * Unit tests for the latency histogram and the metrics snapshot.
+ */
+public class HttpBridgeMetricsTest {
+
+    @Test
+    public void testHistogramBucketsAreContinuous() {
+        for (long value = 0; value < 100000; value++) {
+            int index = HttpLatencyHistogram.indexOf(value);
+            assertTrue(value <= HttpLatencyHistogram.highestValueOf(index));
+            assertTrue(index == 0 || value > HttpLatencyHistogram.highestValueOf(index - 1));
+        }
+        int last = HttpLatencyHistogram.indexOf(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, HttpLatencyHistogram.highestValueOf(last));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value * 1000);
+
+        HttpMetricsMessage.Latency latency = histogram.snapshot();
+        assertEquals(1000, latency.count);
+        assertEquals(1000000, latency.maxNanos);
+        // Within the 1/16 precision of the buckets.
+        assertTrue(Math.abs(latency.p50Nanos - 500000) <= 500000 / 16);
+        assertTrue(Math.abs(latency.p99Nanos - 990000) <= 990000 / 16);
+        assertEquals(500500, latency.meanNanos);
+    }
+
+    @Test
+    public void testHistogramIntervals() {
+        HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+        for (int i = 0; i < 100; i++)
+            histogram.record(1000000);
+        assertEquals(100, histogram.snapshotAndReset().count);
+
+        for (int i = 0; i < 100; i++)
+            histogram.record(1000);
+        HttpMetricsMessage.Latency latency = histogram.snapshotAndReset();
+        assertEquals(100, latency.count);
+        // The slow values of the previous interval are gone.
+        assertEquals(1000, latency.maxNanos);
+        assertEquals(1000, latency.meanNanos);
+        assertTrue(latency.p99Nanos <= 1000);
+        assertEquals(0, histogram.snapshotAndReset().count);
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void testSnapshotLatencyIsOverTheInterval() {
+        HttpBridgeMetrics metrics = new HttpBridgeMetrics();
+        HttpRequestTiming timing = new HttpRequestTiming();
+        timing.totalNanos = 5000000;
+        metrics.recordRequest("a.example.com", new HttpDataMessage(1), timing);
+        metrics.snapshot(new HttpMetricsMessage());
+
+        timing.totalNanos = 2000;
+        metrics.recordRequest("a.example.com", new HttpDataMessage(1), timing);
+        HttpMetricsMessage snapshot = new HttpMetricsMessage();
+        metrics.snapshot(snapshot);
+        assertEquals(2, snapshot.requests);
+        assertEquals(1, snapshot.phaseLatency.get("TOTAL").count);
+        assertEquals(2000, snapshot.phaseLatency.get("TOTAL").maxNanos);
+        assertEquals(2, snapshot.hosts.get("a.example.com").requests);
+        assertEquals(2000, snapshot.hosts.get("a.example.com").latency.p99Nanos);
+    }
+
+    @Test
+    public void testSnapshotByHostAndConnection() {
+        HttpBridgeMetrics metrics = new HttpBridgeMetrics(true);
+        HttpRequestTiming timing = new HttpRequestTiming();
+        timing.totalNanos = 2000;
+        timing.responseBytes = 100;
+
+        HttpDataMessage ok = new HttpDataMessage(7);
+        metrics.recordRequest("a.example.com", ok, timing);
+        metrics.recordRequest("b.example.com", ok, timing);
+        HttpDataMessage rejected = new HttpDataMessage(7);
+        rejected.status = HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD;
+        metrics.recordRejected(rejected);
+
+        HttpMetricsMessage snapshot = new HttpMetricsMessage();
+        metrics.snapshot(snapshot);
+        assertEquals(2, snapshot.requests);
+        assertEquals(200, snapshot.bytesIn);
+        assertEquals(2L, (long) snapshot.statusCounts.get(HTTP_BRIDGE_STATUS.OK));
+        assertEquals(1L, (long) snapshot.statusCounts.get(HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD));
+        assertEquals(1, snapshot.hosts.get("a.example.com").requests);
+        assertEquals(2, snapshot.connections.get(7L).requests);
+        assertEquals(2, snapshot.phaseLatency.get("TOTAL").count);
+
+        metrics.removeConnection(7);
+        HttpMetricsMessage next = new HttpMetricsMessage();
+        metrics.snapshot(next);
+        assertNull(next.connections.get(7L));
+        assertEquals(0.0, next.requestsPerSecond, 0.0);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.ToDoubleFunction;
+
+import com.intel.icecp.module.httpbridge.message.HttpMetricsMessage;
+
+/**
+ * A soak test of the module: the {@link HttpBridgeLoadRunner} load, for hours, against a {@link HttpFaultInjectingServer}. Every report period it samples
+ * the threads, the heap left after the last collection, the threads stuck reading a socket and the tail latency. At the end it checks the trends and exits
+ * with 1 if one is over its limit, so leaks and pinned threads fail the run.
+ * <p>
+ * Run with {@code mvn -P loadtest package -DskipTests exec:exec -Dload.mainClass=com.intel.icecp.module.httpbridge.HttpBridgeSoakRunner
+ * -Dload.args="durationHours=8 csv=target/soak.csv"}. Options, on top of those of the load runner and the fault injecting server:
+ * <ul>
+ * <li>durationHours: measured run time (4)</li>
+ * <li>csv: a file to write the samples to</li>
+ * <li>stuckSeconds: a thread reading a socket this long is stuck (120)</li>
+ * <li>maxStuckThreads: stuck threads allowed at the end (0)</li>
+ * <li>maxThreadGrowth: growth of the thread count between the first and last quarter of the run (10)</li>
+ * <li>maxHeapGrowthMBPerHour: growth of the heap after collection (50)</li>
+ * <li>maxP99Growth: ratio of the p99 latency of the last quarter of the run to the first (2)</li>
+ * </ul>
+ * The faults default to a mild mix: exponential latency of 5 ms mean with a 2 s tail, and a few slow drips, resets, half open connections and 5xx bursts.
+ *
+ */
+public class HttpBridgeSoakRunner extends HttpBridgeLoadRunner {
+    private static final String[][] DEFAULTS = { { "durationHours", "4" }, { "reportSeconds", "60" }, { "warmupSeconds", "60" }, { "connections", "20" },
+            { "rate", "200" }, { "latencyMeanMillis", "5" }, { "latencyTailRate", "0.001" }, { "latencyTailMillis", "2000" }, { "dripRate", "0.01" },
+            { "resetRate", "0.005" }, { "hangRate", "0.0005" }, { "hangMillis", "600000" }, { "errorBurstPeriodSeconds", "600" },
+            { "errorBurstSeconds", "30" } };
+
+    private final long stuckSeconds;
+    private final int maxStuckThreads;
+    private final double maxThreadGrowth;
+    private final double maxHeapGrowthMBPerHour;
+    private final double maxP99Growth;
+    private final PrintWriter csv;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final long startNanos = System.nanoTime();
+    private final List<Sample> samples = new ArrayList<>();
+    private Map<Long, Integer> socketReaders = new HashMap<>();
+    private boolean passed = false;
+
+    public static void main(String[] args) throws Exception {
+        Properties options = withDefaults(parse(args));
+        boolean passed;
+        try (HttpFaultInjectingServer server = new HttpFaultInjectingServer(options)) {
+            HttpBridgeSoakRunner runner = new HttpBridgeSoakRunner(options, server);
+            runner.run();
+            passed = runner.passed;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Fill in the options not given with the soak defaults.
+     */
+    static Properties withDefaults(Properties options) {
+        for (String[] option : DEFAULTS) {
+            if (options.getProperty(option[0]) == null)
+                options.setProperty(option[0], option[1]);
+        }
+        if (options.getProperty("durationSeconds") == null)
+            options.setProperty("durationSeconds", Long.toString((long) (Double.parseDouble(options.getProperty("durationHours")) * 3600)));
+        return options;
+    }
+
+    /**
+     * Create a soak test.
+     *
+     * @param options
+     *            The options, see the class documentation.
+     * @param server
+     *            The upstream server of the connections.
+     * @throws IOException
+     *             The csv file could not be created
+     */
+    public HttpBridgeSoakRunner(Properties options, HttpStubServer server) throws IOException {
+        super(withDefaults(options), server);
+        stuckSeconds = Long.parseLong(options.getProperty("stuckSeconds", "120"));
+        maxStuckThreads = Integer.parseInt(options.getProperty("maxStuckThreads", "0"));
+        maxThreadGrowth = Double.parseDouble(options.getProperty("maxThreadGrowth", "10"));
+        maxHeapGrowthMBPerHour = Double.parseDouble(options.getProperty("maxHeapGrowthMBPerHour", "50"));
+        maxP99Growth = Double.parseDouble(options.getProperty("maxP99Growth", "2"));
+        String csvFile = options.getProperty("csv");
+        csv = csvFile != null ? new PrintWriter(new FileWriter(csvFile)) : null;
+        if (csv != null)
+            csv.println("seconds,throughput,p50Millis,p99Millis,p999Millis,maxMillis,threads,heapAfterGcMB,stuckThreads");
+    }
+
+    @Override
+    protected void sample(double throughput, HttpMetricsMessage.Latency interval) {
+        Sample sample = new Sample();
+        sample.hours = (System.nanoTime() - startNanos) / 3.6e12;
+        sample.throughput = throughput;
+        sample.p99Nanos = interval.p99Nanos;
+        sample.threads = threads.getThreadCount();
+        sample.heapAfterGcBytes = heapAfterGc();
+        sample.stuckThreads = countStuckThreads();
+        synchronized (samples) {
+            samples.add(sample);
+        }
+        if (csv != null) {
+            csv.printf("%.0f,%.1f,%s,%s,%s,%s,%d,%d,%d%n", sample.hours * 3600, throughput, millis(interval.p50Nanos), millis(interval.p99Nanos),
+                    millis(interval.p999Nanos), millis(interval.maxNanos), sample.threads, sample.heapAfterGcBytes >> 20, sample.stuckThreads);
+            csv.flush();
+        }
+    }
+
+    @Override
+    protected void printSummary() {
+        super.printSummary();
+        if (server instanceof HttpFaultInjectingServer)
+            System.out.printf("Faults             %s%n", ((HttpFaultInjectingServer) server).getFaultCounts());
+
+        List<Sample> measured;
+        synchronized (samples) {
+            // The first samples cover the setup and the warmup.
+            measured = new ArrayList<>(samples.subList(Math.min(samples.size(), Math.max(1, samples.size() / 10)), samples.size()));
+        }
+        if (measured.size() < 4) {
+            System.out.printf("Too few samples [%d] to check the trends, run longer or report more often%n", measured.size());
+            passed = false;
+            return;
+        }
+        List<Sample> first = measured.subList(0, measured.size() / 4);
+        List<Sample> last = measured.subList(measured.size() - measured.size() / 4, measured.size());
+        double threadGrowth = mean(last, s -> s.threads) - mean(first, s -> s.threads);
+        double heapGrowth = slope(measured) / (1 << 20);
+        double p99Growth = mean(last, s -> s.p99Nanos) / Math.max(1, mean(first, s -> s.p99Nanos));
+        int stuck = measured.get(measured.size() - 1).stuckThreads;
+
+        passed = true;
+        passed &= check("Thread growth", threadGrowth, maxThreadGrowth, "%.1f threads");
+        passed &= check("Heap growth", heapGrowth, maxHeapGrowthMBPerHour, "%.1f MB/hour");
+        passed &= check("p99 growth", p99Growth, maxP99Growth, "x%.2f");
+        passed &= check("Stuck threads", stuck, maxStuckThreads, "%.0f");
+        System.out.println(passed ? "PASSED" : "FAILED");
+        if (csv != null)
+            csv.close();
+    }
+
+    private static boolean check(String name, double value, double limit, String format) {
+        boolean ok = value <= limit;
+        System.out.printf("%-18s %s (limit %s) %s%n", name, String.format(format, value), String.format(format, limit), ok ? "ok" : "OVER");
+        return ok;
+    }
+
+    /**
+     * @return The heap used after the last collection of each heap pool, the live data rather than the garbage.
+     */
+    private static long heapAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null)
+                used += usage.getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Count the threads blocked reading a socket for stuckSeconds: those seen reading at every sample over that time. A request worker reading an upstream
+     * that never answers, with no read timeout, stays here for ever.
+     */
+    private int countStuckThreads() {
+        Map<Long, Integer> readers = new HashMap<>();
+        for (ThreadInfo info : threads.dumpAllThreads(false, false)) {
+            if (info != null && isReadingSocket(info.getStackTrace()))
+                readers.put(info.getThreadId(), socketReaders.getOrDefault(info.getThreadId(), 0) + 1);
+        }
+        socketReaders = readers;
+        long samplesToStuck = Math.max(1, stuckSeconds / reportSeconds);
+        int stuck = 0;
+        for (int count : readers.values()) {
+            if (count > samplesToStuck)
+                stuck++;
+        }
+        return stuck;
+    }
+
+    private static boolean isReadingSocket(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if (frame.getMethodName().startsWith("socketRead") || frame.getClassName().endsWith("NioSocketImpl") && frame.getMethodName().equals("read"))
+                return true;
+        }
+        return false;
+    }
+
+    private static double mean(List<Sample> samples, ToDoubleFunction<Sample> value) {
+        return samples.stream().mapToDouble(value).average().orElse(0);
+    }
+
+    /**
+     * @return The least squares slope of the heap after collection, in bytes per hour.
+     */
+    private static double slope(List<Sample> samples) {
+        double meanX = mean(samples, s -> s.hours);
+        double meanY = mean(samples, s -> s.heapAfterGcBytes);
+        double covariance = 0;
+        double variance = 0;
+        for (Sample s : samples) {
+            covariance += (s.hours - meanX) * (s.heapAfterGcBytes - meanY);
+            variance += (s.hours - meanX) * (s.hours - meanX);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    /**
+     * The figures of a report period.
+     */
+    private static class Sample {
+        double hours;
+        double throughput;
+        long p99Nanos;
+        int threads;
+        long heapAfterGcBytes;
+        int stuckThreads;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+
+/**
+ * Unit tests for the reuse of the cached channels and the eviction of the idle ones.
+ */
+public class HttpChannelCacheTest {
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final URI first = URI.create("ndn:/test/first");
+    private final URI second = URI.create("ndn:/test/second");
+    private final URI third = URI.create("ndn:/test/third");
+
+    @Test
+    public void testChannelIsReused() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 4, 1, TimeUnit.HOURS);
+        Channel<BytesMessage> channel = cache.acquire(first, BytesMessage.class, new Persistence());
+        assertSame(channel, cache.acquire(first, BytesMessage.class, new Persistence()));
+        cache.release(first, BytesMessage.class);
+        cache.release(first, BytesMessage.class);
+        assertSame(channel, cache.acquire(first, BytesMessage.class, new Persistence()));
+
+        assertEquals(Collections.singletonList(first), testNode.getOpened());
+        assertTrue(testNode.getClosed().isEmpty());
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.idleSize());
+    }
+
+    @Test
+    public void testMessageTypesAreCachedApart() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 4, 1, TimeUnit.HOURS);
+        Channel<BytesMessage> bytes = cache.acquire(first, BytesMessage.class, new Persistence());
+        Channel<HttpDataMessage> data = cache.acquire(first, HttpDataMessage.class, new Persistence());
+
+        assertNotSame(bytes, data);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIdleChannelIsClosedFirst() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 2, 1, TimeUnit.HOURS);
+        for (URI channelURI : new URI[] { first, second, third }) {
+            cache.acquire(channelURI, BytesMessage.class, new Persistence());
+        }
+        cache.release(first, BytesMessage.class);
+        cache.release(second, BytesMessage.class);
+        // Using the first channel again makes the second the least recently used.
+        cache.acquire(first, BytesMessage.class, new Persistence());
+        cache.release(first, BytesMessage.class);
+        assertTrue(testNode.getClosed().isEmpty());
+
+        cache.release(third, BytesMessage.class);
+        assertEquals(Collections.singletonList(second), testNode.getClosed());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.idleSize());
+    }
+
+    @Test
+    public void testChannelIsClosedWhenReleasedWithoutIdleRoom() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 0, 1, TimeUnit.HOURS);
+        cache.acquire(first, BytesMessage.class, new Persistence());
+        cache.acquire(first, BytesMessage.class, new Persistence());
+        cache.release(first, BytesMessage.class);
+        assertTrue("A channel in use must stay open", testNode.getClosed().isEmpty());
+
+        cache.release(first, BytesMessage.class);
+        assertEquals(Collections.singletonList(first), testNode.getClosed());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testIdleChannelExpires() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 4, 50, TimeUnit.MILLISECONDS);
+        cache.acquire(first, BytesMessage.class, new Persistence());
+        cache.acquire(second, BytesMessage.class, new Persistence());
+        cache.release(first, BytesMessage.class);
+        cache.evictIdle();
+        assertTrue(testNode.getClosed().isEmpty());
+
+        Thread.sleep(100);
+        cache.evictIdle();
+        assertEquals(Collections.singletonList(first), testNode.getClosed());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCloseAllClosesChannelsInUse() throws Exception {
+        HttpChannelCache cache = new HttpChannelCache(testNode.getNode(), 4, 1, TimeUnit.HOURS);
+        cache.acquire(first, BytesMessage.class, new Persistence());
+        cache.acquire(second, BytesMessage.class, new Persistence());
+        cache.release(second, BytesMessage.class);
+        cache.closeAll();
+
+        assertEquals(Arrays.asList(first, second), testNode.getClosed());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.idleSize());
+        // A release after the close is ignored.
+        cache.release(first, BytesMessage.class);
+    }
+}
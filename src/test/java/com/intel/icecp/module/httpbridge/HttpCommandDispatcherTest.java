@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for the ordering and admission control of the command dispatcher.
+ */
+public class HttpCommandDispatcherTest {
+    private HttpCommandDispatcher dispatcher = null;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    @Test
+    public void testCommandsOfAConnectionRunInOrder() throws InterruptedException {
+        dispatcher = new HttpCommandDispatcher(4, 100, getClass().getClassLoader());
+        CountDownLatch done = new CountDownLatch(50);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+
+        assertSame(dispatcher.executorFor(42), dispatcher.executorFor(42));
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            dispatcher.executorFor(42).execute(() -> { order.add(n); done.countDown(); });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50; i++)
+            assertEquals(i, (int) order.get(i));
+    }
+
+    @Test
+    public void testFullStripeRejects() throws InterruptedException {
+        dispatcher = new HttpCommandDispatcher(1, 1, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = dispatcher.executorFor(7);
+
+        executor.execute(() -> { started.countDown(); await(blocker); });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(() -> { });
+        assertEquals(1, dispatcher.getQueueDepth());
+        try {
+            executor.execute(() -> { });
+            fail("Execute on a full stripe should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        blocker.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage.BALANCE_POLICY;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs data commands against a local http server and checks the returned timing and the metrics.
+ */
+public class HttpCommandExecutorTest {
+    private static final Logger logger = LogManager.getLogger();
+    private HttpServer server = null;
+    private HttpSetupMessage setupMessage = null;
+    private HttpBridgeMetrics metrics = null;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        metrics = new HttpBridgeMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private HttpDataMessage execute(boolean returnTiming) {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.requestHeaders = new HashMap<>();
+        dataMessage.returnTiming = returnTiming;
+        HttpChannelCache channelCache = new HttpChannelCache(null, 0, 0, TimeUnit.SECONDS);
+        new HttpCommandExecutor(logger, null, setupMessage, channelCache, metrics, new HttpBridgeSettings()).executeCommand(dataMessage);
+        return dataMessage;
+    }
+
+    @Test
+    public void testTimingIsReturnedWhenAsked() {
+        HttpDataMessage dataMessage = execute(true);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(200, dataMessage.responseCode);
+        assertNotNull(dataMessage.timing);
+        assertTrue(dataMessage.timing.connectNanos > 0);
+        assertTrue(dataMessage.timing.firstByteNanos > 0);
+        assertTrue(dataMessage.timing.totalNanos >= dataMessage.timing.connectNanos + dataMessage.timing.firstByteNanos);
+        assertEquals(1, metrics.getRequestCount());
+    }
+
+    @Test
+    public void testTimingIsOnlyRecordedByDefault() {
+        HttpDataMessage dataMessage = execute(false);
+
+        assertNull(dataMessage.timing);
+        assertEquals(1, metrics.getRequestCount());
+        assertTrue(metrics.getMeanNanos(HttpBridgeMetrics.PHASE.TOTAL) > 0);
+    }
+
+    @Test
+    public void testConnectionIsReused() throws IOException {
+        Set<Integer> ports = new ConcurrentSkipListSet<>();
+        server.createContext("/body", exchange -> {
+            ports.add(exchange.getRemoteAddress().getPort());
+            HttpStubServer.respond(exchange, 200, new byte[1000]);
+        });
+        setupMessage.connectionUrl = new URL(setupMessage.connectionUrl, "/body");
+        HttpTestNode testNode = new HttpTestNode();
+        HttpChannelCache channelCache = new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 6; i++) {
+            HttpDataMessage dataMessage = new HttpDataMessage(1);
+            dataMessage.httpRequest = "GET";
+            dataMessage.requestHeaders = new HashMap<>();
+            // A body without an output channel is read to its end too, so the connection is kept alive either way.
+            if (i % 2 == 0)
+                dataMessage.outputHttpChannelURI = URI.create("ndn:/test/output");
+            new HttpCommandExecutor(logger, testNode.getNode(), setupMessage, channelCache, metrics, new HttpBridgeSettings()).executeCommand(dataMessage);
+            assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        }
+
+        assertEquals(3, testNode.getPublished().size());
+        assertEquals("The requests should share one socket", 1, ports.size());
+    }
+
+    @Test
+    public void testSelectedEndpointIsLogged() throws IOException {
+        int port = server.getAddress().getPort();
+        setupMessage.connectionUrl = new URL("http://localhost:" + port + "/");
+        setupMessage.endpoints = Collections.singletonList(new URL("http://127.0.0.1:" + port + "/"));
+        setupMessage.balancePolicy = BALANCE_POLICY.ROUND_ROBIN;
+        HttpEndpointBalancer balancer = HttpEndpointBalancer.forSetup(setupMessage);
+        List<String> hosts = new CopyOnWriteArrayList<>();
+        HttpAccessLog accessLog = new HttpAccessLog() {
+            @Override
+            public boolean record(URL url, HttpDataMessage dataMessage, HttpRequestTiming timing) {
+                hosts.add(url.getHost());
+                return false;
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            HttpDataMessage dataMessage = new HttpDataMessage(1);
+            dataMessage.httpRequest = "GET";
+            dataMessage.requestHeaders = new HashMap<>();
+            new HttpCommandExecutor(logger, null, setupMessage, new HttpChannelCache(null, 0, 0, TimeUnit.SECONDS), metrics, new HttpBridgeSettings(),
+                    accessLog, balancer, null).executeCommand(dataMessage);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("localhost", "127.0.0.1")), new HashSet<>(hosts));
+    }
+
+    @Test
+    public void testFailingEndpointIsEjected() throws IOException {
+        AtomicInteger failingRequests = new AtomicInteger();
+        HttpServer failing = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        failing.createContext("/", exchange -> {
+            failingRequests.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        failing.start();
+        try {
+            setupMessage.endpoints = Collections.singletonList(new URL("http://127.0.0.1:" + failing.getAddress().getPort() + "/"));
+            setupMessage.balancePolicy = BALANCE_POLICY.ROUND_ROBIN;
+            setupMessage.ejectAfterFailures = 1;
+            HttpEndpointBalancer balancer = HttpEndpointBalancer.forSetup(setupMessage);
+            HttpChannelCache channelCache = new HttpChannelCache(null, 0, 0, TimeUnit.SECONDS);
+
+            int ok = 0;
+            for (int i = 0; i < 6; i++) {
+                HttpDataMessage dataMessage = new HttpDataMessage(1);
+                dataMessage.httpRequest = "GET";
+                dataMessage.requestHeaders = new HashMap<>();
+                new HttpCommandExecutor(logger, null, setupMessage, channelCache, metrics, new HttpBridgeSettings(), new HttpAccessLog(), balancer, null)
+                        .executeCommand(dataMessage);
+                if (dataMessage.status == HTTP_BRIDGE_STATUS.OK)
+                    ok++;
+            }
+            assertEquals(1, failingRequests.get());
+            assertEquals(5, ok);
+            assertTrue(balancer.getEndpoints().get(1).isEjected());
+        } finally {
+            failing.stop(0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the expiry of a connection lease, and the data commands that hold it.
+ */
+public class HttpConnectionLeaseTest {
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void testLeaseExpiresAfterTheTimeToLive() {
+        HttpConnectionLease lease = new HttpConnectionLease(10, TimeUnit.SECONDS);
+        long now = System.nanoTime();
+
+        assertFalse(lease.isExpired(now));
+        assertFalse(lease.isExpired(now + TTL_NANOS / 2));
+        assertTrue(lease.isExpired(now + TTL_NANOS + 1));
+    }
+
+    @Test
+    public void testRenewPushesTheExpiryBack() throws InterruptedException {
+        HttpConnectionLease lease = new HttpConnectionLease(10, TimeUnit.SECONDS);
+        long before = System.nanoTime();
+        Thread.sleep(5);
+        lease.renew();
+
+        assertFalse(lease.isExpired(before + TTL_NANOS + 1));
+        assertTrue(lease.isExpired(System.nanoTime() + TTL_NANOS + 1));
+    }
+
+    @Test
+    public void testLeaseHeldByARunningCommand() {
+        HttpConnectionLease lease = new HttpConnectionLease(10, TimeUnit.SECONDS);
+        lease.begin();
+        lease.begin();
+        long later = System.nanoTime() + 2 * TTL_NANOS;
+        assertTrue(lease.isActive());
+        assertFalse(lease.isExpired(later));
+
+        lease.end();
+        assertFalse("One command is still running", lease.isExpired(later));
+        lease.end();
+        assertFalse(lease.isActive());
+        // The end of the last command renews the lease, so it expires a time to live later.
+        assertFalse(lease.isExpired(System.nanoTime()));
+        assertTrue(lease.isExpired(System.nanoTime() + TTL_NANOS + 1));
+    }
+
+    @Test
+    public void testLeaseWithoutTimeToLiveNeverExpires() {
+        long later = System.nanoTime() + TimeUnit.DAYS.toNanos(365);
+
+        assertFalse(new HttpConnectionLease(0, TimeUnit.SECONDS).isExpired(later));
+        assertFalse(new HttpConnectionLease(-1, TimeUnit.SECONDS).isExpired(later));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Unit tests for the order in which the data commands of a connection run: concurrently by default, one at a time in arrival order when the connection
+ * is ordered, and the commands still waiting when the connection is torn down.
+ */
+public class HttpConnectionTaskTest {
+    private static final int COMMANDS = 6;
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final URI returnChannelURI = URI.create("ndn:/test/data-return");
+    private HttpRequestScheduler scheduler = null;
+    private SlowServer server = null;
+    private HttpSetupMessage setupMessage = null;
+    private final HttpConnectionLease lease = new HttpConnectionLease(0, TimeUnit.SECONDS);
+    private final List<HttpDataMessage> returned = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new HttpRequestScheduler(4, 0, getClass().getClassLoader());
+        server = new SlowServer();
+        setupMessage = new HttpSetupMessage(URI.create("ndn:/test/return"));
+        setupMessage.connectionId = 1;
+        setupMessage.connectionUrl = server.getUrl();
+        setupMessage.dataCmdChannelURI = URI.create("ndn:/test/data");
+        setupMessage.dataCmdReturnChannelURI = returnChannelURI;
+        testNode.subscribe(returnChannelURI, message -> returned.add((HttpDataMessage) message));
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void testOrderedCommandsRunOneAtATimeInOrder() throws Exception {
+        setupMessage.ordered = true;
+        List<HttpDataMessage> returned = send();
+
+        assertEquals(1, server.maxInFlight.get());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < COMMANDS; i++) {
+            expected.add(String.valueOf(i));
+            assertEquals(String.valueOf(i), returned.get(i).requestHeaders.get("X-Sequence"));
+            assertEquals(HTTP_BRIDGE_STATUS.OK, returned.get(i).status);
+        }
+        assertEquals(expected, server.sequence);
+    }
+
+    @Test
+    public void testUnorderedCommandsRunConcurrently() throws Exception {
+        List<HttpDataMessage> returned = send();
+
+        assertTrue("Commands should overlap, at most " + server.maxInFlight.get() + " did", server.maxInFlight.get() > 1);
+        assertEquals(COMMANDS, returned.size());
+    }
+
+    @Test
+    public void testWaitingCommandsAreRejectedOnTeardown() throws Exception {
+        setupMessage.ordered = true;
+        HttpConnectionTask task = task();
+        Thread thread = new Thread(task);
+        thread.start();
+        while (!testNode.isSubscribed(setupMessage.dataCmdChannelURI))
+            Thread.sleep(10);
+
+        for (int i = 0; i < COMMANDS; i++)
+            testNode.publish(setupMessage.dataCmdChannelURI, command(i));
+        while (server.sequence.isEmpty())
+            Thread.sleep(10);
+        // The commands waiting behind the first one are in the queue of the scheduler.
+        assertEquals(COMMANDS - 1, scheduler.getQueueDepth());
+        task.tearDown();
+        thread.join(5000);
+
+        awaitReturned();
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(HTTP_BRIDGE_STATUS.OK, returned.get(returned.size() - 1).status);
+        assertEquals(COMMANDS - 1, returned.stream().filter(message -> message.status == HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD).count());
+        assertEquals(Collections.singletonList("0"), server.sequence);
+        assertFalse(lease.isActive());
+    }
+
+    private HttpConnectionTask task() {
+        return new HttpConnectionTask(testNode.getNode(), setupMessage, new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS), lease,
+                scheduler, new HttpBridgeMetrics(), new HttpBridgeSettings(), new HttpAccessLog(), null);
+    }
+
+    private HttpDataMessage command(int sequence) {
+        HttpDataMessage dataMessage = new HttpDataMessage(setupMessage.connectionId);
+        dataMessage.httpRequest = "DELETE";
+        dataMessage.requestHeaders = Collections.singletonMap("X-Sequence", String.valueOf(sequence));
+        return dataMessage;
+    }
+
+    private List<HttpDataMessage> send() throws Exception {
+        HttpConnectionTask.DataCommandCallback callback = task().new DataCommandCallback();
+        callback.dataCmdReturnChannel = testNode.getNode().openChannel(returnChannelURI, HttpDataMessage.class, Persistence.NEVER_PERSIST);
+        for (int i = 0; i < COMMANDS; i++)
+            callback.onPublish(command(i));
+        awaitReturned();
+        return returned;
+    }
+
+    private void awaitReturned() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (returned.size() < COMMANDS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(COMMANDS, returned.size());
+    }
+
+    /**
+     * Answers each request after a while, recording the order of the requests and how many were in flight at once.
+     */
+    private static class SlowServer extends HttpStubServer {
+        final List<String> sequence = new CopyOnWriteArrayList<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        SlowServer() throws IOException {
+            super(0, COMMANDS);
+        }
+
+        @Override
+        protected void handle(HttpExchange exchange) throws IOException {
+            sequence.add(exchange.getRequestHeaders().getFirst("X-Sequence"));
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            super.handle(exchange);
+        }
+    }
+}
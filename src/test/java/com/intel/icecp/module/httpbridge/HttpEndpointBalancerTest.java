@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.HttpEndpointBalancer.Endpoint;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage.BALANCE_POLICY;
+
+/**
+ * Unit tests for the balancing policies and the ejection of failing endpoints.
+ */
+public class HttpEndpointBalancerTest {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static List<URL> urls(int count) throws Exception {
+        URL[] urls = new URL[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = new URL("http://10.0.0." + (i + 1) + ":8080/");
+        }
+        return Arrays.asList(urls);
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(3), BALANCE_POLICY.ROUND_ROBIN, 0, 1, TimeUnit.SECONDS);
+        int[] counts = new int[3];
+        for (int i = 0; i < 30; i++) {
+            Endpoint endpoint = balancer.select();
+            counts[balancer.getEndpoints().indexOf(endpoint)]++;
+            balancer.release(endpoint, MILLIS, true);
+        }
+        assertEquals(10, counts[0]);
+        assertEquals(10, counts[1]);
+        assertEquals(10, counts[2]);
+    }
+
+    @Test
+    public void testLeastRequests() throws Exception {
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(2), BALANCE_POLICY.LEAST_REQUESTS, 0, 1, TimeUnit.SECONDS);
+        Endpoint first = balancer.select();
+        Endpoint second = balancer.select();
+        assertNotSame(first, second);
+
+        balancer.release(first, MILLIS, true);
+        assertSame(first, balancer.select());
+        assertEquals(1, first.getOutstanding());
+        assertEquals(1, second.getOutstanding());
+    }
+
+    @Test
+    public void testEwmaAvoidsTheSlowEndpoint() throws Exception {
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(2), BALANCE_POLICY.EWMA, 0, 1, TimeUnit.SECONDS);
+        Endpoint slow = balancer.getEndpoints().get(1);
+
+        int slowCount = 0;
+        for (int i = 0; i < 200; i++) {
+            Endpoint endpoint = balancer.select();
+            if (endpoint == slow && i >= 100)
+                slowCount++;
+            balancer.release(endpoint, endpoint == slow ? 100 * MILLIS : MILLIS, true);
+        }
+        assertEquals(0, slowCount);
+        assertTrue(slow.getLatencyNanos() > balancer.getEndpoints().get(0).getLatencyNanos());
+    }
+
+    @Test
+    public void testFailingEndpointIsEjected() throws Exception {
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(2), BALANCE_POLICY.ROUND_ROBIN, 3, 1, TimeUnit.HOURS);
+        Endpoint failing = balancer.getEndpoints().get(0);
+        Endpoint healthy = balancer.getEndpoints().get(1);
+        for (int i = 0; i < 6; i++) {
+            Endpoint endpoint = balancer.select();
+            balancer.release(endpoint, MILLIS, endpoint != failing);
+        }
+        assertTrue(failing.isEjected());
+        for (int i = 0; i < 10; i++) {
+            Endpoint endpoint = balancer.select();
+            assertSame(healthy, endpoint);
+            // At most half of the endpoints are ejected, so the failures of the other one are tolerated.
+            balancer.release(endpoint, MILLIS, false);
+        }
+        assertFalse(healthy.isEjected());
+    }
+
+    @Test
+    public void testEjectionEnds() throws Exception {
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(2), BALANCE_POLICY.ROUND_ROBIN, 1, 20, TimeUnit.MILLISECONDS);
+        Endpoint endpoint = balancer.select();
+        balancer.release(endpoint, MILLIS, false);
+        assertTrue(endpoint.isEjected());
+
+        Thread.sleep(50);
+        assertFalse(endpoint.isEjected());
+    }
+
+    @Test
+    public void testEwmaSelectsWhileEndpointsAreEjected() throws Exception {
+        // Endpoints are ejected for a millisecond after each failure, so they flap while the other threads select.
+        HttpEndpointBalancer balancer = new HttpEndpointBalancer(urls(4), BALANCE_POLICY.EWMA, 1, 1, TimeUnit.MILLISECONDS);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        balancer.release(balancer.select(), 1000, (i & 1) == 0);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        for (Endpoint endpoint : balancer.getEndpoints()) {
+            assertEquals(0, endpoint.getOutstanding());
+        }
+    }
+
+    @Test
+    public void testForSetup() throws Exception {
+        HttpSetupMessage setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = urls(1).get(0);
+        assertNull(HttpEndpointBalancer.forSetup(setupMessage));
+
+        setupMessage.endpoints = Collections.singletonList(setupMessage.connectionUrl);
+        assertNull(HttpEndpointBalancer.forSetup(setupMessage));
+
+        setupMessage.endpoints = urls(3);
+        List<Endpoint> endpoints = HttpEndpointBalancer.forSetup(setupMessage).getEndpoints();
+        assertEquals(3, endpoints.size());
+        assertSame(setupMessage.connectionUrl, endpoints.get(0).getUrl());
+        assertSame(setupMessage.endpoints.get(2), endpoints.get(2).getUrl());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A {@link HttpStubServer} that misbehaves like a real upstream under trouble. Each request draws its fault at random:
+ * <ul>
+ * <li>latency: every response is delayed by an exponential latency of mean latencyMeanMillis, and with probability latencyTailRate by latencyTailMillis</li>
+ * <li>slow drip: with probability dripRate the body is sent in chunks of dripChunkBytes, dripDelayMillis apart</li>
+ * <li>reset: with probability resetRate the connection is closed before the response. The http server cannot send a TCP reset, the client sees the
+ * connection end early.</li>
+ * <li>half open: with probability hangRate the request is never answered, the connection is held open for hangMillis</li>
+ * <li>5xx bursts: every errorBurstPeriodSeconds, for errorBurstSeconds, requests are answered 503 with probability errorBurstRate</li>
+ * </ul>
+ * All faults are off by default. The options are read from name=value properties, as passed to the load runners.
+ *
+ */
+public class HttpFaultInjectingServer extends HttpStubServer {
+    private static final byte[] ERROR_BODY = "Service Unavailable".getBytes();
+
+    private final double latencyMeanMillis;
+    private final double latencyTailRate;
+    private final long latencyTailMillis;
+    private final double dripRate;
+    private final int dripChunkBytes;
+    private final long dripDelayMillis;
+    private final double resetRate;
+    private final double hangRate;
+    private final long hangMillis;
+    private final long errorBurstPeriodNanos;
+    private final long errorBurstNanos;
+    private final double errorBurstRate;
+
+    private final long startNanos = System.nanoTime();
+    private final ScheduledExecutorService hangTimer;
+
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dripped = new LongAdder();
+    private final LongAdder reset = new LongAdder();
+    private final LongAdder hung = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     *
+     * @param options
+     *            The faults, see the class documentation, and bodyBytes and serverThreads.
+     * @throws IOException
+     *             The server could not be started
+     */
+    public HttpFaultInjectingServer(Properties options) throws IOException {
+        super(Integer.parseInt(options.getProperty("bodyBytes", "1024")), Integer.parseInt(options.getProperty("serverThreads", "256")));
+        latencyMeanMillis = Double.parseDouble(options.getProperty("latencyMeanMillis", "0"));
+        latencyTailRate = Double.parseDouble(options.getProperty("latencyTailRate", "0"));
+        latencyTailMillis = Long.parseLong(options.getProperty("latencyTailMillis", "0"));
+        dripRate = Double.parseDouble(options.getProperty("dripRate", "0"));
+        dripChunkBytes = Math.max(1, Integer.parseInt(options.getProperty("dripChunkBytes", "64")));
+        dripDelayMillis = Long.parseLong(options.getProperty("dripDelayMillis", "50"));
+        resetRate = Double.parseDouble(options.getProperty("resetRate", "0"));
+        hangRate = Double.parseDouble(options.getProperty("hangRate", "0"));
+        hangMillis = Long.parseLong(options.getProperty("hangMillis", "600000"));
+        errorBurstPeriodNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getProperty("errorBurstPeriodSeconds", "0")));
+        errorBurstNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getProperty("errorBurstSeconds", "0")));
+        errorBurstRate = Double.parseDouble(options.getProperty("errorBurstRate", "1"));
+        hangTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HttpFaultInjectingServer-Hang");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        countRequest();
+        drain(exchange);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (random.nextDouble() < hangRate) {
+            // Hold the exchange without answering, the handler thread is free for other requests.
+            hung.increment();
+            hangTimer.schedule(exchange::close, hangMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (random.nextDouble() < resetRate) {
+            reset.increment();
+            exchange.close();
+            return;
+        }
+
+        long delayMillis = latencyMeanMillis > 0 ? (long) (-latencyMeanMillis * Math.log(1 - random.nextDouble())) : 0;
+        if (random.nextDouble() < latencyTailRate)
+            delayMillis += latencyTailMillis;
+        if (delayMillis > 0) {
+            delayed.increment();
+            sleep(delayMillis);
+        }
+
+        if (inErrorBurst() && random.nextDouble() < errorBurstRate) {
+            errors.increment();
+            respond(exchange, 503, ERROR_BODY);
+            return;
+        }
+        if (getBody().length > 0 && random.nextDouble() < dripRate) {
+            dripped.increment();
+            drip(exchange);
+            return;
+        }
+        respond(exchange, 200, getBody());
+    }
+
+    /**
+     * @return True if the server is in a 5xx burst now.
+     */
+    boolean inErrorBurst() {
+        return errorBurstPeriodNanos > 0 && (System.nanoTime() - startNanos) % errorBurstPeriodNanos < errorBurstNanos;
+    }
+
+    private void drip(HttpExchange exchange) throws IOException {
+        byte[] body = getBody();
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            for (int offset = 0; offset < body.length; offset += dripChunkBytes) {
+                os.write(body, offset, Math.min(dripChunkBytes, body.length - offset));
+                os.flush();
+                sleep(dripDelayMillis);
+            }
+        }
+        exchange.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A summary of the faults injected.
+     */
+    public String getFaultCounts() {
+        return String.format("requests %d delayed %d dripped %d reset %d hung %d 5xx %d", getRequestCount(), delayed.sum(), dripped.sum(), reset.sum(),
+                hung.sum(), errors.sum());
+    }
+
+    @Override
+    public void close() {
+        hangTimer.shutdownNow();
+        super.close();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the faults of the soak test upstream server.
+ */
+public class HttpFaultInjectingServerTest {
+
+    private static HttpFaultInjectingServer start(String... options) throws IOException {
+        Properties properties = HttpBridgeLoadRunner.parse(options);
+        properties.setProperty("serverThreads", "4");
+        return new HttpFaultInjectingServer(properties);
+    }
+
+    private static byte[] get(HttpFaultInjectingServer server, int readTimeoutMillis) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) server.getUrl().openConnection();
+        connection.setReadTimeout(readTimeoutMillis);
+        if (connection.getResponseCode() != 200)
+            throw new IOException("Http Error " + connection.getResponseCode());
+        try (InputStream is = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) != -1)
+                body.write(buffer, 0, n);
+            return body.toByteArray();
+        }
+    }
+
+    @Test
+    public void testNoFaultsByDefault() throws IOException {
+        try (HttpFaultInjectingServer server = start("bodyBytes=100")) {
+            assertEquals(100, get(server, 1000).length);
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testErrorBurst() throws IOException {
+        try (HttpFaultInjectingServer server = start("errorBurstPeriodSeconds=3600", "errorBurstSeconds=3600")) {
+            assertTrue(server.inErrorBurst());
+            HttpURLConnection connection = (HttpURLConnection) server.getUrl().openConnection();
+            assertEquals(503, connection.getResponseCode());
+        }
+    }
+
+    @Test
+    public void testSlowDrip() throws IOException {
+        try (HttpFaultInjectingServer server = start("bodyBytes=256", "dripRate=1", "dripChunkBytes=64", "dripDelayMillis=50")) {
+            long start = System.nanoTime();
+            assertEquals(256, get(server, 5000).length);
+            assertTrue(System.nanoTime() - start >= 150000000L);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReset() throws IOException {
+        try (HttpFaultInjectingServer server = start("resetRate=1")) {
+            get(server, 5000);
+        }
+    }
+
+    @Test
+    public void testHalfOpenNeedsReadTimeout() throws IOException {
+        try (HttpFaultInjectingServer server = start("hangRate=1", "hangMillis=5000")) {
+            get(server, 200);
+            fail("The request should time out");
+        } catch (SocketTimeoutException e) {
+            // Expected, the server never answers.
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpFileManifestMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Spools response bodies from, and streams request bodies to, a local server.
+ */
+public class HttpFileSpoolTest {
+    private final byte[] body = new byte[100000];
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final List<Object> published = testNode.getPublished();
+    private volatile byte[] received = null;
+    private HttpServer server = null;
+    private HttpSetupMessage setupMessage = null;
+    private HttpBridgeSettings settings = null;
+    private Path root = null;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(body);
+        root = Files.createTempDirectory("spool-test");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody(); OutputStream os = exchange.getResponseBody()) {
+                received = readAll(is);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                // Chunked, so the spool does not know the length up front.
+                exchange.sendResponseHeaders(200, 0);
+                os.write(body);
+            }
+        });
+        server.start();
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/data");
+        settings = new HttpBridgeSettings();
+        settings.setFileSpool(new HttpFileSpool(root, 1, TimeUnit.HOURS));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private HttpDataMessage execute(HttpDataMessage dataMessage) throws Exception {
+        dataMessage.requestHeaders = new HashMap<>();
+        dataMessage.outputHttpChannelURI = new URI("ndn:/test/data");
+        HttpChannelCache channelCache = new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS);
+        new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, channelCache, new HttpBridgeMetrics(), settings).executeCommand(dataMessage);
+        return dataMessage;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testLargeBodyIsSpooled() throws Exception {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.spoolThresholdBytes = 30000;
+        dataMessage.segmentBytes = 40000;
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(1, published.size());
+        HttpFileManifestMessage manifest = (HttpFileManifestMessage) published.get(0);
+        assertEquals(body.length, manifest.totalBytes);
+        assertEquals(3, manifest.count);
+        assertEquals("application/octet-stream", manifest.contentType);
+        assertTrue(Files.isSameFile(root.resolve(manifest.name), Paths.get(manifest.path)));
+        ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+        for (int i = 0; i < manifest.count; i++) {
+            assembled.write(manifest.readSegment(i));
+        }
+        assertArrayEquals(body, assembled.toByteArray());
+        StringBuilder sha256 = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(body)) {
+            sha256.append(String.format("%02x", b));
+        }
+        assertEquals(sha256.toString(), manifest.sha256);
+    }
+
+    @Test
+    public void testSmallBodyIsPublished() throws Exception {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.spoolThresholdBytes = body.length;
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(1, published.size());
+        assertArrayEquals(body, ((BytesMessage) published.get(0)).getBytes());
+        assertEquals(0, root.toFile().list().length);
+    }
+
+    @Test
+    public void testInputFileIsStreamed() throws Exception {
+        byte[] request = new byte[70000];
+        new Random(7).nextBytes(request);
+        Files.write(root.resolve("upload.bin"), request);
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "POST";
+        dataMessage.inputFile = "upload.bin";
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(200, dataMessage.responseCode);
+        assertArrayEquals(request, received);
+    }
+
+    @Test
+    public void testInputFileOutsideTheSpool() throws Exception {
+        Files.write(Files.createDirectory(root.resolve("outside")).resolve("secret"), new byte[] { 1 });
+        settings.setFileSpool(new HttpFileSpool(Files.createDirectory(root.resolve("spool")), 1, TimeUnit.HOURS));
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "POST";
+        dataMessage.inputFile = "../outside/secret";
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_IO, dataMessage.status);
+        assertNull(received);
+    }
+
+    @Test
+    public void testLinksAreRefused() throws Exception {
+        Path outside = Files.createDirectory(root.resolve("outside"));
+        Files.write(outside.resolve("secret"), new byte[] { 1 });
+        Path spool = Files.createDirectory(root.resolve("spool"));
+        Files.createSymbolicLink(spool.resolve("file"), outside.resolve("secret"));
+        Files.createSymbolicLink(spool.resolve("directory"), outside);
+        settings.setFileSpool(new HttpFileSpool(spool, 1, TimeUnit.HOURS));
+
+        for (String name : new String[] { "file", "directory/secret" }) {
+            HttpDataMessage dataMessage = new HttpDataMessage(1);
+            dataMessage.httpRequest = "POST";
+            dataMessage.inputFile = name;
+            execute(dataMessage);
+            assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_IO, dataMessage.status);
+            assertNull(received);
+        }
+    }
+
+    @Test
+    public void testDirectoryIsCreatedForTheOwnerOnly() throws Exception {
+        Path spool = root.resolve("new").resolve("spool");
+        settings.setFileSpool(new HttpFileSpool(spool, 1, TimeUnit.HOURS));
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.spoolThresholdBytes = 1000;
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(1, spool.toFile().list().length);
+        if (spool.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(spool)));
+        assertTrue(HttpFileSpool.defaultDirectory().endsWith("httpbridge-spool-" + System.getProperty("user.name")));
+    }
+
+    @Test
+    public void testDirectoryOfAnotherUserIsRefused() throws Exception {
+        Path spool = Files.createDirectory(root.resolve("spool"));
+        Files.write(spool.resolve("upload.bin"), new byte[] { 1 });
+        try {
+            Files.setOwner(spool, spool.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName("nobody"));
+        } catch (IOException | UnsupportedOperationException e) {
+            // Only a privileged user can give a directory away, the check cannot be tested.
+            return;
+        }
+        settings.setFileSpool(new HttpFileSpool(spool, 1, TimeUnit.HOURS));
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "POST";
+        dataMessage.inputFile = "upload.bin";
+        execute(dataMessage);
+
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_IO, dataMessage.status);
+        assertNull(received);
+    }
+
+    @Test
+    public void testSweepDeletesExpiredSpoolFiles() throws Exception {
+        Path expired = root.resolve("response-1.spool");
+        Path recent = root.resolve("response-2.spool");
+        Path other = root.resolve("upload.bin");
+        for (Path path : new Path[] { expired, recent, other }) {
+            Files.write(path, new byte[] { 1 });
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+        }
+        Files.setLastModifiedTime(recent, FileTime.fromMillis(System.currentTimeMillis()));
+
+        assertEquals(1, settings.getFileSpool().sweep());
+        assertFalse(Files.exists(expired));
+        assertTrue(Files.exists(recent));
+        assertTrue(Files.exists(other));
+    }
+
+    @Test
+    public void testValidate() {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "POST";
+        dataMessage.inputFile = "upload.bin";
+        assertNull(dataMessage.onValidate((HttpConnectionTask) null));
+        dataMessage.inputHttpChannelURI = URI.create("ndn:/test/input");
+        assertEquals("DataCommand inputFile must be a file name, and cannot be used with inputHttpChannelURI", dataMessage.onValidate((HttpConnectionTask) null));
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX, dataMessage.status);
+
+        dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.spoolThresholdBytes = -1;
+        assertEquals("DataCommand spoolThresholdBytes must not be negative, and segmentBytes must be positive",
+                dataMessage.onValidate((HttpConnectionTask) null));
+    }
+}
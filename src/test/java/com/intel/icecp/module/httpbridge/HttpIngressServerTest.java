@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.module.httpbridge.message.HttpIngressReply;
+import com.intel.icecp.module.httpbridge.message.HttpIngressRequest;
+
+/**
+ * Unit tests for the routes, replies and limits of the ingress server, with in-memory channels.
+ */
+public class HttpIngressServerTest {
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final List<Object> published = testNode.getPublished();
+    private ExecutorService workers = null;
+    private HttpPollTimer timer = null;
+    private HttpIngressServer server = null;
+
+    @Before
+    public void setUp() throws Exception {
+        workers = Executors.newFixedThreadPool(2);
+        timer = new HttpPollTimer(5, TimeUnit.MILLISECONDS, 64);
+        server = new HttpIngressServer(testNode.getNode(), new InetSocketAddress("127.0.0.1", 0), workers, 1, 16, timer);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        workers.shutdownNow();
+        timer.shutdown();
+    }
+
+    @Test
+    public void testBodyIsPublishedAndAccepted() throws Exception {
+        server.addRoute("/events", new URI("ndn:/test/events"), null, 1000);
+
+        assertEquals(202, request("/events/a", "hello"));
+        assertEquals(1, published.size());
+        assertEquals("hello", new String(((BytesMessage) published.get(0)).getBytes(), StandardCharsets.UTF_8));
+        assertEquals(404, request("/other", "hello"));
+    }
+
+    @Test
+    public void testReplyIsTheResponse() throws Exception {
+        URI replyChannelURI = new URI("ndn:/test/replies");
+        server.addRoute("/api", new URI("ndn:/test/requests"), replyChannelURI, 5000);
+        testNode.subscribe(new URI("ndn:/test/requests"), message -> {
+            HttpIngressRequest request = (HttpIngressRequest) message;
+            HttpIngressReply reply = new HttpIngressReply(request.requestId);
+            reply.responseCode = 201;
+            reply.body = (request.method + " " + request.path + "?" + request.query).getBytes(StandardCharsets.UTF_8);
+            testNode.publish(request.replyChannelURI, reply);
+        });
+
+        HttpURLConnection connection = connect("/api/items?id=1", "{}");
+        assertEquals(201, connection.getResponseCode());
+        assertEquals("POST /api/items?id=1", read(connection.getInputStream()));
+    }
+
+    @Test
+    public void testMissingReplyTimesOut() throws Exception {
+        server.addRoute("/api", new URI("ndn:/test/requests"), new URI("ndn:/test/replies"), 50);
+
+        assertEquals(504, request("/api", "x"));
+        assertEquals(1, server.getTimedOutCount());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        server.addRoute("/api", new URI("ndn:/test/requests"), new URI("ndn:/test/replies"), 2000);
+
+        assertEquals(413, request("/api", "a body longer than sixteen bytes"));
+        // The only permit is held by a request waiting for its reply.
+        CompletableFuture<Integer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return request("/api", "x");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (published.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(503, request("/api", "y"));
+        assertEquals(1, server.getRejectedCount());
+        assertEquals(504, (int) waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRemoveRoute() throws Exception {
+        server.addRoute("/events", new URI("ndn:/test/events"), null, 1000);
+
+        assertTrue(server.removeRoute("/events"));
+        assertFalse(server.removeRoute("/events"));
+        assertEquals(404, request("/events", "hello"));
+    }
+
+    private int request(String path, String body) throws IOException {
+        return connect(path, body).getResponseCode();
+    }
+
+    private HttpURLConnection connect(String path, String body) throws IOException {
+        InetSocketAddress address = server.getAddress();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + address.getPort() + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
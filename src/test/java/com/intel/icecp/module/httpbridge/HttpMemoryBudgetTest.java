@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage.BODY_LIMIT_POLICY;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Unit tests for the memory budget of the module and the body limit of the data commands.
+ */
+public class HttpMemoryBudgetTest {
+    private final byte[] body = new byte[10000];
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final List<Object> published = testNode.getPublished();
+    private BodyServer server = null;
+    private HttpSetupMessage setupMessage = null;
+    private HttpBridgeSettings settings = null;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(body);
+        server = new BodyServer();
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = new URL(server.getUrl(), "data");
+        settings = new HttpBridgeSettings();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpDataMessage get(long maxBodyBytes, BODY_LIMIT_POLICY policy) throws Exception {
+        return execute("GET", null, maxBodyBytes, policy);
+    }
+
+    private HttpDataMessage execute(String httpRequest, URI inputHttpChannelURI, long maxBodyBytes, BODY_LIMIT_POLICY policy) throws Exception {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = httpRequest;
+        dataMessage.inputHttpChannelURI = inputHttpChannelURI;
+        dataMessage.inputTimeoutSeconds = 5;
+        dataMessage.requestHeaders = new HashMap<>();
+        dataMessage.outputHttpChannelURI = new URI("ndn:/test/data");
+        dataMessage.maxBodyBytes = maxBodyBytes;
+        dataMessage.bodyLimitPolicy = policy;
+        HttpChannelCache channelCache = new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS);
+        new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, channelCache, new HttpBridgeMetrics(), settings).executeCommand(dataMessage);
+        return dataMessage;
+    }
+
+    @Test
+    public void testReserveAndRelease() throws HttpOverloadException {
+        HttpMemoryBudget budget = new HttpMemoryBudget(100, 0, TimeUnit.MILLISECONDS);
+        try (HttpMemoryBudget.Reservation reservation = budget.reserve(60)) {
+            assertEquals(60, budget.getUsedBytes());
+            try {
+                budget.reserve(50);
+                fail("Reserved over the budget");
+            } catch (HttpOverloadException e) {
+                assertEquals(1, budget.getRejectedCount());
+            }
+            reservation.grow(100);
+            assertEquals(100, budget.getUsedBytes());
+        }
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(100, budget.getPeakBytes());
+    }
+
+    @Test
+    public void testWaitsForRoom() throws Exception {
+        HttpMemoryBudget budget = new HttpMemoryBudget(100, 10, TimeUnit.SECONDS);
+        HttpMemoryBudget.Reservation first = budget.reserve(80);
+        CompletableFuture<Long> second = CompletableFuture.supplyAsync(() -> {
+            try (HttpMemoryBudget.Reservation reservation = budget.reserve(50)) {
+                return reservation.getBytes();
+            } catch (HttpOverloadException e) {
+                return -1L;
+            }
+        });
+        while (budget.getWaitedCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertFalse(second.isDone());
+        first.close();
+        assertEquals(50, (long) second.get(10, TimeUnit.SECONDS));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testLargerThanTheBudgetFailsAtOnce() {
+        HttpMemoryBudget budget = new HttpMemoryBudget(100, 1, TimeUnit.HOURS);
+        try {
+            budget.reserve(101);
+            fail("Reserved more than the budget");
+        } catch (HttpOverloadException e) {
+            assertEquals(0, budget.getWaitedCount());
+            assertEquals(0, budget.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void testBodyLimitStream() throws IOException {
+        byte[] bytes = new byte[] { 1, 2, 3, 4 };
+        byte[] read = new byte[8];
+        HttpBodyLimitStream exact = new HttpBodyLimitStream(new ByteArrayInputStream(bytes), 4, false);
+        assertEquals(4, exact.read(read, 0, read.length));
+        assertEquals(-1, exact.read(read, 0, read.length));
+        assertFalse(exact.isTruncated());
+
+        HttpBodyLimitStream truncated = new HttpBodyLimitStream(new ByteArrayInputStream(bytes), 3, true);
+        assertEquals(3, truncated.read(read, 0, read.length));
+        assertEquals(-1, truncated.read());
+        assertTrue(truncated.isTruncated());
+
+        HttpBodyLimitStream failed = new HttpBodyLimitStream(new ByteArrayInputStream(bytes), 3, false);
+        assertEquals(3, failed.read(read, 0, read.length));
+        try {
+            failed.read();
+            fail("Read past the limit");
+        } catch (IOException e) {
+            assertEquals("Response body is larger than [3] bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBodyOverTheLimit() throws Exception {
+        HttpDataMessage dataMessage = get(1000, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, dataMessage.status);
+        assertTrue(published.isEmpty());
+
+        dataMessage = get(1000, BODY_LIMIT_POLICY.TRUNCATE);
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertTrue(dataMessage.bodyTruncated);
+        assertArrayEquals(Arrays.copyOf(body, 1000), ((BytesMessage) published.get(0)).getBytes());
+
+        // The smaller of the module and the command limits applies.
+        published.clear();
+        settings.setMaxBodyBytes(500);
+        dataMessage = get(1000, BODY_LIMIT_POLICY.TRUNCATE);
+        assertEquals(500, ((BytesMessage) published.get(0)).getBytes().length);
+    }
+
+    @Test
+    public void testBodyOverTheBudget() throws Exception {
+        // The body is held twice until it is published: read, and serialized by the channel.
+        settings.getMemoryBudget().setLimits(2 * body.length - 1, 0, TimeUnit.MILLISECONDS);
+        HttpDataMessage dataMessage = get(0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD, dataMessage.status);
+        assertTrue(published.isEmpty());
+
+        settings.getMemoryBudget().setLimits(2 * body.length, 0, TimeUnit.MILLISECONDS);
+        dataMessage = get(0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertArrayEquals(body, ((BytesMessage) published.get(0)).getBytes());
+        assertEquals(0, settings.getMemoryBudget().getUsedBytes());
+        assertEquals(2 * body.length, settings.getMemoryBudget().getPeakBytes());
+    }
+
+    @Test
+    public void testBodyOfUnknownLengthCountsItsCopies() throws Exception {
+        server.chunked = true;
+        HttpDataMessage dataMessage = get(0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertArrayEquals(body, ((BytesMessage) published.get(0)).getBytes());
+        assertEquals(0, settings.getMemoryBudget().getUsedBytes());
+        // The arrays it grew through, held together while copied, are counted too.
+        assertTrue(settings.getMemoryBudget().getPeakBytes() > 2 * body.length);
+    }
+
+    @Test
+    public void testInputIsReservedBeforeItIsRead() throws Exception {
+        URI inputChannelURI = new URI("ndn:/test/input");
+        testNode.publish(inputChannelURI, new BytesMessage(new byte[100]));
+        published.clear();
+        settings.setMaxBodyBytes(body.length);
+        // No room for the largest input, whatever the length of this one.
+        settings.getMemoryBudget().setLimits(2 * body.length - 1, 0, TimeUnit.MILLISECONDS);
+        HttpDataMessage dataMessage = execute("POST", inputChannelURI, 0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD, dataMessage.status);
+        assertEquals(0, server.getRequestCount());
+
+        settings.getMemoryBudget().setLimits(2 * body.length, 0, TimeUnit.MILLISECONDS);
+        dataMessage = execute("POST", inputChannelURI, 0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(100, server.lastRequestBytes);
+        assertEquals(0, settings.getMemoryBudget().getUsedBytes());
+    }
+
+    @Test
+    public void testInputOverTheLimit() throws Exception {
+        URI inputChannelURI = new URI("ndn:/test/input");
+        testNode.publish(inputChannelURI, new BytesMessage(new byte[101]));
+        settings.setMaxBodyBytes(100);
+        HttpDataMessage dataMessage = execute("POST", inputChannelURI, 0, BODY_LIMIT_POLICY.ERROR);
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, dataMessage.status);
+        assertEquals(-1, server.lastRequestBytes);
+        assertEquals(0, settings.getMemoryBudget().getUsedBytes());
+    }
+
+    /**
+     * Serves the body, with its length or chunked, and records the length of the last request body.
+     */
+    private class BodyServer extends HttpStubServer {
+        volatile boolean chunked = false;
+        volatile int lastRequestBytes = -1;
+
+        BodyServer() throws IOException {
+            super(0, 1);
+        }
+
+        @Override
+        protected void handle(HttpExchange exchange) throws IOException {
+            countRequest();
+            int requestBytes = 0;
+            try (InputStream is = exchange.getRequestBody()) {
+                while (is.read() != -1) {
+                    requestBytes++;
+                }
+            }
+            if ("POST".equals(exchange.getRequestMethod()))
+                lastRequestBytes = requestBytes;
+            if (!chunked) {
+                respond(exchange, 200, body);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Message;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage.BODY_LIMIT_POLICY;
+import com.intel.icecp.module.httpbridge.message.HttpPollMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Unit tests for the conditional requests and change detection of the polls.
+ */
+public class HttpPollTaskTest {
+    private static final Logger logger = LogManager.getLogger();
+
+    private VersionedServer server = null;
+    private HttpPollTimer timer = null;
+    private HttpSetupMessage setupMessage = null;
+    private HttpPollMessage message = null;
+    private final List<String> published = new ArrayList<>();
+    private final List<HttpPollMessage> reported = new ArrayList<>();
+    private HttpBridgeSettings settings = null;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new VersionedServer();
+        // A timer that does not tick during the tests, the polls are run by hand.
+        timer = new HttpPollTimer(1, TimeUnit.HOURS, 8);
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = server.getUrl();
+        message = new HttpPollMessage(5);
+        message.outputHttpChannelURI = new URI("ndn:/test/poll");
+        message.intervalMillis = 10;
+        settings = new HttpBridgeSettings();
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void testOnlyChangesArePublished() throws Exception {
+        HttpPollTask poll = poll();
+        poll.start();
+        assertTrue(poll.pollOnce());
+        // Not modified, by ETag.
+        assertFalse(poll.pollOnce());
+        assertEquals("\"1\"", server.ifNoneMatch);
+        // A new ETag, but the same body.
+        server.etag = "\"2\"";
+        assertFalse(poll.pollOnce());
+        server.body = "two";
+        server.etag = "\"3\"";
+        assertTrue(poll.pollOnce());
+
+        assertEquals(4, poll.getPollCount());
+        assertEquals(2, poll.getChangeCount());
+        assertEquals(2, published.size());
+        assertEquals("one", published.get(0));
+        assertEquals("two", published.get(1));
+    }
+
+    @Test
+    public void testFailedPollIsNotPublished() throws Exception {
+        server.code = 500;
+        HttpPollTask poll = poll();
+        poll.start();
+        assertFalse(poll.pollOnce());
+        assertNull(server.ifNoneMatch);
+        assertEquals(0, poll.getChangeCount());
+    }
+
+    @Test
+    public void testFailuresAreReported() throws Exception {
+        HttpPollTask poll = poll();
+        poll.start();
+        assertTrue(poll.pollOnce());
+        assertTrue(reported.isEmpty());
+
+        server.code = 500;
+        assertFalse(poll.pollOnce());
+        assertFalse(poll.pollOnce());
+        server.code = 404;
+        assertFalse(poll.pollOnce());
+        assertEquals(2, reported.size());
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, reported.get(0).status);
+        assertEquals(500, reported.get(0).responseCode);
+        assertEquals(message.outputHttpChannelURI, reported.get(0).outputHttpChannelURI);
+        assertEquals(404, reported.get(1).responseCode);
+
+        // The recovery is reported too, even if the body did not change.
+        server.code = 200;
+        assertFalse(poll.pollOnce());
+        assertEquals(3, reported.size());
+        assertEquals(HTTP_BRIDGE_STATUS.OK, reported.get(2).status);
+    }
+
+    @Test
+    public void testBodyOverTheLimit() throws Exception {
+        server.body = "a body over the limit";
+        message.maxBodyBytes = 4;
+        HttpPollTask poll = poll();
+        poll.start();
+        assertFalse(poll.pollOnce());
+        assertTrue(published.isEmpty());
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, reported.get(0).status);
+
+        message.bodyLimitPolicy = BODY_LIMIT_POLICY.TRUNCATE;
+        assertTrue(poll.pollOnce());
+        assertEquals("a bo", published.get(0));
+    }
+
+    @Test
+    public void testBodyOverTheBudget() throws Exception {
+        settings.getMemoryBudget().setLimits(2, 0, TimeUnit.MILLISECONDS);
+        HttpPollTask poll = poll();
+        poll.start();
+        assertFalse(poll.pollOnce());
+        assertTrue(published.isEmpty());
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_OVERLOAD, reported.get(0).status);
+        assertEquals(0, settings.getMemoryBudget().getUsedBytes());
+    }
+
+    @Test
+    public void testPollsOnTheTimerUntilCancelled() throws Exception {
+        timer.shutdown();
+        timer = new HttpPollTimer(5, TimeUnit.MILLISECONDS, 64);
+        HttpPollTask poll = poll();
+        poll.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (poll.getPollCount() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        poll.cancel();
+        long polls = poll.getPollCount();
+        Thread.sleep(50);
+
+        assertTrue(polls >= 3);
+        assertTrue(poll.getPollCount() <= polls + 1);
+        assertEquals(1, poll.getChangeCount());
+    }
+
+    private HttpPollTask poll() {
+        HttpCommandExecutor executor = new HttpCommandExecutor(logger, null, setupMessage, null, new HttpBridgeMetrics(), settings);
+        return new HttpPollTask(executor, setupMessage, message, new CollectingChannelCache(), timer, Runnable::run, new HttpBridgeMetrics(),
+                new HttpRateLimiter(0, 1), reported::add);
+    }
+
+    /**
+     * A channel cache that collects what is published on the output channel.
+     */
+    private class CollectingChannelCache extends HttpChannelCache {
+        CollectingChannelCache() {
+            super(null, 0, 0, TimeUnit.SECONDS);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Message> Channel<T> acquire(URI channelURI, Class<T> messageClass, Persistence persistence) {
+            return (Channel<T>) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("publish"))
+                            published.add(new String(((BytesMessage) args[0]).getBytes(), StandardCharsets.UTF_8));
+                        return null;
+                    });
+        }
+
+        @Override
+        public void release(URI channelURI, Class<? extends Message> messageClass) {
+        }
+    }
+
+    /**
+     * Serves a body with an ETag, and 304 to a request with the current ETag.
+     */
+    private static class VersionedServer extends HttpStubServer {
+        volatile String body = "one";
+        volatile String etag = "\"1\"";
+        volatile int code = 200;
+        volatile String ifNoneMatch = null;
+
+        VersionedServer() throws IOException {
+            super(0, 1);
+        }
+
+        @Override
+        protected void handle(HttpExchange exchange) throws IOException {
+            countRequest();
+            drain(exchange);
+            ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (code != 200) {
+                respond(exchange, code, new byte[0]);
+            } else if (etag.equals(ifNoneMatch)) {
+                respond(exchange, 304, new byte[0]);
+            } else {
+                exchange.getResponseHeaders().add("ETag", etag);
+                respond(exchange, 200, body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for the timer wheel of the polls.
+ */
+public class HttpPollTimerTest {
+    private final HttpPollTimer timer = new HttpPollTimer(5, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() {
+        timer.shutdown();
+    }
+
+    @Test
+    public void testTasksRunAfterTheirDelay() throws Exception {
+        CountDownLatch ran = new CountDownLatch(3);
+        long start = System.nanoTime();
+        // 100 ms is more than a turn of the wheel of 8 slots of 5 ms.
+        timer.schedule(ran::countDown, 100, TimeUnit.MILLISECONDS);
+        timer.schedule(ran::countDown, 10, TimeUnit.MILLISECONDS);
+        timer.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch later = new CountDownLatch(1);
+        HttpPollTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheWheel() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        timer.schedule(() -> {
+            throw new IllegalStateException("test");
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterShutdown() {
+        timer.shutdown();
+        assertFalse(timer.size() > 0);
+        timer.schedule(() -> {
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage.BALANCE_POLICY;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Unit tests for the warm-up of a connection: its upstream connections are opened like the ones of the data commands, on the prewarm threads.
+ */
+public class HttpPrewarmTaskTest {
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final List<URI> acquiredChannels = new CopyOnWriteArrayList<>();
+    private final List<RecordingServer> servers = new ArrayList<>();
+    private ExecutorService workers = null;
+    private HttpSetupMessage setupMessage = null;
+
+    @Before
+    public void setUp() throws Exception {
+        workers = Executors.newFixedThreadPool(2, r -> new Thread(r, "prewarm_test"));
+        setupMessage = new HttpSetupMessage();
+        setupMessage.prewarm = true;
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+        for (RecordingServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsAreSpreadOverTheEndpoints() throws Exception {
+        RecordingServer first = server();
+        RecordingServer second = server();
+        setupMessage.connectionUrl = first.getUrl();
+        setupMessage.endpoints = Collections.singletonList(second.getUrl());
+        setupMessage.balancePolicy = BALANCE_POLICY.ROUND_ROBIN;
+        setupMessage.prewarmConnections = 4;
+        setupMessage.outputHttpChannelURI = new URI("ndn:/test/output");
+
+        prewarm(HttpEndpointBalancer.forSetup(setupMessage), null);
+
+        assertEquals(2, first.getRequestCount());
+        assertEquals(2, second.getRequestCount());
+        assertEquals(Arrays.asList("HEAD", "HEAD"), first.methods);
+        assertEquals(Collections.singletonList(setupMessage.outputHttpChannelURI), acquiredChannels);
+    }
+
+    @Test
+    public void testConnectionsGoThroughTheProxies() throws Exception {
+        RecordingServer proxy = server();
+        // Not resolvable: only the proxy can reach it.
+        setupMessage.connectionUrl = new URL("http://upstream.invalid/status");
+        setupMessage.proxies = Collections.singletonList("127.0.0.1:" + proxy.getUrl().getPort());
+        setupMessage.prewarmConnections = 2;
+
+        prewarm(null, HttpProxyPool.forSetup(setupMessage));
+
+        assertEquals(2, proxy.getRequestCount());
+        assertEquals("upstream.invalid", proxy.hosts.get(0));
+    }
+
+    @Test
+    public void testConnectionsAreCappedAndOpenedOnTheWorkers() throws Exception {
+        setupMessage.connectionUrl = new URL("http://127.0.0.1/");
+        setupMessage.prewarmConnections = 100;
+        List<String> threads = new CopyOnWriteArrayList<>();
+        HttpCommandExecutor executor = new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, null, new HttpBridgeMetrics(),
+                new HttpBridgeSettings()) {
+            @Override
+            protected int warmUp() {
+                threads.add(Thread.currentThread().getName());
+                return 200;
+            }
+        };
+        new HttpPrewarmTask(executor, setupMessage, new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS), acquiredChannels, workers).run();
+
+        assertEquals(HttpSetupMessage.MAX_PREWARM_CONNECTIONS, threads.size());
+        assertTrue(threads.stream().allMatch("prewarm_test"::equals));
+        setupMessage.cmdReturnChannelURI = new URI("ndn:/test/return");
+        assertEquals(String.format("SetupCommand: prewarmConnections must be between 0 and %d", HttpSetupMessage.MAX_PREWARM_CONNECTIONS),
+                setupMessage.onValidate(null));
+    }
+
+    private void prewarm(HttpEndpointBalancer balancer, HttpProxyPool proxyPool) {
+        HttpChannelCache channelCache = new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS);
+        HttpCommandExecutor executor = new HttpCommandExecutor(LogManager.getLogger(), testNode.getNode(), setupMessage, channelCache,
+                new HttpBridgeMetrics(), new HttpBridgeSettings(), new HttpAccessLog(), balancer, proxyPool);
+        new HttpPrewarmTask(executor, setupMessage, channelCache, acquiredChannels, workers).run();
+    }
+
+    private RecordingServer server() throws IOException {
+        RecordingServer server = new RecordingServer();
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * Records the method and the host of each request.
+     */
+    private static class RecordingServer extends HttpStubServer {
+        final List<String> methods = new CopyOnWriteArrayList<>();
+        final List<String> hosts = new CopyOnWriteArrayList<>();
+
+        RecordingServer() throws IOException {
+            super(16, 2);
+        }
+
+        @Override
+        protected void handle(HttpExchange exchange) throws IOException {
+            methods.add(exchange.getRequestMethod());
+            hosts.add(exchange.getRequestURI().getHost() != null ? exchange.getRequestURI().getHost() : exchange.getRequestHeaders().getFirst("Host"));
+            super.handle(exchange);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for the selection, health checks and failover of the proxies of a connection.
+ */
+public class HttpProxyPoolTest {
+
+    /**
+     * @return A local port nothing listens on.
+     */
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testSelectSticksToAProxyUntilItIsDown() {
+        HttpProxyPool pool = new HttpProxyPool(Arrays.asList(InetSocketAddress.createUnresolved("proxy1", 911),
+                InetSocketAddress.createUnresolved("proxy2", 911), InetSocketAddress.createUnresolved("proxy3", 911)));
+        Proxy first = pool.select();
+        assertEquals("proxy1", ((InetSocketAddress) first.address()).getHostString());
+        for (int i = 0; i < 6; i++) {
+            assertSame(first, pool.select());
+        }
+
+        pool.failed(first, new ConnectException("refused"));
+        assertFalse(pool.isUp(first));
+        Proxy second = pool.select();
+        assertNotSame(first, second);
+        for (int i = 0; i < 6; i++) {
+            assertSame(second, pool.select());
+        }
+
+        // A proxy back up does not move the requests off the current one.
+        pool.succeeded(first);
+        assertTrue(pool.isUp(first));
+        assertSame(second, pool.select());
+    }
+
+    @Test
+    public void testProxyUnreachable() {
+        assertTrue(HttpProxyPool.isProxyUnreachable(new ConnectException("Connection refused")));
+        assertTrue(HttpProxyPool.isProxyUnreachable(new UnknownHostException("proxy1")));
+        assertTrue(HttpProxyPool.isProxyUnreachable(new SocketTimeoutException("connect timed out")));
+        assertTrue(HttpProxyPool.isProxyUnreachable(new SocketTimeoutException("Connect timed out")));
+        assertFalse(HttpProxyPool.isProxyUnreachable(new SocketTimeoutException("Read timed out")));
+        assertFalse(HttpProxyPool.isProxyUnreachable(new IOException("Unable to tunnel through proxy. Proxy returns \"HTTP/1.1 502 Bad Gateway\"")));
+    }
+
+    @Test
+    public void testAllDownStillSelects() {
+        HttpProxyPool pool = new HttpProxyPool(Arrays.asList(InetSocketAddress.createUnresolved("proxy1", 911)));
+        Proxy proxy = pool.select();
+        pool.failed(proxy, new ConnectException("refused"));
+        assertSame(proxy, pool.select());
+    }
+
+    @Test
+    public void testForSetup() throws Exception {
+        HttpSetupMessage setupMessage = new HttpSetupMessage(new URI("ndn:/test/return"));
+        setupMessage.connectionUrl = new URL("http://upstream.test/");
+        assertNull(HttpProxyPool.forSetup(setupMessage));
+
+        setupMessage.proxyHost = "proxy1";
+        setupMessage.proxyPort = 911;
+        setupMessage.proxies = Arrays.asList("proxy1:911", "proxy2:8080", "proxy3:3128");
+        assertNull(setupMessage.onValidate(null));
+        assertEquals(3, HttpProxyPool.forSetup(setupMessage).size());
+
+        setupMessage.proxies = Arrays.asList("proxy2");
+        assertEquals("SetupCommand: Proxy [proxy2] is not host:port", setupMessage.onValidate(null));
+        setupMessage.proxies = Arrays.asList("proxy2:port");
+        assertEquals("SetupCommand: Proxy [proxy2:port] has no valid port", setupMessage.onValidate(null));
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX, setupMessage.status);
+    }
+
+    @Test
+    public void testHealthCheck() throws IOException {
+        try (ServerSocket up = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            HttpProxyPool pool = new HttpProxyPool(Arrays.asList(InetSocketAddress.createUnresolved("127.0.0.1", up.getLocalPort()),
+                    InetSocketAddress.createUnresolved("127.0.0.1", closedPort())));
+            Proxy first = pool.select();
+            pool.failed(first, new ConnectException("refused"));
+            Proxy second = pool.select();
+
+            HttpPollTimer timer = new HttpPollTimer();
+            try {
+                pool.start(timer, 1, TimeUnit.HOURS, 0, Runnable::run);
+                throw new AssertionError("A check without a timeout could hang");
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+            pool.start(timer, 1, TimeUnit.HOURS, 1000, Runnable::run);
+            pool.check();
+            pool.stop();
+            timer.shutdown();
+            assertTrue(pool.isUp(first));
+            assertFalse(pool.isUp(second));
+        }
+    }
+
+    @Test
+    public void testFailoverOnConnectError() throws IOException {
+        // The local server answers the absolute URI of a proxied request, so it serves as a plain http proxy.
+        AtomicReference<String> requested = new AtomicReference<>();
+        HttpServer proxyServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        proxyServer.createContext("/", exchange -> {
+            requested.set(exchange.getRequestURI().toString());
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        proxyServer.start();
+        try {
+            HttpSetupMessage setupMessage = new HttpSetupMessage();
+            setupMessage.connectionUrl = new URL("http://upstream.test/api");
+            setupMessage.proxies = Arrays.asList("127.0.0.1:" + closedPort(), "127.0.0.1:" + proxyServer.getAddress().getPort());
+            HttpProxyPool pool = HttpProxyPool.forSetup(setupMessage);
+
+            HttpDataMessage dataMessage = new HttpDataMessage(1);
+            dataMessage.httpRequest = "GET";
+            dataMessage.requestHeaders = new HashMap<>();
+            new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, new HttpChannelCache(null, 0, 0, TimeUnit.SECONDS), new HttpBridgeMetrics(),
+                    new HttpBridgeSettings(), new HttpAccessLog(), null, pool).executeCommand(dataMessage);
+
+            assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+            assertEquals(200, dataMessage.responseCode);
+            assertEquals("http://upstream.test/api", requested.get());
+            Proxy proxy = pool.select();
+            assertEquals(proxyServer.getAddress().getPort(), ((InetSocketAddress) proxy.address()).getPort());
+            assertSame(proxy, pool.select());
+        } finally {
+            proxyServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testTunnelRefusedIsNotAProxyFailure() throws Exception {
+        // The proxy is up, but answers the CONNECT of the https connection with 502 as the server is down.
+        AtomicInteger tunnels = new AtomicInteger();
+        try (ServerSocket proxySocket = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+                ServerSocket otherSocket = new ServerSocket(0, 5, InetAddress.getLoopbackAddress())) {
+            Thread proxyThread = new Thread(() -> {
+                while (true) {
+                    try (Socket socket = proxySocket.accept()) {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                        String line;
+                        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                            // Skip the CONNECT request.
+                        }
+                        tunnels.incrementAndGet();
+                        socket.getOutputStream().write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            proxyThread.setDaemon(true);
+            proxyThread.start();
+
+            HttpSetupMessage setupMessage = new HttpSetupMessage();
+            setupMessage.connectionUrl = new URL("https://upstream.test/api");
+            setupMessage.proxies = Arrays.asList("127.0.0.1:" + proxySocket.getLocalPort(), "127.0.0.1:" + otherSocket.getLocalPort());
+            HttpProxyPool pool = HttpProxyPool.forSetup(setupMessage);
+            Proxy proxy = pool.select();
+
+            HttpDataMessage dataMessage = new HttpDataMessage(1);
+            dataMessage.httpRequest = "GET";
+            dataMessage.requestHeaders = new HashMap<>();
+            new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, new HttpChannelCache(null, 0, 0, TimeUnit.SECONDS), new HttpBridgeMetrics(),
+                    new HttpBridgeSettings(), new HttpAccessLog(), null, pool).executeCommand(dataMessage);
+
+            assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_IO, dataMessage.status);
+            assertEquals(1, tunnels.get());
+            assertTrue(pool.isUp(proxy));
+            assertSame(proxy, pool.select());
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_PRIORITY;
+
+/**
+ * Unit tests for the priority order, HIGH priority reservation, fairness, tenant limits and admission control of the request scheduler, the expiry of
+ * the commands that waited too long, and the change of the worker count.
+ */
+public class HttpRequestSchedulerTest {
+    private HttpRequestScheduler scheduler = null;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+
+    @Test
+    public void testHigherPriorityRunsFirst() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<HTTP_PRIORITY> order = new CopyOnWriteArrayList<>();
+
+        // Keep the only worker busy while the other commands are queued.
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        scheduler.submit(HTTP_PRIORITY.LOW, () -> { order.add(HTTP_PRIORITY.LOW); done.countDown(); });
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> { order.add(HTTP_PRIORITY.NORMAL); done.countDown(); });
+        scheduler.submit(HTTP_PRIORITY.HIGH, () -> { order.add(HTTP_PRIORITY.HIGH); done.countDown(); });
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(HTTP_PRIORITY.HIGH, order.get(0));
+        assertEquals(HTTP_PRIORITY.NORMAL, order.get(1));
+        assertEquals(HTTP_PRIORITY.LOW, order.get(2));
+    }
+
+    @Test
+    public void testReservedWorkerOnlyRunsHighPriority() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(2, 1, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch lowStarted = new CountDownLatch(1);
+        CountDownLatch highStarted = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.LOW, () -> await(blocker));
+        scheduler.submit(HTTP_PRIORITY.LOW, lowStarted::countDown);
+        assertFalse("Second LOW command must not take the reserved worker", lowStarted.await(200, TimeUnit.MILLISECONDS));
+
+        scheduler.submit(HTTP_PRIORITY.HIGH, highStarted::countDown);
+        assertTrue(highStarted.await(5, TimeUnit.SECONDS));
+
+        blocker.countDown();
+        assertTrue(lowStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testConnectionsAreServedInTurns() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(12);
+        List<Long> order = new CopyOnWriteArrayList<>();
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        // Connection 1 floods, connection 2 has weight 2 and submits later.
+        for (int i = 0; i < 8; i++)
+            scheduler.submit(HTTP_PRIORITY.NORMAL, 1, "a", 1, () -> { order.add(1L); done.countDown(); });
+        for (int i = 0; i < 4; i++)
+            scheduler.submit(HTTP_PRIORITY.NORMAL, 2, "b", 2, () -> { order.add(2L); done.countDown(); });
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Turns of one command for connection 1 and two for connection 2, until connection 2 is drained.
+        assertEquals(1L, (long) order.get(0));
+        assertEquals(2L, (long) order.get(1));
+        assertEquals(2L, (long) order.get(2));
+        assertEquals(1L, (long) order.get(3));
+        assertEquals(2L, (long) order.get(4));
+        assertEquals(2L, (long) order.get(5));
+    }
+
+    @Test
+    public void testTenantLimit() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(3, 0, 1, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        CountDownLatch otherTenantStarted = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, 1, "noisy", 1, () -> { firstStarted.countDown(); await(blocker); });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        // A second connection of the same tenant must wait, another tenant must not.
+        scheduler.submit(HTTP_PRIORITY.NORMAL, 2, "noisy", 1, secondStarted::countDown);
+        scheduler.submit(HTTP_PRIORITY.NORMAL, 3, "quiet", 1, otherTenantStarted::countDown);
+        assertTrue(otherTenantStarted.await(5, TimeUnit.SECONDS));
+        assertFalse("Tenant limit exceeded", secondStarted.await(200, TimeUnit.MILLISECONDS));
+
+        blocker.countDown();
+        assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFullQueueRejects() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 1, 2, 0, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> { started.countDown(); await(blocker); });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> { });
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> { });
+        try {
+            scheduler.submit(HTTP_PRIORITY.LOW, () -> { });
+            fail("Submit to a full queue should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, scheduler.getRejectedCount());
+        }
+
+        // The backlog of lower priorities does not reject HIGH commands, they have their own slots.
+        scheduler.submit(HTTP_PRIORITY.HIGH, () -> { });
+        scheduler.submit(HTTP_PRIORITY.HIGH, () -> { });
+        assertEquals(4, scheduler.getQueueDepth());
+        try {
+            scheduler.submit(HTTP_PRIORITY.HIGH, () -> { });
+            fail("Submit to a full HIGH queue should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(2, scheduler.getRejectedCount());
+        }
+        blocker.countDown();
+    }
+
+    @Test
+    public void testBackgroundRequestsDoNotTakeTheRoomOfCommands() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 1, 2, 0, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(5);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> { started.countDown(); await(blocker); });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.submitBackground(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+        scheduler.submitBackground(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+        try {
+            scheduler.submitBackground(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+            fail("Submit to a full background queue should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, scheduler.getRejectedCount());
+        }
+
+        // The waiting polls do not reject the commands of the clients.
+        scheduler.submit(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+        scheduler.submit(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+        scheduler.submit(HTTP_PRIORITY.HIGH, 1, "a", 1, ran::countDown);
+        assertEquals(5, scheduler.getQueueDepth());
+        blocker.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void testHighCommandDoesNotExpire() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 1, 10, 50, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch expired = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        scheduler.submit(HTTP_PRIORITY.HIGH, 1, "a", 1, ran::countDown, expired::countDown);
+        Thread.sleep(200);
+        blocker.countDown();
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, expired.getCount());
+        assertEquals(0, scheduler.getExpiredCount());
+    }
+
+    @Test
+    public void testExpiredCommandIsNotRun() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 1, 10, 50, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch expired = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        scheduler.submit(HTTP_PRIORITY.NORMAL, 1, "a", 1, ran::countDown, expired::countDown);
+        Thread.sleep(200);
+        blocker.countDown();
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.getCount());
+        assertEquals(1, scheduler.getExpiredCount());
+    }
+
+    @Test
+    public void testOverdueCommandIsRejectedWhileEveryWorkerIsBusy() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(2, 0, 2, 10, 100, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+        sweeper.scheduleWithFixedDelay(scheduler::expireOverdue, 20, 20, TimeUnit.MILLISECONDS);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch expired = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(2);
+        CountDownLatch wrong = new CountDownLatch(1);
+        try {
+            scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+            scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+            awaitRunning(2);
+            long start = System.nanoTime();
+            scheduler.submit(HTTP_PRIORITY.LOW, 1, "a", 1, wrong::countDown, expired::countDown);
+            scheduler.submit(HTTP_PRIORITY.HIGH, 1, "a", 1, ran::countDown, wrong::countDown);
+            scheduler.submitBackground(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+
+            assertTrue(expired.await(1, TimeUnit.SECONDS));
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Rejected after " + waitedMillis + " ms", waitedMillis < 500);
+            assertEquals(1, scheduler.getExpiredCount());
+            assertEquals(2, scheduler.getQueueDepth());
+        } finally {
+            blocker.countDown();
+            sweeper.shutdownNow();
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals("The overdue command ran or the HIGH command expired", 1, wrong.getCount());
+    }
+
+    @Test
+    public void testOrderedCommandsWaitInTheQueue() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(4, 0, 4, 3, 0, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+
+        scheduler.submitOrdered(HTTP_PRIORITY.NORMAL, 1, "a", 1, () -> await(blocker), null);
+        awaitRunning(1);
+        for (int i = 1; i <= 3; i++) {
+            int sequence = i;
+            scheduler.submitOrdered(HTTP_PRIORITY.NORMAL, 1, "a", 1, () -> { order.add(sequence); done.countDown(); }, null);
+        }
+        Thread.sleep(100);
+        // The workers are free, but the connection waits for its running command. Its commands count against the queue limit.
+        assertEquals(3, scheduler.getQueueDepth());
+        try {
+            scheduler.submitOrdered(HTTP_PRIORITY.NORMAL, 1, "a", 1, () -> { }, null);
+            fail("Queue is full");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        CountDownLatch other = new CountDownLatch(1);
+        scheduler.submit(HTTP_PRIORITY.HIGH, 2, "b", 1, other::countDown, null);
+        assertTrue("Another connection is not held", other.await(5, TimeUnit.SECONDS));
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3), order);
+    }
+
+    @Test
+    public void testCancelRejectsTheWaitingCommandsOfAConnection() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 1, 10, 0, TimeUnit.MILLISECONDS, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(2);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        awaitRunning(1);
+        scheduler.submitOrdered(HTTP_PRIORITY.NORMAL, 1, "a", 1, ran::countDown, cancelled::countDown);
+        scheduler.submit(HTTP_PRIORITY.HIGH, 1, "a", 1, ran::countDown, cancelled::countDown);
+        scheduler.submitBackground(HTTP_PRIORITY.LOW, 1, "a", 1, ran::countDown);
+        scheduler.submit(HTTP_PRIORITY.NORMAL, 2, "b", 1, ran::countDown, null);
+
+        assertEquals(3, scheduler.cancel(1));
+        assertEquals(0, cancelled.getCount());
+        assertEquals(1, scheduler.getQueueDepth());
+        blocker.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getExpiredCount());
+    }
+
+    @Test
+    public void testWorkersAreAddedWhileRunning() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(1, 0, 3, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++)
+            scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        awaitRunning(1);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        scheduler.setWorkerCount(3);
+        awaitRunning(3);
+        assertEquals(3, scheduler.getWorkerCount());
+        assertEquals(0, scheduler.getQueueDepth());
+        blocker.countDown();
+    }
+
+    @Test
+    public void testSurplusWorkersExitWhenLowered() throws InterruptedException {
+        scheduler = new HttpRequestScheduler(3, 1, getClass().getClassLoader());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        for (int i = 0; i < 2; i++)
+            scheduler.submit(HTTP_PRIORITY.NORMAL, () -> await(blocker));
+        awaitRunning(2);
+
+        scheduler.setWorkerCount(2);
+        assertEquals(2, scheduler.getWorkerCount());
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(HTTP_PRIORITY.NORMAL, () -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                sleep(20);
+                inFlight.decrementAndGet();
+                done.countDown();
+            });
+        }
+        Thread.sleep(50);
+        assertEquals("Lower priorities must wait for the reservation of the new count", 4, scheduler.getQueueDepth());
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxInFlight.get());
+        try {
+            scheduler.setWorkerCount(1);
+            fail("The reserved workers must leave room for the other priorities");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid worker count [1]", e.getMessage());
+        }
+        assertEquals(2, scheduler.getWorkerCount());
+    }
+
+    private void awaitRunning(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getRunningCount() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(count, scheduler.getRunningCount());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSegmentMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs segmented downloads against a local server that answers range requests.
+ */
+public class HttpSegmentedDownloadTest {
+    private final byte[] body = new byte[10000];
+    private final HttpTestNode testNode = new HttpTestNode();
+    private final List<Object> published = testNode.getPublished();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean ranges = true;
+    private volatile int failSegmentOnce = -1;
+    private volatile String etag = "\"v1\"";
+    private volatile int wrongRangeSegment = -1;
+    private HttpServer server = null;
+    private HttpSetupMessage setupMessage = null;
+    private HttpBridgeSettings settings = null;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(body);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/firmware.bin");
+        settings = new HttpBridgeSettings();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (etag != null)
+            exchange.getResponseHeaders().set("ETag", etag);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (!ranges || range == null || (ifRange != null && !ifRange.equals(etag))) {
+                exchange.sendResponseHeaders(200, body.length);
+                os.write(body);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            int end = Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+            if (start / 1000 == wrongRangeSegment) {
+                // A broken cache answering the first segment for any range.
+                start = 0;
+                end = 999;
+            }
+            if (start / 1000 == failSegmentOnce) {
+                failSegmentOnce = -1;
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            os.write(body, start, end - start + 1);
+        }
+    }
+
+    private HttpDataMessage download(boolean indexed) throws Exception {
+        HttpDataMessage dataMessage = command(indexed);
+        HttpChannelCache channelCache = new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS);
+        new HttpCommandExecutor(LogManager.getLogger(), null, setupMessage, channelCache, new HttpBridgeMetrics(), settings).executeCommand(dataMessage);
+        return dataMessage;
+    }
+
+    private HttpDataMessage command(boolean indexed) throws Exception {
+        HttpDataMessage dataMessage = new HttpDataMessage(1);
+        dataMessage.httpRequest = "GET";
+        dataMessage.requestHeaders = new HashMap<>();
+        dataMessage.outputHttpChannelURI = new URI("ndn:/test/firmware");
+        dataMessage.parallelSegments = 3;
+        dataMessage.segmentBytes = 1000;
+        dataMessage.indexedSegments = indexed;
+        return dataMessage;
+    }
+
+    private byte[] concatenated() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object message : published) {
+            bytes.write(((BytesMessage) message).getBytes());
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testSegmentsArePublishedInOrder() throws Exception {
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(200, dataMessage.responseCode);
+        assertEquals(10, published.size());
+        assertArrayEquals(body, concatenated());
+        assertEquals(10, requests.get());
+        assertEquals("10000", dataMessage.responseHeaders.get("Content-Length").get(0));
+    }
+
+    @Test
+    public void testFailedSegmentIsRetried() throws Exception {
+        failSegmentOnce = 7;
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertArrayEquals(body, concatenated());
+        assertEquals(11, requests.get());
+    }
+
+    @Test
+    public void testIndexedSegments() throws Exception {
+        HttpDataMessage dataMessage = download(true);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(10, published.size());
+        byte[] assembled = new byte[body.length];
+        for (Object message : published) {
+            HttpSegmentMessage segment = (HttpSegmentMessage) message;
+            assertEquals(10, segment.count);
+            assertEquals(body.length, segment.totalBytes);
+            System.arraycopy(segment.bytes, 0, assembled, (int) segment.offset, segment.bytes.length);
+        }
+        assertArrayEquals(body, assembled);
+    }
+
+    @Test
+    public void testServerWithoutRanges() throws Exception {
+        ranges = false;
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertEquals(1, published.size());
+        assertArrayEquals(body, concatenated());
+    }
+
+    @Test
+    public void testBodyChangedDuringTheDownload() throws Exception {
+        server.removeContext("/");
+        server.createContext("/", exchange -> {
+            handle(exchange);
+            etag = "\"v2\"";
+        });
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, dataMessage.status);
+    }
+
+    @Test
+    public void testWorkersShareTheSegmentExecutor() throws Exception {
+        settings.setSegmentThreads(1);
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.OK, dataMessage.status);
+        assertArrayEquals(body, concatenated());
+        assertTrue(settings.getSegmentExecutor().getQueue().isEmpty());
+        assertEquals(1, settings.getSegmentExecutor().getLargestPoolSize());
+    }
+
+    @Test
+    public void testBodyWithoutValidatorIsRefused() throws Exception {
+        etag = null;
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, dataMessage.status);
+        assertEquals(1, requests.get());
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void testSegmentAtTheWrongOffsetFails() throws Exception {
+        wrongRangeSegment = 4;
+        HttpDataMessage dataMessage = download(false);
+
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_RESPONSE, dataMessage.status);
+        assertEquals(-1, HttpSegmentedDownload.parseStart("bytes */10000"));
+        assertEquals(4000, HttpSegmentedDownload.parseStart("bytes 4000-4999/10000"));
+    }
+
+    @Test
+    public void testParallelSegmentsAreCapped() throws Exception {
+        HttpConnectionTask task = new HttpConnectionTask(null, setupMessage, null, null, null, null, settings, null, null);
+        HttpDataMessage dataMessage = command(false);
+        settings.setMaxParallelSegments(3);
+        assertNull(dataMessage.onValidate(task));
+
+        settings.setMaxParallelSegments(2);
+        assertEquals("DataCommand parallelSegments must not be more than [2]", dataMessage.onValidate(task));
+        assertEquals(HTTP_BRIDGE_STATUS.ERROR_ON_SYNTAX, dataMessage.status);
+    }
+}
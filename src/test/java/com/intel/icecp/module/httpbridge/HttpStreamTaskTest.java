@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpBaseMessage.HTTP_BRIDGE_STATUS;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSubscribeMessage;
+import com.intel.icecp.module.httpbridge.message.HttpSubscribeMessage.STREAM_FORMAT;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for the parsing, resuming and ending of streams.
+ */
+public class HttpStreamTaskTest {
+    private static final Logger logger = LogManager.getLogger();
+
+    private HttpSetupMessage setupMessage = null;
+    private HttpSubscribeMessage message = null;
+    private final List<String> published = new ArrayList<>();
+    private HttpStreamTask ended = null;
+
+    @Before
+    public void setUp() throws Exception {
+        setupMessage = new HttpSetupMessage();
+        setupMessage.connectionUrl = new URL("http://127.0.0.1/");
+        message = new HttpSubscribeMessage(3);
+    }
+
+    @Test
+    public void testSseEvents() throws Exception {
+        read(": comment\r\nid: 1\r\ndata: first\r\ndata: line\r\n\r\nevent: tick\ndata:second\n\nid: 2\n\ndata: partial");
+
+        assertEquals(2, published.size());
+        assertEquals("first\nline", published.get(0));
+        assertEquals("second", published.get(1));
+        assertEquals("2", ended.getEndMessage().lastEventId);
+        assertEquals(2, ended.getEndMessage().events);
+    }
+
+    @Test
+    public void testNdjsonLines() throws Exception {
+        message.format = STREAM_FORMAT.NDJSON;
+        read("{\"a\":1}\n\n{\"a\":2}\r\n");
+
+        assertEquals(2, published.size());
+        assertEquals("{\"a\":1}", published.get(0));
+        assertEquals("{\"a\":2}", published.get(1));
+    }
+
+    @Test
+    public void testResumesWithLastEventId() throws Exception {
+        List<String> lastEventIds = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            lastEventIds.add(lastEventId);
+            if ("3".equals(lastEventId)) {
+                // No more events, the client must not reconnect.
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            String events = lastEventId == null ? "retry: 10\nid: 1\ndata: one\n\nid: 2\ndata: two\n\n" : "id: 3\ndata: three\n\n";
+            byte[] body = events.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        try {
+            setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/events");
+            message.maxReconnects = 1;
+            HttpStreamTask stream = stream();
+            stream.run();
+
+            assertTrue(stream.awaitEnd(0, TimeUnit.SECONDS));
+            assertEquals(3, published.size());
+            assertEquals("three", published.get(2));
+            assertEquals(3, lastEventIds.size());
+            assertEquals("2", lastEventIds.get(1));
+            assertEquals("3", lastEventIds.get(2));
+            HttpSubscribeMessage end = ended.getEndMessage();
+            assertTrue(end.ended);
+            assertEquals(HTTP_BRIDGE_STATUS.OK, end.status);
+            assertEquals(204, end.responseCode);
+            assertEquals("3", end.lastEventId);
+            assertEquals(3, end.events);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testEndMessageHasTheResponseCodeOfTheOpenedStream() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "id: 1\ndata: one\n\n".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        try {
+            setupMessage.connectionUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/events");
+            message.outputHttpChannelURI = URI.create("ndn:/test/events");
+            message.maxReconnects = 0;
+            HttpTestNode testNode = new HttpTestNode();
+            HttpStreamTask stream = stream(new HttpChannelCache(testNode.getNode(), 0, 0, TimeUnit.SECONDS));
+            assertTrue(stream.open());
+            assertEquals(200, message.responseCode);
+            // The stream opened by open() is read without connecting again.
+            stream.run();
+
+            HttpSubscribeMessage end = ended.getEndMessage();
+            assertEquals(1, end.events);
+            assertEquals(200, end.responseCode);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void read(String body) throws Exception {
+        HttpStreamTask stream = stream();
+        stream.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        ended = stream;
+    }
+
+    private HttpStreamTask stream() {
+        return stream(null);
+    }
+
+    private HttpStreamTask stream(HttpChannelCache channelCache) {
+        HttpCommandExecutor executor = new HttpCommandExecutor(logger, null, setupMessage, null, new HttpBridgeMetrics(), new HttpBridgeSettings());
+        return new HttpStreamTask(executor, setupMessage, channelCache, message, stream -> ended = stream) {
+            @Override
+            protected void publish(byte[] bytes) {
+                published.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
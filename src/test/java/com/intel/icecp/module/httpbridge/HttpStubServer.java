@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local http server standing in for the upstream servers in load tests. Every request gets a 200 response with a body of a fixed size.
+ *
+ */
+public class HttpStubServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] body;
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     *
+     * @param bodyBytes
+     *            The size of the response bodies
+     * @param threads
+     *            The number of threads serving the requests
+     * @throws IOException
+     *             The server could not be started
+     */
+    public HttpStubServer(int bodyBytes, int threads) throws IOException {
+        body = new byte[bodyBytes];
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "HttpStubServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return The url of the server.
+     */
+    public URL getUrl() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Answer a request. Overridden to change the response.
+     *
+     * @param exchange
+     *            The request and response
+     * @throws IOException
+     *             The exchange failed
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        countRequest();
+        drain(exchange);
+        respond(exchange, 200, body);
+    }
+
+    /**
+     * Count a request received, for {@link #getRequestCount()}.
+     */
+    protected void countRequest() {
+        requests.increment();
+    }
+
+    /**
+     * Read and discard the request body.
+     */
+    protected static void drain(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream is = exchange.getRequestBody()) {
+            while (is.read(buffer) != -1) {
+                // Discard.
+            }
+        }
+    }
+
+    /**
+     * Send a response and close the exchange. No body is sent for a HEAD request.
+     */
+    protected static void respond(HttpExchange exchange, int code, byte[] responseBody) throws IOException {
+        boolean hasBody = responseBody.length > 0 && !"HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(code, hasBody ? responseBody.length : -1);
+        if (hasBody) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBody);
+            }
+        }
+        exchange.close();
+    }
+
+    /**
+     * @return The body of the normal responses.
+     */
+    protected byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
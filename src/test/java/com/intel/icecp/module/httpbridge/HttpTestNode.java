@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.Node;
+import com.intel.icecp.core.misc.OnPublish;
+
+/**
+ * A node of in-memory channels standing in for the ICECP node in unit tests. A message published is recorded, and delivered to the subscribers of its
+ * channel on the publishing thread; latest() returns the last message published on the channel.
+ *
+ */
+public class HttpTestNode {
+    private final List<Object> published = new CopyOnWriteArrayList<>();
+    private final Map<URI, List<OnPublish<Object>>> subscribers = new ConcurrentHashMap<>();
+    private final Map<URI, Object> latest = new ConcurrentHashMap<>();
+    private final List<URI> opened = new CopyOnWriteArrayList<>();
+    private final List<URI> closed = new CopyOnWriteArrayList<>();
+    private final Node node = (Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class<?>[] { Node.class }, (proxy, method, args) -> {
+        if (!method.getName().equals("openChannel"))
+            throw new UnsupportedOperationException(method.getName());
+        opened.add((URI) args[0]);
+        return channel((URI) args[0]);
+    });
+
+    /**
+     * @return The node.
+     */
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * @return The messages published on any channel, in order. The list may be cleared.
+     */
+    public List<Object> getPublished() {
+        return published;
+    }
+
+    /**
+     * @return The channels opened on the node, in order, once per open.
+     */
+    public List<URI> getOpened() {
+        return opened;
+    }
+
+    /**
+     * @return The channels closed, in order, once per close.
+     */
+    public List<URI> getClosed() {
+        return closed;
+    }
+
+    /**
+     * Publish a message on a channel, as another node would.
+     *
+     * @param channelURI
+     *            The channel.
+     * @param message
+     *            The message.
+     */
+    public void publish(URI channelURI, Object message) {
+        published.add(message);
+        latest.put(channelURI, message);
+        for (OnPublish<Object> callback : subscribers.getOrDefault(channelURI, new ArrayList<>())) {
+            callback.onPublish(message);
+        }
+    }
+
+    /**
+     * Subscribe to a channel, as another node would.
+     *
+     * @param channelURI
+     *            The channel.
+     * @param callback
+     *            Called with each message published on the channel, on the publishing thread.
+     */
+    public void subscribe(URI channelURI, OnPublish<Object> callback) {
+        subscribers.computeIfAbsent(channelURI, k -> new CopyOnWriteArrayList<>()).add(callback);
+    }
+
+    /**
+     * @param channelURI
+     *            The channel.
+     * @return True if something subscribed to the channel.
+     */
+    public boolean isSubscribed(URI channelURI) {
+        return !subscribers.getOrDefault(channelURI, new ArrayList<>()).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Channel<?> channel(URI channelURI) {
+        return (Channel<?>) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "publish":
+                publish(channelURI, args[0]);
+                return null;
+            case "subscribe":
+                subscribe(channelURI, (OnPublish<Object>) args[0]);
+                return null;
+            case "latest":
+                Object message = latest.get(channelURI);
+                return message != null ? CompletableFuture.completedFuture(message) : new CompletableFuture<>();
+            case "getName":
+                return channelURI;
+            case "isOpen":
+                return true;
+            case "close":
+                closed.add(channelURI);
+                return null;
+            default:
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the WebSocket client, against a small echo server.
+ */
+public class HttpWebSocketTest {
+    private EchoServer server = null;
+    private HttpWebSocket webSocket = null;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EchoServer();
+        webSocket = new HttpWebSocket(1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        webSocket.close();
+        server.close();
+    }
+
+    @Test
+    public void testHandshakeAndEcho() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer test");
+        assertEquals(101, webSocket.open(server.getUrl(), null, 0, headers, "echo", 1000));
+        assertEquals("echo", webSocket.getSubprotocol());
+        assertEquals("Bearer test", server.authorization);
+
+        webSocket.send(true, "hello".getBytes(StandardCharsets.UTF_8));
+        HttpWebSocket.Frame frame = webSocket.read();
+        assertTrue(frame.isText());
+        assertEquals("hello", new String(frame.getPayload(), StandardCharsets.UTF_8));
+
+        byte[] large = new byte[1000];
+        large[999] = 7;
+        webSocket.send(false, large);
+        frame = webSocket.read();
+        assertFalse(frame.isText());
+        assertArrayEquals(large, frame.getPayload());
+    }
+
+    @Test
+    public void testFragmentsAreReassembledAndPingsAnswered() throws Exception {
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        webSocket.send(true, "fragment".getBytes(StandardCharsets.UTF_8));
+
+        HttpWebSocket.Frame frame = webSocket.read();
+        assertEquals("fragment", new String(frame.getPayload(), StandardCharsets.UTF_8));
+        assertTrue(server.pongReceived.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClosingHandshake() throws Exception {
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, "done");
+
+        assertNull(webSocket.read());
+        assertTrue(webSocket.isCloseReceived());
+        assertEquals(HttpWebSocket.CLOSE_NORMAL, webSocket.getCloseCode());
+    }
+
+    @Test
+    public void testCloseWithoutStatusIsAnsweredWithoutStatus() throws Exception {
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        webSocket.send(true, "close".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(webSocket.read());
+        assertEquals(HttpWebSocket.CLOSE_NO_STATUS, webSocket.getCloseCode());
+        assertTrue(server.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, server.closePayload.length);
+    }
+
+    @Test
+    public void testCloseWithAOneBytePayloadIsAProtocolError() throws Exception {
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        webSocket.send(true, "badclose".getBytes(StandardCharsets.UTF_8));
+        try {
+            webSocket.read();
+            throw new AssertionError("A 1 byte close payload must fail");
+        } catch (IOException e) {
+            assertEquals(HttpWebSocket.CLOSE_PROTOCOL_ERROR, webSocket.getCloseCode());
+        }
+        assertTrue(server.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpWebSocket.CLOSE_PROTOCOL_ERROR, ByteBuffer.wrap(server.closePayload).getShort());
+    }
+
+    @Test
+    public void testCloseDoesNotWaitForABlockedSend() throws Exception {
+        server.stall = true;
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        CountDownLatch sendFailed = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            try {
+                while (true) {
+                    webSocket.send(false, new byte[65536]);
+                }
+            } catch (IOException e) {
+                sendFailed.countDown();
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+        // The server reads nothing, the sender ends up blocked in a send.
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        try {
+            webSocket.close(HttpWebSocket.CLOSE_GOING_AWAY, "stop");
+            throw new AssertionError("The close frame cannot be sent");
+        } catch (IOException e) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        }
+        assertTrue(sendFailed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMessageTooLarge() throws Exception {
+        webSocket.open(server.getUrl(), null, 0, null, null, 1000);
+        webSocket.send(false, new byte[2000]);
+        try {
+            webSocket.read();
+        } catch (IOException e) {
+            assertEquals(HttpWebSocket.CLOSE_TOO_BIG, webSocket.getCloseCode());
+            return;
+        }
+        throw new AssertionError("A message over the limit must fail");
+    }
+
+    @Test
+    public void testRefusedHandshake() throws Exception {
+        server.refuse = true;
+        assertEquals(403, webSocket.open(server.getUrl(), null, 0, null, null, 1000));
+    }
+
+    @Test
+    public void testSecureHandshake() throws Exception {
+        SSLContext context = sslContext();
+        server.close();
+        server = new EchoServer(context.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress()));
+        webSocket = new HttpWebSocket(1024, context.getSocketFactory());
+
+        assertEquals(101, webSocket.open(new URL("https://localhost:" + server.getPort() + "/ws"), null, 0, null, null, 5000));
+        webSocket.send(true, "hello".getBytes(StandardCharsets.UTF_8));
+        assertEquals("hello", new String(webSocket.read().getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSecureHostMismatch() throws Exception {
+        // The certificate is trusted but is for localhost, not for 127.0.0.1.
+        SSLContext context = sslContext();
+        server.close();
+        server = new EchoServer(context.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress()));
+        webSocket = new HttpWebSocket(1024, context.getSocketFactory());
+        try {
+            webSocket.open(new URL("https://127.0.0.1:" + server.getPort() + "/ws"), null, 0, null, null, 5000);
+        } catch (SSLHandshakeException e) {
+            assertNull(server.authorization);
+            return;
+        }
+        throw new AssertionError("A certificate for another host must fail the handshake");
+    }
+
+    /**
+     * @return A TLS context with the self-signed localhost certificate of the test resources as key and trust store.
+     */
+    private static SSLContext sslContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream is = HttpWebSocketTest.class.getResourceAsStream("/localhost.jks")) {
+            keyStore.load(is, "changeit".toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "changeit".toCharArray());
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Echoes each message of one client. The message "fragment" is echoed in two fragments with a ping between them, the message "close" is
+     * answered with a close frame without a status, and the message "badclose" with a close frame of a 1 byte payload.
+     */
+    private static class EchoServer implements AutoCloseable {
+        private final ServerSocket serverSocket;
+        final CountDownLatch pongReceived = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        volatile byte[] closePayload = null;
+        volatile boolean refuse = false;
+        volatile boolean stall = false;
+        volatile String authorization = null;
+
+        EchoServer() throws IOException {
+            this(new ServerSocket(0, 1, InetAddress.getLoopbackAddress()));
+        }
+
+        EchoServer(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+            Thread thread = new Thread(this::serve, "EchoServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/ws?test=1");
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve() {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String key = null;
+                String protocol = null;
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    String[] header = line.split(":\\s*", 2);
+                    if (header[0].equalsIgnoreCase("Sec-WebSocket-Key"))
+                        key = header[1];
+                    else if (header[0].equalsIgnoreCase("Sec-WebSocket-Protocol"))
+                        protocol = header[1];
+                    else if (header[0].equalsIgnoreCase("Authorization"))
+                        authorization = header[1];
+                }
+                if (refuse) {
+                    out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    return;
+                }
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+                        + HttpWebSocket.accept(key) + "\r\n" + (protocol != null ? "Sec-WebSocket-Protocol: " + protocol + "\r\n" : "") + "\r\n")
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                if (stall) {
+                    stopped.await();
+                    return;
+                }
+                while (true) {
+                    int b0 = in.readUnsignedByte();
+                    int b1 = in.readUnsignedByte();
+                    int length = b1 & 0x7F;
+                    if (length == 126)
+                        length = in.readUnsignedShort();
+                    else if (length == 127)
+                        length = (int) in.readLong();
+                    byte[] mask = new byte[4];
+                    in.readFully(mask);
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    for (int i = 0; i < length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                    int opcode = b0 & 0x0F;
+                    if (opcode == HttpWebSocket.OPCODE_CLOSE) {
+                        closePayload = payload;
+                        closed.countDown();
+                        writeFrame(out, 0x80 | opcode, payload);
+                        return;
+                    } else if ("close".equals(new String(payload, StandardCharsets.UTF_8))) {
+                        writeFrame(out, 0x80 | HttpWebSocket.OPCODE_CLOSE, new byte[0]);
+                    } else if ("badclose".equals(new String(payload, StandardCharsets.UTF_8))) {
+                        writeFrame(out, 0x80 | HttpWebSocket.OPCODE_CLOSE, new byte[1]);
+                    } else if (opcode == HttpWebSocket.OPCODE_PONG) {
+                        pongReceived.countDown();
+                    } else if ("fragment".equals(new String(payload, StandardCharsets.UTF_8))) {
+                        writeFrame(out, opcode, "frag".getBytes(StandardCharsets.UTF_8));
+                        writeFrame(out, 0x80 | HttpWebSocket.OPCODE_PING, new byte[0]);
+                        writeFrame(out, 0x80 | HttpWebSocket.OPCODE_CONTINUATION, "ment".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        writeFrame(out, 0x80 | opcode, payload);
+                    }
+                }
+            } catch (IOException e) {
+                // The client is gone.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void writeFrame(OutputStream out, int b0, byte[] payload) throws IOException {
+            out.write(b0);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            }
+            out.write(payload);
+            out.flush();
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n' && b != -1) {
+                if (b != '\r')
+                    line.append((char) b);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stopped.countDown();
+            serverSocket.close();
+        }
+    }
+}
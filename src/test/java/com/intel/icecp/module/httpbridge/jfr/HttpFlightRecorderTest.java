@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.module.httpbridge.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.intel.icecp.module.httpbridge.message.HttpDataMessage;
+import com.intel.icecp.module.httpbridge.message.HttpRequestTiming;
+import com.intel.icecp.module.httpbridge.message.HttpSetupMessage;
+
+/**
+ * Unit tests for the flight recorder events when no recording has them enabled, and on a JVM without JFR.
+ */
+public class HttpFlightRecorderTest {
+
+    @Test
+    public void testNothingIsBuiltWithoutARecording() {
+        assertNull(HttpFlightRecorder.beginDataCommand());
+        assertNull(HttpFlightRecorder.beginSetup());
+        HttpFlightRecorder.endDataCommand(null, null, new HttpDataMessage(1), new HttpRequestTiming());
+        HttpFlightRecorder.endSetup(null, new HttpSetupMessage());
+        HttpFlightRecorder.teardown(1, "lease");
+        HttpFlightRecorder.rejection(1, "DataCommand", "queue full");
+    }
+
+    @Test
+    public void testEventsAreSkippedWithoutJfr() throws Exception {
+        try (WithoutJfrClassLoader loader = new WithoutJfrClassLoader()) {
+            Class<?> recorder = loader.loadClass(HttpFlightRecorder.class.getName());
+            recorder.getMethod("setDataCommandThreshold", long.class, TimeUnit.class).invoke(null, 10L, TimeUnit.MILLISECONDS);
+
+            assertNull(recorder.getMethod("beginDataCommand").invoke(null));
+            assertNull(recorder.getMethod("beginSetup").invoke(null));
+            for (Method method : recorder.getMethods()) {
+                if (method.getName().equals("endDataCommand"))
+                    method.invoke(null, null, null, null, null);
+                else if (method.getName().equals("endSetup"))
+                    method.invoke(null, null, null);
+            }
+            recorder.getMethod("teardown", long.class, String.class).invoke(null, 1L, "lease");
+            recorder.getMethod("rejection", long.class, String.class, String.class).invoke(null, 1L, "DataCommand", "queue full");
+
+            assertEquals(1, loader.lookedUp.stream().filter(name -> name.startsWith("jdk.jfr.")).count());
+            assertFalse("The event classes must not be loaded", loader.loaded.stream().anyMatch(name -> name.contains("Event")));
+        }
+    }
+
+    /**
+     * Loads the classes of the module itself, hiding the jdk.jfr package as on a JVM without JFR. Records the classes looked up and loaded.
+     */
+    private static class WithoutJfrClassLoader extends URLClassLoader {
+        final List<String> lookedUp = new CopyOnWriteArrayList<>();
+        final List<String> loaded = new CopyOnWriteArrayList<>();
+
+        WithoutJfrClassLoader() {
+            super(new URL[] { HttpFlightRecorder.class.getProtectionDomain().getCodeSource().getLocation() },
+                    HttpFlightRecorderTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            lookedUp.add(name);
+            if (name.startsWith("jdk.jfr."))
+                throw new ClassNotFoundException(name);
+            if (!name.startsWith(HttpFlightRecorder.class.getPackage().getName() + "."))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> type = findLoadedClass(name);
+                if (type == null) {
+                    type = findClass(name);
+                    loaded.add(name);
+                }
+                if (resolve)
+                    resolveClass(type);
+                return type;
+            }
+        }
+    }
+}